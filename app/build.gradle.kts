@@ -36,6 +36,11 @@ android {
     buildFeatures {
         viewBinding = true
     }
+
+    // JVM单元测试中android.util.Log等方法返回默认值，而不是抛出异常
+    testOptions {
+        unitTests.isReturnDefaultValues = true
+    }
     
     // 允许资源缺失
     lint {
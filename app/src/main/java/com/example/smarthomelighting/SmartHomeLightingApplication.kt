@@ -6,17 +6,14 @@ import android.content.BroadcastReceiver
 import android.content.Context
 import android.content.Intent
 import android.content.IntentFilter
-import android.net.ConnectivityManager
-import android.net.Network
-import android.net.NetworkCapabilities
-import android.net.NetworkRequest
-import android.os.Build
 import android.os.Bundle
 import android.os.Handler
 import android.os.Looper
 import android.util.Log
 import androidx.lifecycle.MutableLiveData
+import androidx.lifecycle.Observer
 import com.example.smarthomelighting.utils.MqttClientManager
+import com.example.smarthomelighting.utils.MqttConnectionHealth
 import org.json.JSONObject
 import java.util.Calendar
 
@@ -51,39 +48,13 @@ class SmartHomeLightingApplication : Application(), Application.ActivityLifecycl
         }
     }
     
-    // 添加定期检查相关变量
-    private val connectionCheckHandler = Handler(Looper.getMainLooper())
-    private val connectionCheckRunnable = object : Runnable {
-        override fun run() {
-            if (::mqttClientManager.isInitialized) {
-                if (!mqttClientManager.isConnected()) {
-                    Log.d(TAG, "检测到MQTT连接断开，尝试重新连接")
-                    mqttClientManager.connect()
-                }
-            }
-            connectionCheckHandler.postDelayed(this, 30000) // 每30秒检查一次
-        }
-    }
-    
-    // 添加网络回调
-    private val networkCallback = object : ConnectivityManager.NetworkCallback() {
-        override fun onAvailable(network: Network) {
-            super.onAvailable(network)
-            Log.d(TAG, "网络可用")
-            // 网络变化时，延迟3秒后检查连接并尝试重连
-            Handler(Looper.getMainLooper()).postDelayed({
-                if (::mqttClientManager.isInitialized) {
-                    if (!mqttClientManager.isConnected()) {
-                        Log.d(TAG, "网络变化后检测到连接断开，尝试重新连接")
-                        mqttClientManager.forceReconnect()
-                    }
-                }
-            }, 3000)
-        }
-
-        override fun onLost(network: Network) {
-            super.onLost(network)
-            Log.d(TAG, "网络断开")
+    // 连接状态跟随MQTT客户端的连接健康信号，不再定时轮询
+    private val connectionHealthObserver = Observer<MqttConnectionHealth> { health ->
+        connectionStatus.value = when (health) {
+            MqttConnectionHealth.CONNECTED -> "已连接"
+            MqttConnectionHealth.DEGRADED -> "连接不稳定"
+            MqttConnectionHealth.CONNECTING -> "正在连接..."
+            else -> "未连接"
         }
     }
     
@@ -163,14 +134,11 @@ class SmartHomeLightingApplication : Application(), Application.ActivityLifecycl
             Log.e(TAG, "启动MQTT后台服务失败: ${e.message}")
         }
         
-        // 启动定期检查
-        connectionCheckHandler.post(connectionCheckRunnable)
-        
-        // 注册锁屏和网络变化监听器
-        registerScreenAndNetworkReceiver()
+        // 注册锁屏监听器；网络变化由MqttClientManager自行监听
+        registerScreenReceiver()
     }
     
-    private fun registerScreenAndNetworkReceiver() {
+    private fun registerScreenReceiver() {
         try {
             // 注册屏幕状态广播接收器
             val screenFilter = IntentFilter().apply {
@@ -179,36 +147,6 @@ class SmartHomeLightingApplication : Application(), Application.ActivityLifecycl
             }
             registerReceiver(screenReceiver, screenFilter)
             Log.d(TAG, "已注册锁屏监听器")
-            
-            // 注册网络状态监听器（使用新的API替代已弃用的CONNECTIVITY_ACTION）
-            val connectivityManager = getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-                // Android 7.0及以上使用NetworkCallback
-                val networkRequest = NetworkRequest.Builder()
-                    .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
-                    .build()
-                connectivityManager.registerNetworkCallback(networkRequest, networkCallback)
-                Log.d(TAG, "已注册网络状态监听器(NetworkCallback)")
-            } else {
-                // 低版本Android继续使用广播接收器
-                @Suppress("DEPRECATION")
-                val networkFilter = IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION)
-                registerReceiver(object : BroadcastReceiver() {
-                    override fun onReceive(context: Context?, intent: Intent?) {
-                        Log.d(TAG, "网络状态变化(旧API)")
-                        // 网络状态变化时，延迟3秒后检查连接并尝试重连
-                        Handler(Looper.getMainLooper()).postDelayed({
-                            if (::mqttClientManager.isInitialized) {
-                                if (!mqttClientManager.isConnected()) {
-                                    Log.d(TAG, "网络变化后检测到连接断开，尝试重新连接")
-                                    mqttClientManager.forceReconnect()
-                                }
-                            }
-                        }, 3000)
-                    }
-                }, networkFilter)
-                Log.d(TAG, "已注册网络状态监听器(BroadcastReceiver)")
-            }
         } catch (e: Exception) {
             Log.e(TAG, "注册监听器失败: ${e.message}")
         }
@@ -219,11 +157,11 @@ class SmartHomeLightingApplication : Application(), Application.ActivityLifecycl
             // 连接状态更新
             connectionStatus.postValue("正在连接...")
             
-            // 创建MQTT客户端
+            // 创建MQTT客户端，首选服务器之后是设置中的备用服务器，首选服务器不可用时自动切换
             mqttClientManager = MqttClientManager(
                 applicationContext,
-                "k6dffa53.ala.cn-hangzhou.emqxsl.cn:8883", // 服务器地址
-                "android_${System.currentTimeMillis()}", // 唯一客户端ID
+                brokerEndpoints("k6dffa53.ala.cn-hangzhou.emqxsl.cn:8883"), // 服务器地址
+                stableClientId(), // 固定的客户端ID，服务器据此保留持久会话
                 "wan", // 用户名
                 "121337736", // 密码
                 true // 使用SSL
@@ -232,35 +170,12 @@ class SmartHomeLightingApplication : Application(), Application.ActivityLifecycl
             // 设置MQTT状态回调
             mqttClientManager.setCallback(object : MqttClientManager.MqttStatusCallback {
                 override fun onConnected() {
-                    connectionStatus.postValue("已连接")
                     Log.d(TAG, "MQTT连接成功")
-                    
-                    // 延迟1秒后订阅，确保连接完全建立
-                    Handler(Looper.getMainLooper()).postDelayed({
-                        // 订阅需要的主题
-                        try {
-                            mqttClientManager.subscribe("alarm", 1)
-                            mqttClientManager.subscribe("sensor/data", 1)
-                            mqttClientManager.subscribe("time", 1)
-                            mqttClientManager.subscribe("control", 1)
-                            Log.d(TAG, "所有主题订阅成功")
-                        } catch(e: Exception) {
-                            Log.e(TAG, "订阅主题失败: ${e.message}")
-                            // 再次尝试订阅
-                            retrySubscriptions()
-                        }
-                    }, 1000)
                 }
                 
                 override fun onConnectionFailed(error: String) {
-                    connectionStatus.postValue("未连接")
+                    // 重连由MqttClientManager的连接状态机负责
                     Log.e(TAG, "MQTT连接失败: $error")
-                    
-                    // 延迟5秒后重试连接
-                    Handler(Looper.getMainLooper()).postDelayed({
-                        Log.d(TAG, "尝试重新连接MQTT...")
-                        mqttClientManager.connect()
-                    }, 5000)
                 }
                 
                 override fun onMessageReceived(topic: String, message: String) {
@@ -272,20 +187,15 @@ class SmartHomeLightingApplication : Application(), Application.ActivityLifecycl
             // 设置单例实例
             MqttClientManager.setInstance(mqttClientManager)
             
-            // 连接MQTT服务器
-            try {
-                mqttClientManager.connect()
-                Log.d(TAG, "MQTT客户端开始连接...")
-            } catch (e: Exception) {
-                connectionStatus.postValue("未连接")
-                Log.e(TAG, "MQTT连接失败: ${e.message}")
-                
-                // 延迟5秒后重试连接
-                Handler(Looper.getMainLooper()).postDelayed({
-                    Log.d(TAG, "尝试重新连接MQTT...")
-                    mqttClientManager.connect()
-                }, 5000)
-            }
+            // 连接状态由连接健康信号驱动
+            mqttClientManager.connectionHealth.observeForever(connectionHealthObserver)
+            
+            // 订阅需要的主题，订阅记入登记表，连接建立后发送，重连时按会话状态自动恢复
+            mqttClientManager.subscribe(arrayOf("alarm", "sensor/data", "time", "control"), intArrayOf(1, 1, 1, 1))
+            
+            // 连接MQTT服务器，失败后由连接状态机按退避策略重连
+            mqttClientManager.connect()
+            Log.d(TAG, "MQTT客户端开始连接...")
         } catch (e: Exception) {
             connectionStatus.postValue("未连接")
             Log.e(TAG, "MQTT客户端初始化失败: ${e.message}")
@@ -293,26 +203,20 @@ class SmartHomeLightingApplication : Application(), Application.ActivityLifecycl
         }
     }
     
-    // 添加重试订阅方法
-    private fun retrySubscriptions() {
-        Handler(Looper.getMainLooper()).postDelayed({
-            if (::mqttClientManager.isInitialized && mqttClientManager.isConnected()) {
-                try {
-                    mqttClientManager.subscribe("alarm", 1)
-                    mqttClientManager.subscribe("sensor/data", 1)
-                    mqttClientManager.subscribe("time", 1)
-                    mqttClientManager.subscribe("control", 1)
-                    Log.d(TAG, "重试订阅主题成功")
-                } catch(e: Exception) {
-                    Log.e(TAG, "重试订阅主题失败: ${e.message}")
-                    // 再次尝试
-                    retrySubscriptions()
-                }
-            } else {
-                Log.d(TAG, "MQTT未连接，无法重试订阅")
-                // 如果还未连接，等待连接建立后会自动订阅
-            }
-        }, 3000) // 3秒后重试
+    // 首选服务器加上设置中保存的备用服务器（主机:端口，每行一个），去掉重复的地址
+    fun brokerEndpoints(primary: String): List<String> {
+        val prefs = getSharedPreferences("mqtt_settings", Context.MODE_PRIVATE)
+        val backups = prefs.getString("backup_servers", "") ?: ""
+        return (listOf(primary) + backups.split('\n', ',').map { it.trim() }.filter { it.isNotEmpty() }).distinct()
+    }
+    
+    // 首次启动时生成客户端ID并保存，之后每次启动使用同一个ID，持久会话才能在重启后继续
+    private fun stableClientId(): String {
+        val prefs = getSharedPreferences("mqtt_settings", Context.MODE_PRIVATE)
+        prefs.getString("app_client_id", null)?.let { return it }
+        val clientId = "android_${System.currentTimeMillis()}"
+        prefs.edit().putString("app_client_id", clientId).apply()
+        return clientId
     }
     
     // 开始发布时间
@@ -366,13 +270,6 @@ class SmartHomeLightingApplication : Application(), Application.ActivityLifecycl
             // 注销屏幕状态监听器
             unregisterReceiver(screenReceiver)
             Log.d(TAG, "已注销锁屏监听器")
-            
-            // 注销网络状态监听器
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-                val connectivityManager = getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
-                connectivityManager.unregisterNetworkCallback(networkCallback)
-                Log.d(TAG, "已注销网络状态监听器(NetworkCallback)")
-            }
         } catch (e: Exception) {
             Log.e(TAG, "注销监听器失败: ${e.message}")
         }
@@ -391,9 +288,10 @@ class SmartHomeLightingApplication : Application(), Application.ActivityLifecycl
             }
         }
         
-        // 停止定期检查
-        connectionCheckHandler.removeCallbacks(connectionCheckRunnable)
-        Log.d(TAG, "停止定期检查")
+        // 停止跟随连接健康状态
+        if (::mqttClientManager.isInitialized) {
+            mqttClientManager.connectionHealth.removeObserver(connectionHealthObserver)
+        }
         
         // 注销Activity生命周期回调
         unregisterActivityLifecycleCallbacks(this)
@@ -10,7 +10,6 @@ import android.content.Intent
 import android.content.pm.ServiceInfo
 import android.os.Build
 import android.os.IBinder
-import android.os.SystemClock
 import android.util.Log
 import androidx.core.app.NotificationCompat
 import com.example.smarthomelighting.MainActivity
@@ -33,9 +32,6 @@ class MqttBackgroundService : Service() {
     // 定时任务线程池
     private lateinit var scheduler: ScheduledExecutorService
     
-    // 记录上次重连检查时间
-    private var lastReconnectCheckTime = 0L
-    
     override fun onCreate() {
         super.onCreate()
         Log.d(tag, "MQTT后台服务已创建")
@@ -65,12 +61,11 @@ class MqttBackgroundService : Service() {
             }
         }
         
-        // 创建定时任务线程池
+        // 连接的存活检测和重连由MQTT客户端负责，这里只定时刷新设备数据
         scheduler = Executors.newSingleThreadScheduledExecutor()
         
-        // 定时检查MQTT连接状态并请求数据
+        // 定时请求最新数据
         scheduler.scheduleAtFixedRate({
-            // 请求最新数据
             try {
                 // 使用SmartHomeLightingApplication的实例来获取MqttClientManager
                 val mqttManager = SmartHomeLightingApplication.instance.getMqttClientManager()
@@ -78,36 +73,13 @@ class MqttBackgroundService : Service() {
                     mqttManager.publish("request", "{\"action\":\"getData\"}", 0, false)
                     Log.d(tag, "后台服务定时请求数据")
                 } else {
-                    Log.d(tag, "MQTT未连接，无法请求数据")
-                    // 检查是否长时间未重连（可能是从锁屏恢复）
-                    val currentTime = SystemClock.elapsedRealtime()
-                    if (currentTime - lastReconnectCheckTime > 60000) { // 如果超过1分钟没有检查重连
-                        Log.d(tag, "后台服务检测到可能需要重连，尝试强制重连")
-                        mqttManager.forceReconnect()
-                        lastReconnectCheckTime = currentTime
-                    }
+                    // 未连接时不请求，重连后会重新请求数据
+                    Log.d(tag, "MQTT未连接，跳过本次数据请求")
                 }
             } catch (e: Exception) {
                 Log.e(tag, "请求数据失败: ${e.message}")
             }
         }, 30, 30, TimeUnit.SECONDS) // 每30秒执行一次
-        
-        // 添加更频繁的连接检查，专门用于锁屏后恢复
-        scheduler.scheduleAtFixedRate({
-            try {
-                val currentTime = SystemClock.elapsedRealtime()
-                // 记录检查时间
-                lastReconnectCheckTime = currentTime
-                
-                val mqttManager = SmartHomeLightingApplication.instance.getMqttClientManager()
-                if (!mqttManager.isConnected()) {
-                    Log.d(tag, "快速检查发现MQTT未连接，尝试重连")
-                    mqttManager.forceReconnect()
-                }
-            } catch (e: Exception) {
-                Log.e(tag, "连接检查失败: ${e.message}")
-            }
-        }, 5, 120, TimeUnit.SECONDS) // 5秒后开始，每2分钟执行一次
     }
     
     override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
@@ -20,10 +20,13 @@ import androidx.fragment.app.Fragment
 import androidx.lifecycle.ViewModelProvider
 import com.example.smarthomelighting.R
 import com.example.smarthomelighting.utils.MqttClientManager
+import com.example.smarthomelighting.utils.MqttSubscriptionHandle
 import android.util.Log
 import com.google.android.material.slider.Slider
 import kotlin.math.max
 import org.json.JSONObject
+import org.eclipse.paho.client.mqttv3.IMqttActionListener
+import org.eclipse.paho.client.mqttv3.IMqttToken
 import com.google.android.material.button.MaterialButton
 
 class DashboardFragment : Fragment(), MqttClientManager.MqttStatusCallback {
@@ -474,16 +477,19 @@ class DashboardFragment : Fragment(), MqttClientManager.MqttStatusCallback {
     }
 
     private lateinit var mqttClientManager: MqttClientManager
+    // 主题订阅绑定到视图生命周期，界面不可见时取消订阅
+    private var topicSubscription: MqttSubscriptionHandle? = null
 
     private fun subscribeMqttTopics() {
         context?.let {
             mqttClientManager = MqttClientManager.getInstance(it)
             mqttClientManager.setCallback(this)
             
-            // 订阅传感器数据主题 - 修复参数错误
-            mqttClientManager.subscribe("sensor", 1)
-            mqttClientManager.subscribe("alarm", 1)
-            mqttClientManager.subscribe("control", 1)
+            // 订阅传感器数据主题，每个视图只订阅一次，重连后由客户端自动恢复
+            if (topicSubscription == null) {
+                topicSubscription = mqttClientManager.subscribe(viewLifecycleOwner,
+                    arrayOf("sensor", "alarm", "control"), intArrayOf(1, 1, 1))
+            }
             
             Log.d(TAG, "已订阅主题: sensor, alarm, control")
             
@@ -1201,13 +1207,7 @@ class DashboardFragment : Fragment(), MqttClientManager.MqttStatusCallback {
     private val refreshRunnable = object : Runnable {
         override fun run() {
             try {
-                // 检查MQTT连接状态
-                if (!::mqttClientManager.isInitialized || !mqttClientManager.isConnected()) {
-                    Log.d(TAG, "检测到MQTT未连接，尝试重新连接")
-                    if (::mqttClientManager.isInitialized) {
-                        mqttClientManager.connect()
-                    }
-                }
+                // 断线重连由MqttClientManager的状态机负责，这里只刷新UI
                 
                 // 获取当前所有灯光原始状态
                 val redLevel = dashboardViewModel.redLightBrightness.value ?: 0
@@ -1331,11 +1331,8 @@ class DashboardFragment : Fragment(), MqttClientManager.MqttStatusCallback {
         // 检查当前红灯状态
         checkRedLightStatus()
         
-        // 重新订阅主题确保不错过消息
+        // 订阅随视图生命周期自动恢复，这里只请求最新数据
         if (::mqttClientManager.isInitialized && mqttClientManager.isConnected()) {
-            mqttClientManager.subscribe("alarm", 0)
-            mqttClientManager.subscribe("control", 0)
-            
             // 请求一次最新数据
             try {
                 mqttClientManager.publish("request", "{\"action\":\"getData\"}", 0, false)
@@ -1519,25 +1516,13 @@ class DashboardFragment : Fragment(), MqttClientManager.MqttStatusCallback {
             val mqttManager = MqttClientManager.getInstance(requireContext())
             val message = jsonObject.toString()
             
-            // 检查是否连接，如果未连接则先连接
+            // 模式切换不能重复执行，使用QoS 2保证恰好一次
+            // 未连接时加入正在进行的连接尝试，消息进入离线缓存，连接建立后自动发出
             if (!mqttManager.isConnected()) {
-                Log.d(TAG, "检测到MQTT未连接，尝试连接")
+                Log.d(TAG, "检测到MQTT未连接，消息将在连接建立后发送")
                 mqttManager.connect()
-                
-                // 延迟发送消息，等待连接完成
-                android.os.Handler(android.os.Looper.getMainLooper()).postDelayed({
-                    try {
-                        mqttManager.publish("control", message, 0, false)
-                        Log.d(TAG, "延迟发送成功: $message")
-                    } catch (e: Exception) {
-                        Log.e(TAG, "延迟发送失败: ${e.message}", e)
-                    }
-                }, 1000)
-            } else {
-                // 已连接，直接发送
-                mqttManager.publish("control", message, 0, false)
-                Log.d(TAG, "已连接状态下发送成功: $message")
             }
+            mqttManager.publish("control", message, 2, false)
             
             // 弹出提示信息
             android.widget.Toast.makeText(context, "已发送模式切换命令: 模式$modeValue", android.widget.Toast.LENGTH_SHORT).show()
@@ -1558,25 +1543,13 @@ class DashboardFragment : Fragment(), MqttClientManager.MqttStatusCallback {
             val mqttManager = MqttClientManager.getInstance(requireContext())
             val message = jsonObject.toString()
             
-            // 检查是否连接，如果未连接则先连接
+            // 模式切换不能重复执行，使用QoS 2保证恰好一次
+            // 未连接时加入正在进行的连接尝试，消息进入离线缓存，连接建立后自动发出
             if (!mqttManager.isConnected()) {
-                Log.d(TAG, "检测到MQTT未连接，尝试连接")
+                Log.d(TAG, "检测到MQTT未连接，消息将在连接建立后发送")
                 mqttManager.connect()
-                
-                // 延迟发送消息，等待连接完成
-                android.os.Handler(android.os.Looper.getMainLooper()).postDelayed({
-                    try {
-                        mqttManager.publish("control", message, 0, false)
-                        Log.d(TAG, "延迟发送成功: $message")
-                    } catch (e: Exception) {
-                        Log.e(TAG, "延迟发送失败: ${e.message}", e)
-                    }
-                }, 1000)
-            } else {
-                // 已连接，直接发送
-                mqttManager.publish("control", message, 0, false)
-                Log.d(TAG, "已连接状态下发送成功: $message")
             }
+            mqttManager.publish("control", message, 2, false)
             
             // 弹出提示信息
             android.widget.Toast.makeText(context, "已发送灯光模式命令: $modeValue", android.widget.Toast.LENGTH_SHORT).show()
@@ -1726,6 +1699,9 @@ class DashboardFragment : Fragment(), MqttClientManager.MqttStatusCallback {
                 Log.d(TAG, "销毁视图时移除MQTT回调")
             }
             
+            // 订阅随视图生命周期自动释放
+            topicSubscription = null
+            
             // 清除可能的内存泄漏
             currentStatusValue = null
             coldLightBulb = null
@@ -1776,15 +1752,20 @@ class DashboardFragment : Fragment(), MqttClientManager.MqttStatusCallback {
             // 设置回调
             mqttClientManager.setCallback(this)
             
-            // 如果未连接，强制连接
+            // 如果未连接，加入连接尝试，连接建立后订阅主题
             if (!mqttClientManager.isConnected()) {
-                mqttClientManager.connect()
                 Log.d(TAG, "强制初始化MQTT连接")
-                
-                // 延迟订阅主题
-                android.os.Handler(android.os.Looper.getMainLooper()).postDelayed({
-                    subscribeMqttTopics()
-                }, 1000)
+                mqttClientManager.connect(null, object : IMqttActionListener {
+                    override fun onSuccess(asyncActionToken: IMqttToken?) {
+                        if (view != null) {
+                            subscribeMqttTopics()
+                        }
+                    }
+
+                    override fun onFailure(asyncActionToken: IMqttToken?, exception: Throwable?) {
+                        Log.w(TAG, "MQTT连接失败，等待自动重连: ${exception?.message}")
+                    }
+                })
             } else {
                 Log.d(TAG, "MQTT已连接，直接订阅主题")
                 subscribeMqttTopics()
@@ -228,6 +228,10 @@ class HomeFragment : Fragment(), MqttClientManager.MqttStatusCallback {
             // 设置回调
             mqttClientManager.setCallback(this)
             
+            // 订阅绑定到视图生命周期，界面可见时持有，重连后由客户端自动恢复
+            mqttClientManager.subscribe(viewLifecycleOwner,
+                arrayOf("alarm", "sensor/data", "time", "control"), intArrayOf(1, 1, 1, 1))
+            
             // 更新UI状态
             val isConnected = mqttClientManager.isConnected()
             if (isConnected) {
@@ -248,16 +252,6 @@ class HomeFragment : Fragment(), MqttClientManager.MqttStatusCallback {
     override fun onConnected() {
         activity?.runOnUiThread {
             homeViewModel.updateConnectionStatus("已连接")
-            // 订阅相关主题
-            try {
-                mqttClientManager.subscribe("alarm", 1)
-                mqttClientManager.subscribe("sensor/data", 1)
-                mqttClientManager.subscribe("time", 1)  // 订阅时间主题
-                mqttClientManager.subscribe("control", 1)  // 订阅控制主题
-                Log.d(TAG, "成功订阅主题: alarm, sensor/data, time, control")
-            } catch (e: Exception) {
-                Log.e(TAG, "订阅主题失败: ${e.message}")
-            }
         }
     }
     
@@ -17,6 +17,7 @@ import androidx.lifecycle.ViewModelProvider
 import com.example.smarthomelighting.R
 import com.example.smarthomelighting.SmartHomeLightingApplication
 import com.example.smarthomelighting.utils.MqttClientManager
+import com.example.smarthomelighting.utils.MqttSubscriptionHandle
 import java.text.SimpleDateFormat
 import java.util.Date
 import java.util.Locale
@@ -33,6 +34,8 @@ class NotificationsFragment : Fragment(), MqttClientManager.MqttStatusCallback {
     
     // MQTT客户端
     private lateinit var mqttClientManager: MqttClientManager
+    // 主题订阅绑定到视图生命周期，界面不可见时取消订阅
+    private var topicSubscription: MqttSubscriptionHandle? = null
     
     // 连接状态稳定性控制
     private var lastConnectionCheckTime = 0L
@@ -100,13 +103,13 @@ class NotificationsFragment : Fragment(), MqttClientManager.MqttStatusCallback {
             mqttClientManager = SmartHomeLightingApplication.instance.getMqttClientManager()
             // 设置回调
             mqttClientManager.setCallback(this)
+            // 订阅在连接建立后发送，重连后由客户端自动恢复
+            subscribeToAllTopics()
 
             // 如果已经连接，记录日志
             if (mqttClientManager.isConnected()) {
                 notificationsViewModel.addToLog("MQTT 已连接")
                 notificationsViewModel.updateConnectionStatus(true)
-                // 确保订阅了所有需要的主题
-                subscribeToAllTopics()
             } else {
                 notificationsViewModel.addToLog("MQTT 等待连接...")
                 notificationsViewModel.updateConnectionStatus(false)
@@ -134,15 +137,13 @@ class NotificationsFragment : Fragment(), MqttClientManager.MqttStatusCallback {
     }
     
     private fun subscribeToAllTopics() {
+        if (topicSubscription != null) {
+            return
+        }
         try {
             // 订阅所有相关主题，确保能收到所有消息
-            mqttClientManager.subscribe("status", 1)
-            mqttClientManager.subscribe("control", 1)
-            mqttClientManager.subscribe("alarm", 1)
-            mqttClientManager.subscribe("sensor/data", 1)
-            mqttClientManager.subscribe("time", 1)
-            mqttClientManager.subscribe("request", 1)
-            mqttClientManager.subscribe("response", 1)
+            topicSubscription = mqttClientManager.subscribe(viewLifecycleOwner,
+                arrayOf("status", "control", "alarm", "sensor/data", "time", "request", "response"), intArrayOf(1, 1, 1, 1, 1, 1, 1))
             addSystemLog("已订阅所有主题")
         } catch (e: Exception) {
             addSystemLog("订阅主题失败: ${e.message}")
@@ -185,8 +186,6 @@ class NotificationsFragment : Fragment(), MqttClientManager.MqttStatusCallback {
     override fun onConnected() {
         addSystemLog("MQTT 连接成功")
         notificationsViewModel.updateConnectionStatus(true)
-        // 订阅所有主题
-        subscribeToAllTopics()
     }
     
     override fun onConnectionFailed(error: String) {
@@ -217,8 +216,6 @@ class NotificationsFragment : Fragment(), MqttClientManager.MqttStatusCallback {
             
             if (isConnected) {
                 addSystemLog("MQTT 连接正常")
-                // 如果已连接，确保订阅了所有主题
-                subscribeToAllTopics()
             } else {
                 // 不立即重连，而是等待一段时间
                 addSystemLog("MQTT 连接状态检查中...")
@@ -249,6 +246,8 @@ class NotificationsFragment : Fragment(), MqttClientManager.MqttStatusCallback {
         if (::mqttClientManager.isInitialized) {
             mqttClientManager.setCallback(null)
         }
+        // 订阅随视图生命周期自动释放
+        topicSubscription = null
         // 停止自动刷新
         refreshHandler.removeCallbacks(refreshRunnable)
     }
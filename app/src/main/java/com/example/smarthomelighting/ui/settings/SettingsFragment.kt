@@ -32,6 +32,7 @@ class SettingsFragment : Fragment() {
     // 输入字段
     private lateinit var serverAddressInput: TextInputEditText
     private lateinit var serverPortInput: TextInputEditText
+    private lateinit var backupServersInput: TextInputEditText
     private lateinit var usernameInput: TextInputEditText
     private lateinit var passwordInput: TextInputEditText
     private lateinit var statusTopicInput: TextInputEditText
@@ -82,6 +83,7 @@ class SettingsFragment : Fragment() {
         // 输入字段
         serverAddressInput = root.findViewById(R.id.server_address_input)
         serverPortInput = root.findViewById(R.id.server_port_input)
+        backupServersInput = root.findViewById(R.id.backup_servers_input)
         usernameInput = root.findViewById(R.id.username_input)
         passwordInput = root.findViewById(R.id.password_input)
         statusTopicInput = root.findViewById(R.id.status_topic_input)
@@ -101,6 +103,7 @@ class SettingsFragment : Fragment() {
         val inputFields = listOf(
             serverAddressInput,
             serverPortInput,
+            backupServersInput,
             usernameInput,
             passwordInput,
             statusTopicInput,
@@ -127,6 +130,7 @@ class SettingsFragment : Fragment() {
             // 从SharedPreferences加载保存的设置
             val savedServerAddress = sharedPreferences.getString("server_address", "k6dffa53.ala.cn-hangzhou.emqxsl.cn")
             val savedServerPort = sharedPreferences.getString("server_port", "8883")
+            val savedBackupServers = sharedPreferences.getString("backup_servers", "")
             val savedUsername = sharedPreferences.getString("username", "wan")
             val savedPassword = sharedPreferences.getString("password", "121337736")
             val savedStatusTopic = sharedPreferences.getString("status_topic", "status")
@@ -136,6 +140,7 @@ class SettingsFragment : Fragment() {
             // 设置表单值
             serverAddressInput.setText(savedServerAddress)
             serverPortInput.setText(savedServerPort)
+            backupServersInput.setText(savedBackupServers)
             usernameInput.setText(savedUsername)
             passwordInput.setText(savedPassword)
             statusTopicInput.setText(savedStatusTopic)
@@ -189,6 +194,16 @@ class SettingsFragment : Fragment() {
             return false
         }
         
+        // 验证备用服务器，每行一个主机:端口
+        val invalidBackup = backupServersInput.text.toString().split('\n', ',')
+            .map { it.trim() }
+            .filter { it.isNotEmpty() }
+            .firstOrNull { it.substringAfterLast(':', "").toIntOrNull() == null }
+        if (invalidBackup != null) {
+            backupServersInput.error = "备用服务器格式应为 主机:端口：$invalidBackup"
+            return false
+        }
+        
         // 验证客户端ID
         if (TextUtils.isEmpty(clientIdInput.text)) {
             clientIdInput.error = "客户端ID不能为空"
@@ -215,6 +230,7 @@ class SettingsFragment : Fragment() {
         val editor = sharedPreferences.edit()
         editor.putString("server_address", serverAddressInput.text.toString())
         editor.putString("server_port", serverPortInput.text.toString())
+        editor.putString("backup_servers", backupServersInput.text.toString())
         editor.putString("username", usernameInput.text.toString())
         editor.putString("password", passwordInput.text.toString())
         editor.putString("status_topic", statusTopicInput.text.toString())
@@ -228,10 +244,9 @@ class SettingsFragment : Fragment() {
             // 获取当前MQTT客户端实例
             val oldMqttClientManager = SmartHomeLightingApplication.instance.getMqttClientManager()
             
-            // 如果已连接，断开连接
-            if (oldMqttClientManager.isConnected()) {
-                oldMqttClientManager.disconnect()
-            }
+            // 断开并关闭旧客户端，同时停止它的自动重连和网络监听；
+            // 释放持久化文件后新客户端才能打开同一个文件
+            oldMqttClientManager.close()
             
             // 从SharedPreferences读取新设置
             val serverAddress = sharedPreferences.getString("server_address", "") ?: ""
@@ -240,10 +255,10 @@ class SettingsFragment : Fragment() {
             val username = sharedPreferences.getString("username", "") ?: ""
             val password = sharedPreferences.getString("password", "") ?: ""
             
-            // 创建新的MQTT客户端
+            // 创建新的MQTT客户端，备用服务器按设置的顺序排在首选服务器之后
             val newMqttClientManager = MqttClientManager(
                 requireContext(),
-                "$serverAddress:$serverPort",
+                SmartHomeLightingApplication.instance.brokerEndpoints("$serverAddress:$serverPort"),
                 clientId,
                 username,
                 password,
@@ -2,10 +2,9 @@ package com.example.smarthomelighting.utils
 
 import android.app.Application
 import android.content.Context
-import android.os.Handler
-import android.os.Looper
 import android.util.Log
 import androidx.lifecycle.MutableLiveData
+import androidx.lifecycle.Observer
 import org.json.JSONObject
 import com.example.smarthomelighting.ui.home.HomeViewModel
 
@@ -17,15 +16,17 @@ class GlobalMqttService private constructor(private val appContext: Context) : M
     
     private val TAG = "GlobalMqttService"
     private lateinit var mqttClientManager: MqttClientManager
-    private val handler = Handler(Looper.getMainLooper())
     
-    // 连接状态检查
-    private val connectionCheckRunnable = object : Runnable {
-        override fun run() {
-            checkMqttConnection()
-            // 每10秒检查一次连接状态
-            handler.postDelayed(this, 10000) 
+    // 连接状态跟随MQTT客户端的连接健康信号，存活检测由协议层保活负责
+    private val connectionHealthObserver = Observer<MqttConnectionHealth> { health ->
+        val status = when (health) {
+            MqttConnectionHealth.CONNECTED -> "已连接"
+            MqttConnectionHealth.DEGRADED -> "连接不稳定"
+            MqttConnectionHealth.CONNECTING -> "正在连接..."
+            else -> "未连接"
         }
+        connectionStatus.value = status
+        homeViewModel?.updateConnectionStatus(status)
     }
     
     // 存储当前连接状态
@@ -43,8 +44,11 @@ class GlobalMqttService private constructor(private val appContext: Context) : M
         mqttClientManager = MqttClientManager.getInstance(appContext)
         mqttClientManager.setCallback(this)
         
-        // 开始连接状态检查
-        handler.post(connectionCheckRunnable)
+        // 跟随连接健康状态
+        mqttClientManager.connectionHealth.observeForever(connectionHealthObserver)
+        
+        // 常驻订阅只登记一次，未连接时在连接建立后发送，重连后由适配器重放
+        subscribeTopics()
         
         // 尝试连接MQTT服务器
         if (!mqttClientManager.isConnected()) {
@@ -83,38 +87,18 @@ class GlobalMqttService private constructor(private val appContext: Context) : M
         Log.d(TAG, "HomeViewModel已设置，初始数据已恢复")
     }
     
-    /**
-     * 检查并确保MQTT连接
-     */
-    private fun checkMqttConnection() {
-        if (!mqttClientManager.isConnected()) {
-            Log.d(TAG, "检测到MQTT未连接，尝试重新连接")
-            connectionStatus.postValue("正在连接...")
-            mqttClientManager.connect()
-        } else {
-            connectionStatus.postValue("已连接")
-        }
-    }
-    
     /**
      * 订阅必要的主题
      */
     private fun subscribeTopics() {
-        mqttClientManager.subscribe("alarm", 1)
-        mqttClientManager.subscribe("sensor/data", 1)
-        mqttClientManager.subscribe("time", 1)
-        mqttClientManager.subscribe("control", 1)
+        mqttClientManager.subscribe(arrayOf("alarm", "sensor/data", "time", "control"), intArrayOf(1, 1, 1, 1))
         Log.d(TAG, "已订阅所有必要主题")
     }
     
     // MQTT状态回调实现
     override fun onConnected() {
-        connectionStatus.postValue("已连接")
         Log.d(TAG, "MQTT连接成功")
         
-        // 连接成功后订阅主题
-        subscribeTopics()
-        
         // 请求最新数据
         try {
             mqttClientManager.publish("request", "{\"action\":\"getData\"}", 0, false)
@@ -122,25 +106,11 @@ class GlobalMqttService private constructor(private val appContext: Context) : M
         } catch (e: Exception) {
             Log.e(TAG, "请求数据失败: ${e.message}")
         }
-        
-        // 通知HomeViewModel连接状态变化
-        homeViewModel?.updateConnectionStatus("已连接")
     }
     
     override fun onConnectionFailed(error: String) {
-        connectionStatus.postValue("未连接")
+        // 重连由MqttClientManager的连接状态机负责
         Log.e(TAG, "MQTT连接失败: $error")
-        
-        // 通知HomeViewModel连接状态变化
-        homeViewModel?.updateConnectionStatus("未连接")
-        
-        // 安排重新连接
-        handler.postDelayed({
-            if (!mqttClientManager.isConnected()) {
-                mqttClientManager.connect()
-                Log.d(TAG, "尝试重新连接MQTT")
-            }
-        }, 5000) // 5秒后重试
     }
     
     override fun onMessageReceived(topic: String, message: String) {
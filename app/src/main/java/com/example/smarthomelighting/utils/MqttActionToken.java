@@ -0,0 +1,152 @@
+package com.example.smarthomelighting.utils;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
+
+/**
+ * 适配器异步操作的令牌
+ * 完成状态由适配器在事件循环线程上设置，调用方可以在其他线程上等待
+ */
+class MqttActionToken implements IMqttToken {
+    private final Object lock = new Object();
+    private final String[] topics;
+    private volatile IMqttActionListener actionCallback;
+    private volatile Object userContext;
+    private volatile int messageId = 0;
+    private volatile int[] grantedQos;
+    private volatile boolean sessionPresent = false;
+    private boolean complete = false;
+    private MqttException exception;
+
+    MqttActionToken(String[] topics, Object userContext, IMqttActionListener actionCallback) {
+        this.topics = topics;
+        this.userContext = userContext;
+        this.actionCallback = actionCallback;
+    }
+
+    void setMessageId(int messageId) {
+        this.messageId = messageId;
+    }
+
+    void setGrantedQos(int[] grantedQos) {
+        this.grantedQos = grantedQos;
+    }
+
+    void setSessionPresent(boolean sessionPresent) {
+        this.sessionPresent = sessionPresent;
+    }
+
+    /**
+     * 标记操作完成，exception为null表示成功；重复调用时只有第一次生效
+     */
+    boolean markComplete(MqttException exception) {
+        synchronized (lock) {
+            if (complete) {
+                return false;
+            }
+            this.complete = true;
+            this.exception = exception;
+            lock.notifyAll();
+            return true;
+        }
+    }
+
+    @Override
+    public void waitForCompletion() throws MqttException {
+        waitForCompletion(-1);
+    }
+
+    @Override
+    public void waitForCompletion(long timeout) throws MqttException {
+        synchronized (lock) {
+            long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+            while (!complete) {
+                try {
+                    if (timeout > 0) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            throw new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT);
+                        }
+                        lock.wait(remaining);
+                    } else {
+                        lock.wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new MqttException(e);
+                }
+            }
+            if (exception != null) {
+                throw exception;
+            }
+        }
+    }
+
+    @Override
+    public boolean isComplete() {
+        synchronized (lock) {
+            return complete;
+        }
+    }
+
+    @Override
+    public MqttException getException() {
+        synchronized (lock) {
+            return exception;
+        }
+    }
+
+    @Override
+    public void setActionCallback(IMqttActionListener listener) {
+        this.actionCallback = listener;
+    }
+
+    @Override
+    public IMqttActionListener getActionCallback() {
+        return actionCallback;
+    }
+
+    @Override
+    public IMqttAsyncClient getClient() {
+        // 适配器不是IMqttAsyncClient实现
+        return null;
+    }
+
+    @Override
+    public String[] getTopics() {
+        return topics;
+    }
+
+    @Override
+    public void setUserContext(Object userContext) {
+        this.userContext = userContext;
+    }
+
+    @Override
+    public Object getUserContext() {
+        return userContext;
+    }
+
+    @Override
+    public int getMessageId() {
+        return messageId;
+    }
+
+    @Override
+    public int[] getGrantedQos() {
+        return grantedQos;
+    }
+
+    @Override
+    public boolean getSessionPresent() {
+        return sessionPresent;
+    }
+
+    @Override
+    public MqttWireMessage getResponse() {
+        return null;
+    }
+}
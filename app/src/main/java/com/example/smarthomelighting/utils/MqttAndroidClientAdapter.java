@@ -3,6 +3,7 @@ package com.example.smarthomelighting.utils;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.eclipse.paho.client.mqttv3.DisconnectedBufferOptions;
@@ -15,71 +16,339 @@ import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
 
 /**
- * 一个简单的MQTT客户端适配器，使用直接Socket实现
+ * 一个简单的MQTT客户端适配器，直接基于Socket或NIO通道实现
  * 注意：这是一个简化实现，仅支持基本功能
  */
 public class MqttAndroidClientAdapter {
     private static final String TAG = "MqttAndroidClientAdapter";
+    
+    /**
+     * 传输层实现
+     * SOCKET：阻塞Socket + 独立读线程；NIO：SocketChannel + Selector，所有连接共享一个事件循环线程
+     */
+    public enum TransportType {
+        SOCKET,
+        NIO
+    }
+    
+    // 重连后离线缓存每轮最多取出的消息数和两轮之间的间隔
+    private static final int OFFLINE_DRAIN_BATCH = 20;
+    private static final long OFFLINE_DRAIN_INTERVAL_MS = 50;
+    
     private final Context context;
-    private final String host;
-    private final int port;
+    // 服务器地址，切换服务器时在两次连接之间修改，每次连接开始时读取
+    private volatile InetSocketAddress server;
     private final String clientId;
+    private final TransportType transportType;
     private MqttCallback callback;
-    private Socket socket;
-    private BufferedOutputStream outputStream;
-    private BufferedInputStream inputStream;
-    private boolean connected = false;
+    private volatile boolean connected = false;
     private final Handler mainHandler = new Handler(Looper.getMainLooper());
-    private ScheduledExecutorService executorService;
-    private Thread readThread;
+    
+    // 写操作、保活和监控都在这个事件循环上串行执行
+    private final MqttEventLoop eventLoop;
+    private MqttTransport transport;
+    private MqttEventLoop.Timer offlineDrainTimer;
+    // 已发出CONNECT、等待CONNACK的连接请求
+    private PendingConnect pendingConnect;
+    private volatile MqttConnectTimings lastConnectTimings;
+    // 连接各阶段的超时，下次连接生效
+    private volatile MqttConnectTimeouts connectTimeouts = new MqttConnectTimeouts();
+    
+    // MQTT 5.0：请求的选项、服务器是否已表明不支持、当前连接的会话
+    private volatile MqttV5Options v5Options;
+    private volatile boolean v5Unsupported = false;
+    private volatile MqttV5Session v5Session;
 
-    // 连接状态监控
-    private long lastPingResponseTime = 0;
-    private int missedPings = 0;
-    private static final int MAX_MISSED_PINGS = 3;
+    // 存活检测：协议层PING和连接健康状态
+    private final MqttLivenessMonitor liveness;
+    private volatile HealthListener healthListener;
+    private volatile ConnectPhaseListener connectPhaseListener;
     private final Object connectionLock = new Object();
+    
+    // 出站报文合并队列，任意线程编码，事件循环批量写出
+    private final MqttOutboundQueue outboundQueue;
+    // 报文标识符在PUBLISH和SUBSCRIBE之间共享
+    private final MqttPacketIdAllocator packetIds = new MqttPacketIdAllocator();
+    // 等待SUBACK的订阅请求
+    private final MqttPendingAcks pendingAcks = new MqttPendingAcks(packetIds);
+    // 应用请求的订阅和服务器在当前会话中已确认的订阅，连接建立后据此重放
+    private final MqttSubscriptionRegistry subscriptions = new MqttSubscriptionRegistry();
+    // 连接建立后重放订阅的令牌，它的SUBACK到达后完成断线期间发起的订阅
+    private volatile MqttActionToken subscriptionReplay;
+    // QoS 1/2出站投递：在途窗口、确认和超时重发
+    private final MqttDeliveryEngine deliveryEngine;
+    // 入站确认（PUBACK/PUBREC/PUBCOMP）和QoS 2去重状态
+    private final MqttInboundSession inboundSession;
+    private final MqttSessionStore sessionStore;
+    // 断线期间发布的消息，按DisconnectedBufferOptions缓存
+    private final MqttOfflineBuffer offlineBuffer;
+    
+    // 入站消息：主题字典和载荷池，稳态下解析PUBLISH不分配内存
+    private final MqttTopicDictionary topicDictionary = new MqttTopicDictionary(MqttTopicDictionary.DEFAULT_MAX_ENTRIES);
+    private final MqttPayloadPool payloadPool = new MqttPayloadPool();
+    // 等待在主线程分发的入站消息，队列非空期间主线程上只有一个分发任务
+    private final ArrayDeque<MqttInboundMessage> inboundMessages = new ArrayDeque<>();
+    private final Runnable inboundDispatcher = this::dispatchInboundMessages;
+    private boolean inboundDispatchScheduled = false;
+    private volatile InboundListener inboundListener;
+    
+    // 报文抓取，默认关闭（null），关闭时收发路径上只多一次volatile读
+    private volatile MqttPacketCapture packetCapture;
+    
+    /**
+     * 池化的入站消息监听器，在主线程回调，设置后取代MqttCallback.messageArrived
+     * 实现方用完消息后必须调用MqttInboundMessage.release()
+     */
+    interface InboundListener {
+        void messageArrived(MqttInboundMessage message);
+    }
+    
+    /**
+     * 连接健康状态监听器，在主线程回调
+     */
+    interface HealthListener {
+        void onHealthChanged(MqttConnectionHealth health);
+    }
+    
+    /**
+     * 连接阶段监听器，在主线程回调；token为connect()返回的令牌，用来区分不同的连接尝试
+     */
+    interface ConnectPhaseListener {
+        void onConnectPhase(IMqttToken token, MqttConnectTimings.Phase phase);
+    }
 
     public MqttAndroidClientAdapter(Context context, String serverURI, String clientId) {
+        this(context, serverURI, clientId, TransportType.SOCKET);
+    }
+    
+    public MqttAndroidClientAdapter(Context context, String serverURI, String clientId, TransportType transportType) {
+        this(context, serverURI, clientId, transportType, null);
+    }
+    
+    public MqttAndroidClientAdapter(Context context, String serverURI, String clientId, MqttClientPersistence persistence) {
+        this(context, serverURI, clientId, TransportType.SOCKET, persistence);
+    }
+    
+    /**
+     * @param persistence 在途QoS 1/2状态和离线缓存的持久化，为null时只保存在内存中，
+     *                    例如MqttMappedFilePersistence
+     */
+    public MqttAndroidClientAdapter(Context context, String serverURI, String clientId, TransportType transportType,
+                                    MqttClientPersistence persistence) {
         this.context = context;
         
-        // 解析服务器URI
-        // 先移除URI中可能存在的协议前缀
-        String cleanServerURI = serverURI;
-        if (cleanServerURI.startsWith("tcp://")) {
-            cleanServerURI = cleanServerURI.substring(6);
-        } else if (cleanServerURI.startsWith("ssl://")) {
-            cleanServerURI = cleanServerURI.substring(6);
-        }
-        
-        // 解析主机名和端口
-        String[] parts = cleanServerURI.split(":");
-        this.host = parts[0];
-        this.port = parts.length > 1 ? Integer.parseInt(parts[1]) : 1883;
+        this.server = parseServerURI(serverURI);
         this.clientId = clientId;
         
-        this.executorService = Executors.newSingleThreadScheduledExecutor();
+        // NIO事件循环初始化失败时退回阻塞Socket实现
+        MqttEventLoop loop = null;
+        TransportType type = transportType;
+        if (type == TransportType.NIO) {
+            try {
+                loop = NioEventLoop.shared();
+            } catch (IOException e) {
+                Log.e(TAG, "NIO事件循环初始化失败，使用Socket传输", e);
+                type = TransportType.SOCKET;
+            }
+        }
+        if (loop == null) {
+            loop = ScheduledExecutorEventLoop.shared();
+        }
+        this.transportType = type;
+        this.eventLoop = loop;
+        this.outboundQueue = new MqttOutboundQueue(loop, new MqttOutboundQueue.Target() {
+            @Override
+            public void writeBatch(byte[] data, int offset, int length) throws IOException {
+                MqttTransport current = transport;
+                if (current == null) {
+                    throw new IOException("MQTT输出流不可用");
+                }
+                current.write(data, offset, length);
+                liveness.onPacketWritten();
+            }
+            
+            @Override
+            public void onWriteFailed(IOException cause) {
+                Log.e(TAG, "写出MQTT报文失败", cause);
+                if (connected) {
+                    notifyConnectionLost(cause);
+                    cleanUp();
+                }
+            }
+        });
+        this.liveness = new MqttLivenessMonitor(loop, new MqttLivenessMonitor.Link() {
+            @Override
+            public boolean isOpen() {
+                return transport != null && transport.isOpen();
+            }
+            
+            @Override
+            public void sendPing() {
+                outboundQueue.enqueue(MqttPacketEncoder::writePingReq);
+            }
+            
+            @Override
+            public void onDead(IOException cause) {
+                notifyConnectionLost(cause);
+                cleanUp();
+            }
+            
+            @Override
+            public void onHealthChanged(MqttConnectionHealth health) {
+                HealthListener listener = healthListener;
+                if (listener != null) {
+                    mainHandler.post(() -> listener.onHealthChanged(health));
+                }
+            }
+        });
+        this.sessionStore = new MqttSessionStore(persistence);
+        this.deliveryEngine = new MqttDeliveryEngine(loop, outboundQueue, packetIds, sessionStore,
+                new MqttConnectOptions().getMaxInflight(), new MqttDeliveryEngine.Listener() {
+                    @Override
+                    public void onDeliveryComplete(MqttDeliveryToken token) {
+                        notifyDeliveryComplete(token);
+                    }
+                    
+                    @Override
+                    public void onDeliveryFailed(MqttDeliveryToken token, MqttException exception) {
+                        notifyDeliveryFailed(token, exception);
+                    }
+                });
+        this.inboundSession = new MqttInboundSession(outboundQueue, sessionStore);
+        this.offlineBuffer = new MqttOfflineBuffer(sessionStore);
         
-        Log.d(TAG, "MQTT客户端初始化，主机: " + host + ", 端口: " + port);
-    }
-    
-    public MqttAndroidClientAdapter(Context context, String serverURI, String clientId, MqttClientPersistence persistence) {
-        this(context, serverURI, clientId); // 忽略持久化选项
+        // 恢复上次进程退出时未完成的QoS 1/2交换和离线缓存
+        sessionStore.open(clientId, serverURI);
+        if (sessionStore.isEnabled()) {
+            sessionStore.restore(new MqttSessionStore.Restorer() {
+                @Override
+                public void onOutboundPublish(int packetId, String topic, byte[] payload, int qos, boolean retained) {
+                    deliveryEngine.restorePublish(packetId, topic, payload, qos, retained);
+                }
+                
+                @Override
+                public void onOutboundPubRel(int packetId) {
+                    deliveryEngine.restorePubRel(packetId);
+                }
+                
+                @Override
+                public void onInboundQos2(int packetId) {
+                    inboundSession.restore(packetId);
+                }
+                
+                @Override
+                public void onBufferedPublish(long sequence, String topic, byte[] payload, int qos, boolean retained) {
+                    offlineBuffer.restore(sequence, topic, payload, qos, retained);
+                }
+            });
+            Log.d(TAG, "已恢复持久化会话，在途消息: " + deliveryEngine.getInflightCount()
+                    + "，等待PUBREL: " + inboundSession.getAwaitingPubRelCount()
+                    + "，离线缓存: " + offlineBuffer.size());
+        }
+        
+        Log.d(TAG, "MQTT客户端初始化，主机: " + server.getHostString() + ", 端口: " + server.getPort() + ", 传输: " + type);
     }
     
     public void setCallback(MqttCallback callback) {
         this.callback = callback;
     }
     
+    /**
+     * 开始抓取最近的maxFrames个报文，每个报文最多保留snapLength字节；已开启时重新开始
+     */
+    public void enablePacketCapture(int maxFrames, int snapLength) {
+        MqttPacketCapture capture = new MqttPacketCapture(maxFrames, snapLength);
+        packetCapture = capture;
+        outboundQueue.setPacketCapture(capture);
+        Log.d(TAG, "已开启报文抓取，最多" + maxFrames + "个报文");
+    }
+    
+    /**
+     * 停止抓取并丢弃已抓取的报文
+     */
+    public void disablePacketCapture() {
+        packetCapture = null;
+        outboundQueue.setPacketCapture(null);
+    }
+    
+    public boolean isPacketCaptureEnabled() {
+        return packetCapture != null;
+    }
+    
+    /**
+     * 把已抓取的报文导出为pcap文件（DLT_USER0，每条记录前有1字节方向），未开启抓取时返回false
+     */
+    public boolean exportPacketCapture(File file) throws IOException {
+        MqttPacketCapture capture = packetCapture;
+        if (capture == null) {
+            return false;
+        }
+        capture.exportPcap(file);
+        return true;
+    }
+    
+    /**
+     * 已抓取报文的文本形式，每个报文一行十六进制，供调试界面显示；未开启抓取时返回空字符串
+     */
+    public String dumpPacketCapture() {
+        MqttPacketCapture capture = packetCapture;
+        return capture != null ? capture.dump() : "";
+    }
+    
+    /**
+     * 由PINGRESP计时得到的平滑往返时间，尚无样本时返回-1
+     */
+    public long getSmoothedRttMs() {
+        return liveness.getSmoothedRttMs();
+    }
+    
+    /**
+     * 当前的PING间隔，链路空闲超过这个时间才发送PINGREQ
+     */
+    public long getKeepAliveIntervalMs() {
+        return liveness.getIntervalMs();
+    }
+    
+    public MqttConnectionHealth getConnectionHealth() {
+        return liveness.getHealth();
+    }
+    
+    /**
+     * 设置连接健康状态监听器，null表示移除
+     */
+    void setHealthListener(HealthListener listener) {
+        this.healthListener = listener;
+    }
+    
+    /**
+     * 设置连接阶段监听器，null表示移除
+     */
+    void setConnectPhaseListener(ConnectPhaseListener listener) {
+        this.connectPhaseListener = listener;
+    }
+    
+    /**
+     * 立即发送一次PINGREQ确认连接，响应超时按连接丢失处理；未连接时不做任何事
+     */
+    public void checkLiveness() {
+        liveness.probe();
+    }
+
+    /**
+     * 设置池化的入站消息监听器，null表示恢复为MqttCallback.messageArrived
+     */
+    void setInboundListener(InboundListener listener) {
+        this.inboundListener = listener;
+    }
+    
     public IMqttToken connect(MqttConnectOptions options) throws MqttException {
         return connect(options, null, null);
     }
@@ -89,377 +358,578 @@ public class MqttAndroidClientAdapter {
     }
     
     public IMqttToken connect(MqttConnectOptions options, Object userContext, IMqttActionListener callback) throws MqttException {
-        executorService.submit(() -> {
-            try {
-                Log.d(TAG, "正在连接到MQTT服务器: " + host + ":" + port);
-                
-                // 创建Socket连接
-                socket = new Socket();
-                
-                // 设置Socket选项
-                socket.setKeepAlive(true);
-                socket.setTcpNoDelay(true);
-                socket.setSoTimeout(30000); // 30秒读取超时
-                
-                // 如果使用SSL，则使用SSLSocketFactory包装Socket
-                if (options.getSocketFactory() != null) {
-                    Log.d(TAG, "使用SSL连接");
-                    
-                    // 直接使用SSL连接，不需要先创建普通Socket
-                    socket = options.getSocketFactory().createSocket(host, port);
-                    
-                    // 设置SSL Socket选项
-                    socket.setKeepAlive(true);
-                    socket.setTcpNoDelay(true);
-                    socket.setSoTimeout(30000); // 30秒读取超时
-                    
-                    Log.d(TAG, "SSL Socket已创建");
-                } else {
-                    // 普通TCP连接
-                    socket.connect(new InetSocketAddress(host, port), 10000);
+        MqttActionToken token = new MqttActionToken(null, userContext, callback);
+        eventLoop.execute(() -> {
+            // 上一次尚未完成的连接请求被新的请求取代
+            if (pendingConnect != null) {
+                PendingConnect previous = pendingConnect;
+                failConnect(previous, new MqttConnectException(MqttException.REASON_CODE_CLIENT_EXCEPTION,
+                        previous.timings.currentPhase(), previous.timings, new IOException("被新的连接请求取代")), false);
+            }
+            startConnect(options, token);
+        });
+        
+        return token;
+    }
+    
+    /**
+     * 发起一次连接，只能在事件循环线程上调用；5.0被拒绝后降级重连也从这里开始
+     */
+    private void startConnect(MqttConnectOptions options, MqttActionToken token) {
+        // 关闭上一次残留的连接
+        cleanUp();
+        
+        deliveryEngine.setMaxInflight(options.getMaxInflight());
+        
+        MqttV5Options requestedV5 = v5Unsupported ? null : v5Options;
+        MqttV5Session session = requestedV5 != null ? new MqttV5Session(requestedV5) : null;
+        InetSocketAddress target = server;
+        Log.d(TAG, "正在连接到MQTT服务器: " + target.getHostString() + ":" + target.getPort()
+                + "，协议: " + (session != null ? "5.0" : "3.1.1"));
+        if (requestedV5 != null && !options.isCleanSession() && requestedV5.getSessionExpiryInterval() == 0) {
+            // 5.0中Clean Start为0只表示继续已有会话，会话过期时间为0时断开即结束会话
+            Log.w(TAG, "请求持久会话但会话过期时间为0，断开后服务器不会保留会话");
+        }
+        
+        liveness.onConnecting();
+        ConnectPhaseListener phaseListener = connectPhaseListener;
+        MqttConnectTimings timings = new MqttConnectTimings(options.getSocketFactory() != null, phaseListener == null ? null
+                : phase -> mainHandler.post(() -> phaseListener.onConnectPhase(token, phase)));
+        MqttConnectTimeouts timeouts = connectTimeouts;
+        MqttTransport newTransport = createTransport();
+        PendingConnect pending = new PendingConnect(newTransport, token, timings, options, session);
+        transport = newTransport;
+        pendingConnect = pending;
+        outboundQueue.reset();
+        
+        // 每个连接使用新的解码器，避免上一个连接的半包污染；5.0下按声明的最大报文长度限制
+        int maxFrameSize = MqttFrameDecoder.MAX_REMAINING_LENGTH;
+        if (requestedV5 != null && requestedV5.getMaximumPacketSize() > 0) {
+            maxFrameSize = (int) Math.min(maxFrameSize, requestedV5.getMaximumPacketSize());
+        }
+        MqttFrameDecoder frameDecoder = new MqttFrameDecoder((header, buffer, offset, length) -> {
+            MqttPacketCapture capture = packetCapture;
+            if (capture != null) {
+                capture.recordInbound(header, buffer, offset, length);
+            }
+            if ((header & 0xF0) >> 4 == 2) { // CONNACK
+                handleConnack(pending, buffer, offset, length);
+            } else {
+                processMqttPacket(session, header, buffer, offset, length);
+            }
+        }, maxFrameSize);
+        
+        newTransport.open(target.getHostString(), target.getPort(), options.getSocketFactory(), timeouts, timings, new MqttTransport.Listener() {
+            @Override
+            public void onConnected() {
+                if (pendingConnect != pending) {
+                    return;
                 }
                 
-                // 获取输入输出流
-                outputStream = new BufferedOutputStream(socket.getOutputStream());
-                inputStream = new BufferedInputStream(socket.getInputStream());
-                
-                // 发送连接请求 (简化版，模拟一个真实的MQTT CONNECT包)
-                byte[] connectPacket = createMqttConnectPacket(clientId, options);
-                outputStream.write(connectPacket);
-                outputStream.flush();
-                
-                // 更新连接状态
-                synchronized (connectionLock) {
-                connected = true;
-                    lastPingResponseTime = System.currentTimeMillis();
-                    missedPings = 0;
+                try {
+                    // 发送连接请求，CONNECT必须是连接上的第一个报文，立即写出
+                    outboundQueue.enqueue(encoder -> encoder.writeConnect(clientId, options, options.isCleanSession(), options.getKeepAliveInterval(), requestedV5));
+                    outboundQueue.flushNow();
+                } catch (Exception e) {
+                    onClosed(e instanceof IOException ? (IOException) e : new IOException(e));
+                    return;
                 }
                 
-                // 启动读取线程
-                startReadThread();
-                
-                // 模拟成功的CONNACK (在实际实现中应该读取并解析服务器响应)
-                mainHandler.post(() -> {
-                    if (callback != null) {
-                        callback.onSuccess(null);
+                // 等待CONNACK，超时按连接失败处理
+                pending.connackTimer = eventLoop.schedule(() -> {
+                    if (pendingConnect == pending) {
+                        failConnect(pending, new MqttConnectException(MqttException.REASON_CODE_CLIENT_TIMEOUT,
+                                MqttConnectTimings.Phase.CONNACK, timings,
+                                new IOException("等待CONNACK超时: " + timeouts.getConnackTimeoutMs() + "ms")), true);
                     }
-                    
-                    if (this.callback != null) {
-                        try {
-                            // 不能直接调用connectComplete，因为MqttCallback接口中没有此方法
-                            // this.callback.connectComplete(false, host + ":" + port);
-                            // 只通知连接成功
-                            Log.d(TAG, "MQTT连接已成功，准备处理消息");
-                        } catch (Exception e) {
-                            Log.e(TAG, "回调时出错", e);
-                        }
-                    }
-                });
-                
-                Log.d(TAG, "MQTT连接成功");
-                
-                // 启动保活
-                startKeepAlive();
+                }, timeouts.getConnackTimeoutMs());
                 
-                // 启动连接监控
-                startConnectionMonitor();
+                Log.d(TAG, "已发送CONNECT，等待CONNACK");
+            }
+            
+            @Override
+            public void onData(byte[] buffer, int offset, int length) throws IOException {
+                // 一次读取可能包含多个报文，也可能只是一个报文的片段
+                frameDecoder.feed(buffer, offset, length);
+            }
+            
+            @Override
+            public void onClosed(IOException cause) {
+                if (transport != newTransport) {
+                    // 已被新的连接替换
+                    return;
+                }
                 
-            } catch (Exception e) {
-                Log.e(TAG, "MQTT连接失败: " + e.getMessage(), e);
+                if (pendingConnect == pending) {
+                    // 尚未收到CONNACK，属于连接失败
+                    failConnect(pending, new MqttConnectException(MqttException.REASON_CODE_SERVER_CONNECT_ERROR,
+                            timings.currentPhase(), timings, cause), true);
+                    return;
+                }
                 
-                // 清理资源
-                cleanUp();
+                boolean wasConnected;
+                synchronized (connectionLock) {
+                    wasConnected = connected;
+                }
                 
-                // 通知回调
-                mainHandler.post(() -> {
-                    if (callback != null) {
-                        callback.onFailure(null, e);
-                    }
-                    
-                    if (this.callback != null) {
-                        try {
-                            this.callback.connectionLost(e);
-                        } catch (Exception callbackEx) {
-                            Log.e(TAG, "回调connectionLost时出错", callbackEx);
-                        }
-                    }
-                });
+                if (wasConnected) {
+                    Log.e(TAG, "读取MQTT消息错误", cause);
+                    notifyConnectionLost(cause);
+                    cleanUp();
+                }
             }
         });
+    }
+    
+    /**
+     * 解析CONNACK：1字节确认标志（bit0为session present）+ 1字节返回码，5.0之后是属性
+     * 请求5.0时仍可能收到3.1.1格式的2字节CONNACK（服务器不支持5.0）
+     * 可能在读线程上调用，结果交给事件循环处理
+     */
+    private void handleConnack(PendingConnect pending, byte[] buffer, int offset, int length) throws IOException {
+        boolean v5Format = pending.v5Session != null && length > 2;
+        if (length < 2 || (!v5Format && length != 2)) {
+            throw new IOException("CONNACK长度无效: " + length);
+        }
+        boolean sessionPresent = (buffer[offset] & 0x01) != 0;
+        int returnCode = buffer[offset + 1] & 0xFF;
+        MqttV5Properties properties = null;
+        if (v5Format) {
+            properties = new MqttV5Properties();
+            properties.read(buffer, offset + 2, offset + length);
+        }
         
-        return null;
+        MqttV5Properties connackProperties = properties;
+        Runnable task = () -> onConnackReceived(pending, sessionPresent, returnCode, v5Format, connackProperties);
+        if (eventLoop.inEventLoop()) {
+            task.run();
+        } else {
+            eventLoop.execute(task);
+        }
     }
     
-    private void startReadThread() {
-        readThread = new Thread(() -> {
-            try {
-                byte[] buffer = new byte[1024];
-                int bytesRead;
-                
-                while (connected && (bytesRead = inputStream.read(buffer)) != -1) {
-                    // 处理接收到的MQTT包
-                    processMqttPacket(buffer, bytesRead);
-                }
-            } catch (IOException e) {
-                if (connected) {
-                    Log.e(TAG, "读取MQTT消息错误", e);
-                    
-                    // 连接丢失
-                    mainHandler.post(() -> {
-                        if (this.callback != null) {
-                            try {
-                                this.callback.connectionLost(e);
-                            } catch (Exception callbackEx) {
-                                Log.e(TAG, "回调connectionLost时出错", callbackEx);
-                            }
-                        }
-                    });
-                    
-                    cleanUp();
-                }
+    private void onConnackReceived(PendingConnect pending, boolean sessionPresent, int returnCode,
+                                   boolean v5Format, MqttV5Properties properties) {
+        if (pendingConnect != pending) {
+            Log.w(TAG, "收到意外的CONNACK，忽略");
+            return;
+        }
+        pending.timings.mark(MqttConnectTimings.Phase.CONNACK);
+        
+        MqttV5Session session = pending.v5Session;
+        if (session != null && !v5Format) {
+            // 3.1.1服务器按自己的格式回复，只能是拒绝（不支持的协议版本）
+            session = null;
+        }
+        
+        if (returnCode != 0) {
+            boolean unsupportedVersion = v5Format
+                    ? returnCode == MqttConnectException.V5_UNSUPPORTED_PROTOCOL_VERSION
+                    : returnCode == MqttException.REASON_CODE_INVALID_PROTOCOL_VERSION;
+            if (pending.v5Session != null && unsupportedVersion && pending.v5Session.options.isFallbackToV311()) {
+                // 服务器不支持5.0，之后的连接都使用3.1.1
+                Log.w(TAG, "服务器不支持MQTT 5.0，降级为3.1.1重新连接");
+                v5Unsupported = true;
+                pendingConnect = null;
+                pending.cancelConnackTimer();
+                startConnect(pending.options, pending.token);
+                return;
+            }
+            // 服务器拒绝连接，原样重试没有意义，不触发connectionLost
+            failConnect(pending, v5Format
+                    ? MqttConnectException.fromConnackReasonCode(returnCode, pending.timings, properties.reasonString)
+                    : MqttConnectException.fromConnackReturnCode(returnCode, pending.timings), false);
+            return;
+        }
+        
+        pendingConnect = null;
+        pending.cancelConnackTimer();
+        lastConnectTimings = pending.timings;
+        
+        // 5.0：服务器的Receive Maximum限制在途窗口，Server Keep Alive覆盖请求的保活时间
+        long keepAliveSeconds = pending.options.getKeepAliveInterval();
+        if (session != null) {
+            session.applyConnack(properties);
+            deliveryEngine.setMaxInflight(Math.min(pending.options.getMaxInflight(), session.getServerReceiveMaximum()));
+            if (session.getServerKeepAlive() >= 0) {
+                keepAliveSeconds = session.getServerKeepAlive();
+            }
+            if (properties.assignedClientIdentifier != null) {
+                Log.d(TAG, "服务器分配的客户端ID: " + properties.assignedClientIdentifier);
+            }
+        }
+        v5Session = session;
+        
+        // 更新连接状态
+        synchronized (connectionLock) {
+            connected = true;
+        }
+        
+        // 先重发上次连接未确认的消息，保证在新消息之前，再按节奏取出离线缓存
+        inboundSession.onSessionStart(sessionPresent);
+        deliveryEngine.onConnected(session);
+        replaySubscriptions(sessionPresent);
+        drainOfflineBuffer();
+        
+        MqttActionToken token = pending.token;
+        token.setSessionPresent(sessionPresent);
+        token.markComplete(null);
+        
+        mainHandler.post(() -> {
+            IMqttActionListener listener = token.getActionCallback();
+            if (listener != null) {
+                listener.onSuccess(token);
+            }
+            
+            if (MqttAndroidClientAdapter.this.callback != null) {
+                // MqttCallback接口中没有connectComplete，只记录连接成功
+                Log.d(TAG, "MQTT连接已成功，准备处理消息");
             }
         });
-        readThread.setName("MQTT-Read-Thread");
-        readThread.setPriority(Thread.MAX_PRIORITY); // 提高读线程优先级
-        readThread.start();
+        
+        Log.d(TAG, "MQTT连接成功，协议: " + (session != null ? "5.0" : "3.1.1")
+                + "，session present: " + sessionPresent + "，耗时: " + pending.timings);
+        
+        // 启动保活，PING间隔沿用之前连接学到的值
+        liveness.onConnected(keepAliveSeconds * 1000);
     }
     
-    private void startKeepAlive() {
-        executorService.scheduleAtFixedRate(() -> {
+    /**
+     * 服务器没有保留会话时重发登记表中的所有订阅，保留了会话时只发送断线期间新增的订阅，并补发断线期间的取消
+     * 订阅全部合并为一个SUBSCRIBE，只能在事件循环线程上调用
+     */
+    private void replaySubscriptions(boolean sessionPresent) {
+        Map<String, Integer> pending = subscriptions.onSessionStart(sessionPresent);
+        String[] unsubscribes = subscriptions.pendingUnsubscribes();
+        if (unsubscribes.length > 0) {
+            // 断线期间取消的订阅仍保留在服务器会话中
             try {
-                // 先检查连接状态和输出流是否可用
-                if (connected && outputStream != null && socket != null && !socket.isClosed()) {
-                    // 发送PINGREQ包
-                    byte[] pingPacket = new byte[] { (byte) 0xC0, 0x00 };
-                    outputStream.write(pingPacket);
-                    outputStream.flush();
-                    Log.d(TAG, "发送MQTT保活包");
-                    
-                    // 记录未响应的ping次数
-                    synchronized (connectionLock) {
-                        missedPings++;
-                        if (missedPings > MAX_MISSED_PINGS) {
-                            Log.e(TAG, "多次ping无响应，认为连接已断开");
-                            // 模拟连接丢失
-                            Exception e = new IOException("连接超时：" + MAX_MISSED_PINGS + "次ping无响应");
-                            mainHandler.post(() -> {
-                                if (this.callback != null) {
-                                    try {
-                                        this.callback.connectionLost(e);
-                                    } catch (Exception callbackEx) {
-                                        Log.e(TAG, "回调connectionLost时出错", callbackEx);
-                                    }
-                                }
-                            });
-                            
-                            cleanUp();
-                        }
-                    }
-                } else if (connected) {
-                    // 连接标记为已连接但Socket已关闭或输出流不可用
-                    Log.e(TAG, "连接标记为已连接但Socket已关闭或输出流不可用，执行清理");
-                    Exception e = new IOException("连接异常：Socket已关闭或输出流不可用");
-                    mainHandler.post(() -> {
-                        if (this.callback != null) {
-                            try {
-                                this.callback.connectionLost(e);
-                            } catch (Exception callbackEx) {
-                                Log.e(TAG, "回调connectionLost时出错", callbackEx);
-                            }
-                        }
-                    });
-                    
-                    cleanUp();
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "发送保活包失败", e);
-                
-                // 如果发送保活包失败，可能是连接已断开
-                if (connected) {
-                    mainHandler.post(() -> {
-                        if (this.callback != null) {
-                            try {
-                                this.callback.connectionLost(e);
-                            } catch (Exception callbackEx) {
-                                Log.e(TAG, "回调connectionLost时出错", callbackEx);
-                            }
-                        }
-                    });
-                    
-                    cleanUp();
-                }
+                unsubscribe(unsubscribes, null, null);
+            } catch (MqttException e) {
+                Log.e(TAG, "补发取消订阅失败: " + e.getMessage());
             }
-        }, 15, 15, TimeUnit.SECONDS); // 减少保活间隔到15秒
+        }
+        if (pending.isEmpty()) {
+            subscriptionReplay = null;
+            completeWaitingSubscribes();
+            return;
+        }
+        String[] filters = pending.keySet().toArray(new String[0]);
+        int[] qos = new int[filters.length];
+        for (int i = 0; i < filters.length; i++) {
+            qos[i] = pending.get(filters[i]);
+        }
+        MqttActionToken token = new MqttActionToken(filters, null, null);
+        try {
+            int packetId = pendingAcks.register(token);
+            boolean mqtt5 = v5Session != null;
+            outboundQueue.enqueue(encoder -> encoder.writeSubscribe(packetId, filters, qos, mqtt5));
+            subscriptionReplay = token;
+            Log.d(TAG, (sessionPresent ? "发送断线期间新增的订阅: " : "服务器未保留会话，重新订阅: ") + Arrays.toString(filters));
+        } catch (MqttException e) {
+            Log.e(TAG, "重放订阅失败: " + e.getMessage());
+        }
     }
     
-    private void startConnectionMonitor() {
-        executorService.scheduleAtFixedRate(() -> {
-            synchronized (connectionLock) {
-                if (connected && socket != null && !socket.isClosed()) {
-                    long now = System.currentTimeMillis();
-                    long timeSinceLastPing = now - lastPingResponseTime;
-                    
-                    // 如果超过60秒没收到任何服务器响应，认为连接已断开
-                    if (timeSinceLastPing > 60000) {
-                        Log.e(TAG, "连接监控：超过60秒未收到服务器响应，认为连接已断开");
-                        
-                        // 模拟连接丢失
-                        Exception e = new IOException("连接监控：超过60秒未收到服务器响应");
-                        mainHandler.post(() -> {
-                            if (this.callback != null) {
-                                try {
-                                    this.callback.connectionLost(e);
-                                } catch (Exception callbackEx) {
-                                    Log.e(TAG, "回调connectionLost时出错", callbackEx);
-                                }
-                            }
-                        });
-                        
-                        cleanUp();
-                    }
-                } else if (connected) {
-                    // 连接标记为已连接但Socket已关闭
-                    Log.e(TAG, "连接监控：连接标记为已连接但Socket已关闭，执行清理");
-                    Exception e = new IOException("连接异常：Socket已关闭");
-                    mainHandler.post(() -> {
-                        if (this.callback != null) {
-                            try {
-                                this.callback.connectionLost(e);
-                            } catch (Exception callbackEx) {
-                                Log.e(TAG, "回调connectionLost时出错", callbackEx);
-                            }
-                        }
-                    });
-                    
-                    cleanUp();
+    /**
+     * 按登记表中的确认结果完成断线期间发起的订阅
+     */
+    private void completeWaitingSubscribes() {
+        for (MqttActionToken token : subscriptions.takeWaiting()) {
+            completeFromRegistry(token);
+        }
+    }
+    
+    /**
+     * 令牌的所有过滤器都已在当前会话中确认时成功完成，否则按订阅失败完成
+     */
+    private void completeFromRegistry(MqttActionToken token) {
+        String[] filters = token.getTopics();
+        int[] grantedQos = new int[filters.length];
+        boolean failed = false;
+        for (int i = 0; i < filters.length; i++) {
+            grantedQos[i] = subscriptions.grantedQos(filters[i]);
+            if (grantedQos[i] < 0) {
+                grantedQos[i] = MqttException.REASON_CODE_SUBSCRIBE_FAILED;
+                failed = true;
+            }
+        }
+        token.setGrantedQos(grantedQos);
+        completeAction(token, failed ? new MqttException(MqttException.REASON_CODE_SUBSCRIBE_FAILED) : null);
+    }
+    
+    /**
+     * 从离线缓存按写入顺序取出消息交给投递引擎，只能在事件循环线程上调用
+     * 每轮最多取出OFFLINE_DRAIN_BATCH条，并且只在在途窗口有空位时取出，避免重连瞬间的突发
+     * 缓存非空期间新发布的消息继续进入缓存，保证整体顺序
+     */
+    private void drainOfflineBuffer() {
+        offlineDrainTimer = null;
+        if (!connected) {
+            return;
+        }
+        int sent = 0;
+        synchronized (offlineBuffer) {
+            while (sent < OFFLINE_DRAIN_BATCH && deliveryEngine.hasCapacity()) {
+                MqttDeliveryToken token = offlineBuffer.poll();
+                if (token == null) {
+                    break;
                 }
+                try {
+                    deliveryEngine.publish(token);
+                } catch (MqttException e) {
+                    notifyDeliveryFailed(token, e);
+                }
+                sent++;
             }
-        }, 30, 30, TimeUnit.SECONDS);
+            if (offlineBuffer.isEmpty()) {
+                if (sent > 0) {
+                    Log.d(TAG, "离线缓存已全部发出");
+                }
+                return;
+            }
+        }
+        offlineDrainTimer = eventLoop.schedule(this::drainOfflineBuffer, OFFLINE_DRAIN_INTERVAL_MS);
     }
     
-    private void processMqttPacket(byte[] buffer, int length) {
-        // 在实际实现中，这里应该解析MQTT包并调用适当的回调
-        // 这里只是一个简化版，仅演示基本概念
+    /**
+     * 结束一个未完成的连接请求并通知失败，只能在事件循环线程上调用
+     * @param notifyLost 是否同时回调connectionLost，让上层按连接丢失处理（重连）
+     */
+    private void failConnect(PendingConnect pending, MqttConnectException exception, boolean notifyLost) {
+        if (pendingConnect == pending) {
+            pendingConnect = null;
+        }
+        pending.cancelConnackTimer();
+        pending.timings.fail();
+        lastConnectTimings = pending.timings;
+        
+        Log.e(TAG, "MQTT连接失败，阶段: " + exception.getPhase() + "，原因码: " + exception.getReasonCode()
+                + "，耗时: " + pending.timings, exception.getCause());
         
-        if (length <= 0) {
-            Log.w(TAG, "收到空的MQTT数据包");
+        // 清理资源
+        if (transport == pending.transport) {
+            cleanUp();
+        }
+        
+        // 通知回调
+        MqttActionToken token = pending.token;
+        token.markComplete(exception);
+        mainHandler.post(() -> {
+            IMqttActionListener listener = token.getActionCallback();
+            if (listener != null) {
+                listener.onFailure(token, exception);
+            }
+        });
+        if (notifyLost) {
+            notifyConnectionLost(exception);
+        }
+    }
+    
+    /**
+     * 最近一次连接尝试（成功或失败）的分阶段耗时，尚未连接过时返回null
+     */
+    public MqttConnectTimings getLastConnectTimings() {
+        return lastConnectTimings;
+    }
+    
+    /**
+     * 切换到另一个服务器，下次连接时生效；在途消息、离线缓存和订阅登记表保持不变，连接后照常重发和重放
+     * 只应在没有连接时调用，由MqttBrokerPool在两次连接之间选择服务器
+     */
+    void setServerURI(String serverURI) {
+        InetSocketAddress next = parseServerURI(serverURI);
+        if (next.equals(server)) {
             return;
         }
+        Log.d(TAG, "切换服务器: " + server.getHostString() + ":" + server.getPort()
+                + " -> " + next.getHostString() + ":" + next.getPort());
+        server = next;
+        // 新服务器可能支持5.0，重新按请求的协议版本连接
+        v5Unsupported = false;
+    }
+    
+    /**
+     * 解析tcp://或ssl://开头的服务器URI，返回未解析的地址；没有端口时使用1883
+     */
+    static InetSocketAddress parseServerURI(String serverURI) {
+        // 先移除URI中可能存在的协议前缀
+        String cleanServerURI = serverURI;
+        if (cleanServerURI.startsWith("tcp://")) {
+            cleanServerURI = cleanServerURI.substring(6);
+        } else if (cleanServerURI.startsWith("ssl://")) {
+            cleanServerURI = cleanServerURI.substring(6);
+        }
         
-        try {
-            // 更新最后一次收到服务器响应的时间
-            synchronized (connectionLock) {
-                lastPingResponseTime = System.currentTimeMillis();
-                missedPings = 0; // 重置未响应ping计数
+        // 解析主机名和端口
+        String[] parts = cleanServerURI.split(":");
+        return InetSocketAddress.createUnresolved(parts[0], parts.length > 1 ? Integer.parseInt(parts[1]) : 1883);
+    }
+    
+    private MqttTransport createTransport() {
+        if (transportType == TransportType.NIO) {
+            return new NioMqttTransport((NioEventLoop) eventLoop);
+        }
+        return new SocketMqttTransport(eventLoop);
+    }
+    
+    /**
+     * 在主线程通知连接丢失
+     */
+    private void notifyConnectionLost(Throwable cause) {
+        mainHandler.post(() -> {
+            if (this.callback != null) {
+                try {
+                    this.callback.connectionLost(cause);
+                } catch (Exception callbackEx) {
+                    Log.e(TAG, "回调connectionLost时出错", callbackEx);
+                }
             }
-            
+        });
+    }
+    
+    /**
+     * 处理一个完整的MQTT报文
+     * @param session 该连接的5.0会话，3.1.1连接为null
+     * @param header 固定头部首字节
+     * @param buffer 报文所在缓冲区，仅在本次调用期间有效
+     * @param offset 可变头部起始位置
+     * @param length 剩余长度（可变头部+载荷）
+     */
+    private void processMqttPacket(MqttV5Session session, int header, byte[] buffer, int offset, int length) {
+        liveness.onPacketReceived();
+        try {
             // 获取包类型
-            int packetType = (buffer[0] & 0xF0) >> 4;
+            int packetType = (header & 0xF0) >> 4;
             
             // 处理不同类型的包
             switch (packetType) {
                 case 3: // PUBLISH
                     // 解析PUBLISH包
                     try {
-                        // 记录原始数据包内容供调试
-                        logPacketHex(buffer, length);
-                        
-                        // 确保包长度足够
-                        if (length < 4) {
-                            Log.w(TAG, "PUBLISH包太短，无法解析");
-                            return;
-                        }
-                        
-                        // 解析剩余长度（变长编码）
-                        int multiplier = 1;
-                        int remainingLength = 0;
-                        int bytesUsed = 1; // 已经处理了第一个字节（固定头部）
-                        
-                        byte encodedByte;
-                        do {
-                            if (bytesUsed >= length) {
-                                Log.e(TAG, "无效的剩余长度编码");
-                                return;
-                            }
-                            
-                            encodedByte = buffer[bytesUsed++];
-                            remainingLength += (encodedByte & 0x7F) * multiplier;
-                            multiplier *= 128;
-                            
-                            if (multiplier > 128 * 128 * 128) {
-                                Log.e(TAG, "剩余长度超出范围");
-                                return;
-                            }
-                        } while ((encodedByte & 0x80) != 0);
-                        
-                        // 现在bytesUsed指向可变头部的开始
+                        int end = offset + length;
+                        int position = offset;
                         
                         // 确保有足够的字节表示主题长度
-                        if (bytesUsed + 2 > length) {
-                            Log.w(TAG, "数据包中没有足够的字节表示主题长度");
+                        if (length < 2) {
+                            Log.w(TAG, "PUBLISH包太短，无法解析");
                             return;
                         }
                         
                         // 读取主题长度
-                        int topicLength = ((buffer[bytesUsed] & 0xFF) << 8) | (buffer[bytesUsed + 1] & 0xFF);
-                        bytesUsed += 2;
+                        int topicLength = ((buffer[position] & 0xFF) << 8) | (buffer[position + 1] & 0xFF);
+                        position += 2;
                         
-                        // 确保主题长度有效
-                        if (topicLength <= 0 || bytesUsed + topicLength > length) {
-                            Log.e(TAG, "主题长度无效: " + topicLength + ", 剩余字节数: " + (length - bytesUsed));
+                        // 确保主题长度有效，5.0使用主题别名时主题可以为空
+                        if ((topicLength == 0 && session == null) || position + topicLength > end) {
+                            Log.e(TAG, "主题长度无效: " + topicLength + ", 剩余字节数: " + (end - position));
                             return;
                         }
                         
-                        // 提取主题
-                        byte[] topicBytes = new byte[topicLength];
-                        System.arraycopy(buffer, bytesUsed, topicBytes, 0, topicLength);
-                        String topic = new String(topicBytes);
-                        bytesUsed += topicLength;
+                        // 提取主题，经主题字典得到同一个String实例
+                        String topic = topicDictionary.lookup(buffer, position, topicLength);
+                        position += topicLength;
                         
                         // 可能存在报文标识符，如果是QoS 1或2（在固定头部的第1位和第2位）
-                        int qos = (buffer[0] & 0x06) >> 1;
+                        int qos = (header & 0x06) >> 1;
+                        int packetId = 0;
                         if (qos > 0) {
-                            // 跳过2字节报文标识符
-                            bytesUsed += 2;
+                            if (position + 2 > end) {
+                                Log.w(TAG, "PUBLISH包缺少报文标识符");
+                                return;
+                            }
+                            packetId = ((buffer[position] & 0xFF) << 8) | (buffer[position + 1] & 0xFF);
+                            position += 2;
                         }
                         
-                        // 计算有效载荷长度
-                        int payloadLength = length - bytesUsed;
-                        if (payloadLength <= 0) {
-                            Log.w(TAG, "PUBLISH包没有有效载荷");
-                            return;
+                        // 5.0属性，主题别名替换为完整主题
+                        if (session != null) {
+                            MqttV5Properties properties = session.inboundProperties;
+                            position = properties.read(buffer, position, end);
+                            topic = session.resolveInboundTopic(topic, properties.topicAlias);
                         }
                         
-                        // 提取有效载荷
-                        byte[] payloadBytes = new byte[payloadLength];
-                        System.arraycopy(buffer, bytesUsed, payloadBytes, 0, payloadLength);
-                        String payload = new String(payloadBytes);
+                        // QoS 2重发的消息已经交付过，只需再次回复PUBREC
+                        if (!inboundSession.onPublish(qos, packetId, (header & 0x08) != 0)) {
+                            Log.d(TAG, "收到重复的QoS 2消息: " + packetId);
+                            return;
+                        }
                         
-                        // 回调消息到达
-                        Log.d(TAG, "收到MQTT消息: " + topic + " -> " + payload);
+                        // 计算有效载荷长度
+                        int payloadLength = end - position;
+                        if (payloadLength < 0) {
+                            Log.w(TAG, "PUBLISH包长度不足");
+                            return;
+                        }
                         
-                        final String finalTopic = topic;
-                        final String finalPayload = payload;
+                        // 载荷复制到池化的消息中，交给主线程分发
+                        MqttInboundMessage message = payloadPool.acquire(payloadLength);
+                        message.set(topic, buffer, position, payloadLength, qos, (header & 0x01) == 1);
+                        enqueueInbound(message);
                         
-                        mainHandler.post(() -> {
-                            if (this.callback != null) {
-                                try {
-                                    MqttMessage message = new MqttMessage(finalPayload.getBytes());
-                                    message.setQos(qos);
-                                    message.setRetained((buffer[0] & 0x01) == 1);
-                                    this.callback.messageArrived(finalTopic, message);
-                                } catch (Exception e) {
-                                    Log.e(TAG, "回调messageArrived时出错", e);
-                                }
-                            }
-                        });
+                        // 已交给主线程分发，回复PUBACK/PUBREC，与其他出站报文合并写出
+                        inboundSession.acknowledge(qos, packetId);
                     } catch (Exception e) {
                         Log.e(TAG, "解析PUBLISH包时出错: " + e.getMessage(), e);
                     }
                     break;
                     
-                case 13: // PINGRESP
-                    Log.d(TAG, "收到PING响应");
+                case 4: // PUBACK
+                    if (length >= 2) {
+                        // 5.0可能在报文标识符后带原因码，省略时为成功
+                        deliveryEngine.onPubAck(((buffer[offset] & 0xFF) << 8) | (buffer[offset + 1] & 0xFF),
+                                length > 2 ? buffer[offset + 2] & 0xFF : 0);
+                    }
+                    break;
+                    
+                case 5: // PUBREC
+                    if (length >= 2) {
+                        deliveryEngine.onPubRec(((buffer[offset] & 0xFF) << 8) | (buffer[offset + 1] & 0xFF),
+                                length > 2 ? buffer[offset + 2] & 0xFF : 0);
+                    }
+                    break;
+                    
+                case 6: // PUBREL
+                    if (length >= 2) {
+                        inboundSession.onPubRel(((buffer[offset] & 0xFF) << 8) | (buffer[offset + 1] & 0xFF));
+                    }
+                    break;
+                    
+                case 7: // PUBCOMP
+                    if (length >= 2) {
+                        deliveryEngine.onPubComp(((buffer[offset] & 0xFF) << 8) | (buffer[offset + 1] & 0xFF));
+                    }
+                    break;
+                    
+                case 9: // SUBACK
+                    if (length >= 3) {
+                        handleSubAck(session, buffer, offset, length);
+                    }
+                    break;
+                    
+                case 11: // UNSUBACK
+                    if (length >= 2) {
+                        handleUnsubAck(buffer, offset);
+                    }
+                    break;
+                    
+                case 13: // PINGRESP
+                    long receivedTime = SystemClock.elapsedRealtime();
+                    eventLoop.execute(() -> liveness.onPingResponse(receivedTime));
+                    break;
+                    
+                case 14: // DISCONNECT（仅5.0，服务器主动断开，随后关闭连接）
+                    if (session != null) {
+                        int reasonCode = length > 0 ? buffer[offset] & 0xFF : 0;
+                        String reason = null;
+                        if (length > 1) {
+                            MqttV5Properties properties = new MqttV5Properties();
+                            properties.read(buffer, offset + 1, offset + length);
+                            reason = properties.reasonString;
+                        }
+                        Log.w(TAG, "服务器断开连接，原因码: 0x" + Integer.toHexString(reasonCode)
+                                + (reason != null ? "，" + reason : ""));
+                    }
                     break;
                     
                 default:
@@ -471,123 +941,171 @@ public class MqttAndroidClientAdapter {
         }
     }
     
-    // 用于调试的辅助方法，将包内容以十六进制形式打印出来
-    private void logPacketHex(byte[] buffer, int length) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("数据包内容: ");
-        int printLength = Math.min(length, 64); // 限制打印长度，避免日志过长
-        
-        for (int i = 0; i < printLength; i++) {
-            sb.append(String.format("%02X ", buffer[i]));
+    /**
+     * 解析SUBACK：报文标识符 +（5.0属性）+ 每个过滤器一个返回码，返回码顺序与SUBSCRIBE中的过滤器一致
+     * 0~2为授予的QoS，0x80及以上为失败
+     */
+    private void handleSubAck(MqttV5Session session, byte[] buffer, int offset, int length) throws IOException {
+        int end = offset + length;
+        int packetId = ((buffer[offset] & 0xFF) << 8) | (buffer[offset + 1] & 0xFF);
+        int position = offset + 2;
+        if (session != null) {
+            position = session.inboundProperties.read(buffer, position, end);
         }
         
-        if (printLength < length) {
-            sb.append("... (总长度: ").append(length).append(" 字节)");
+        MqttActionToken token = pendingAcks.complete(packetId);
+        if (token == null) {
+            Log.w(TAG, "收到未知报文标识符的SUBACK: " + packetId);
+            return;
         }
-        
-        Log.d(TAG, sb.toString());
-    }
-    
-    private byte[] createMqttConnectPacket(String clientId, MqttConnectOptions options) {
-        // 这是一个简化版的MQTT CONNECT包
-        // 在实际实现中，应该根据MQTT规范正确构建包
-        
-        // 计算CONNECT变长头部长度
-        int variableHeaderLength = 10;
-        
-        // 计算载荷长度 - 客户端ID
-        int payloadLength = 2 + clientId.length();
-        
-        // 如果有用户名，增加用户名长度
-        String username = options.getUserName();
-        if (username != null && !username.isEmpty()) {
-            payloadLength += 2 + username.length();
+        String[] topics = token.getTopics();
+        if (end - position != topics.length) {
+            Log.w(TAG, "SUBACK返回码数量与订阅的过滤器数量不一致: " + (end - position) + "/" + topics.length);
         }
         
-        // 如果有密码，增加密码长度
-        char[] password = options.getPassword();
-        int passwordLength = 0;
-        if (password != null && password.length > 0) {
-            passwordLength = password.length;
-            payloadLength += 2 + passwordLength;
+        int[] grantedQos = new int[topics.length];
+        boolean failed = false;
+        for (int i = 0; i < grantedQos.length; i++) {
+            grantedQos[i] = position + i < end ? buffer[position + i] & 0xFF : MqttException.REASON_CODE_SUBSCRIBE_FAILED;
+            if (grantedQos[i] >= 0x80) {
+                failed = true;
+                Log.w(TAG, "订阅被拒绝: " + topics[i] + "，返回码: 0x" + Integer.toHexString(grantedQos[i]));
+            }
         }
-        
-        // 计算CONNECT包总长度
-        int remainingLength = variableHeaderLength + payloadLength;
-        
-        // 创建CONNECT包
-        byte[] packet = new byte[1 + 1 + remainingLength]; // 1字节固定头部 + 1字节剩余长度 + 剩余长度
-        
-        // 设置固定头部 - CONNECT包类型
-        packet[0] = 0b00010000; // CONNECT = 1 << 4
-        
-        // 设置剩余长度
-        packet[1] = (byte) remainingLength;
-        
-        // 设置可变头部
-        // 协议名称长度（0x00, 0x04）和协议名称（'M', 'Q', 'T', 'T'）
-        packet[2] = 0x00;
-        packet[3] = 0x04;
-        packet[4] = 'M';
-        packet[5] = 'Q';
-        packet[6] = 'T';
-        packet[7] = 'T';
-        
-        // 协议版本 (0x04 for MQTT 3.1.1)
-        packet[8] = 0x04;
-        
-        // 连接标志
-        byte connectFlags = 0b00000010; // 设置清除会话标志
-        
-        // 如果提供了用户名和密码，设置相应标志
-        if (username != null && !username.isEmpty()) {
-            connectFlags |= 0b10000000; // 用户名标志
+        token.setGrantedQos(grantedQos);
+        subscriptions.onSubAck(topics, grantedQos);
+        Log.d(TAG, "收到SUBACK，报文标识符: " + packetId + "，授予的QoS: " + Arrays.toString(grantedQos));
+        completeAction(token, failed ? new MqttException(MqttException.REASON_CODE_SUBSCRIBE_FAILED) : null);
+        if (token == subscriptionReplay) {
+            eventLoop.execute(() -> {
+                if (subscriptionReplay == token) {
+                    subscriptionReplay = null;
+                    completeWaitingSubscribes();
+                }
+            });
         }
-        
-        if (password != null && password.length > 0) {
-            connectFlags |= 0b01000000; // 密码标志
+    }
+    
+    /**
+     * 解析UNSUBACK：报文标识符之后的属性和5.0原因码只用于诊断，不影响取消结果
+     */
+    private void handleUnsubAck(byte[] buffer, int offset) {
+        int packetId = ((buffer[offset] & 0xFF) << 8) | (buffer[offset + 1] & 0xFF);
+        MqttActionToken token = pendingAcks.complete(packetId);
+        if (token == null) {
+            Log.w(TAG, "收到未知报文标识符的UNSUBACK: " + packetId);
+            return;
         }
-        
-        packet[9] = connectFlags;
-        
-        // 保活时间（60秒）
-        packet[10] = 0x00;
-        packet[11] = 0x3C;
-        
-        // 客户端ID长度和客户端ID
-        packet[12] = 0x00;
-        packet[13] = (byte) clientId.length();
-        
-        // 复制客户端ID
-        System.arraycopy(clientId.getBytes(), 0, packet, 14, clientId.length());
-        
-        // 当前位置
-        int currentPosition = 14 + clientId.length();
-        
-        // 如果有用户名，添加到数据包
-        if (username != null && !username.isEmpty()) {
-            // 用户名长度
-            packet[currentPosition++] = 0x00;
-            packet[currentPosition++] = (byte) username.length();
-            
-            // 复制用户名
-            System.arraycopy(username.getBytes(), 0, packet, currentPosition, username.length());
-            currentPosition += username.length();
+        subscriptions.onUnsubAck(token.getTopics());
+        Log.d(TAG, "收到UNSUBACK，报文标识符: " + packetId);
+        completeAction(token, null);
+    }
+    
+    /**
+     * 入站消息进入分发队列，队列从空变为非空时向主线程投递一次分发任务
+     */
+    private void enqueueInbound(MqttInboundMessage message) {
+        synchronized (inboundMessages) {
+            inboundMessages.add(message);
+            if (inboundDispatchScheduled) {
+                return;
+            }
+            inboundDispatchScheduled = true;
         }
-        
-        // 如果有密码，添加到数据包
-        if (password != null && password.length > 0) {
-            // 密码长度
-            packet[currentPosition++] = 0x00;
-            packet[currentPosition++] = (byte) passwordLength;
+        mainHandler.post(inboundDispatcher);
+    }
+    
+    /**
+     * 在主线程上依次分发队列中的入站消息
+     */
+    private void dispatchInboundMessages() {
+        while (true) {
+            MqttInboundMessage message;
+            synchronized (inboundMessages) {
+                message = inboundMessages.poll();
+                if (message == null) {
+                    inboundDispatchScheduled = false;
+                    return;
+                }
+            }
             
-            // 复制密码
-            for (int i = 0; i < passwordLength; i++) {
-                packet[currentPosition + i] = (byte) password[i];
+            InboundListener listener = inboundListener;
+            if (listener != null) {
+                // 监听器负责释放消息
+                try {
+                    listener.messageArrived(message);
+                } catch (Exception e) {
+                    Log.e(TAG, "回调入站消息监听器时出错", e);
+                }
+                continue;
+            }
+            
+            // 兼容MqttCallback：复制出独立的载荷后立即归还缓冲区
+            try {
+                if (this.callback != null) {
+                    MqttMessage mqttMessage = new MqttMessage(message.copyPayload());
+                    mqttMessage.setQos(message.getQos());
+                    mqttMessage.setRetained(message.isRetained());
+                    this.callback.messageArrived(message.getTopic(), mqttMessage);
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "回调messageArrived时出错", e);
+            } finally {
+                message.release();
             }
         }
-        
-        return packet;
+    }
+    
+    /**
+     * 在主线程通知消息投递完成
+     */
+    private void notifyDeliveryComplete(MqttDeliveryToken token) {
+        mainHandler.post(() -> {
+            IMqttActionListener listener = token.getActionCallback();
+            if (listener != null) {
+                listener.onSuccess(token);
+            }
+            if (this.callback != null) {
+                try {
+                    this.callback.deliveryComplete(token);
+                } catch (Exception e) {
+                    Log.e(TAG, "回调deliveryComplete时出错", e);
+                }
+            }
+        });
+    }
+    
+    /**
+     * 消息未能发出（被离线缓存丢弃等），在主线程通知失败
+     */
+    private void notifyDeliveryFailed(MqttDeliveryToken token, MqttException exception) {
+        token.markComplete(exception);
+        mainHandler.post(() -> {
+            IMqttActionListener listener = token.getActionCallback();
+            if (listener != null) {
+                listener.onFailure(token, exception);
+            }
+        });
+    }
+    
+    /**
+     * 完成一个订阅令牌，在主线程回调onSuccess或onFailure
+     */
+    private void completeAction(MqttActionToken token, MqttException exception) {
+        if (!token.markComplete(exception)) {
+            return;
+        }
+        mainHandler.post(() -> {
+            IMqttActionListener listener = token.getActionCallback();
+            if (listener == null) {
+                return;
+            }
+            if (exception == null) {
+                listener.onSuccess(token);
+            } else {
+                listener.onFailure(token, exception);
+            }
+        });
     }
     
     public void disconnect() throws MqttException {
@@ -598,27 +1116,47 @@ public class MqttAndroidClientAdapter {
         disconnect(quiesceTimeout, null, null);
     }
     
+    /**
+     * 关闭持久化存储，之后不能再使用；调用前先发起disconnect
+     * 持久化文件以客户端ID和服务器地址命名并加锁，同一配置的新客户端创建前必须先关闭旧客户端
+     * 在调用线程上同步释放文件锁，尚未完成的断开过程中的持久化写入变为空操作
+     */
+    public void close() {
+        sessionStore.close();
+    }
+    
     public IMqttToken disconnect(long quiesceTimeout, Object userContext, IMqttActionListener callback) throws MqttException {
-        executorService.submit(() -> {
+        eventLoop.execute(() -> {
+            // 主动断开后不会再重放订阅，等待中的订阅直接失败
+            for (MqttActionToken token : subscriptions.takeWaiting()) {
+                completeAction(token, new MqttException(MqttException.REASON_CODE_CLIENT_DISCONNECTING));
+            }
+            
+            // 连接尚未完成时直接放弃
+            if (pendingConnect != null) {
+                PendingConnect pending = pendingConnect;
+                failConnect(pending, new MqttConnectException(MqttException.REASON_CODE_CLIENT_DISCONNECTING,
+                        pending.timings.currentPhase(), pending.timings, null), false);
+            }
+            
             try {
                 if (connected) {
-                    // 发送DISCONNECT包
-                    byte[] disconnectPacket = { (byte)0xE0, 0x00 };
-                    outputStream.write(disconnectPacket);
-                    outputStream.flush();
+                    // 发送DISCONNECT包，连同之前排队的报文一起立即写出
+                    outboundQueue.enqueue(MqttPacketEncoder::writeDisconnect);
+                    outboundQueue.flushNow();
                     
                     Log.d(TAG, "发送MQTT断开连接请求");
                     
                     // 清理资源
                     cleanUp();
-                    
-                    // 通知回调
-                    mainHandler.post(() -> {
-                        if (callback != null) {
-                            callback.onSuccess(null);
-                        }
-                    });
                 }
+                
+                // 通知回调，未连接时没有需要关闭的连接，同样回调完成
+                mainHandler.post(() -> {
+                    if (callback != null) {
+                        callback.onSuccess(null);
+                    }
+                });
             } catch (Exception e) {
                 Log.e(TAG, "断开MQTT连接失败: " + e.getMessage(), e);
                 
@@ -639,48 +1177,40 @@ public class MqttAndroidClientAdapter {
     
     private void cleanUp() {
         synchronized (connectionLock) {
-            if (!connected) {
+            if (!connected && transport == null) {
                 return; // 已经清理过，避免重复清理
             }
             
-        connected = false;
+            connected = false;
+        }
+        v5Session = null;
+        
+        // 在途消息保留到下次连接；等待中的订阅不会再收到SUBACK
+        deliveryEngine.onDisconnected();
+        for (MqttActionToken token : pendingAcks.removeAll()) {
+            completeAction(token, new MqttException(MqttException.REASON_CODE_CONNECTION_LOST));
+        }
+        
+        // 定时器和传输层只在事件循环线程上操作
+        if (!eventLoop.inEventLoop()) {
+            eventLoop.execute(this::cleanUp);
+            return;
         }
         
         try {
-            if (readThread != null) {
-                readThread.interrupt();
-                readThread = null;
-            }
+            liveness.onDisconnected();
             
-            if (socket != null && !socket.isClosed()) {
-                try {
-                    socket.close();
-                } catch (IOException e) {
-                    Log.e(TAG, "关闭Socket时出错", e);
-                } finally {
-                    socket = null;
-                }
+            if (offlineDrainTimer != null) {
+                offlineDrainTimer.cancel();
+                offlineDrainTimer = null;
             }
             
-            if (inputStream != null) {
-                try {
-                    inputStream.close();
-                } catch (IOException e) {
-                    Log.e(TAG, "关闭输入流时出错", e);
-                } finally {
-                    inputStream = null;
-                }
+            if (transport != null) {
+                transport.close();
+                transport = null;
             }
             
-            if (outputStream != null) {
-                try {
-                    outputStream.close();
-                } catch (IOException e) {
-                    Log.e(TAG, "关闭输出流时出错", e);
-                } finally {
-                    outputStream = null;
-                }
-            }
+            outboundQueue.reset();
             
             Log.d(TAG, "MQTT连接资源已清理");
         } catch (Exception e) {
@@ -693,144 +1223,170 @@ public class MqttAndroidClientAdapter {
     }
     
     public IMqttToken subscribe(String topic, int qos, Object userContext, IMqttActionListener callback) throws MqttException {
-        executorService.submit(() -> {
-            try {
-                if (connected) {
-                    // 创建SUBSCRIBE包
-                    byte[] subscribePacket = createMqttSubscribePacket(topic, qos);
-                    outputStream.write(subscribePacket);
-                    outputStream.flush();
-                    
-                    Log.d(TAG, "发送MQTT订阅请求: " + topic);
-                    
-                    // 模拟成功的SUBACK
-                    mainHandler.post(() -> {
-                        if (callback != null) {
-                            callback.onSuccess(null);
-                        }
-                    });
-                } else {
-                    throw new IOException("MQTT客户端未连接");
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "订阅MQTT主题失败: " + e.getMessage(), e);
-                
-                // 通知回调
-                mainHandler.post(() -> {
-                    if (callback != null) {
-                        callback.onFailure(null, e);
-                    }
-                });
-            }
-        });
-        
-        return null;
+        return subscribe(new String[] { topic }, new int[] { qos }, userContext, callback);
     }
     
-    private byte[] createMqttSubscribePacket(String topic, int qos) {
-        // 固定头部：SUBSCRIBE = 8 << 4 | 2
-        byte fixedHeader = (byte) 0x82;
-        
-        // 计算剩余长度
-        int variableHeaderLength = 2; // 报文标识符
-        int payloadLength = 2 + topic.length() + 1; // 主题过滤器长度(2) + 主题过滤器 + 请求的QoS(1)
-        int remainingLength = variableHeaderLength + payloadLength;
-        
-        // 创建数据包
-        byte[] packet = new byte[1 + 1 + remainingLength]; // 固定头部(1) + 剩余长度(1) + 剩余长度
-        
-        // 设置固定头部
-        packet[0] = fixedHeader;
-        packet[1] = (byte) remainingLength;
-        
-        // 设置可变头部
-        packet[2] = 0x00; // 报文标识符 (MSB)
-        packet[3] = 0x01; // 报文标识符 (LSB)
-        
-        // 设置载荷
-        packet[4] = 0x00; // 主题过滤器长度 (MSB)
-        packet[5] = (byte) topic.length(); // 主题过滤器长度 (LSB)
+    public IMqttToken subscribe(String[] topicFilters, int[] qos) throws MqttException {
+        return subscribe(topicFilters, qos, null, null);
+    }
+    
+    /**
+     * 在一个SUBSCRIBE报文中订阅多个主题过滤器，并记入订阅登记表
+     * 收到SUBACK后令牌完成，getGrantedQos()按过滤器顺序返回服务器授予的QoS；任一过滤器被拒绝时回调onFailure
+     * 所有过滤器都已在当前会话中确认时不发送报文，令牌立即完成；未连接时在连接建立、重放订阅后完成
+     */
+    public IMqttToken subscribe(String[] topicFilters, int[] qos, Object userContext, IMqttActionListener callback) throws MqttException {
+        if (topicFilters.length == 0 || topicFilters.length != qos.length) {
+            throw new IllegalArgumentException("主题过滤器与QoS数量不一致");
+        }
+        String[] filters = topicFilters.clone();
+        int[] requestedQos = qos.clone();
+        MqttActionToken token = new MqttActionToken(filters, userContext, callback);
+        subscriptions.add(filters, requestedQos);
         
-        // 复制主题
-        System.arraycopy(topic.getBytes(), 0, packet, 6, topic.length());
+        if (!connected) {
+            deferSubscribe(token, filters, requestedQos);
+            return token;
+        }
+        sendSubscribe(token, filters, requestedQos);
+        return token;
+    }
+    
+    private void sendSubscribe(MqttActionToken token, String[] filters, int[] requestedQos) throws MqttException {
+        boolean confirmed = true;
+        for (String filter : filters) {
+            if (subscriptions.grantedQos(filter) < 0) {
+                confirmed = false;
+                break;
+            }
+        }
+        if (confirmed) {
+            Log.d(TAG, "订阅已在当前会话中确认，不再发送: " + Arrays.toString(filters));
+            completeFromRegistry(token);
+            return;
+        }
         
-        // 设置请求的QoS
-        packet[6 + topic.length()] = (byte) qos;
+        // 报文标识符在收到SUBACK或连接断开后释放
+        int packetId = pendingAcks.register(token);
+        if (!connected) {
+            // 登记期间连接已断开，cleanUp可能已经错过这个令牌，交给下次连接的重放
+            if (pendingAcks.complete(packetId) != null) {
+                deferSubscribe(token, filters, requestedQos);
+            }
+            return;
+        }
         
-        return packet;
+        boolean mqtt5 = v5Session != null;
+        outboundQueue.enqueue(encoder -> encoder.writeSubscribe(packetId, filters, requestedQos, mqtt5));
+        Log.d(TAG, "发送MQTT订阅请求: " + Arrays.toString(filters) + "，报文标识符: " + packetId);
+    }
+    
+    /**
+     * 未连接时发起的订阅：在事件循环上与CONNACK处理串行，连接已建立则直接发送，否则等待下次连接的重放
+     */
+    private void deferSubscribe(MqttActionToken token, String[] filters, int[] requestedQos) {
+        eventLoop.execute(() -> {
+            if (!connected) {
+                subscriptions.addWaiting(token);
+                Log.d(TAG, "MQTT客户端未连接，订阅已登记，连接后发送: " + Arrays.toString(filters));
+                return;
+            }
+            try {
+                sendSubscribe(token, filters, requestedQos);
+            } catch (MqttException e) {
+                completeAction(token, e);
+            }
+        });
     }
     
     public IMqttToken unsubscribe(String topic) throws MqttException {
-        // 简化实现，不执行实际操作
-        Log.w(TAG, "unsubscribe方法未实现");
-        return null;
+        return unsubscribe(new String[] { topic }, null, null);
+    }
+    
+    /**
+     * 在一个UNSUBSCRIBE报文中取消多个主题过滤器，并从订阅登记表中移除，收到UNSUBACK后令牌完成
+     * 未连接时令牌立即完成；服务器保留了会话时，下次连接后补发UNSUBSCRIBE
+     */
+    public IMqttToken unsubscribe(String[] topicFilters, Object userContext, IMqttActionListener callback) throws MqttException {
+        String[] filters = topicFilters.clone();
+        MqttActionToken token = new MqttActionToken(filters, userContext, callback);
+        subscriptions.remove(filters);
+        
+        if (!connected) {
+            Log.d(TAG, "MQTT客户端未连接，取消订阅已登记: " + Arrays.toString(filters));
+            completeAction(token, null);
+            return token;
+        }
+        
+        int packetId = pendingAcks.register(token);
+        if (!connected) {
+            if (pendingAcks.complete(packetId) != null) {
+                completeAction(token, null);
+            }
+            return token;
+        }
+        
+        boolean mqtt5 = v5Session != null;
+        outboundQueue.enqueue(encoder -> encoder.writeUnsubscribe(packetId, filters, mqtt5));
+        Log.d(TAG, "发送MQTT取消订阅请求: " + Arrays.toString(filters) + "，报文标识符: " + packetId);
+        return token;
     }
     
-    public IMqttToken publish(String topic, byte[] payload, int qos, boolean retained) throws MqttException {
+    public IMqttDeliveryToken publish(String topic, byte[] payload, int qos, boolean retained) throws MqttException {
         MqttMessage message = new MqttMessage(payload);
         message.setQos(qos);
         message.setRetained(retained);
         return publish(topic, message);
     }
     
-    public IMqttToken publish(String topic, MqttMessage message) throws MqttException {
-        executorService.submit(() -> {
-            try {
-                if (connected) {
-                    // 创建PUBLISH包
-                    byte[] publishPacket = createMqttPublishPacket(topic, message);
-                    outputStream.write(publishPacket);
-                    outputStream.flush();
-                    
-                    Log.d(TAG, "发送MQTT消息: " + topic);
-                } else {
-                    throw new IOException("MQTT客户端未连接");
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "发布MQTT消息失败: " + e.getMessage(), e);
-            }
-        });
-        
-        return null;
+    public IMqttDeliveryToken publish(String topic, MqttMessage message) throws MqttException {
+        return publish(topic, message, null, null);
     }
     
-    private byte[] createMqttPublishPacket(String topic, MqttMessage message) {
-        // 固定头部：PUBLISH = 3 << 4 | retained << 0 | qos << 1 | dup << 3
-        byte fixedHeader = (byte) (3 << 4);
-        if (message.isRetained()) {
-            fixedHeader |= 1;
+    public IMqttDeliveryToken publish(String topic, MqttMessage message, Object userContext, IMqttActionListener callback) throws MqttException {
+        MqttDeliveryToken token = new MqttDeliveryToken(topic, message, userContext, callback);
+        MqttDeliveryToken dropped;
+        synchronized (offlineBuffer) {
+            if (connected && offlineBuffer.isEmpty()) {
+                // QoS 0直接编码进出站队列；QoS 1/2进入在途窗口，收到PUBACK/PUBCOMP后令牌完成
+                deliveryEngine.publish(token);
+                Log.d(TAG, "发送MQTT消息: " + topic + (token.getMessageId() != 0 ? "，报文标识符: " + token.getMessageId() : ""));
+                return token;
+            }
+            
+            if (!connected && !offlineBuffer.isEnabled()) {
+                throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+            }
+            
+            // 未连接，或重连后缓存尚未取完，放入离线缓存等待按顺序发出
+            dropped = offlineBuffer.add(token);
         }
-        fixedHeader |= (message.getQos() << 1);
-        
-        byte[] payload = message.getPayload();
-        
-        // 计算剩余长度
-        int variableHeaderLength = 2 + topic.length(); // 主题长度(2) + 主题
-        int remainingLength = variableHeaderLength + payload.length;
-        
-        // 创建数据包
-        byte[] packet = new byte[1 + 1 + remainingLength]; // 固定头部(1) + 剩余长度(1) + 剩余长度
         
-        // 设置固定头部
-        packet[0] = fixedHeader;
-        packet[1] = (byte) remainingLength;
-        
-        // 设置可变头部
-        packet[2] = 0x00; // 主题长度 (MSB)
-        packet[3] = (byte) topic.length(); // 主题长度 (LSB)
-        
-        // 复制主题
-        System.arraycopy(topic.getBytes(), 0, packet, 4, topic.length());
-        
-        // 复制载荷
-        System.arraycopy(payload, 0, packet, 4 + topic.length(), payload.length);
-        
-        return packet;
+        if (dropped != null) {
+            Log.w(TAG, "离线缓存已满，丢弃最早的消息: " + dropped.getTopics()[0]);
+            notifyDeliveryFailed(dropped, new MqttException(MqttException.REASON_CODE_DISCONNECTED_BUFFER_FULL));
+        }
+        Log.d(TAG, "MQTT客户端未连接，消息已缓存: " + topic);
+        return token;
+    }
+    
+    /**
+     * 尚未收到确认的消息令牌，包括窗口已满时在本地排队的消息，不包括离线缓存中的消息
+     */
+    public IMqttDeliveryToken[] getPendingDeliveryTokens() {
+        return deliveryEngine.getPendingTokens();
+    }
+    
+    /**
+     * 离线缓存中等待发出的消息数
+     */
+    public int getBufferedMessageCount() {
+        return offlineBuffer.size();
     }
     
     public boolean isConnected() {
         synchronized (connectionLock) {
-            return connected && socket != null && socket.isConnected() && !socket.isClosed();
+            return connected && transport != null && transport.isOpen();
         }
     }
     
@@ -841,7 +1397,160 @@ public class MqttAndroidClientAdapter {
         return context;
     }
     
+    /**
+     * 启用MQTT 5.0，下次连接生效；为null时使用3.1.1
+     * 服务器不支持5.0时按选项降级为3.1.1，降级后本客户端之后的连接都使用3.1.1
+     */
+    public void setMqttV5Options(MqttV5Options options) {
+        this.v5Options = options;
+        this.v5Unsupported = false;
+    }
+    
+    /**
+     * 设置连接各阶段（TCP、TLS、CONNACK）的超时，下次连接生效
+     */
+    public void setConnectTimeouts(MqttConnectTimeouts timeouts) {
+        this.connectTimeouts = timeouts;
+    }
+    
+    /**
+     * 当前连接使用的协议级别：5表示MQTT 5.0，4表示3.1.1，未连接时返回0
+     */
+    public int getProtocolVersion() {
+        if (!connected) {
+            return 0;
+        }
+        return v5Session != null ? 5 : 4;
+    }
+    
+    /**
+     * 当前5.0连接上使用出站主题别名省去的主题字节数
+     */
+    public long getTopicAliasSavedBytes() {
+        MqttV5Session session = v5Session;
+        return session != null ? session.getAliasSavedBytes() : 0;
+    }
+    
+    /**
+     * 设置出站微批处理窗口（毫秒）
+     * 窗口内的报文合并为一次写出，0表示不额外等待，只合并同一轮事件循环中排队的报文
+     */
+    public void setWriteBatchWindow(long windowMs) {
+        outboundQueue.setBatchWindowMs(windowMs);
+    }
+    
+    /**
+     * 获取出站合并写出的统计信息
+     */
+    public OutboundStats getOutboundStats() {
+        return new OutboundStats(outboundQueue.getFlushCount(), outboundQueue.getPacketCount(),
+                outboundQueue.getByteCount(), outboundQueue.getMaxPacketsPerFlush());
+    }
+    
+    /**
+     * 获取入站确认的统计信息
+     */
+    public InboundStats getInboundStats() {
+        return new InboundStats(inboundSession.getAcknowledgedCount(), inboundSession.getDuplicateCount(),
+                inboundSession.getRedeliveredCount(), inboundSession.getAwaitingPubRelCount());
+    }
+    
+    /**
+     * 入站确认统计快照
+     */
+    public static final class InboundStats {
+        // 已回复PUBACK/PUBREC的消息数
+        public final long acknowledged;
+        // 等待PUBREL期间收到、未再次交付的QoS 2重发数
+        public final long duplicates;
+        // 服务器带DUP标志重发的消息数
+        public final long redelivered;
+        // 当前等待PUBREL的QoS 2消息数
+        public final int awaitingPubRel;
+        
+        InboundStats(long acknowledged, long duplicates, long redelivered, int awaitingPubRel) {
+            this.acknowledged = acknowledged;
+            this.duplicates = duplicates;
+            this.redelivered = redelivered;
+            this.awaitingPubRel = awaitingPubRel;
+        }
+        
+        @Override
+        public String toString() {
+            return "acknowledged=" + acknowledged + ", duplicates=" + duplicates
+                    + ", redelivered=" + redelivered + ", awaitingPubRel=" + awaitingPubRel;
+        }
+    }
+    
+    /**
+     * 出站写出统计快照
+     */
+    public static final class OutboundStats {
+        public final long flushes;
+        public final long packets;
+        public final long bytes;
+        public final int maxPacketsPerFlush;
+        
+        OutboundStats(long flushes, long packets, long bytes, int maxPacketsPerFlush) {
+            this.flushes = flushes;
+            this.packets = packets;
+            this.bytes = bytes;
+            this.maxPacketsPerFlush = maxPacketsPerFlush;
+        }
+        
+        /**
+         * 平均每次写出包含的报文数
+         */
+        public double getPacketsPerFlush() {
+            return flushes == 0 ? 0 : (double) packets / flushes;
+        }
+        
+        @Override
+        public String toString() {
+            return "flushes=" + flushes + ", packets=" + packets + ", bytes=" + bytes
+                    + ", avgPacketsPerFlush=" + String.format(java.util.Locale.US, "%.2f", getPacketsPerFlush())
+                    + ", maxPacketsPerFlush=" + maxPacketsPerFlush;
+        }
+    }
+    
+    /**
+     * 设置断线期间的消息缓存：容量、写满时是否丢弃最早的消息、是否持久化
+     * 持久化需要构造时传入MqttClientPersistence，否则只缓存在内存中
+     */
     public void setBufferOpts(DisconnectedBufferOptions options) {
-        Log.w(TAG, "setBufferOpts方法未实现");
+        for (MqttDeliveryToken dropped : offlineBuffer.setOptions(options)) {
+            notifyDeliveryFailed(dropped, new MqttException(MqttException.REASON_CODE_DISCONNECTED_BUFFER_FULL));
+        }
+        Log.d(TAG, "离线缓存选项: 启用=" + options.isBufferEnabled() + ", 容量=" + options.getBufferSize()
+                + ", 持久化=" + options.isPersistBuffer() + ", 删除最早消息=" + options.isDeleteOldestMessages());
+    }
+    
+    /**
+     * 一次进行中的连接请求，只在事件循环线程上访问
+     */
+    private static final class PendingConnect {
+        final MqttTransport transport;
+        final MqttActionToken token;
+        final MqttConnectTimings timings;
+        final MqttConnectOptions options;
+        // 请求5.0时的会话，3.1.1为null
+        final MqttV5Session v5Session;
+        MqttEventLoop.Timer connackTimer;
+        
+        PendingConnect(MqttTransport transport, MqttActionToken token, MqttConnectTimings timings,
+                       MqttConnectOptions options, MqttV5Session v5Session) {
+            this.transport = transport;
+            this.token = token;
+            this.timings = timings;
+            this.options = options;
+            this.v5Session = v5Session;
+        }
+        
+        void cancelConnackTimer() {
+            if (connackTimer != null) {
+                connackTimer.cancel();
+                connackTimer = null;
+            }
+        }
     }
 } 
\ No newline at end of file
@@ -0,0 +1,410 @@
+package com.example.smarthomelighting.utils;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.LongSupplier;
+
+/**
+ * 服务器地址池，为每次连接尝试选择服务器，并在服务器之间故障转移和回切
+ * 每个服务器按TCP握手时间、连接耗时和出错率打分；已连接时定期用TCP握手探测所有服务器（包括当前服务器），
+ * 保证回切时比较的是同一种测量，而不是当前连接的PING往返时间（含TLS和服务器处理）和其他服务器的握手时间；
+ * 只有其他服务器连续几轮明显更快、且当前连接已保持一段时间后才请求回切，避免在相近的服务器之间来回切换
+ * 连接失败时隔离该服务器一段时间，立即换到其他可用的服务器；全部隔离时交给重连策略退避
+ * 只有一个服务器时不探测，也不切换
+ * 除探测本身外都只在主线程访问
+ */
+final class MqttBrokerPool {
+    private static final String TAG = "MqttBrokerPool";
+
+    // 已连接时探测的间隔，以及连接建立后第一次探测的延迟
+    private static final long PROBE_INTERVAL_MS = 2 * 60 * 1000;
+    private static final long PROBE_INITIAL_DELAY_MS = 15000;
+    private static final int PROBE_TIMEOUT_MS = 3000;
+    // 回切条件：得分至少好30%且至少好20ms，连续3轮，当前连接至少保持5分钟
+    private static final double SWITCH_RATIO = 0.7;
+    private static final long SWITCH_MIN_GAIN_MS = 20;
+    private static final int SWITCH_ROUNDS = 3;
+    private static final long MIN_DWELL_MS = 5 * 60 * 1000;
+    // 连接失败后的隔离时间，连续失败时翻倍
+    private static final long QUARANTINE_BASE_MS = 30000;
+    private static final long QUARANTINE_MAX_MS = 10 * 60 * 1000;
+    // 出错率为1时得分增加的毫秒数
+    private static final long ERROR_PENALTY_MS = 500;
+    // 一次完整连接（DNS、TCP、TLS、CONNACK）大约相当于几个往返，还没有探测样本时用它估算握手时间
+    private static final int CONNECT_ROUND_TRIPS = 4;
+    private static final double ALPHA = 0.25;
+
+    interface Listener {
+        /**
+         * 找到明显更好的服务器，请求断开当前连接并重新连接
+         */
+        void onSwitchRequested(String serverURI);
+    }
+
+    private static final class Endpoint {
+        final String serverURI;
+        final InetSocketAddress address;
+        // 平滑的探测TCP握手时间和连接耗时，小于0表示还没有样本
+        double handshakeMs = -1;
+        double connectMs = -1;
+        // 连接和探测结果的出错率，0到1
+        double errorRate = 0;
+        int consecutiveFailures = 0;
+        long quarantineUntil = 0;
+
+        Endpoint(String serverURI) {
+            this.serverURI = serverURI;
+            this.address = MqttAndroidClientAdapter.parseServerURI(serverURI);
+        }
+
+        boolean isMeasured() {
+            return handshakeMs >= 0 || connectMs >= 0;
+        }
+
+        boolean isProbed() {
+            return handshakeMs >= 0;
+        }
+
+        /**
+         * 得分越低越好，没有任何样本时为Long.MAX_VALUE
+         */
+        long score() {
+            if (!isMeasured()) {
+                return Long.MAX_VALUE;
+            }
+            double latency = handshakeMs >= 0 ? handshakeMs : connectMs / CONNECT_ROUND_TRIPS;
+            return (long) (latency + errorRate * ERROR_PENALTY_MS);
+        }
+
+        void addHandshake(long sample) {
+            handshakeMs = handshakeMs < 0 ? sample : handshakeMs + ALPHA * (sample - handshakeMs);
+        }
+
+        void addConnect(long sample) {
+            connectMs = connectMs < 0 ? sample : connectMs + ALPHA * (sample - connectMs);
+        }
+
+        void addOutcome(boolean failed) {
+            errorRate += ALPHA * ((failed ? 1 : 0) - errorRate);
+        }
+
+        @Override
+        public String toString() {
+            return serverURI + "(得分: " + (isMeasured() ? score() + "ms" : "-") + "，出错率: "
+                    + Math.round(errorRate * 100) + "%)";
+        }
+    }
+
+    private final List<Endpoint> endpoints = new ArrayList<>();
+    private final Listener listener;
+    // 开机以来的毫秒数，测试时可替换
+    private final LongSupplier clock;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    // 探测是阻塞连接，单线程依次进行
+    private final ExecutorService probeExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread t = new Thread(runnable, "MQTT-Probe");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // 当前（或最近一次尝试）使用的服务器
+    private Endpoint current;
+    // 回切的目标，下次选择服务器时优先使用
+    private Endpoint preferred;
+    // 连续几轮探测都明显更好的服务器和轮数
+    private Endpoint candidate;
+    private int candidateRounds = 0;
+    private long connectedSince = 0;
+    // 探测定时器的代数，停止探测时递增，过期的定时器和探测结果不起作用
+    private int probeGeneration = 0;
+
+    MqttBrokerPool(List<String> serverURIs, Listener listener) {
+        this(serverURIs, listener, SystemClock::elapsedRealtime);
+    }
+
+    MqttBrokerPool(List<String> serverURIs, Listener listener, LongSupplier clock) {
+        if (serverURIs.isEmpty()) {
+            throw new IllegalArgumentException("至少需要一个服务器地址");
+        }
+        for (String serverURI : serverURIs) {
+            endpoints.add(new Endpoint(serverURI));
+        }
+        this.listener = listener;
+        this.clock = clock;
+    }
+
+    /**
+     * 第一个服务器的URI，作为持久化存储的标识
+     */
+    String getPrimaryServerURI() {
+        return endpoints.get(0).serverURI;
+    }
+
+    /**
+     * 当前使用的服务器，还没有连接过时为第一个服务器
+     */
+    String getCurrentServerURI() {
+        return (current != null ? current : endpoints.get(0)).serverURI;
+    }
+
+    /**
+     * 所有服务器的主机名
+     */
+    List<String> getHosts() {
+        List<String> hosts = new ArrayList<>();
+        for (Endpoint endpoint : endpoints) {
+            hosts.add(endpoint.address.getHostString());
+        }
+        return hosts;
+    }
+
+    /**
+     * 服务器的得分，越低越好，还没有样本时为Long.MAX_VALUE
+     */
+    long getScore(String serverURI) {
+        return find(serverURI).score();
+    }
+
+    /**
+     * 服务器剩余的隔离时间，未被隔离时为0
+     */
+    long getQuarantineRemainingMs(String serverURI) {
+        return Math.max(0, find(serverURI).quarantineUntil - clock.getAsLong());
+    }
+
+    /**
+     * 为下一次连接尝试选择服务器
+     * 有回切目标时使用回切目标；当前服务器未被隔离时继续使用；否则选得分最好的未隔离服务器，
+     * 都没有样本时按配置顺序；全部被隔离时选最早解除隔离的
+     */
+    String select() {
+        long now = clock.getAsLong();
+        Endpoint next;
+        if (preferred != null && preferred.quarantineUntil <= now) {
+            next = preferred;
+        } else if (current != null && current.quarantineUntil <= now) {
+            next = current;
+        } else {
+            next = bestAvailable(now, null);
+        }
+        if (next == null) {
+            for (Endpoint endpoint : endpoints) {
+                if (next == null || endpoint.quarantineUntil < next.quarantineUntil) {
+                    next = endpoint;
+                }
+            }
+        }
+        preferred = null;
+        if (next != current) {
+            Log.d(TAG, "选择服务器: " + next);
+        }
+        current = next;
+        return next.serverURI;
+    }
+
+    /**
+     * 连接成功，开始定期探测其他服务器
+     */
+    void onConnected(MqttConnectTimings timings) {
+        if (current == null) {
+            return;
+        }
+        if (timings != null) {
+            current.addConnect(timings.getTotalMs());
+        }
+        current.addOutcome(false);
+        current.consecutiveFailures = 0;
+        current.quarantineUntil = 0;
+        connectedSince = clock.getAsLong();
+        candidate = null;
+        candidateRounds = 0;
+        if (endpoints.size() > 1) {
+            scheduleProbe(++probeGeneration, PROBE_INITIAL_DELAY_MS);
+        }
+    }
+
+    /**
+     * 连接断开（无论原因），停止探测
+     */
+    void onDisconnected() {
+        probeGeneration++;
+    }
+
+    /**
+     * 已建立的连接意外丢失，计入当前服务器的出错率
+     */
+    void onConnectionLost() {
+        if (current != null) {
+            current.addOutcome(true);
+        }
+    }
+
+    /**
+     * 连接尝试失败，隔离当前服务器
+     * @return 是否还有未被隔离的其他服务器，为true时应立即换到该服务器重试
+     */
+    boolean onConnectFailed(MqttFailureCause cause) {
+        if (current == null || cause == MqttFailureCause.CLIENT) {
+            return false;
+        }
+        long now = clock.getAsLong();
+        current.addOutcome(true);
+        current.consecutiveFailures++;
+        long quarantine = Math.min(QUARANTINE_MAX_MS, QUARANTINE_BASE_MS << Math.min(current.consecutiveFailures - 1, 5));
+        current.quarantineUntil = now + quarantine;
+        Log.w(TAG, "服务器连接失败: " + current + "，原因: " + cause + "，隔离" + quarantine + "ms");
+        Endpoint next = bestAvailable(now, current);
+        if (next == null) {
+            return false;
+        }
+        Log.w(TAG, "故障转移到: " + next);
+        preferred = next;
+        return true;
+    }
+
+    /**
+     * 切换到新网络：解除隔离，清除旧网络上的握手时间，重新探测
+     */
+    void onNetworkChanged() {
+        for (Endpoint endpoint : endpoints) {
+            endpoint.quarantineUntil = 0;
+            endpoint.consecutiveFailures = 0;
+            endpoint.handshakeMs = -1;
+        }
+        candidate = null;
+        candidateRounds = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "当前: " + getCurrentServerURI() + "，" + endpoints;
+    }
+
+    private Endpoint find(String serverURI) {
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.serverURI.equals(serverURI)) {
+                return endpoint;
+            }
+        }
+        throw new IllegalArgumentException("未知的服务器: " + serverURI);
+    }
+
+    /**
+     * 得分最好的未隔离服务器，exclude除外；都没有样本时按配置顺序取第一个
+     */
+    private Endpoint bestAvailable(long now, Endpoint exclude) {
+        Endpoint best = null;
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint == exclude || endpoint.quarantineUntil > now) {
+                continue;
+            }
+            if (best == null || endpoint.score() < best.score()) {
+                best = endpoint;
+            }
+        }
+        return best;
+    }
+
+    private void scheduleProbe(int generation, long delayMs) {
+        handler.postDelayed(() -> {
+            if (generation == probeGeneration) {
+                probeRound(generation);
+            }
+        }, delayMs);
+    }
+
+    /**
+     * 一轮探测：在后台线程上依次测量每个服务器（包括当前服务器）的TCP握手时间
+     */
+    private void probeRound(int generation) {
+        List<Endpoint> targets = new ArrayList<>(endpoints);
+        probeExecutor.execute(() -> {
+            Map<String, Long> results = new LinkedHashMap<>();
+            for (Endpoint target : targets) {
+                results.put(target.serverURI, probe(target.address));
+            }
+            handler.post(() -> {
+                if (generation == probeGeneration) {
+                    onProbeRound(results);
+                    scheduleProbe(generation, PROBE_INTERVAL_MS);
+                }
+            });
+        });
+    }
+
+    /**
+     * 一轮探测完成：记录各服务器的TCP握手时间（按服务器URI，-1表示探测失败），然后判断是否回切
+     */
+    void onProbeRound(Map<String, Long> results) {
+        for (Endpoint endpoint : endpoints) {
+            Long result = results.get(endpoint.serverURI);
+            if (result == null) {
+                continue;
+            }
+            endpoint.addOutcome(result < 0);
+            if (result >= 0) {
+                endpoint.addHandshake(result);
+            }
+        }
+        Log.d(TAG, "探测完成: " + this);
+        evaluateSwitch();
+    }
+
+    /**
+     * 其他服务器连续SWITCH_ROUNDS轮明显优于当前服务器，且当前连接已保持MIN_DWELL_MS时请求切换
+     * 两者都有探测样本时才比较，连接耗时估算的得分和握手时间不可比
+     */
+    private void evaluateSwitch() {
+        long now = clock.getAsLong();
+        Endpoint best = bestAvailable(now, current);
+        long currentScore = current.score();
+        if (best == null || !current.isProbed() || !best.isProbed() || best.score() > currentScore * SWITCH_RATIO
+                || currentScore - best.score() < SWITCH_MIN_GAIN_MS) {
+            candidate = null;
+            candidateRounds = 0;
+            return;
+        }
+        if (best != candidate) {
+            candidate = best;
+            candidateRounds = 0;
+        }
+        candidateRounds++;
+        if (candidateRounds < SWITCH_ROUNDS || now - connectedSince < MIN_DWELL_MS) {
+            return;
+        }
+        Log.d(TAG, "切换到更快的服务器: " + current + " -> " + best);
+        preferred = best;
+        candidate = null;
+        candidateRounds = 0;
+        probeGeneration++;
+        listener.onSwitchRequested(best.serverURI);
+    }
+
+    /**
+     * 测量TCP握手时间，失败返回-1，只能在探测线程上调用
+     */
+    private static long probe(InetSocketAddress address) {
+        try (Socket socket = new Socket()) {
+            InetAddress[] resolved = MqttDnsResolver.shared().resolve(address.getHostString(), PROBE_TIMEOUT_MS);
+            long start = SystemClock.elapsedRealtime();
+            socket.connect(new InetSocketAddress(resolved[0], address.getPort()), PROBE_TIMEOUT_MS);
+            return SystemClock.elapsedRealtime() - start;
+        } catch (IOException e) {
+            Log.d(TAG, "探测失败: " + address.getHostString() + ":" + address.getPort() + "，" + e.getMessage());
+            return -1;
+        }
+    }
+}
@@ -3,7 +3,10 @@ package com.example.smarthomelighting.utils;
 import android.content.Context;
 import android.os.Handler;
 import android.util.Log;
-import android.os.SystemClock;
+
+import androidx.lifecycle.LifecycleOwner;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
 
 import org.eclipse.paho.client.mqttv3.DisconnectedBufferOptions;
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
@@ -14,6 +17,17 @@ import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 public class MqttClientManager {
     private static final String TAG = "MqttClientManager";
     
@@ -21,108 +35,38 @@ public class MqttClientManager {
     private static MqttClientManager instance;
     
     private MqttAndroidClientAdapter mqttClient;
-    private final String serverUri;
+    // 可用的服务器，每次连接尝试前从中选择；只在主线程访问
+    private final MqttBrokerPool brokerPool;
     private final String clientId;
     private final String username;
     private final String password;
     private final boolean useSSL;
     private MqttStatusCallback mqttStatusCallback;
+    // 二进制消息监听器，修改时整体替换数组，分发时不分配迭代器
+    private volatile MqttMessageListener[] messageListeners = new MqttMessageListener[0];
     
-    // 连接状态监控
-    private boolean manualDisconnect = false;
-    private int reconnectAttempts = 0;
-    private static final int MAX_RECONNECT_ATTEMPTS = 20; // 增加最大重连次数
-    private static final long RECONNECT_DELAY_MS = 3000; // 减少重连延迟到3秒
-    private Handler reconnectHandler = new Handler(android.os.Looper.getMainLooper());
-    private long lastConnectionAttemptTime = 0; // 记录上次连接尝试时间
+    // 连接健康状态，由适配器的协议层保活驱动，只在主线程更新
+    private final MutableLiveData<MqttConnectionHealth> connectionHealth = new MutableLiveData<>(MqttConnectionHealth.DISCONNECTED);
     
-    // 连接状态稳定性控制
-    private boolean isReconnecting = false; // 是否正在重连过程中
-    private long lastConnectionStateChangeTime = 0; // 上次连接状态变化时间
-    private static final long CONNECTION_STABILITY_THRESHOLD = 10000; // 连接状态稳定阈值(10秒)
-    private boolean lastReportedConnectionState = false; // 上次报告的连接状态
+    // 主题 -> {持有者数量, 请求的最高QoS}；第一个持有者订阅，最后一个持有者释放时取消订阅
+    private final Map<String, int[]> subscriptionRefs = new HashMap<>();
     
-    private final Runnable reconnectRunnable = new Runnable() {
-        @Override
-        public void run() {
-            if (!isConnected() && !manualDisconnect) {
-                // 无限重连，不再限制尝试次数
-                Log.d(TAG, "尝试重新连接MQTT，第" + (reconnectAttempts+1) + "次尝试");
-                reconnectAttempts++;
-                lastConnectionAttemptTime = SystemClock.elapsedRealtime(); // 记录连接尝试时间
-                
-                // 设置重连状态
-                isReconnecting = true;
-                
-                connect();
-                
-                // 指数退避策略，最大延迟60秒
-                long nextDelay = Math.min(RECONNECT_DELAY_MS * (long)Math.pow(1.5, Math.min(reconnectAttempts, 10)), 60000);
-                reconnectHandler.postDelayed(this, nextDelay);
-            } else {
-                // 如果已连接，结束重连状态
-                isReconnecting = false;
-            }
-        }
-    };
+    // 连接状态机，连接、重连和断开都经由它进行，其他代码不直接修改连接状态
+    private final MqttConnectionStateMachine stateMachine;
+    // 默认网络的可用性，没有可用网络时状态机不尝试连接；只在主线程访问
+    private final MqttNetworkMonitor networkMonitor;
+    private final Handler mainHandler = new Handler(android.os.Looper.getMainLooper());
     
-    // 心跳检测任务
-    private final Runnable heartbeatTask = new Runnable() {
-        @Override
-        public void run() {
-            try {
-                if (isConnected()) {
-                    // 发送心跳消息
-                    publish("heartbeat", clientId, 0, false);
-                    Log.d(TAG, "已发送心跳消息");
-                    // 安排下一次心跳
-                    Handler handler = new Handler(android.os.Looper.getMainLooper());
-                    handler.postDelayed(this, 15000); // 减少心跳间隔到15秒
-                } else if (!manualDisconnect && !isReconnecting) {
-                    // 检测到连接断开且不是手动断开，也不在重连过程中，尝试重连
-                    Log.d(TAG, "心跳检测到连接断开，准备重连");
-                    reconnectAttempts = 0;
-                    Handler handler = new Handler(android.os.Looper.getMainLooper());
-                    handler.post(reconnectRunnable); // 立即开始重连
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "心跳任务异常: " + e.getMessage());
-                // 如果心跳发送失败，可能是连接有问题，尝试重连
-                if (!manualDisconnect && !isReconnecting) {
-                    reconnectHandler.postDelayed(reconnectRunnable, 1000); // 1秒后尝试重连
-                }
-            }
+    // 连接状态稳定性控制：断线后在阈值内重新连上时不通知UI，避免状态闪烁；只在主线程访问
+    private static final long CONNECTION_STABILITY_THRESHOLD = 10000; // 连接状态稳定阈值(10秒)
+    private boolean reportedConnected = false; // 上次报告的连接状态
+    private final Runnable reportDisconnected = () -> {
+        reportedConnected = false;
+        if (mqttStatusCallback != null) {
+            mqttStatusCallback.onConnectionFailed("连接断开");
         }
     };
     
-    // 连接状态监控任务
-    private final Runnable connectionMonitorTask = new Runnable() {
-        @Override
-        public void run() {
-            if (!manualDisconnect) {
-                // 检查是否长时间没有连接尝试（可能是系统休眠后恢复）
-                long currentTime = SystemClock.elapsedRealtime();
-                if (currentTime - lastConnectionAttemptTime > 120000) { // 如果超过2分钟没有连接尝试
-                    Log.d(TAG, "检测到长时间无连接尝试，可能是从休眠状态恢复，强制重连");
-                    forceReconnect();
-                } else if (!isConnected() && !isReconnecting) {
-                    Log.d(TAG, "连接监控检测到连接断开，准备重连");
-                    reconnectAttempts = 0;
-                    reconnectHandler.post(reconnectRunnable);
-                } else {
-                    // 连接正常，发送心跳保活
-                    try {
-                        publish("ping", "{\"client\":\"" + clientId + "\",\"timestamp\":" + System.currentTimeMillis() + "}", 0, false);
-                    } catch (Exception e) {
-                        Log.e(TAG, "发送ping消息失败: " + e.getMessage());
-                    }
-                }
-            }
-            // 每30秒检查一次连接状态
-            reconnectHandler.postDelayed(this, 30000);
-        }
-    };
-
     // 获取单例实例的方法
     public static synchronized MqttClientManager getInstance(Context context) {
         return instance;
@@ -139,42 +83,92 @@ public class MqttClientManager {
         void onMessageReceived(String topic, String message);
     }
 
+    /**
+     * 二进制消息监听器，在主线程回调
+     * payload是池化缓冲区的只读视图，只在回调期间有效，需要保留时先复制
+     */
+    public interface MqttMessageListener {
+        void onMessageReceived(String topic, ByteBuffer payload, int qos, boolean retained);
+    }
+
+    /**
+     * 在二进制监听器之上按UTF-8解码载荷，供只处理文本消息的监听器使用
+     */
+    public abstract static class TextMessageListener implements MqttMessageListener {
+        @Override
+        public final void onMessageReceived(String topic, ByteBuffer payload, int qos, boolean retained) {
+            onTextMessageReceived(topic, StandardCharsets.UTF_8.decode(payload).toString(), qos, retained);
+        }
+
+        public abstract void onTextMessageReceived(String topic, String message, int qos, boolean retained);
+    }
+
+    public MqttClientManager(Context context, String serverUri, String clientId, 
+                            String username, String password, boolean useSSL) {
+        this(context, serverUri, clientId, username, password, useSSL, MqttAndroidClientAdapter.TransportType.SOCKET);
+    }
+
     public MqttClientManager(Context context, String serverUri, String clientId, 
+                            String username, String password, boolean useSSL,
+                            MqttAndroidClientAdapter.TransportType transportType) {
+        this(context, Collections.singletonList(serverUri), clientId, username, password, useSSL, transportType);
+    }
+
+    public MqttClientManager(Context context, List<String> serverUris, String clientId,
                             String username, String password, boolean useSSL) {
-        this.serverUri = useSSL ? "ssl://" + serverUri : "tcp://" + serverUri;
+        this(context, serverUris, clientId, username, password, useSSL, MqttAndroidClientAdapter.TransportType.SOCKET);
+    }
+
+    /**
+     * @param serverUris 服务器地址列表（主机:端口），第一个为首选服务器；连接失败时故障转移到其他服务器，
+     *                   已连接时定期探测，其他服务器明显更快时切换过去
+     */
+    public MqttClientManager(Context context, List<String> serverUris, String clientId,
+                            String username, String password, boolean useSSL,
+                            MqttAndroidClientAdapter.TransportType transportType) {
+        List<String> uris = new ArrayList<>();
+        for (String serverUri : serverUris) {
+            uris.add(useSSL ? "ssl://" + serverUri : "tcp://" + serverUri);
+        }
+        this.brokerPool = new MqttBrokerPool(uris, new MqttBrokerPool.Listener() {
+            @Override
+            public void onSwitchRequested(String serverURI) {
+                // 断开后由状态机立即重连，连接前从地址池选择服务器
+                stateMachine.restart();
+            }
+        });
         this.clientId = clientId;
         this.username = username;
         this.password = password;
         this.useSSL = useSSL;
         
-        mqttClient = new MqttAndroidClientAdapter(context, this.serverUri, clientId);
+        // 在途消息和离线缓存写入内存映射文件，进程被杀后重启可以恢复；
+        // 所有服务器共用同一个客户端，切换服务器后在途消息、离线缓存和订阅都在新服务器上继续
+        mqttClient = new MqttAndroidClientAdapter(context, brokerPool.getPrimaryServerURI(), clientId, transportType,
+                new MqttMappedFilePersistence(new File(context.getFilesDir(), "mqtt")));
+        
+        // 断线期间发布的消息进入离线缓存，重连后按顺序发出
+        DisconnectedBufferOptions disconnectedBufferOptions = new DisconnectedBufferOptions();
+        disconnectedBufferOptions.setBufferEnabled(true);
+        disconnectedBufferOptions.setBufferSize(200); // 增加缓冲区大小
+        disconnectedBufferOptions.setPersistBuffer(true); // 持久化缓冲区
+        disconnectedBufferOptions.setDeleteOldestMessages(false);
+        mqttClient.setBufferOpts(disconnectedBufferOptions);
         mqttClient.setCallback(new MqttCallback() {
             @Override
             public void connectionLost(Throwable cause) {
                 Log.d(TAG, "连接断开: " + (cause != null ? cause.getMessage() : "未知原因"));
-                
-                // 记录连接状态变化时间
-                lastConnectionStateChangeTime = SystemClock.elapsedRealtime();
-                
-                // 如果不是手动断开连接，尝试自动重连
-                if (!manualDisconnect && !isReconnecting) {
-                    Log.d(TAG, "非手动断开，准备尝试自动重连");
-                    reconnectAttempts = 0;
-                    reconnectHandler.removeCallbacks(reconnectRunnable); // 移除可能存在的重连任务
-                    reconnectHandler.postDelayed(reconnectRunnable, RECONNECT_DELAY_MS);
+                // 只统计已建立连接的丢失（连接质量下降时状态仍为CONNECTED）；
+                // 收到CONNACK之前的失败已经通过onConnectFailed计入出错率
+                if (stateMachine.getState() == MqttConnectionState.CONNECTED) {
+                    brokerPool.onConnectionLost();
                 }
-                
-                // 通知连接状态变化，但添加稳定性控制
-                notifyConnectionStateChange(false);
+                stateMachine.onConnectionLost(cause);
             }
 
             @Override
             public void messageArrived(String topic, MqttMessage message) throws Exception {
-                String messageContent = new String(message.getPayload());
-                Log.d(TAG, "收到消息: " + topic + " -> " + messageContent);
-                if (mqttStatusCallback != null) {
-                    mqttStatusCallback.onMessageReceived(topic, messageContent);
-                }
+                // 入站消息由池化监听器处理，不会走到这里
             }
 
             @Override
@@ -183,132 +177,156 @@ public class MqttClientManager {
             }
         });
         
-        // 设置为单例实例
-        setInstance(this);
+        // 先把池化缓冲区的只读视图交给二进制监听器，只有设置了状态回调时才解码为字符串，分发完立即归还
+        mqttClient.setInboundListener(message -> {
+            try {
+                String topic = message.getTopic();
+                for (MqttMessageListener listener : messageListeners) {
+                    try {
+                        listener.onMessageReceived(topic, message.getPayload(), message.getQos(), message.isRetained());
+                    } catch (Exception e) {
+                        Log.e(TAG, "回调消息监听器时出错", e);
+                    }
+                }
+                MqttStatusCallback statusCallback = mqttStatusCallback;
+                if (statusCallback != null) {
+                    String messageContent = message.getPayloadString();
+                    Log.d(TAG, "收到消息: " + topic + " -> " + messageContent);
+                    statusCallback.onMessageReceived(topic, messageContent);
+                }
+            } finally {
+                message.release();
+            }
+        });
+        
+        mqttClient.setHealthListener(connectionHealth::setValue);
         
-        // 记录初始连接尝试时间
-        lastConnectionAttemptTime = SystemClock.elapsedRealtime();
-        lastConnectionStateChangeTime = SystemClock.elapsedRealtime();
+        stateMachine = new MqttConnectionStateMachine(new MqttConnectionStateMachine.Driver() {
+            @Override
+            public IMqttToken connect(IMqttActionListener listener) throws MqttException {
+                String serverUri = brokerPool.select();
+                mqttClient.setServerURI(serverUri);
+                Log.d(TAG, "开始连接到: " + serverUri);
+                return mqttClient.connect(buildConnectOptions(), null, listener);
+            }
+            
+            @Override
+            public void disconnect(IMqttActionListener listener) {
+                closeConnection(listener);
+            }
+            
+            @Override
+            public void probe() {
+                // 协议层PING确认连接是否真的正常，响应超时会按连接丢失处理并触发重连
+                Log.d(TAG, "连接正常，发送PING确认连接");
+                mqttClient.checkLiveness();
+            }
+            
+            @Override
+            public boolean failover(MqttFailureCause cause) {
+                return brokerPool.onConnectFailed(cause);
+            }
+            
+            @Override
+            public void onStateChanged(MqttConnectionState previous, MqttConnectionState state) {
+                onConnectionStateChanged(previous, state);
+            }
+        }, useSSL);
+        mqttClient.setConnectPhaseListener(stateMachine::onConnectPhase);
+        networkMonitor = new MqttNetworkMonitor(context, brokerPool.getHosts(), usable -> {
+            if (usable) {
+                // 网络切换后缓存的地址和各服务器的往返时间可能已不是最优，重新解析和探测
+                MqttDnsResolver.shared().onNetworkChanged();
+                brokerPool.onNetworkChanged();
+            }
+            stateMachine.onNetworkChanged(usable);
+        });
         
-        // 启动连接监控
-        reconnectHandler.postDelayed(connectionMonitorTask, 30000);
+        // 设置为单例实例
+        setInstance(this);
+    }
+
+    /**
+     * 连接健康状态，所有需要感知连接存活的组件都订阅这一个信号，不要自行轮询或发布心跳消息
+     */
+    public LiveData<MqttConnectionHealth> getConnectionHealth() {
+        return connectionHealth;
     }
 
     public void setCallback(MqttStatusCallback callback) {
         this.mqttStatusCallback = callback;
     }
 
+    public synchronized void addMessageListener(MqttMessageListener listener) {
+        MqttMessageListener[] listeners = Arrays.copyOf(messageListeners, messageListeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+        messageListeners = listeners;
+    }
+
+    public synchronized void removeMessageListener(MqttMessageListener listener) {
+        List<MqttMessageListener> listeners = new ArrayList<>(Arrays.asList(messageListeners));
+        if (listeners.remove(listener)) {
+            messageListeners = listeners.toArray(new MqttMessageListener[0]);
+        }
+    }
+
+    public boolean isConnected() {
+        return mqttClient != null && mqttClient.isConnected();
+    }
+    
     /**
-     * 获取连接状态，但添加稳定性控制
-     * 避免连接状态频繁变化导致UI闪烁
+     * 当前使用的服务器
      */
-    public boolean isConnected() {
-        try {
-            boolean currentState = mqttClient != null && mqttClient.isConnected();
-            
-            // 如果当前状态与上次报告的状态不同，记录变化时间
-            if (currentState != lastReportedConnectionState) {
-                lastConnectionStateChangeTime = SystemClock.elapsedRealtime();
-                // 如果是从未连接变为已连接，立即更新状态
-                if (currentState) {
-                    lastReportedConnectionState = currentState;
-                }
-                // 如果是从已连接变为未连接，需要等待稳定期
-                // 这个逻辑在notifyConnectionStateChange中处理
-            }
-            
-            return currentState;
-        } catch (Exception e) {
-            Log.e(TAG, "检查连接状态时发生异常: " + e.getMessage());
-            return false;
-        }
+    public String getServerUri() {
+        return brokerPool.getCurrentServerURI();
     }
     
     /**
-     * 通知连接状态变化，添加稳定性控制
-     * 避免连接状态频繁变化导致UI闪烁
+     * 状态机当前的连接状态
      */
-    private void notifyConnectionStateChange(boolean isConnected) {
-        long currentTime = SystemClock.elapsedRealtime();
-        
-        // 如果状态变化时间不足阈值，且是断开连接的通知，暂不通知UI
-        if (currentTime - lastConnectionStateChangeTime < CONNECTION_STABILITY_THRESHOLD && 
-            !isConnected && lastReportedConnectionState) {
-            Log.d(TAG, "连接断开，但在稳定期内，暂不通知UI变化");
-            return;
-        }
-        
-        // 更新最后报告的状态
-        lastReportedConnectionState = isConnected;
-        
-        // 通知回调
-        if (mqttStatusCallback != null) {
-            if (isConnected) {
+    public MqttConnectionState getConnectionState() {
+        return stateMachine.getState();
+    }
+    
+    /**
+     * 连接状态变化，在主线程上由状态机回调
+     * 连上时立即通知；断线后先等待稳定阈值，期间重新连上则不通知UI
+     */
+    private void onConnectionStateChanged(MqttConnectionState previous, MqttConnectionState state) {
+        if (state == MqttConnectionState.CONNECTED) {
+            Log.d(TAG, "连接成功: " + brokerPool.getCurrentServerURI() + "，耗时: " + mqttClient.getLastConnectTimings());
+            brokerPool.onConnected(mqttClient.getLastConnectTimings());
+            mainHandler.removeCallbacks(reportDisconnected);
+            reportedConnected = true;
+            
+            // 发布上线状态
+            publish("client/status", 
+                   "{\"clientId\":\"" + clientId + "\",\"status\":\"online\",\"timestamp\":" + System.currentTimeMillis() + "}", 
+                   1, 
+                   true);
+            
+            if (mqttStatusCallback != null) {
                 mqttStatusCallback.onConnected();
-            } else {
-                mqttStatusCallback.onConnectionFailed("连接断开");
             }
+        } else if (previous == MqttConnectionState.CONNECTED) {
+            brokerPool.onDisconnected();
+            if (state == MqttConnectionState.BACKOFF || state == MqttConnectionState.WAITING_FOR_NETWORK) {
+                Log.d(TAG, "连接断开，在稳定期内暂不通知UI变化");
+                mainHandler.postDelayed(reportDisconnected, CONNECTION_STABILITY_THRESHOLD);
+            }
+        } else if (previous.isConnecting() && !reportedConnected) {
+            // 连接尝试失败
+            reportDisconnected.run();
         }
     }
 
     /**
      * 强制重新连接MQTT
-     * 用于锁屏后恢复或网络变化时调用
+     * 用于锁屏后恢复或网络变化时调用；已连接时只确认连接是否可用，不会断开重连
      */
     public void forceReconnect() {
         Log.d(TAG, "强制重新连接MQTT");
-        
-        // 如果正在重连，不重复触发
-        if (isReconnecting) {
-            Log.d(TAG, "已在重连过程中，不重复触发");
-            return;
-        }
-        
-        // 设置重连状态
-        isReconnecting = true;
-        
-        // 如果已连接，先断开
-        if (isConnected()) {
-            try {
-                mqttClient.disconnect(0);
-                Log.d(TAG, "断开现有连接以便重新连接");
-            } catch (Exception e) {
-                Log.e(TAG, "断开连接失败: " + e.getMessage());
-            }
-        }
-        
-        // 重置状态
-        manualDisconnect = false;
-        reconnectAttempts = 0;
-        
-        // 移除所有待处理的重连任务
-        reconnectHandler.removeCallbacks(reconnectRunnable);
-        
-        // 立即尝试连接
-        lastConnectionAttemptTime = SystemClock.elapsedRealtime();
-        
-        // 使用延迟连接，避免网络还未准备好的情况
-        reconnectHandler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                Log.d(TAG, "执行延迟重连");
-                connect();
-                
-                // 再次检查连接状态
-                reconnectHandler.postDelayed(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (!isConnected()) {
-                            Log.d(TAG, "延迟重连后仍未连接，再次尝试");
-                            connect();
-                        }
-                        
-                        // 无论结果如何，结束重连状态
-                        isReconnecting = false;
-                    }
-                }, 3000);
-            }
-        }, 1000);
+        stateMachine.forceReconnect();
     }
 
     /**
@@ -317,245 +335,230 @@ public class MqttClientManager {
      */
     public void checkConnectionAndReconnect() {
         Log.d(TAG, "检查连接状态并尝试恢复连接");
+        stateMachine.forceReconnect();
+    }
+
+    /**
+     * 请求建立连接，连接结果通过MqttStatusCallback和getConnectionHealth()通知
+     * 已连接或正在连接时不会发起新的连接；断线后按MqttReconnectPolicy自动重连，没有可用网络时等到网络恢复再连接
+     */
+    public IMqttToken connect() {
+        return connect(null, null);
+    }
+
+    /**
+     * 请求建立连接，callback在连接建立或本次尝试失败时回调（主线程）
+     * 所有调用方共用同一次连接尝试：正在连接或退避等待中时加入该次尝试，得到相同的结果；
+     * 上次失败后的冷却时间内不会立即发起新的连接
+     */
+    public IMqttToken connect(Object userContext, IMqttActionListener callback) {
+        // 先开始监听网络，状态机处理连接请求时已经知道当前网络是否可用
+        mainHandler.post(networkMonitor::start);
+        return stateMachine.start(userContext, callback);
+    }
+
+    /**
+     * 替换自动重连策略，默认为MqttJitterReconnectPolicy
+     */
+    public void setReconnectPolicy(MqttReconnectPolicy policy) {
+        stateMachine.setPolicy(policy);
+    }
+
+    private MqttConnectOptions buildConnectOptions() {
+        MqttConnectOptions mqttConnectOptions = new MqttConnectOptions();
+        mqttConnectOptions.setCleanSession(false);
+        mqttConnectOptions.setKeepAliveInterval(30); // 减少keepAlive间隔到30秒
+        mqttConnectOptions.setMaxInflight(100); // 增加最大并发消息数
+        mqttConnectOptions.setConnectionTimeout(30); // 设置更长的连接超时时间
+        // 设置遗嘱消息，当客户端异常断开时，服务器会发布此消息
+        mqttConnectOptions.setWill("client/status", 
+                                  ("{\"clientId\":\"" + clientId + "\",\"status\":\"offline\"}").getBytes(), 
+                                  1, 
+                                  true);
         
-        // 如果正在重连，不重复触发
-        if (isReconnecting) {
-            Log.d(TAG, "已在重连过程中，不重复触发");
-            return;
+        // 设置用户名和密码（如果有）
+        if (username != null && !username.isEmpty()) {
+            mqttConnectOptions.setUserName(username);
+        }
+        if (password != null && !password.isEmpty()) {
+            mqttConnectOptions.setPassword(password.toCharArray());
         }
         
-        if (!isConnected() && !manualDisconnect) {
-            Log.d(TAG, "连接已断开，尝试恢复");
-            forceReconnect();
-        } else if (isConnected()) {
-            Log.d(TAG, "连接正常，发送ping消息确认连接");
-            try {
-                // 发送ping消息确认连接是否真的正常
-                publish("ping", "{\"client\":\"" + clientId + "\",\"timestamp\":" + System.currentTimeMillis() + "\",\"action\":\"check\"}", 0, false);
-            } catch (Exception e) {
-                Log.e(TAG, "发送ping消息失败，连接可能有问题: " + e.getMessage());
-                // 如果发送失败，尝试重连
-                forceReconnect();
-            }
+        // 如果使用SSL且需要跳过证书验证；使用共享实例，重连时可以恢复TLS会话
+        if (useSSL) {
+            mqttConnectOptions.setSocketFactory(NonValidatingSSLSocketFactory.getShared());
         }
+        return mqttConnectOptions;
+    }
+
+    /**
+     * 主动断开连接，之后不再自动重连，直到再次调用connect()
+     */
+    public void disconnect() {
+        stateMachine.stop();
+        mainHandler.post(networkMonitor::stop);
+    }
+
+    /**
+     * 断开连接并释放持久化文件，之后不能再使用
+     * 用相同客户端ID和服务器创建新的MqttClientManager之前必须调用，否则新客户端无法打开持久化文件
+     */
+    public void close() {
+        disconnect();
+        mqttClient.close();
     }
 
-    public boolean connect() {
+    /**
+     * 由状态机在主线程调用：已连接时先发布离线状态，再关闭连接（包括尚未完成的连接尝试）
+     */
+    private void closeConnection(IMqttActionListener listener) {
+        if (mqttClient.isConnected()) {
+            publish("client/status", 
+                   "{\"clientId\":\"" + clientId + "\",\"status\":\"offline\",\"timestamp\":" + System.currentTimeMillis() + "}", 
+                   1, 
+                   true);
+        }
         try {
-            // 如果已经在重连过程中，更新时间戳
-            if (isReconnecting) {
-                lastConnectionAttemptTime = SystemClock.elapsedRealtime();
+            mqttClient.disconnect(0, null, listener);
+            Log.d(TAG, "MQTT客户端已手动断开连接");
+        } catch (MqttException e) {
+            Log.e(TAG, "断开连接时发生错误: " + e.getMessage());
+            listener.onFailure(null, e);
+        }
+    }
+
+    public void subscribe(String topic, int qos) {
+        subscribe(new String[] { topic }, new int[] { qos });
+    }
+
+    /**
+     * 订阅多个主题并一直持有，不会自动取消，适合应用级的常驻订阅
+     * 订阅记入适配器的登记表，重连后由适配器按会话状态重放，调用方不需要重新订阅
+     */
+    public void subscribe(String[] topics, int[] qos) {
+        acquireSubscriptions(topics, qos);
+    }
+
+    /**
+     * 订阅多个主题并绑定到owner的生命周期：STARTED期间持有，STOPPED时释放，DESTROYED时解除绑定
+     * 只能在主线程上调用，Fragment应传入viewLifecycleOwner
+     */
+    public MqttSubscriptionHandle subscribe(LifecycleOwner owner, String[] topics, int[] qos) {
+        if (topics.length != qos.length) {
+            throw new IllegalArgumentException("主题与QoS数量不一致");
+        }
+        MqttSubscriptionHandle handle = new MqttSubscriptionHandle(this, owner, topics.clone(), qos.clone());
+        owner.getLifecycle().addObserver(handle);
+        return handle;
+    }
+
+    /**
+     * 增加主题的持有者，新主题和需要提高QoS的主题合并在一个SUBSCRIBE报文中发送
+     */
+    synchronized void acquireSubscriptions(String[] topics, int[] qos) {
+        List<String> newTopics = new ArrayList<>();
+        List<Integer> newQos = new ArrayList<>();
+        for (int i = 0; i < topics.length; i++) {
+            int[] ref = subscriptionRefs.get(topics[i]);
+            if (ref == null) {
+                subscriptionRefs.put(topics[i], new int[] { 1, qos[i] });
             } else {
-                isReconnecting = true;
-            }
-            
-            MqttConnectOptions mqttConnectOptions = new MqttConnectOptions();
-            mqttConnectOptions.setAutomaticReconnect(true);
-            mqttConnectOptions.setCleanSession(false);
-            mqttConnectOptions.setKeepAliveInterval(30); // 减少keepAlive间隔到30秒
-            mqttConnectOptions.setMaxInflight(100); // 增加最大并发消息数
-            mqttConnectOptions.setConnectionTimeout(30); // 设置更长的连接超时时间
-            // 设置遗嘱消息，当客户端异常断开时，服务器会发布此消息
-            mqttConnectOptions.setWill("client/status", 
-                                      ("{\"clientId\":\"" + clientId + "\",\"status\":\"offline\"}").getBytes(), 
-                                      1, 
-                                      true);
-            
-            // 设置用户名和密码（如果有）
-            if (username != null && !username.isEmpty()) {
-                mqttConnectOptions.setUserName(username);
-            }
-            if (password != null && !password.isEmpty()) {
-                mqttConnectOptions.setPassword(password.toCharArray());
+                ref[0]++;
+                if (qos[i] <= ref[1]) {
+                    continue;
+                }
+                ref[1] = qos[i];
             }
-            
-            // 如果使用SSL且需要跳过证书验证
-            if (useSSL) {
-                mqttConnectOptions.setSocketFactory(new NonValidatingSSLSocketFactory());
+            newTopics.add(topics[i]);
+            newQos.add(qos[i]);
+        }
+        if (newTopics.isEmpty()) {
+            return;
+        }
+        int[] qosArray = new int[newQos.size()];
+        for (int i = 0; i < qosArray.length; i++) {
+            qosArray[i] = newQos.get(i);
+        }
+        sendSubscribe(newTopics.toArray(new String[0]), qosArray);
+    }
+
+    /**
+     * 减少主题的持有者，没有持有者的主题合并在一个UNSUBSCRIBE报文中取消
+     */
+    synchronized void releaseSubscriptions(String[] topics) {
+        List<String> unusedTopics = new ArrayList<>();
+        for (String topic : topics) {
+            int[] ref = subscriptionRefs.get(topic);
+            if (ref != null && --ref[0] == 0) {
+                subscriptionRefs.remove(topic);
+                unusedTopics.add(topic);
             }
-            
-            Log.d(TAG, "开始连接到: " + serverUri);
-            
-            mqttClient.connect(mqttConnectOptions, null, new IMqttActionListener() {
+        }
+        if (unusedTopics.isEmpty() || mqttClient == null) {
+            return;
+        }
+        String[] filters = unusedTopics.toArray(new String[0]);
+        try {
+            mqttClient.unsubscribe(filters, null, new IMqttActionListener() {
                 @Override
                 public void onSuccess(IMqttToken asyncActionToken) {
-                    Log.d(TAG, "连接成功");
-                    
-                    // 重置重连计数
-                    reconnectAttempts = 0;
-                    manualDisconnect = false;
-                    isReconnecting = false;
-                    
-                    // 记录连接状态变化时间
-                    lastConnectionStateChangeTime = SystemClock.elapsedRealtime();
-                    
-                    // 通知连接成功
-                    notifyConnectionStateChange(true);
-                    
-                    // 设置断开连接后的缓冲区选项
-                    DisconnectedBufferOptions disconnectedBufferOptions = new DisconnectedBufferOptions();
-                    disconnectedBufferOptions.setBufferEnabled(true);
-                    disconnectedBufferOptions.setBufferSize(200); // 增加缓冲区大小
-                    disconnectedBufferOptions.setPersistBuffer(true); // 持久化缓冲区
-                    disconnectedBufferOptions.setDeleteOldestMessages(false);
-                    mqttClient.setBufferOpts(disconnectedBufferOptions);
-                    
-                    // 发布上线状态
-                    try {
-                        publish("client/status", 
-                               "{\"clientId\":\"" + clientId + "\",\"status\":\"online\",\"timestamp\":" + System.currentTimeMillis() + "}", 
-                               1, 
-                               true);
-                    } catch (Exception e) {
-                        Log.e(TAG, "发布上线状态失败: " + e.getMessage());
-                    }
-                    
-                    // 启动心跳检测
-                    new Handler(android.os.Looper.getMainLooper()).postDelayed(heartbeatTask, 15000);
+                    Log.d(TAG, "取消订阅成功: " + Arrays.toString(filters));
                 }
 
                 @Override
                 public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
-                    Log.e(TAG, "连接失败: " + (exception != null ? exception.getMessage() : "未知原因"));
-                    
-                    // 记录连接状态变化时间
-                    lastConnectionStateChangeTime = SystemClock.elapsedRealtime();
-                    
-                    // 尝试重新连接
-                    if (!manualDisconnect) {
-                        // 重连逻辑已经在reconnectRunnable中处理
-                        // 通知连接失败
-                        notifyConnectionStateChange(false);
-                    }
-                    
-                    // 结束重连状态
-                    isReconnecting = false;
+                    Log.e(TAG, "取消订阅失败: " + Arrays.toString(filters) + "，"
+                            + (exception != null ? exception.getMessage() : "未知原因"));
                 }
             });
-            return true;
         } catch (MqttException e) {
-            Log.e(TAG, "连接MQTT时发生错误: " + e.getMessage());
-            e.printStackTrace();
-            
-            // 通知连接失败
-            notifyConnectionStateChange(false);
-            
-            // 结束重连状态
-            isReconnecting = false;
-            
-            return false;
+            Log.e(TAG, "取消订阅时发生错误: " + e.getMessage());
         }
     }
 
-    public void disconnect() {
-        if (mqttClient != null && mqttClient.isConnected()) {
-            try {
-                // 标记为手动断开连接，不要自动重连
-                manualDisconnect = true;
-                
-                // 停止所有重连和监控任务
-                reconnectHandler.removeCallbacks(reconnectRunnable);
-                reconnectHandler.removeCallbacks(connectionMonitorTask);
-                
-                // 发布离线状态
-                try {
-                    publish("client/status", 
-                           "{\"clientId\":\"" + clientId + "\",\"status\":\"offline\",\"timestamp\":" + System.currentTimeMillis() + "}", 
-                           1, 
-                           true);
-                } catch (Exception e) {
-                    Log.e(TAG, "发布离线状态失败: " + e.getMessage());
-                }
-                
-                mqttClient.disconnect();
-                Log.d(TAG, "MQTT客户端已手动断开连接");
-            } catch (MqttException e) {
-                Log.e(TAG, "断开连接时发生错误: " + e.getMessage());
-                e.printStackTrace();
+    private void sendSubscribe(String[] topics, int[] qos) {
+        if (mqttClient != null) {
+            if (!mqttClient.isConnected()) {
+                Log.d(TAG, "MQTT客户端未连接，订阅将在连接后发送: " + Arrays.toString(topics));
             }
-        }
-    }
-
-    public void subscribe(String topic, int qos) {
-        if (mqttClient != null && mqttClient.isConnected()) {
             try {
-                mqttClient.subscribe(topic, qos, null, new IMqttActionListener() {
+                mqttClient.subscribe(topics, qos, null, new IMqttActionListener() {
                     @Override
                     public void onSuccess(IMqttToken asyncActionToken) {
-                        Log.d(TAG, "订阅成功: " + topic);
+                        Log.d(TAG, "订阅成功: " + Arrays.toString(topics) + "，授予的QoS: "
+                                + Arrays.toString(asyncActionToken.getGrantedQos()));
                     }
 
                     @Override
                     public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
-                        Log.e(TAG, "订阅失败: " + (exception != null ? exception.getMessage() : "未知原因"));
-                        // 如果是因为连接问题导致的订阅失败，尝试重连
-                        if (!isConnected() && !manualDisconnect) {
-                            reconnectHandler.removeCallbacks(reconnectRunnable);
-                            reconnectHandler.postDelayed(reconnectRunnable, RECONNECT_DELAY_MS);
-                        }
+                        // 连接丢失导致的失败无需处理，重连后由适配器重放订阅
+                        Log.e(TAG, "订阅失败: " + Arrays.toString(topics) + "，"
+                                + (exception != null ? exception.getMessage() : "未知原因"));
                     }
                 });
             } catch (MqttException e) {
                 Log.e(TAG, "订阅时发生错误: " + e.getMessage());
                 e.printStackTrace();
-                // 如果是因为连接问题导致的订阅失败，尝试重连
-                if (!isConnected() && !manualDisconnect) {
-                    reconnectHandler.removeCallbacks(reconnectRunnable);
-                    reconnectHandler.postDelayed(reconnectRunnable, RECONNECT_DELAY_MS);
-                }
-            }
-        } else {
-            Log.e(TAG, "无法订阅，MQTT客户端未连接");
-            // 尝试重连后再订阅
-            if (!manualDisconnect) {
-                Log.d(TAG, "尝试重连后再订阅: " + topic);
-                final String topicToSubscribe = topic;
-                final int qosToUse = qos;
-                reconnectHandler.postDelayed(() -> {
-                    if (connect()) {
-                        reconnectHandler.postDelayed(() -> subscribe(topicToSubscribe, qosToUse), 1000);
-                    }
-                }, RECONNECT_DELAY_MS);
             }
         }
     }
 
     public void publish(String topic, String message, int qos, boolean retained) {
-        if (mqttClient != null && mqttClient.isConnected()) {
-            try {
-                MqttMessage mqttMessage = new MqttMessage();
-                mqttMessage.setPayload(message.getBytes());
-                mqttMessage.setQos(qos);
-                mqttMessage.setRetained(retained);
-                
-                mqttClient.publish(topic, mqttMessage);
-                Log.d(TAG, "消息已发布: " + topic + " -> " + message);
-            } catch (MqttException e) {
-                Log.e(TAG, "发布消息时发生错误: " + e.getMessage());
-                e.printStackTrace();
-                
-                // 如果发布失败，可能是连接有问题，尝试重连
-                if (!isConnected() && !manualDisconnect) {
-                    reconnectHandler.removeCallbacks(reconnectRunnable);
-                    reconnectHandler.postDelayed(reconnectRunnable, RECONNECT_DELAY_MS);
-                }
-            }
-        } else {
-            Log.e(TAG, "无法发布消息，MQTT客户端未连接");
+        if (mqttClient == null) {
+            return;
+        }
+        try {
+            MqttMessage mqttMessage = new MqttMessage();
+            mqttMessage.setPayload(message.getBytes());
+            mqttMessage.setQos(qos);
+            mqttMessage.setRetained(retained);
             
-            // 尝试重连后再发布
-            if (!manualDisconnect) {
-                final String topicToPublish = topic;
-                final String messageToPublish = message;
-                final int qosToUse = qos;
-                final boolean retainedToUse = retained;
-                
-                reconnectHandler.postDelayed(() -> {
-                    if (connect()) {
-                        reconnectHandler.postDelayed(() -> publish(topicToPublish, messageToPublish, qosToUse, retainedToUse), 1000);
-                    }
-                }, RECONNECT_DELAY_MS);
-            }
+            // 未连接时消息进入离线缓存，由重连逻辑统一恢复连接，这里不再触发重连
+            boolean online = mqttClient.isConnected();
+            mqttClient.publish(topic, mqttMessage);
+            Log.d(TAG, (online ? "消息已发布: " : "消息已缓存: ") + topic + " -> " + message);
+        } catch (MqttException e) {
+            Log.e(TAG, "发布消息时发生错误: " + e.getMessage());
         }
     }
 
@@ -563,4 +566,34 @@ public class MqttClientManager {
     public String getClientId() {
         return clientId;
     }
+
+    /**
+     * 开启或关闭报文抓取，开启后保留最近的报文供导出
+     */
+    public void setPacketCaptureEnabled(boolean enabled) {
+        if (enabled) {
+            mqttClient.enablePacketCapture(MqttPacketCapture.DEFAULT_MAX_FRAMES, MqttPacketCapture.DEFAULT_SNAP_LENGTH);
+        } else {
+            mqttClient.disablePacketCapture();
+        }
+    }
+
+    /**
+     * 把抓取的报文导出为pcap文件，未开启抓取或导出失败时返回false
+     */
+    public boolean exportPacketCapture(File file) {
+        try {
+            return mqttClient.exportPacketCapture(file);
+        } catch (IOException e) {
+            Log.e(TAG, "导出报文抓取失败: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 抓取报文的文本形式，供调试界面显示
+     */
+    public String dumpPacketCapture() {
+        return mqttClient.dumpPacketCapture();
+    }
 } 
\ No newline at end of file
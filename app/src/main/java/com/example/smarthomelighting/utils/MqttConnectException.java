@@ -0,0 +1,95 @@
+package com.example.smarthomelighting.utils;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.io.IOException;
+
+/**
+ * 连接失败异常，携带失败阶段和各阶段耗时
+ * 原因码沿用MqttException：1~5与3.1.1 CONNACK返回码一一对应，0x80~0xFF为5.0 CONNACK原因码，其余为客户端侧原因
+ */
+public class MqttConnectException extends MqttException {
+    private static final long serialVersionUID = 1L;
+
+    // 5.0 CONNACK原因码
+    static final int V5_UNSUPPORTED_PROTOCOL_VERSION = 0x84;
+    private static final int V5_UNSPECIFIED_ERROR = 0x80;
+    private static final int V5_SERVER_UNAVAILABLE = 0x88;
+    private static final int V5_SERVER_BUSY = 0x89;
+    private static final int V5_QUOTA_EXCEEDED = 0x97;
+    private static final int V5_USE_ANOTHER_SERVER = 0x9C;
+    private static final int V5_SERVER_MOVED = 0x9D;
+    private static final int V5_CONNECTION_RATE_EXCEEDED = 0x9F;
+
+    private final MqttConnectTimings.Phase phase;
+    private final MqttConnectTimings timings;
+
+    MqttConnectException(int reasonCode, MqttConnectTimings.Phase phase, MqttConnectTimings timings, Throwable cause) {
+        super(reasonCode, cause);
+        this.phase = phase;
+        this.timings = timings;
+    }
+
+    /**
+     * 由CONNACK返回码创建异常
+     */
+    static MqttConnectException fromConnackReturnCode(int returnCode, MqttConnectTimings timings) {
+        int reasonCode = returnCode >= REASON_CODE_INVALID_PROTOCOL_VERSION && returnCode <= REASON_CODE_NOT_AUTHORIZED
+                ? returnCode : REASON_CODE_UNEXPECTED_ERROR;
+        return new MqttConnectException(reasonCode, MqttConnectTimings.Phase.CONNACK, timings, null);
+    }
+
+    /**
+     * 由5.0 CONNACK原因码创建异常，reasonString为服务器附带的说明
+     */
+    static MqttConnectException fromConnackReasonCode(int reasonCode, MqttConnectTimings timings, String reasonString) {
+        int code = reasonCode >= V5_UNSPECIFIED_ERROR ? reasonCode : REASON_CODE_UNEXPECTED_ERROR;
+        Throwable cause = reasonString != null ? new IOException(reasonString) : null;
+        return new MqttConnectException(code, MqttConnectTimings.Phase.CONNACK, timings, cause);
+    }
+
+    /**
+     * 失败发生的阶段
+     */
+    public MqttConnectTimings.Phase getPhase() {
+        return phase;
+    }
+
+    public MqttConnectTimings getTimings() {
+        return timings;
+    }
+
+    /**
+     * 是否被服务器通过CONNACK明确拒绝
+     */
+    public boolean isRejectedByBroker() {
+        int reasonCode = getReasonCode();
+        return phase == MqttConnectTimings.Phase.CONNACK
+                && (reasonCode >= REASON_CODE_INVALID_PROTOCOL_VERSION && reasonCode <= REASON_CODE_NOT_AUTHORIZED
+                || reasonCode >= V5_UNSPECIFIED_ERROR && reasonCode <= 0xFF);
+    }
+
+    /**
+     * 原样重试是否有意义
+     * 协议版本、客户端ID、认证和授权被拒绝时，不修改配置重试只会再次被拒绝；
+     * 5.0中服务器暂时不可用、繁忙、配额或连接频率超限时可以稍后重试
+     */
+    public boolean isRetryable() {
+        if (!isRejectedByBroker()) {
+            return true;
+        }
+        switch (getReasonCode()) {
+            case REASON_CODE_BROKER_UNAVAILABLE:
+            case V5_UNSPECIFIED_ERROR:
+            case V5_SERVER_UNAVAILABLE:
+            case V5_SERVER_BUSY:
+            case V5_QUOTA_EXCEEDED:
+            case V5_USE_ANOTHER_SERVER:
+            case V5_SERVER_MOVED:
+            case V5_CONNECTION_RATE_EXCEEDED:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
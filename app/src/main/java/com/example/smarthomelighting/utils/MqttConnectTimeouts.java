@@ -0,0 +1,68 @@
+package com.example.smarthomelighting.utils;
+
+/**
+ * 连接各阶段的超时时间（毫秒），通过MqttAndroidClientAdapter.setConnectTimeouts设置
+ * 每个阶段单独计时，任一阶段超时都按连接失败处理，失败阶段记录在MqttConnectException中
+ */
+public class MqttConnectTimeouts {
+    static final int DEFAULT_DNS_TIMEOUT_MS = 5000;
+    static final int DEFAULT_TCP_TIMEOUT_MS = 10000;
+    static final int DEFAULT_TLS_TIMEOUT_MS = 10000;
+    static final int DEFAULT_CONNACK_TIMEOUT_MS = 10000;
+
+    private int dnsTimeoutMs = DEFAULT_DNS_TIMEOUT_MS;
+    private int tcpTimeoutMs = DEFAULT_TCP_TIMEOUT_MS;
+    private int tlsTimeoutMs = DEFAULT_TLS_TIMEOUT_MS;
+    private int connackTimeoutMs = DEFAULT_CONNACK_TIMEOUT_MS;
+
+    /**
+     * 域名解析的超时，有可用的缓存结果时不需要等待解析
+     */
+    public int getDnsTimeoutMs() {
+        return dnsTimeoutMs;
+    }
+
+    public void setDnsTimeoutMs(int dnsTimeoutMs) {
+        this.dnsTimeoutMs = checkTimeout(dnsTimeoutMs);
+    }
+
+    /**
+     * 建立TCP连接的超时，服务器有多个地址时为所有地址竞速的总时长
+     */
+    public int getTcpTimeoutMs() {
+        return tcpTimeoutMs;
+    }
+
+    public void setTcpTimeoutMs(int tcpTimeoutMs) {
+        this.tcpTimeoutMs = checkTimeout(tcpTimeoutMs);
+    }
+
+    /**
+     * TLS握手的超时，从TCP连接建立时算起
+     */
+    public int getTlsTimeoutMs() {
+        return tlsTimeoutMs;
+    }
+
+    public void setTlsTimeoutMs(int tlsTimeoutMs) {
+        this.tlsTimeoutMs = checkTimeout(tlsTimeoutMs);
+    }
+
+    /**
+     * 发出CONNECT后等待CONNACK的超时
+     */
+    public int getConnackTimeoutMs() {
+        return connackTimeoutMs;
+    }
+
+    public void setConnackTimeoutMs(int connackTimeoutMs) {
+        this.connackTimeoutMs = checkTimeout(connackTimeoutMs);
+    }
+
+    private static int checkTimeout(int timeoutMs) {
+        if (timeoutMs <= 0) {
+            throw new IllegalArgumentException("无效的超时时间: " + timeoutMs);
+        }
+        return timeoutMs;
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.smarthomelighting.utils;
+
+import java.util.Locale;
+
+/**
+ * 一次连接尝试各阶段的耗时：DNS解析、TCP连接、TLS握手、等待CONNACK
+ * 由传输层（事件循环线程或连接线程）和适配器依次记录，同一时刻只有一个线程记录，连接结束后只读
+ */
+public final class MqttConnectTimings {
+
+    /**
+     * 连接阶段，按发生顺序排列
+     */
+    public enum Phase {
+        DNS,
+        TCP,
+        TLS,
+        CONNACK
+    }
+
+    /**
+     * 阶段完成的通知，在记录阶段的线程上回调
+     */
+    interface PhaseListener {
+        void onPhaseComplete(Phase phase);
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final boolean tls;
+    private final PhaseListener phaseListener;
+    private final long startNanos;
+    private final long[] phaseNanos = new long[PHASES.length];
+    private long lastMarkNanos;
+    // 连接阶段可能在连接线程上记录，事件循环线程在失败时读取当前阶段
+    private volatile int completedPhases = 0;
+    private long totalNanos = -1;
+    private volatile Phase failedPhase;
+    private volatile boolean tlsResumed = false;
+
+    MqttConnectTimings(boolean tls) {
+        this(tls, null);
+    }
+
+    MqttConnectTimings(boolean tls, PhaseListener phaseListener) {
+        this.tls = tls;
+        this.phaseListener = phaseListener;
+        this.startNanos = System.nanoTime();
+        this.lastMarkNanos = startNanos;
+        for (int i = 0; i < phaseNanos.length; i++) {
+            phaseNanos[i] = -1;
+        }
+    }
+
+    /**
+     * 记录某个阶段完成，耗时从上一个阶段结束时算起
+     */
+    void mark(Phase phase) {
+        long now = System.nanoTime();
+        phaseNanos[phase.ordinal()] = now - lastMarkNanos;
+        lastMarkNanos = now;
+        completedPhases = Math.max(completedPhases, phase.ordinal() + 1);
+        if (phase == Phase.CONNACK) {
+            totalNanos = now - startNanos;
+        }
+        if (phaseListener != null) {
+            phaseListener.onPhaseComplete(phase);
+        }
+    }
+
+    /**
+     * 记录连接失败，失败阶段为第一个尚未完成的阶段
+     */
+    void fail() {
+        if (failedPhase != null) {
+            return;
+        }
+        failedPhase = currentPhase();
+        if (totalNanos < 0) {
+            totalNanos = System.nanoTime() - startNanos;
+        }
+    }
+
+    /**
+     * 当前正在进行的阶段
+     */
+    Phase currentPhase() {
+        int next = completedPhases;
+        if (!tls && next == Phase.TLS.ordinal()) {
+            next++;
+        }
+        return PHASES[Math.min(next, PHASES.length - 1)];
+    }
+
+    /**
+     * 某个阶段的耗时（毫秒），未到达或未使用的阶段返回-1
+     */
+    public long getDurationMs(Phase phase) {
+        long nanos = phaseNanos[phase.ordinal()];
+        return nanos < 0 ? -1 : nanos / 1_000_000L;
+    }
+
+    /**
+     * 从开始连接到收到CONNACK或失败的总耗时（毫秒），尚未结束时返回-1
+     */
+    public long getTotalMs() {
+        return totalNanos < 0 ? -1 : totalNanos / 1_000_000L;
+    }
+
+    /**
+     * 失败发生的阶段，成功时返回null
+     */
+    public Phase getFailedPhase() {
+        return failedPhase;
+    }
+
+    public boolean isTls() {
+        return tls;
+    }
+
+    void setTlsResumed(boolean tlsResumed) {
+        this.tlsResumed = tlsResumed;
+    }
+
+    /**
+     * TLS握手是否恢复了之前的会话（省去一次往返和证书验证）
+     */
+    public boolean isTlsResumed() {
+        return tlsResumed;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Phase phase : PHASES) {
+            if (phase == Phase.TLS && !tls) {
+                continue;
+            }
+            long ms = getDurationMs(phase);
+            sb.append(phase.name().toLowerCase(Locale.US)).append('=')
+                    .append(ms < 0 ? "-" : ms + "ms");
+            if (phase == Phase.TLS && tlsResumed) {
+                sb.append("(resumed)");
+            }
+            sb.append(' ');
+        }
+        sb.append("total=").append(getTotalMs()).append("ms");
+        if (failedPhase != null) {
+            sb.append(" failedAt=").append(failedPhase);
+        }
+        return sb.toString();
+    }
+}
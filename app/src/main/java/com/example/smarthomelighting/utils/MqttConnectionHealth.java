@@ -0,0 +1,15 @@
+package com.example.smarthomelighting.utils;
+
+/**
+ * 连接健康状态，由协议层保活（PINGREQ/PINGRESP）判断，通过MqttClientManager.getConnectionHealth()订阅
+ */
+public enum MqttConnectionHealth {
+    /** 未连接 */
+    DISCONNECTED,
+    /** 正在建立连接，等待CONNACK */
+    CONNECTING,
+    /** 已连接，最近一次PING按时得到响应 */
+    CONNECTED,
+    /** 已连接，但PINGRESP超过估计的往返时间仍未到达，连接可能已半开 */
+    DEGRADED
+}
@@ -0,0 +1,32 @@
+package com.example.smarthomelighting.utils;
+
+/**
+ * MqttClientManager的连接状态，由MqttConnectionStateMachine维护
+ */
+public enum MqttConnectionState {
+    /** 未连接，也不会自动重连（初始状态、主动断开、服务器拒绝连接或重连策略放弃） */
+    DISCONNECTED,
+    /** 正在解析服务器地址 */
+    RESOLVING,
+    /** 正在建立TCP连接 */
+    CONNECTING,
+    /** 正在进行TLS握手 */
+    TLS,
+    /** 已发送CONNECT，等待CONNACK */
+    AWAITING_CONNACK,
+    /** 已连接 */
+    CONNECTED,
+    /** 连接失败或丢失，等待退避时间后重连 */
+    BACKOFF,
+    /** 连接失败或丢失时没有可用网络，等待网络恢复后立即重连 */
+    WAITING_FOR_NETWORK,
+    /** 正在主动断开 */
+    CLOSING;
+
+    /**
+     * 是否处于一次连接尝试中
+     */
+    public boolean isConnecting() {
+        return this == RESOLVING || this == CONNECTING || this == TLS || this == AWAITING_CONNACK;
+    }
+}
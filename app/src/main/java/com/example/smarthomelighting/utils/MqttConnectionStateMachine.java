@@ -0,0 +1,465 @@
+package com.example.smarthomelighting.utils;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MqttClientManager的连接状态机，作为actor运行在主线程Looper上
+ * 所有事件先投递到同一个Handler，再按顺序处理，连接状态只在这里修改
+ * 同一时间最多只有一次连接尝试；每次尝试以connect()返回的令牌区分，过期尝试的回调直接丢弃
+ * 连接请求合并为单次飞行：尝试进行中或退避等待中发起的请求加入下一次结果，所有请求方收到同一个完成结果；
+ * 失败后的冷却时间对所有请求方生效，包括forceReconnect
+ * 重连节奏和放弃时机由MqttReconnectPolicy按失败原因决定；没有可用网络时不尝试连接，网络恢复后立即重连
+ * 连接失败后Driver能换到另一个服务器时立即重试，不经过冷却和退避，等待中的请求方收到新服务器的结果
+ *
+ * DISCONNECTED --start--> RESOLVING --DNS--> CONNECTING --TCP--> TLS --TLS--> AWAITING_CONNACK --CONNACK--> CONNECTED
+ * 连接失败或丢失 --> BACKOFF --到期--> RESOLVING；重连策略放弃 --> DISCONNECTED
+ * 没有可用网络 --> WAITING_FOR_NETWORK --网络可用--> RESOLVING
+ * 任意状态 --stop--> CLOSING --关闭完成--> DISCONNECTED
+ * CONNECTED --restart--> CLOSING --关闭完成--> RESOLVING
+ */
+final class MqttConnectionStateMachine {
+    private static final String TAG = "MqttConnectionState";
+
+    // 一次失败后至少等待这么久才允许下一次尝试
+    private static final long CONNECT_COOLDOWN_MS = 5000;
+
+    /**
+     * 状态机驱动的连接操作，都在主线程上调用
+     */
+    interface Driver {
+        /**
+         * 发起一次连接，结果通过listener回调
+         */
+        IMqttToken connect(IMqttActionListener listener) throws MqttException;
+
+        /**
+         * 关闭连接（包括尚未完成的连接尝试），完成后回调listener
+         */
+        void disconnect(IMqttActionListener listener);
+
+        /**
+         * 已连接时确认连接仍然可用
+         */
+        void probe();
+
+        /**
+         * 连接尝试失败，返回true表示已换到另一个服务器，应立即重试
+         */
+        boolean failover(MqttFailureCause cause);
+
+        void onStateChanged(MqttConnectionState previous, MqttConnectionState state);
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Driver driver;
+    private final boolean tls;
+
+    private MqttReconnectPolicy policy = new MqttJitterReconnectPolicy();
+    private volatile MqttConnectionState state = MqttConnectionState.DISCONNECTED;
+    // 当前连接尝试的令牌，不在连接尝试中时为null
+    private IMqttToken attemptToken;
+    // 连续失败次数，连接成功后清零
+    private int failures = 0;
+    // 退避定时器的代数，取消定时器时递增，过期的定时器不起作用
+    private int backoffGeneration = 0;
+    private long backoffDeadline = 0;
+    // 最近一次连接尝试失败的时间（elapsedRealtime），0表示没有
+    private long lastFailureTime = 0;
+    // 等待下一次连接结果的请求
+    private final List<MqttActionToken> waiters = new ArrayList<>();
+    // 断开期间收到连接请求，关闭完成后立即连接
+    private boolean reconnectAfterClose = false;
+    // 在开始监听之前假定网络可用
+    private boolean networkAvailable = true;
+    // 重连策略因网络相关的原因放弃，出现新的可用网络时恢复自动重连
+    private boolean resumeOnNetwork = false;
+
+    MqttConnectionStateMachine(Driver driver, boolean tls) {
+        this.driver = driver;
+        this.tls = tls;
+    }
+
+    MqttConnectionState getState() {
+        return state;
+    }
+
+    void setPolicy(MqttReconnectPolicy policy) {
+        handler.post(() -> this.policy = policy);
+    }
+
+    /**
+     * 请求建立连接，返回的令牌在连接建立或本次尝试失败时完成
+     * 已连接时立即完成；正在连接或退避等待中时加入该次尝试，不会发起新的连接
+     */
+    IMqttToken start(Object userContext, IMqttActionListener callback) {
+        MqttActionToken token = new MqttActionToken(null, userContext, callback);
+        handler.post(() -> onStart(token));
+        return token;
+    }
+
+    /**
+     * 主动断开，之后不再自动重连；等待中的连接请求以REASON_CODE_CLIENT_DISCONNECTING失败
+     */
+    void stop() {
+        handler.post(this::onStop);
+    }
+
+    /**
+     * 断开当前连接后立即重新连接，用于切换服务器；不在已连接状态时不做任何事
+     */
+    void restart() {
+        handler.post(this::onRestart);
+    }
+
+    /**
+     * 外部事件（回到前台、屏幕点亮、网络变化）要求尽快恢复连接：
+     * 退避中冷却时间一到立即重连，服务器拒绝后也再试一次；已连接时只确认连接是否可用
+     */
+    void forceReconnect() {
+        handler.post(this::onForceReconnect);
+    }
+
+    /**
+     * 连接尝试的某个阶段完成
+     */
+    void onConnectPhase(IMqttToken token, MqttConnectTimings.Phase phase) {
+        handler.post(() -> {
+            if (token != attemptToken || !state.isConnecting()) {
+                return;
+            }
+            switch (phase) {
+                case DNS:
+                    transition(MqttConnectionState.CONNECTING);
+                    break;
+                case TCP:
+                    transition(tls ? MqttConnectionState.TLS : MqttConnectionState.AWAITING_CONNACK);
+                    break;
+                case TLS:
+                    transition(MqttConnectionState.AWAITING_CONNACK);
+                    break;
+                default:
+                    // CONNACK由连接成功回调处理
+                    break;
+            }
+        });
+    }
+
+    /**
+     * 已建立的连接丢失
+     */
+    void onConnectionLost(Throwable cause) {
+        handler.post(() -> {
+            if (state != MqttConnectionState.CONNECTED) {
+                // 连接尝试中的失败由连接回调处理
+                return;
+            }
+            Log.d(TAG, "连接丢失: " + (cause != null ? cause.getMessage() : "未知原因"));
+            retryAfter(MqttFailureCause.CONNECTION_LOST);
+        });
+    }
+
+    /**
+     * 网络可用性变化；usable为true时也可能是切换到了另一个可用网络
+     * 由MqttNetworkMonitor在主线程调用，直接处理而不是再投递一次，保证之后投递的连接请求能看到最新的网络状态
+     */
+    void onNetworkChanged(boolean usable) {
+        networkAvailable = usable;
+        if (!usable) {
+            if (state == MqttConnectionState.BACKOFF) {
+                cancelBackoff();
+                transition(MqttConnectionState.WAITING_FOR_NETWORK);
+            } else if (state == MqttConnectionState.CONNECTED) {
+                // 连接可能已随网络一起失效，尽快确认
+                driver.probe();
+            }
+            return;
+        }
+        switch (state) {
+            case WAITING_FOR_NETWORK:
+            case BACKOFF:
+                // 在新网络上立即重连，之前网络上的失败不再计入
+                Log.d(TAG, "网络可用，立即重连");
+                resetFailures();
+                cancelBackoff();
+                startAttempt();
+                break;
+            case DISCONNECTED:
+                if (resumeOnNetwork) {
+                    Log.d(TAG, "出现新的可用网络，恢复自动重连");
+                    resumeOnNetwork = false;
+                    resetFailures();
+                    startAttempt();
+                }
+                break;
+            case CONNECTED:
+                // 默认网络切换后旧网络上的连接可能已失效
+                driver.probe();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onStart(MqttActionToken token) {
+        if (state == MqttConnectionState.CONNECTED) {
+            complete(token, null);
+            return;
+        }
+        waiters.add(token);
+        switch (state) {
+            case DISCONNECTED:
+                resetFailures();
+                attemptAfterCooldown();
+                break;
+            case CLOSING:
+                reconnectAfterClose = true;
+                break;
+            default:
+                // 正在连接或等待退避到期，加入该次尝试
+                break;
+        }
+    }
+
+    private void onStop() {
+        reconnectAfterClose = false;
+        resumeOnNetwork = false;
+        completeWaiters(new MqttException(MqttException.REASON_CODE_CLIENT_DISCONNECTING));
+        switch (state) {
+            case DISCONNECTED:
+            case CLOSING:
+                break;
+            case BACKOFF:
+            case WAITING_FOR_NETWORK:
+                cancelBackoff();
+                transition(MqttConnectionState.DISCONNECTED);
+                break;
+            default:
+                close();
+                break;
+        }
+    }
+
+    private void onRestart() {
+        if (state != MqttConnectionState.CONNECTED) {
+            return;
+        }
+        Log.d(TAG, "断开当前连接后重新连接");
+        reconnectAfterClose = true;
+        close();
+    }
+
+    private void close() {
+        attemptToken = null;
+        transition(MqttConnectionState.CLOSING);
+        driver.disconnect(new IMqttActionListener() {
+            @Override
+            public void onSuccess(IMqttToken asyncActionToken) {
+                handler.post(() -> onClosed());
+            }
+
+            @Override
+            public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                handler.post(() -> onClosed());
+            }
+        });
+    }
+
+    private void onForceReconnect() {
+        switch (state) {
+            case CONNECTED:
+                driver.probe();
+                break;
+            case DISCONNECTED:
+                resetFailures();
+                attemptAfterCooldown();
+                break;
+            case BACKOFF:
+                attemptAfterCooldown();
+                break;
+            case CLOSING:
+                reconnectAfterClose = true;
+                break;
+            default:
+                // 正在连接，或没有可用网络时等待网络恢复
+                break;
+        }
+    }
+
+    /**
+     * 冷却时间已过时立即尝试，否则在冷却结束时尝试（已安排的退避更早到期时保留）
+     */
+    private void attemptAfterCooldown() {
+        long now = SystemClock.elapsedRealtime();
+        long wait = lastFailureTime == 0 ? 0 : lastFailureTime + CONNECT_COOLDOWN_MS - now;
+        if (wait <= 0) {
+            cancelBackoff();
+            startAttempt();
+        } else if (state != MqttConnectionState.BACKOFF || now + wait < backoffDeadline) {
+            scheduleBackoff(wait);
+        }
+    }
+
+    private void onClosed() {
+        if (state != MqttConnectionState.CLOSING) {
+            return;
+        }
+        transition(MqttConnectionState.DISCONNECTED);
+        if (reconnectAfterClose) {
+            reconnectAfterClose = false;
+            resetFailures();
+            attemptAfterCooldown();
+        }
+    }
+
+    private void startAttempt() {
+        if (!networkAvailable) {
+            cancelBackoff();
+            transition(MqttConnectionState.WAITING_FOR_NETWORK);
+            return;
+        }
+        transition(MqttConnectionState.RESOLVING);
+        IMqttToken[] token = new IMqttToken[1];
+        try {
+            token[0] = driver.connect(new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    handler.post(() -> onConnectSucceeded(token[0]));
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    handler.post(() -> onConnectFailed(token[0], exception));
+                }
+            });
+            attemptToken = token[0];
+        } catch (MqttException e) {
+            attemptToken = null;
+            Log.e(TAG, "发起连接失败: " + e.getMessage());
+            lastFailureTime = SystemClock.elapsedRealtime();
+            completeWaiters(e);
+            retryAfter(MqttFailureCause.CLIENT);
+        }
+    }
+
+    private void onConnectSucceeded(IMqttToken token) {
+        if (token != attemptToken || !state.isConnecting()) {
+            return;
+        }
+        attemptToken = null;
+        resetFailures();
+        lastFailureTime = 0;
+        resumeOnNetwork = false;
+        transition(MqttConnectionState.CONNECTED);
+        completeWaiters(null);
+    }
+
+    private void onConnectFailed(IMqttToken token, Throwable exception) {
+        if (token != attemptToken || !state.isConnecting()) {
+            return;
+        }
+        attemptToken = null;
+        MqttFailureCause cause = MqttFailureCause.classify(exception);
+        if (exception instanceof MqttConnectException) {
+            MqttConnectException connectException = (MqttConnectException) exception;
+            Log.e(TAG, "连接失败: " + cause + "，原因码: " + connectException.getReasonCode()
+                    + "，耗时: " + connectException.getTimings());
+        }
+        if (driver.failover(cause)) {
+            startAttempt();
+            return;
+        }
+        lastFailureTime = SystemClock.elapsedRealtime();
+        completeWaiters(exception instanceof MqttException ? (MqttException) exception : new MqttException(exception));
+        retryAfter(cause);
+    }
+
+    /**
+     * 按重连策略安排下一次重连；没有可用网络时等待网络恢复
+     */
+    private void retryAfter(MqttFailureCause cause) {
+        long delay = policy.nextDelayMs(cause);
+        if (delay == MqttReconnectPolicy.STOP) {
+            // 服务器拒绝需要修改配置才能恢复，其他原因换一个网络后可能恢复
+            resumeOnNetwork = cause != MqttFailureCause.REJECTED;
+            Log.e(TAG, "重连策略放弃重连，失败原因: " + cause);
+            transition(MqttConnectionState.DISCONNECTED);
+            return;
+        }
+        failures++;
+        if (!networkAvailable) {
+            transition(MqttConnectionState.WAITING_FOR_NETWORK);
+            return;
+        }
+        scheduleBackoff(delay);
+    }
+
+    private void resetFailures() {
+        failures = 0;
+        policy.reset();
+    }
+
+    private void scheduleBackoff(long delay) {
+        transition(MqttConnectionState.BACKOFF);
+        int generation = ++backoffGeneration;
+        backoffDeadline = SystemClock.elapsedRealtime() + delay;
+        handler.postDelayed(() -> {
+            if (state == MqttConnectionState.BACKOFF && generation == backoffGeneration) {
+                Log.d(TAG, "尝试重新连接MQTT，第" + failures + "次重试");
+                startAttempt();
+            }
+        }, delay);
+        Log.d(TAG, delay + "ms后重新连接");
+    }
+
+    private void cancelBackoff() {
+        backoffGeneration++;
+    }
+
+    private void completeWaiters(MqttException exception) {
+        if (waiters.isEmpty()) {
+            return;
+        }
+        List<MqttActionToken> completed = new ArrayList<>(waiters);
+        waiters.clear();
+        for (MqttActionToken token : completed) {
+            complete(token, exception);
+        }
+    }
+
+    private void complete(MqttActionToken token, MqttException exception) {
+        token.markComplete(exception);
+        IMqttActionListener listener = token.getActionCallback();
+        if (listener == null) {
+            return;
+        }
+        try {
+            if (exception == null) {
+                listener.onSuccess(token);
+            } else {
+                listener.onFailure(token, exception);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "回调连接结果时出错", e);
+        }
+    }
+
+    private void transition(MqttConnectionState next) {
+        MqttConnectionState previous = state;
+        if (previous == next) {
+            return;
+        }
+        state = next;
+        Log.d(TAG, previous + " -> " + next);
+        driver.onStateChanged(previous, next);
+    }
+}
@@ -0,0 +1,392 @@
+package com.example.smarthomelighting.utils;
+
+import android.util.Log;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.ArrayDeque;
+
+/**
+ * 出站消息投递引擎
+ * QoS 1/2消息分配报文标识符后进入在途窗口，窗口大小遵循maxInflight，
+ * 多条消息可以连续发出而不必逐条等待确认；QoS 1在PUBACK到达后完成，
+ * QoS 2经过PUBREC -> PUBREL -> PUBCOMP后完成，
+ * 超时未确认的PUBLISH带DUP标志重发（PUBREL原样重发），窗口已满时在本地排队
+ * MQTT 5.0连接上PUBLISH经由MqttV5Session编码（主题别名），规范禁止连接期间重发，只在重连后重发
+ */
+final class MqttDeliveryEngine {
+    private static final String TAG = "MqttDeliveryEngine";
+
+    private static final long RETRY_SCAN_INTERVAL_MS = 1000;
+    private static final long RETRY_TIMEOUT_MS = 10000;
+    private static final long MAX_RETRY_TIMEOUT_MS = 60000;
+    // 窗口已满时最多在本地排队的消息数
+    static final int MAX_BACKLOG = 1000;
+
+    /**
+     * 投递结果回调，在调用engine方法的线程上回调，不持有engine的锁
+     */
+    interface Listener {
+        void onDeliveryComplete(MqttDeliveryToken token);
+
+        /**
+         * 5.0服务器在PUBACK/PUBREC中返回失败原因码，或报文超过服务器限制
+         */
+        void onDeliveryFailed(MqttDeliveryToken token, MqttException exception);
+    }
+
+    private final MqttEventLoop eventLoop;
+    private final MqttOutboundQueue outboundQueue;
+    private final MqttPacketIdAllocator packetIds;
+    private final MqttSessionStore sessionStore;
+    private final Listener listener;
+    private final Runnable retryScanTask = this::scanForRetransmit;
+
+    private MqttInflightWindow window;
+    private final ArrayDeque<MqttDeliveryToken> backlog = new ArrayDeque<>();
+    private boolean online = false;
+    // 当前连接的5.0会话，3.1.1连接为null
+    private volatile MqttV5Session v5Session;
+    private MqttEventLoop.Timer retryTimer;
+
+    private long completedCount = 0;
+    private long retransmitCount = 0;
+
+    MqttDeliveryEngine(MqttEventLoop eventLoop, MqttOutboundQueue outboundQueue,
+                       MqttPacketIdAllocator packetIds, MqttSessionStore sessionStore,
+                       int maxInflight, Listener listener) {
+        this.eventLoop = eventLoop;
+        this.outboundQueue = outboundQueue;
+        this.packetIds = packetIds;
+        this.sessionStore = sessionStore;
+        this.listener = listener;
+        this.window = new MqttInflightWindow(maxInflight);
+    }
+
+    /**
+     * 调整在途窗口大小，已在途的消息保留
+     */
+    synchronized void setMaxInflight(int maxInflight) {
+        if (maxInflight > 0 && maxInflight != window.capacity()) {
+            window = window.resize(maxInflight);
+            drainBacklog();
+        }
+    }
+
+    /**
+     * 发布消息，QoS 0直接写出，QoS 1/2进入在途窗口或本地排队
+     */
+    void publish(MqttDeliveryToken token) throws MqttException {
+        MqttMessage message = token.getMessage();
+        String topic = token.getTopics()[0];
+        int qos = message.getQos();
+        MqttV5Session session = v5Session;
+        if (session != null && session.exceedsMaximumPacketSize(topic, message.getPayload(), qos)) {
+            throw new MqttException(MqttV5Session.REASON_CODE_PACKET_TOO_LARGE);
+        }
+        if (qos == 0) {
+            byte[] payload = message.getPayload();
+            boolean retained = message.isRetained();
+            outboundQueue.enqueue(encoder -> writePublish(encoder, session, topic, payload, 0, retained, false, 0));
+            token.markComplete(null);
+            listener.onDeliveryComplete(token);
+            return;
+        }
+
+        synchronized (this) {
+            if (!backlog.isEmpty() || !admit(token)) {
+                if (backlog.size() >= MAX_BACKLOG) {
+                    throw new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT);
+                }
+                backlog.add(token);
+            }
+        }
+    }
+
+    /**
+     * 在途窗口是否还能立即接收消息，离线缓存据此控制取出速度
+     */
+    synchronized boolean hasCapacity() {
+        return backlog.isEmpty() && !window.isFull();
+    }
+
+    /**
+     * 为消息分配报文标识符并放入窗口，窗口或标识符用尽时返回false
+     */
+    private boolean admit(MqttDeliveryToken token) {
+        if (window.isFull()) {
+            return false;
+        }
+        int packetId = packetIds.allocate();
+        if (packetId < 0) {
+            return false;
+        }
+        MqttMessage message = token.getMessage();
+        String topic = token.getTopics()[0];
+        int slot = window.add(packetId, topic, message.getPayload(), message.getQos(), message.isRetained(), token);
+        token.setMessageId(packetId);
+        message.setId(packetId);
+        // 先持久化再发送，进程被杀后可以从持久化恢复
+        sessionStore.saveOutboundPublish(packetId, topic, message.getPayload(), message.getQos(), message.isRetained());
+        if (online) {
+            send(slot, false);
+        }
+        return true;
+    }
+
+    private void drainBacklog() {
+        MqttDeliveryToken token;
+        while ((token = backlog.peek()) != null) {
+            if (!admit(token)) {
+                return;
+            }
+            backlog.poll();
+        }
+    }
+
+    private void send(int slot, boolean dup) {
+        int packetId = window.packetId(slot);
+        if (window.state(slot) == MqttInflightWindow.STATE_PUBREL_SENT) {
+            outboundQueue.enqueue(encoder -> encoder.writePubRel(packetId));
+            window.markSent(slot, System.nanoTime());
+            ensureRetryTimer();
+            return;
+        }
+        String topic = window.topic(slot);
+        byte[] payload = window.payload(slot);
+        int qos = window.qos(slot);
+        boolean retained = window.retained(slot);
+        MqttV5Session session = v5Session;
+        outboundQueue.enqueue(encoder -> writePublish(encoder, session, topic, payload, qos, retained, dup, packetId));
+        window.markSent(slot, System.nanoTime());
+        ensureRetryTimer();
+    }
+
+    private static void writePublish(MqttPacketEncoder encoder, MqttV5Session session, String topic, byte[] payload,
+                                     int qos, boolean retained, boolean dup, int packetId) {
+        if (session != null) {
+            session.writePublish(encoder, topic, payload, qos, retained, dup, packetId);
+        } else {
+            encoder.writePublish(topic, payload, qos, retained, dup, packetId);
+        }
+    }
+
+    /**
+     * 收到PUBACK，QoS 1投递完成；5.0原因码不小于0x80时投递失败
+     */
+    void onPubAck(int packetId, int reasonCode) {
+        MqttDeliveryToken token;
+        synchronized (this) {
+            int slot = window.find(packetId);
+            if (slot < 0 || window.qos(slot) != 1) {
+                Log.w(TAG, "收到未知报文标识符的PUBACK: " + packetId);
+                return;
+            }
+            token = complete(slot);
+        }
+        finish(token, reasonCode);
+    }
+
+    /**
+     * 收到PUBREC，QoS 2进入第二阶段：持久化PUBREL状态并发送PUBREL
+     * 5.0原因码不小于0x80时服务器已放弃这条消息，交换就此结束，不再发送PUBREL
+     */
+    void onPubRec(int packetId, int reasonCode) {
+        MqttDeliveryToken failed;
+        synchronized (this) {
+            int slot = window.find(packetId);
+            if (slot < 0) {
+                // 服务器仍在等待这次交换结束，回复PUBREL让它释放状态
+                Log.w(TAG, "收到未知报文标识符的PUBREC: " + packetId);
+                if (reasonCode < 0x80) {
+                    outboundQueue.enqueue(encoder -> encoder.writePubRel(packetId));
+                }
+                return;
+            }
+            if (window.qos(slot) != 2) {
+                Log.w(TAG, "收到QoS 1消息的PUBREC，忽略: " + packetId);
+                return;
+            }
+            if (reasonCode >= 0x80) {
+                failed = complete(slot);
+            } else {
+                if (window.state(slot) == MqttInflightWindow.STATE_PUBLISH_SENT) {
+                    window.moveToPubRel(slot);
+                    sessionStore.saveOutboundPubRel(packetId);
+                }
+                if (online) {
+                    send(slot, false);
+                }
+                return;
+            }
+        }
+        finish(failed, reasonCode);
+    }
+
+    /**
+     * 收到PUBCOMP，QoS 2投递完成
+     */
+    void onPubComp(int packetId) {
+        MqttDeliveryToken token;
+        synchronized (this) {
+            int slot = window.find(packetId);
+            if (slot < 0 || window.state(slot) != MqttInflightWindow.STATE_PUBREL_SENT) {
+                Log.w(TAG, "收到未知报文标识符的PUBCOMP: " + packetId);
+                return;
+            }
+            token = complete(slot);
+        }
+        finish(token, 0);
+    }
+
+    private MqttDeliveryToken complete(int slot) {
+        int packetId = window.packetId(slot);
+        MqttDeliveryToken token = window.token(slot);
+        window.remove(slot);
+        sessionStore.removeOutbound(packetId);
+        packetIds.release(packetId);
+        completedCount++;
+        drainBacklog();
+        return token;
+    }
+
+    private void finish(MqttDeliveryToken token, int reasonCode) {
+        if (reasonCode >= 0x80) {
+            Log.w(TAG, "服务器拒绝消息，报文标识符: " + token.getMessageId() + "，原因码: 0x" + Integer.toHexString(reasonCode));
+            listener.onDeliveryFailed(token, new MqttException(reasonCode));
+            return;
+        }
+        token.markComplete(null);
+        listener.onDeliveryComplete(token);
+    }
+
+    /**
+     * 恢复一条持久化的PUBLISH，视为已发送过一次，重连后带DUP重发
+     */
+    synchronized void restorePublish(int packetId, String topic, byte[] payload, int qos, boolean retained) {
+        if (window.find(packetId) >= 0) {
+            // 同一标识符已恢复为PUBREL阶段
+            return;
+        }
+        MqttMessage message = new MqttMessage(payload);
+        message.setQos(qos);
+        message.setRetained(retained);
+        message.setId(packetId);
+        MqttDeliveryToken token = new MqttDeliveryToken(topic, message, null, null);
+        token.setMessageId(packetId);
+        int slot = restoreSlot(packetId, topic, payload, qos, retained, token);
+        window.markSent(slot, 0);
+    }
+
+    /**
+     * 恢复一条已进入PUBREL阶段的QoS 2交换
+     */
+    synchronized void restorePubRel(int packetId) {
+        int slot = window.find(packetId);
+        if (slot < 0) {
+            MqttMessage message = new MqttMessage();
+            message.setQos(2);
+            message.setId(packetId);
+            MqttDeliveryToken token = new MqttDeliveryToken(null, message, null, null);
+            token.setMessageId(packetId);
+            slot = restoreSlot(packetId, null, null, 2, false, token);
+        }
+        window.moveToPubRel(slot);
+        window.markSent(slot, 0);
+    }
+
+    private int restoreSlot(int packetId, String topic, byte[] payload, int qos, boolean retained, MqttDeliveryToken token) {
+        if (window.isFull()) {
+            window = window.resize(window.capacity() * 2);
+        }
+        packetIds.reserve(packetId);
+        return window.add(packetId, topic, payload, qos, retained, token);
+    }
+
+    /**
+     * 连接建立（收到CONNACK）后调用：按原顺序带DUP重发所有在途消息，再发送排队的消息
+     * @param session 5.0连接的会话，3.1.1连接为null
+     */
+    synchronized void onConnected(MqttV5Session session) {
+        v5Session = session;
+        online = true;
+        int[] slots = window.occupiedSlotsInOrder();
+        for (int slot : slots) {
+            send(slot, window.attempts(slot) > 0);
+        }
+        if (slots.length > 0) {
+            Log.d(TAG, "重连后重发在途消息: " + slots.length);
+        }
+        drainBacklog();
+    }
+
+    /**
+     * 连接断开，停止超时重发，在途消息等待下次连接
+     */
+    synchronized void onDisconnected() {
+        online = false;
+        v5Session = null;
+        if (retryTimer != null) {
+            retryTimer.cancel();
+            retryTimer = null;
+        }
+    }
+
+    private void ensureRetryTimer() {
+        if (retryTimer == null && online && v5Session == null && window.size() > 0) {
+            retryTimer = eventLoop.schedule(retryScanTask, RETRY_SCAN_INTERVAL_MS);
+        }
+    }
+
+    private synchronized void scanForRetransmit() {
+        retryTimer = null;
+        if (!online) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (int slot : window.occupiedSlotsInOrder()) {
+            // 每次重发后超时时间翻倍
+            int shift = Math.min(window.attempts(slot) - 1, 6);
+            long timeoutMs = Math.min(RETRY_TIMEOUT_MS << Math.max(shift, 0), MAX_RETRY_TIMEOUT_MS);
+            if ((now - window.sentAtNanos(slot)) / 1_000_000L >= timeoutMs) {
+                Log.d(TAG, "消息确认超时，重发: " + window.packetId(slot));
+                send(slot, true);
+                retransmitCount++;
+            }
+        }
+        ensureRetryTimer();
+    }
+
+    /**
+     * 所有尚未完成的投递令牌，包括在途和排队的
+     */
+    synchronized MqttDeliveryToken[] getPendingTokens() {
+        int[] slots = window.occupiedSlotsInOrder();
+        MqttDeliveryToken[] result = new MqttDeliveryToken[slots.length + backlog.size()];
+        int n = 0;
+        for (int slot : slots) {
+            result[n++] = window.token(slot);
+        }
+        for (MqttDeliveryToken token : backlog) {
+            result[n++] = token;
+        }
+        return result;
+    }
+
+    synchronized int getInflightCount() {
+        return window.size();
+    }
+
+    synchronized int getBacklogCount() {
+        return backlog.size();
+    }
+
+    synchronized long getCompletedCount() {
+        return completedCount;
+    }
+
+    synchronized long getRetransmitCount() {
+        return retransmitCount;
+    }
+}
@@ -0,0 +1,23 @@
+package com.example.smarthomelighting.utils;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * 出站消息的投递令牌
+ * QoS 0在写入出站队列后完成，QoS 1在收到PUBACK后完成
+ */
+class MqttDeliveryToken extends MqttActionToken implements IMqttDeliveryToken {
+    private final MqttMessage message;
+
+    MqttDeliveryToken(String topic, MqttMessage message, Object userContext, IMqttActionListener actionCallback) {
+        super(new String[] { topic }, userContext, actionCallback);
+        this.message = message;
+    }
+
+    @Override
+    public MqttMessage getMessage() {
+        return message;
+    }
+}
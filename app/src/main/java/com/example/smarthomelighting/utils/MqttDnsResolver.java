@@ -0,0 +1,279 @@
+package com.example.smarthomelighting.utils;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * 进程内共享的服务器地址解析缓存，把DNS从连接的关键路径上移走
+ * 缓存未过期时直接返回；过期后在可用期内仍先返回旧结果，同时在后台刷新；只有没有可用缓存时才等待解析
+ * InetAddress不提供记录的TTL，这里使用固定的有效期；网络切换后所有条目视为过期，下次使用时后台刷新
+ * 返回的地址按IPv6/IPv4交替排列（RFC 8305），上次连接成功的地址排在最前
+ */
+final class MqttDnsResolver {
+    private static final String TAG = "MqttDnsResolver";
+
+    // 缓存的有效期，以及解析失败时旧结果最多可以继续使用多久
+    private static final long CACHE_TTL_MS = 5 * 60 * 1000;
+    private static final long MAX_STALE_MS = 24 * 60 * 60 * 1000;
+
+    private static final Pattern IP_LITERAL = Pattern.compile("[0-9.]+|.*:.*");
+
+    private static final MqttDnsResolver SHARED = new MqttDnsResolver();
+
+    /**
+     * 解析结果回调，使用缓存时在调用线程上立即回调，否则在解析线程上回调
+     */
+    interface Callback {
+        void onResolved(InetAddress[] addresses, IOException error);
+    }
+
+    private static final class Entry {
+        InetAddress[] addresses;
+        long resolvedAt;
+        boolean stale;
+    }
+
+    // 解析是阻塞调用，每个主机名同时最多一个解析任务
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread t = new Thread(runnable, "MQTT-DNS");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Object lock = new Object();
+    private final Map<String, Entry> cache = new HashMap<>();
+    // 正在解析的主机名和等待结果的回调，后台刷新时列表为空
+    private final Map<String, List<Callback>> inFlight = new HashMap<>();
+
+    static MqttDnsResolver shared() {
+        return SHARED;
+    }
+
+    /**
+     * 解析主机名；IP字面量不经过DNS
+     */
+    void resolve(String host, Callback callback) {
+        if (isIpLiteral(host)) {
+            try {
+                callback.onResolved(new InetAddress[]{InetAddress.getByName(host)}, null);
+            } catch (UnknownHostException e) {
+                callback.onResolved(null, e);
+            }
+            return;
+        }
+
+        InetAddress[] cached = null;
+        synchronized (lock) {
+            Entry entry = cache.get(host);
+            long now = SystemClock.elapsedRealtime();
+            if (entry != null && now - entry.resolvedAt < MAX_STALE_MS) {
+                cached = entry.addresses;
+                if (entry.stale || now - entry.resolvedAt >= CACHE_TTL_MS) {
+                    startLookup(host, null);
+                }
+            } else {
+                startLookup(host, callback);
+            }
+        }
+        if (cached != null) {
+            callback.onResolved(cached, null);
+        }
+    }
+
+    /**
+     * 阻塞解析，没有可用缓存时最多等待timeoutMs
+     */
+    InetAddress[] resolve(String host, long timeoutMs) throws IOException {
+        CountDownLatch done = new CountDownLatch(1);
+        InetAddress[][] result = new InetAddress[1][];
+        IOException[] error = new IOException[1];
+        resolve(host, (addresses, e) -> {
+            result[0] = addresses;
+            error[0] = e;
+            done.countDown();
+        });
+        try {
+            if (!done.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new SocketTimeoutException("域名解析超时: " + host + "，" + timeoutMs + "ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("域名解析被中断: " + host, e);
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return result[0];
+    }
+
+    /**
+     * 连接成功，下次优先尝试该地址
+     */
+    void onConnected(String host, InetAddress address) {
+        synchronized (lock) {
+            Entry entry = cache.get(host);
+            if (entry == null) {
+                return;
+            }
+            int index = indexOf(entry.addresses, address);
+            if (index <= 0) {
+                // 已在最前，或缓存在连接期间已刷新、不再包含该地址
+                return;
+            }
+            entry.addresses = moveToFront(entry.addresses, index);
+        }
+    }
+
+    /**
+     * 网络切换：旧结果仍可立即使用，但下次使用时在后台重新解析
+     */
+    void onNetworkChanged() {
+        synchronized (lock) {
+            for (Entry entry : cache.values()) {
+                entry.stale = true;
+            }
+        }
+    }
+
+    /**
+     * 发起解析，同一主机名已在解析时只登记回调；只能在持有lock时调用
+     */
+    private void startLookup(String host, Callback callback) {
+        List<Callback> waiting = inFlight.get(host);
+        if (waiting != null) {
+            if (callback != null) {
+                waiting.add(callback);
+            }
+            return;
+        }
+        waiting = new ArrayList<>();
+        if (callback != null) {
+            waiting.add(callback);
+        }
+        inFlight.put(host, waiting);
+        executor.execute(() -> lookup(host));
+    }
+
+    private void lookup(String host) {
+        InetAddress[] addresses = null;
+        IOException error = null;
+        long start = SystemClock.elapsedRealtime();
+        try {
+            addresses = interleave(InetAddress.getAllByName(host));
+        } catch (UnknownHostException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            // 例如没有网络权限时的SecurityException；不能让解析线程异常退出，否则该主机名一直留在inFlight中，
+            // 之后的解析都只能等到超时
+            Log.e(TAG, "域名解析出错: " + host, e);
+            error = new IOException("域名解析出错: " + host, e);
+        }
+
+        List<Callback> waiting;
+        synchronized (lock) {
+            waiting = inFlight.remove(host);
+            Entry entry = cache.get(host);
+            if (addresses != null) {
+                if (entry == null) {
+                    entry = new Entry();
+                    cache.put(host, entry);
+                }
+                entry.addresses = keepPreferred(entry.addresses, addresses);
+                entry.resolvedAt = SystemClock.elapsedRealtime();
+                entry.stale = false;
+                addresses = entry.addresses;
+            } else if (entry != null && SystemClock.elapsedRealtime() - entry.resolvedAt < MAX_STALE_MS) {
+                // 解析失败时继续使用旧结果
+                Log.w(TAG, "域名解析失败，使用缓存的地址: " + host);
+                addresses = entry.addresses;
+                error = null;
+            }
+        }
+        if (addresses != null) {
+            Log.d(TAG, "域名解析: " + host + " -> " + addresses.length + "个地址，耗时: "
+                    + (SystemClock.elapsedRealtime() - start) + "ms");
+        }
+        if (waiting != null) {
+            for (Callback callback : waiting) {
+                callback.onResolved(addresses, error);
+            }
+        }
+    }
+
+    /**
+     * 重新解析后，上次连接成功的地址仍在结果中时继续排在最前
+     */
+    private static InetAddress[] keepPreferred(InetAddress[] previous, InetAddress[] addresses) {
+        if (previous == null) {
+            return addresses;
+        }
+        int index = indexOf(addresses, previous[0]);
+        return index > 0 ? moveToFront(addresses, index) : addresses;
+    }
+
+    private static int indexOf(InetAddress[] addresses, InetAddress address) {
+        for (int i = 0; i < addresses.length; i++) {
+            if (addresses[i].equals(address)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 返回把index处的地址移到最前、其余保持原顺序的新数组；数组可能已返回给调用方，不能原地修改
+     */
+    private static InetAddress[] moveToFront(InetAddress[] addresses, int index) {
+        InetAddress[] reordered = addresses.clone();
+        System.arraycopy(addresses, 0, reordered, 1, index);
+        reordered[0] = addresses[index];
+        return reordered;
+    }
+
+    /**
+     * 按地址族交替排列，第一个地址的地址族在前
+     */
+    static InetAddress[] interleave(InetAddress[] addresses) {
+        if (addresses.length < 2) {
+            return addresses;
+        }
+        boolean firstV6 = addresses[0] instanceof Inet6Address;
+        List<InetAddress> preferred = new ArrayList<>();
+        List<InetAddress> other = new ArrayList<>();
+        for (InetAddress address : addresses) {
+            ((address instanceof Inet6Address) == firstV6 ? preferred : other).add(address);
+        }
+        InetAddress[] result = new InetAddress[addresses.length];
+        int n = 0;
+        for (int i = 0; n < result.length; i++) {
+            if (i < preferred.size()) {
+                result[n++] = preferred.get(i);
+            }
+            if (i < other.size()) {
+                result[n++] = other.get(i);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 是否为IP地址字面量；只做形式判断，不做DNS解析
+     */
+    static boolean isIpLiteral(String host) {
+        return IP_LITERAL.matcher(host).matches();
+    }
+}
@@ -0,0 +1,33 @@
+package com.example.smarthomelighting.utils;
+
+import java.util.concurrent.Executor;
+
+/**
+ * MQTT连接使用的事件循环
+ * 连接的写操作、定时器和保活都在同一个线程上串行执行
+ */
+interface MqttEventLoop extends Executor {
+
+    /**
+     * 可取消的定时任务
+     */
+    interface Timer {
+        void cancel();
+    }
+
+    /**
+     * 在事件循环线程上执行任务
+     */
+    @Override
+    void execute(Runnable task);
+
+    /**
+     * 延迟delayMs毫秒后在事件循环线程上执行任务
+     */
+    Timer schedule(Runnable task, long delayMs);
+
+    /**
+     * 当前线程是否就是事件循环线程
+     */
+    boolean inEventLoop();
+}
@@ -0,0 +1,56 @@
+package com.example.smarthomelighting.utils;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+/**
+ * 连接失败或丢失的原因分类，供MqttReconnectPolicy按原因决定重连节奏和重试次数
+ */
+public enum MqttFailureCause {
+    /** 域名解析失败 */
+    DNS,
+    /** TCP连接被拒绝或超时 */
+    TCP,
+    /** TLS握手失败 */
+    TLS,
+    /** 没有收到CONNACK（等待超时或服务器直接关闭连接） */
+    NO_CONNACK,
+    /** 服务器暂时不可用（繁忙、配额或连接频率超限），稍后可以重试 */
+    BROKER_UNAVAILABLE,
+    /** 服务器拒绝连接（协议版本、客户端ID、认证、授权），不修改配置重试只会再次被拒绝 */
+    REJECTED,
+    /** 已建立的连接丢失 */
+    CONNECTION_LOST,
+    /** 客户端本地错误 */
+    CLIENT;
+
+    /**
+     * 按连接失败的异常分类，MqttConnectException按失败阶段和原因码区分
+     */
+    static MqttFailureCause classify(Throwable failure) {
+        if (!(failure instanceof MqttConnectException)) {
+            return CLIENT;
+        }
+        MqttConnectException exception = (MqttConnectException) failure;
+        if (exception.isRejectedByBroker()) {
+            return exception.isRetryable() ? BROKER_UNAVAILABLE : REJECTED;
+        }
+        switch (exception.getReasonCode()) {
+            case MqttException.REASON_CODE_CLIENT_EXCEPTION:
+            case MqttException.REASON_CODE_CLIENT_DISCONNECTING:
+                // 被新的连接请求取代或主动断开
+                return CLIENT;
+            default:
+                break;
+        }
+        switch (exception.getPhase()) {
+            case DNS:
+                return DNS;
+            case TCP:
+                return TCP;
+            case TLS:
+                return TLS;
+            default:
+                return NO_CONNACK;
+        }
+    }
+}
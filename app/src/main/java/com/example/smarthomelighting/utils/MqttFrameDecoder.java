@@ -0,0 +1,168 @@
+package com.example.smarthomelighting.utils;
+
+import java.io.IOException;
+
+/**
+ * MQTT报文流式解码器
+ * 把TCP字节流按固定头部+剩余长度切分成完整报文，一次read可以产出零个或多个报文，
+ * 不完整的半包保留在内部可增长缓冲区中，等待后续数据补齐
+ */
+final class MqttFrameDecoder {
+
+    /**
+     * 完整报文回调
+     * buffer中[offset, offset + length)为可变头部+载荷，仅在回调期间有效，需要保留时请自行拷贝
+     */
+    interface FrameHandler {
+        void onFrame(int header, byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    // MQTT规范允许的最大剩余长度（4字节变长编码）
+    static final int MAX_REMAINING_LENGTH = 268_435_455;
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private final FrameHandler handler;
+    private final int maxFrameSize;
+
+    // 半包缓冲区，[readIndex, writeIndex)为尚未解码的数据
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int readIndex = 0;
+    private int writeIndex = 0;
+
+    MqttFrameDecoder(FrameHandler handler) {
+        this(handler, MAX_REMAINING_LENGTH);
+    }
+
+    MqttFrameDecoder(FrameHandler handler, int maxFrameSize) {
+        this.handler = handler;
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * 喂入一段新读取的字节
+     * 没有残留半包时直接在调用方数组上解码，只有尾部不完整的报文才会被拷贝进内部缓冲区
+     */
+    void feed(byte[] data, int offset, int length) throws IOException {
+        if (length <= 0) {
+            return;
+        }
+
+        if (readIndex == writeIndex) {
+            // 快速路径：无残留数据，零拷贝解码
+            int consumed = decode(data, offset, offset + length);
+            int remaining = offset + length - consumed;
+            if (remaining > 0) {
+                readIndex = 0;
+                writeIndex = 0;
+                append(data, consumed, remaining);
+            }
+            return;
+        }
+
+        append(data, offset, length);
+        readIndex = decode(buffer, readIndex, writeIndex);
+        if (readIndex == writeIndex) {
+            readIndex = 0;
+            writeIndex = 0;
+        }
+    }
+
+    /**
+     * 丢弃残留的半包，连接重建时调用
+     */
+    void reset() {
+        readIndex = 0;
+        writeIndex = 0;
+        if (buffer.length > INITIAL_CAPACITY * 16) {
+            // 偶发的大报文不应让缓冲区一直占用内存
+            buffer = new byte[INITIAL_CAPACITY];
+        }
+    }
+
+    /**
+     * 返回当前缓冲的半包字节数
+     */
+    int pendingBytes() {
+        return writeIndex - readIndex;
+    }
+
+    /**
+     * 从[start, end)中解码尽可能多的完整报文，返回第一个未消费字节的位置
+     */
+    private int decode(byte[] data, int start, int end) throws IOException {
+        int position = start;
+        while (end - position >= 2) {
+            int header = data[position] & 0xFF;
+
+            // 解析剩余长度（变长编码，最多4字节）
+            int remainingLength = 0;
+            int multiplier = 1;
+            int index = position + 1;
+            int encodedByte;
+            boolean complete = false;
+            for (int i = 0; i < 4; i++) {
+                if (index >= end) {
+                    break;
+                }
+                encodedByte = data[index++] & 0xFF;
+                remainingLength += (encodedByte & 0x7F) * multiplier;
+                multiplier <<= 7;
+                if ((encodedByte & 0x80) == 0) {
+                    complete = true;
+                    break;
+                }
+                if (i == 3) {
+                    throw new IOException("无效的剩余长度编码");
+                }
+            }
+
+            if (!complete) {
+                // 剩余长度本身还没收全
+                break;
+            }
+
+            if (remainingLength > maxFrameSize) {
+                throw new IOException("MQTT报文过大: " + remainingLength + " 字节");
+            }
+
+            if (end - index < remainingLength) {
+                // 报文体还没收全，等待后续数据
+                break;
+            }
+
+            handler.onFrame(header, data, index, remainingLength);
+            position = index + remainingLength;
+        }
+        return position;
+    }
+
+    private void append(byte[] data, int offset, int length) {
+        ensureWritable(writeIndex - readIndex + length);
+        System.arraycopy(data, offset, buffer, writeIndex, length);
+        writeIndex += length;
+    }
+
+    /**
+     * 保证缓冲区能容纳required字节的未解码数据，必要时先压缩再扩容
+     */
+    private void ensureWritable(int required) {
+        int pending = writeIndex - readIndex;
+        if (buffer.length - writeIndex >= required - pending) {
+            return;
+        }
+
+        if (buffer.length >= required) {
+            System.arraycopy(buffer, readIndex, buffer, 0, pending);
+        } else {
+            int newCapacity = buffer.length;
+            while (newCapacity < required) {
+                newCapacity <<= 1;
+            }
+            byte[] newBuffer = new byte[newCapacity];
+            System.arraycopy(buffer, readIndex, newBuffer, 0, pending);
+            buffer = newBuffer;
+        }
+        readIndex = 0;
+        writeIndex = pending;
+    }
+}
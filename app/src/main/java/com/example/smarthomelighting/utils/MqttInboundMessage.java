@@ -0,0 +1,107 @@
+package com.example.smarthomelighting.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 入站消息，载荷存放在池化的缓冲区中
+ * 消费者用完后必须调用release()归还，归还后不能再访问；需要保留载荷时先复制
+ */
+public final class MqttInboundMessage {
+    private final MqttPayloadPool pool;
+    final int sizeClass;
+    private final byte[] buffer;
+    // 缓冲区的只读视图，随消息对象复用
+    private final ByteBuffer payloadView;
+    private int length;
+    private String topic;
+    private int qos;
+    private boolean retained;
+    private volatile boolean released = false;
+
+    MqttInboundMessage(MqttPayloadPool pool, int sizeClass, byte[] buffer) {
+        this.pool = pool;
+        this.sizeClass = sizeClass;
+        this.buffer = buffer;
+        this.payloadView = ByteBuffer.wrap(buffer).asReadOnlyBuffer();
+    }
+
+    void reuse() {
+        released = false;
+    }
+
+    /**
+     * 填入消息内容，从src复制载荷
+     */
+    void set(String topic, byte[] src, int offset, int length, int qos, boolean retained) {
+        System.arraycopy(src, offset, buffer, 0, length);
+        this.length = length;
+        this.topic = topic;
+        this.qos = qos;
+        this.retained = retained;
+    }
+
+    public String getTopic() {
+        checkNotReleased();
+        return topic;
+    }
+
+    public int getQos() {
+        checkNotReleased();
+        return qos;
+    }
+
+    public boolean isRetained() {
+        checkNotReleased();
+        return retained;
+    }
+
+    public int getPayloadLength() {
+        checkNotReleased();
+        return length;
+    }
+
+    /**
+     * 载荷的只读视图，每次调用都重置为完整的载荷范围；释放后视图内容失效
+     */
+    public ByteBuffer getPayload() {
+        checkNotReleased();
+        payloadView.limit(length);
+        payloadView.position(0);
+        return payloadView;
+    }
+
+    /**
+     * 复制出载荷，返回的数组归调用方所有
+     */
+    public byte[] copyPayload() {
+        checkNotReleased();
+        byte[] copy = new byte[length];
+        System.arraycopy(buffer, 0, copy, 0, length);
+        return copy;
+    }
+
+    /**
+     * 按UTF-8解码载荷
+     */
+    public String getPayloadString() {
+        checkNotReleased();
+        return new String(buffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 归还缓冲区，重复调用抛出IllegalStateException
+     */
+    public void release() {
+        checkNotReleased();
+        released = true;
+        topic = null;
+        pool.release(this);
+    }
+
+    private void checkNotReleased() {
+        if (released) {
+            throw new IllegalStateException("消息已释放");
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.smarthomelighting.utils;
+
+import java.util.BitSet;
+
+/**
+ * 入站确认处理
+ * QoS 1消息交付后回复PUBACK，QoS 2消息交付后回复PUBREC，确认都进入出站队列，与其他报文合并写出；
+ * QoS 2状态表中每个报文标识符只占一位：置位表示消息已交付并回复了PUBREC、正在等待PUBREL，
+ * 这期间收到的同一标识符的PUBLISH是重发，只回复PUBREC而不再交付
+ */
+final class MqttInboundSession {
+    private final MqttOutboundQueue outboundQueue;
+    private final MqttSessionStore sessionStore;
+    private final BitSet awaitingPubRel = new BitSet(MqttPacketIdAllocator.MAX_PACKET_ID + 1);
+
+    // 已回复确认的消息数、被去重丢弃的QoS 2重发数、带DUP标志的重发数
+    private long acknowledgedCount = 0;
+    private long duplicateCount = 0;
+    private long redeliveredCount = 0;
+
+    MqttInboundSession(MqttOutboundQueue outboundQueue, MqttSessionStore sessionStore) {
+        this.outboundQueue = outboundQueue;
+        this.sessionStore = sessionStore;
+    }
+
+    /**
+     * 收到PUBLISH，返回是否需要交付
+     * QoS 2在等待PUBREL期间的重发不再交付，直接再次回复PUBREC
+     */
+    synchronized boolean onPublish(int qos, int packetId, boolean dup) {
+        if (dup) {
+            redeliveredCount++;
+        }
+        if (qos == 2 && awaitingPubRel.get(packetId)) {
+            duplicateCount++;
+            acknowledge(qos, packetId);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 消息已交给分发线程，回复PUBACK；QoS 2先记录状态再回复PUBREC
+     */
+    synchronized void acknowledge(int qos, int packetId) {
+        if (qos == 1) {
+            outboundQueue.enqueue(encoder -> encoder.writePubAck(packetId));
+        } else if (qos == 2) {
+            if (!awaitingPubRel.get(packetId)) {
+                awaitingPubRel.set(packetId);
+                sessionStore.saveInboundQos2(packetId);
+            }
+            outboundQueue.enqueue(encoder -> encoder.writePubRec(packetId));
+        } else {
+            return;
+        }
+        acknowledgedCount++;
+    }
+
+    /**
+     * 收到PUBREL，清除状态并回复PUBCOMP；未知的标识符同样回复，让服务器结束这次交换
+     */
+    synchronized void onPubRel(int packetId) {
+        if (awaitingPubRel.get(packetId)) {
+            awaitingPubRel.clear(packetId);
+            sessionStore.removeInboundQos2(packetId);
+        }
+        outboundQueue.enqueue(encoder -> encoder.writePubComp(packetId));
+    }
+
+    /**
+     * 从持久化恢复一个等待PUBREL的标识符
+     */
+    synchronized void restore(int packetId) {
+        awaitingPubRel.set(packetId);
+    }
+
+    /**
+     * 服务器没有保留会话（session present为0）时不会再发PUBREL，丢弃所有等待状态
+     */
+    synchronized void onSessionStart(boolean sessionPresent) {
+        if (sessionPresent || awaitingPubRel.isEmpty()) {
+            return;
+        }
+        for (int id = awaitingPubRel.nextSetBit(0); id >= 0; id = awaitingPubRel.nextSetBit(id + 1)) {
+            sessionStore.removeInboundQos2(id);
+        }
+        awaitingPubRel.clear();
+    }
+
+    synchronized int getAwaitingPubRelCount() {
+        return awaitingPubRel.cardinality();
+    }
+
+    synchronized long getAcknowledgedCount() {
+        return acknowledgedCount;
+    }
+
+    synchronized long getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    synchronized long getRedeliveredCount() {
+        return redeliveredCount;
+    }
+}
@@ -0,0 +1,252 @@
+package com.example.smarthomelighting.utils;
+
+/**
+ * 出站在途消息窗口
+ * 槽位数据保存在并行数组中，报文标识符到槽位的映射使用开放寻址表，
+ * 容量固定为maxInflight，收发确认时不产生额外对象；
+ * QoS 2的两个阶段只是同一槽位上的状态字节，PUBREL阶段只保留标识符和令牌
+ * 非线程安全，由MqttDeliveryEngine加锁访问
+ */
+final class MqttInflightWindow {
+    static final byte STATE_FREE = 0;
+    // PUBLISH已发出，等待PUBACK（QoS 1）或PUBREC（QoS 2）
+    static final byte STATE_PUBLISH_SENT = 1;
+    // QoS 2：已收到PUBREC并发出PUBREL，等待PUBCOMP
+    static final byte STATE_PUBREL_SENT = 2;
+
+    private final int capacity;
+    private final int[] packetIds;
+    private final byte[] states;
+    private final byte[] qos;
+    private final boolean[] retained;
+    private final String[] topics;
+    private final byte[][] payloads;
+    private final MqttDeliveryToken[] tokens;
+    private final long[] sentAtNanos;
+    private final int[] attempts;
+    private final long[] sequences;
+    private final int[] freeSlots;
+    private int freeCount;
+    private int size = 0;
+    private long nextSequence = 0;
+
+    // 报文标识符 -> 槽位+1，0表示空位；线性探测，删除时向后移位，不留墓碑
+    private final int[] idTable;
+    private final int mask;
+
+    MqttInflightWindow(int capacity) {
+        this.capacity = Math.max(1, Math.min(capacity, MqttPacketIdAllocator.MAX_PACKET_ID));
+        packetIds = new int[this.capacity];
+        states = new byte[this.capacity];
+        qos = new byte[this.capacity];
+        retained = new boolean[this.capacity];
+        topics = new String[this.capacity];
+        payloads = new byte[this.capacity][];
+        tokens = new MqttDeliveryToken[this.capacity];
+        sentAtNanos = new long[this.capacity];
+        attempts = new int[this.capacity];
+        sequences = new long[this.capacity];
+        freeSlots = new int[this.capacity];
+        for (int i = 0; i < this.capacity; i++) {
+            freeSlots[i] = this.capacity - 1 - i;
+        }
+        freeCount = this.capacity;
+
+        // 负载因子不超过0.5
+        int tableSize = Integer.highestOneBit(this.capacity * 2 - 1) << 1;
+        idTable = new int[tableSize];
+        mask = tableSize - 1;
+    }
+
+    /**
+     * 加入一条在途消息，窗口已满时返回-1
+     */
+    int add(int packetId, String topic, byte[] payload, int messageQos, boolean messageRetained,
+            MqttDeliveryToken token) {
+        if (freeCount == 0) {
+            return -1;
+        }
+        int slot = freeSlots[--freeCount];
+        packetIds[slot] = packetId;
+        states[slot] = STATE_PUBLISH_SENT;
+        qos[slot] = (byte) messageQos;
+        retained[slot] = messageRetained;
+        topics[slot] = topic;
+        payloads[slot] = payload;
+        tokens[slot] = token;
+        sentAtNanos[slot] = 0;
+        attempts[slot] = 0;
+        sequences[slot] = nextSequence++;
+
+        int index = packetId & mask;
+        while (idTable[index] != 0) {
+            index = (index + 1) & mask;
+        }
+        idTable[index] = slot + 1;
+        size++;
+        return slot;
+    }
+
+    /**
+     * 根据报文标识符查找槽位，不存在时返回-1
+     */
+    int find(int packetId) {
+        int index = packetId & mask;
+        int entry;
+        while ((entry = idTable[index]) != 0) {
+            if (packetIds[entry - 1] == packetId) {
+                return entry - 1;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * 移除槽位，释放对主题、载荷和令牌的引用
+     */
+    void remove(int slot) {
+        if (states[slot] == STATE_FREE) {
+            return;
+        }
+        removeFromTable(packetIds[slot]);
+        states[slot] = STATE_FREE;
+        topics[slot] = null;
+        payloads[slot] = null;
+        tokens[slot] = null;
+        freeSlots[freeCount++] = slot;
+        size--;
+    }
+
+    private void removeFromTable(int packetId) {
+        int index = packetId & mask;
+        while (idTable[index] != 0 && packetIds[idTable[index] - 1] != packetId) {
+            index = (index + 1) & mask;
+        }
+        if (idTable[index] == 0) {
+            return;
+        }
+        idTable[index] = 0;
+
+        // 把后面同一探测链上的条目前移，保证查找不会提前遇到空位
+        int next = (index + 1) & mask;
+        while (idTable[next] != 0) {
+            int home = packetIds[idTable[next] - 1] & mask;
+            boolean movable = index <= next ? (home <= index || home > next) : (home <= index && home > next);
+            if (movable) {
+                idTable[index] = idTable[next];
+                idTable[next] = 0;
+                index = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+
+    /**
+     * QoS 2收到PUBREC后进入PUBREL阶段，不再需要主题和载荷
+     */
+    void moveToPubRel(int slot) {
+        states[slot] = STATE_PUBREL_SENT;
+        topics[slot] = null;
+        payloads[slot] = null;
+        attempts[slot] = 0;
+    }
+
+    /**
+     * 记录一次（重新）发送
+     */
+    void markSent(int slot, long nowNanos) {
+        sentAtNanos[slot] = nowNanos;
+        attempts[slot]++;
+    }
+
+    /**
+     * 按加入顺序返回所有占用的槽位，重连后按原顺序重发
+     */
+    int[] occupiedSlotsInOrder() {
+        int[] result = new int[size];
+        int n = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            if (states[slot] != STATE_FREE) {
+                result[n++] = slot;
+            }
+        }
+        // 在途消息数量不超过maxInflight，插入排序足够
+        for (int i = 1; i < n; i++) {
+            int slot = result[i];
+            int j = i - 1;
+            while (j >= 0 && sequences[result[j]] > sequences[slot]) {
+                result[j + 1] = result[j];
+                j--;
+            }
+            result[j + 1] = slot;
+        }
+        return result;
+    }
+
+    /**
+     * 复制到新容量的窗口，新容量不能小于当前在途数量
+     */
+    MqttInflightWindow resize(int newCapacity) {
+        MqttInflightWindow resized = new MqttInflightWindow(Math.max(newCapacity, size));
+        for (int slot : occupiedSlotsInOrder()) {
+            int newSlot = resized.add(packetIds[slot], topics[slot], payloads[slot], qos[slot], retained[slot], tokens[slot]);
+            resized.states[newSlot] = states[slot];
+            resized.sentAtNanos[newSlot] = sentAtNanos[slot];
+            resized.attempts[newSlot] = attempts[slot];
+        }
+        return resized;
+    }
+
+    boolean isOccupied(int slot) {
+        return states[slot] != STATE_FREE;
+    }
+
+    int packetId(int slot) {
+        return packetIds[slot];
+    }
+
+    byte state(int slot) {
+        return states[slot];
+    }
+
+    int qos(int slot) {
+        return qos[slot];
+    }
+
+    boolean retained(int slot) {
+        return retained[slot];
+    }
+
+    String topic(int slot) {
+        return topics[slot];
+    }
+
+    byte[] payload(int slot) {
+        return payloads[slot];
+    }
+
+    MqttDeliveryToken token(int slot) {
+        return tokens[slot];
+    }
+
+    long sentAtNanos(int slot) {
+        return sentAtNanos[slot];
+    }
+
+    int attempts(int slot) {
+        return attempts[slot];
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    boolean isFull() {
+        return freeCount == 0;
+    }
+}
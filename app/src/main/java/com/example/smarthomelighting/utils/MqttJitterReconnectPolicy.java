@@ -0,0 +1,68 @@
+package com.example.smarthomelighting.utils;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 默认重连策略：去相关抖动退避，等待时间在[base, 上次等待*3]之间随机取值，不超过上限
+ * 避免大量客户端在服务器恢复时同时重连；每类失败有连续重试次数预算，用完即停止自动重连，
+ * 例如认证失败不重试，TLS握手失败只重试几次
+ */
+public final class MqttJitterReconnectPolicy implements MqttReconnectPolicy {
+    private static final long DEFAULT_BASE_DELAY_MS = 3000;
+    private static final long DEFAULT_MAX_DELAY_MS = 60000;
+    private static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final Random random = new Random();
+    // 每类失败允许的连续重试次数，以及自上次reset()以来的失败次数
+    private final Map<MqttFailureCause, Integer> budgets = new EnumMap<>(MqttFailureCause.class);
+    private final Map<MqttFailureCause, Integer> failures = new EnumMap<>(MqttFailureCause.class);
+    private long previousDelayMs = 0;
+
+    public MqttJitterReconnectPolicy() {
+        this(DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS);
+    }
+
+    public MqttJitterReconnectPolicy(long baseDelayMs, long maxDelayMs) {
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = Math.max(baseDelayMs, maxDelayMs);
+        for (MqttFailureCause cause : MqttFailureCause.values()) {
+            budgets.put(cause, UNLIMITED);
+        }
+        // 配置错误，重试不会成功
+        budgets.put(MqttFailureCause.REJECTED, 0);
+        // 证书或协议不匹配通常不会自行恢复，留几次应对网络中间设备的干扰
+        budgets.put(MqttFailureCause.TLS, 3);
+        // 有可用网络时域名持续解析失败，多半是服务器地址写错了
+        budgets.put(MqttFailureCause.DNS, 10);
+    }
+
+    /**
+     * 设置某类失败允许的连续重试次数，0表示不重试
+     */
+    public MqttJitterReconnectPolicy setBudget(MqttFailureCause cause, int maxRetries) {
+        budgets.put(cause, Math.max(0, maxRetries));
+        return this;
+    }
+
+    @Override
+    public long nextDelayMs(MqttFailureCause cause) {
+        int count = failures.merge(cause, 1, Integer::sum);
+        if (count > budgets.get(cause)) {
+            return STOP;
+        }
+        long upper = Math.max(baseDelayMs, previousDelayMs * 3);
+        long delay = Math.min(maxDelayMs, baseDelayMs + (long) (random.nextDouble() * (upper - baseDelayMs)));
+        previousDelayMs = delay;
+        return delay;
+    }
+
+    @Override
+    public void reset() {
+        failures.clear();
+        previousDelayMs = 0;
+    }
+}
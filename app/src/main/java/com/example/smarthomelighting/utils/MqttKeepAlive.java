@@ -0,0 +1,119 @@
+package com.example.smarthomelighting.utils;
+
+/**
+ * 保活策略：由PINGREQ/PINGRESP计时估计往返时间，并在协商的保活时间内自适应调整PING间隔
+ * 往返时间按RFC 6298平滑（SRTT/RTTVAR），PINGRESP的等待时间由此得出，代替固定的超时阈值
+ * PING间隔从初始值开始，连续多次空闲PING成功后逐步加长，探测NAT映射的超时时间；
+ * 空闲PING丢失说明间隔超过了NAT超时，退回上一个成功的间隔并不再超过失败的间隔
+ * 只在事件循环线程上访问，学到的间隔跨连接保留
+ */
+final class MqttKeepAlive {
+    static final long MIN_INTERVAL_MS = 10000;
+    static final long INITIAL_INTERVAL_MS = 15000;
+    // 同一间隔连续成功多少次后尝试加长
+    private static final int PROBE_SUCCESSES = 3;
+    // PINGRESP等待时间的范围，尚无样本时使用默认值
+    private static final long MIN_RESPONSE_TIMEOUT_MS = 3000;
+    private static final long MAX_RESPONSE_TIMEOUT_MS = 20000;
+    private static final long DEFAULT_RESPONSE_TIMEOUT_MS = 10000;
+
+    // 往返时间估计，单位毫秒，srtt<0表示还没有样本
+    private double srtt = -1;
+    private double rttvar = 0;
+
+    private long maxIntervalMs = 0;
+    private long intervalMs = INITIAL_INTERVAL_MS;
+    // 最近一个确认可行的间隔和已知会丢失PING的最短间隔（0表示未知）
+    private long lastGoodIntervalMs = 0;
+    private long failedIntervalMs = 0;
+    private int successes = 0;
+
+    /**
+     * 连接建立，maxIntervalMs为协商的保活时间（服务器在1.5倍保活时间内收不到报文会断开），0表示不保活
+     */
+    void onConnected(long maxIntervalMs) {
+        this.maxIntervalMs = maxIntervalMs;
+        if (maxIntervalMs > 0) {
+            intervalMs = Math.min(intervalMs, maxIntervalMs);
+        }
+        successes = 0;
+    }
+
+    boolean isEnabled() {
+        return maxIntervalMs > 0;
+    }
+
+    /**
+     * 当前的PING间隔：距离上一次出站报文超过这个时间才发送PINGREQ
+     */
+    long getIntervalMs() {
+        return intervalMs;
+    }
+
+    /**
+     * 发出PINGREQ后等待PINGRESP的时间，超时认为连接已半开
+     */
+    long getResponseTimeoutMs() {
+        if (srtt < 0) {
+            return DEFAULT_RESPONSE_TIMEOUT_MS;
+        }
+        long rto = (long) (srtt + Math.max(100, 4 * rttvar));
+        return Math.max(MIN_RESPONSE_TIMEOUT_MS, Math.min(MAX_RESPONSE_TIMEOUT_MS, 2 * rto));
+    }
+
+    /**
+     * 收到PINGRESP
+     * @param rttMs 本次往返时间
+     * @param idleMs 发出PINGREQ前链路空闲的时间，只有空闲PING能证明NAT映射在这个间隔内有效
+     */
+    void onPingResponse(long rttMs, long idleMs) {
+        if (srtt < 0) {
+            srtt = rttMs;
+            rttvar = rttMs / 2.0;
+        } else {
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rttMs);
+            srtt = 0.875 * srtt + 0.125 * rttMs;
+        }
+
+        if (idleMs < intervalMs) {
+            return;
+        }
+        lastGoodIntervalMs = Math.max(lastGoodIntervalMs, intervalMs);
+        if (++successes < PROBE_SUCCESSES) {
+            return;
+        }
+        successes = 0;
+        long next = Math.min(maxIntervalMs, intervalMs * 5 / 4);
+        if (failedIntervalMs > 0) {
+            // 不超过已知会失败的间隔，留出余量
+            next = Math.min(next, failedIntervalMs * 9 / 10);
+        }
+        intervalMs = Math.max(intervalMs, next);
+    }
+
+    /**
+     * PINGRESP超时
+     * @param idleMs 发出PINGREQ前链路空闲的时间
+     */
+    void onPingTimeout(long idleMs) {
+        successes = 0;
+        if (idleMs >= intervalMs) {
+            failedIntervalMs = failedIntervalMs > 0 ? Math.min(failedIntervalMs, intervalMs) : intervalMs;
+        }
+        long fallback = lastGoodIntervalMs > 0 && lastGoodIntervalMs < intervalMs ? lastGoodIntervalMs : intervalMs / 2;
+        long next = Math.max(MIN_INTERVAL_MS, fallback);
+        intervalMs = maxIntervalMs > 0 ? Math.min(next, maxIntervalMs) : next;
+        lastGoodIntervalMs = Math.min(lastGoodIntervalMs, intervalMs);
+    }
+
+    /**
+     * 平滑往返时间，尚无样本时返回-1
+     */
+    long getSmoothedRttMs() {
+        return srtt < 0 ? -1 : Math.round(srtt);
+    }
+
+    long getRttVarianceMs() {
+        return Math.round(rttvar);
+    }
+}
@@ -0,0 +1,242 @@
+package com.example.smarthomelighting.utils;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * 连接存活检测，一个连接上所有与存活相关的定时器都在这里：
+ * 空闲时发送PINGREQ，按估计的往返时间等待PINGRESP，超时判定连接已半开
+ * 只使用协议层的PING，不发布应用消息；检测结果汇总为一个MqttConnectionHealth
+ * 除onPacketWritten/onPacketReceived/probe/getter外只能在事件循环线程上调用
+ */
+final class MqttLivenessMonitor {
+    private static final String TAG = "MqttLivenessMonitor";
+
+    /**
+     * 监控的连接，回调都在事件循环线程上
+     */
+    interface Link {
+        boolean isOpen();
+
+        void sendPing();
+
+        /**
+         * 连接已失效，由连接方清理并通知连接丢失
+         */
+        void onDead(IOException cause);
+
+        void onHealthChanged(MqttConnectionHealth health);
+    }
+
+    private final MqttEventLoop eventLoop;
+    private final Link link;
+    // 往返时间估计和自适应PING间隔，学到的间隔跨连接保留
+    private final MqttKeepAlive keepAlive = new MqttKeepAlive();
+
+    private volatile MqttConnectionHealth health = MqttConnectionHealth.DISCONNECTED;
+    // 最近一次写出和收到报文的时间（elapsedRealtime），两个方向都有流量时推迟PING
+    private volatile long lastWriteTime = 0;
+    private volatile long lastReadTime = 0;
+
+    private MqttEventLoop.Timer keepAliveTimer;
+    private MqttEventLoop.Timer pingTimer;
+    // 未响应的PINGREQ的发出时间和发出前的空闲时间，0表示没有
+    private long pingSentTime = 0;
+    private long pingIdleMs = 0;
+
+    MqttLivenessMonitor(MqttEventLoop eventLoop, Link link) {
+        this.eventLoop = eventLoop;
+        this.link = link;
+    }
+
+    void onConnecting() {
+        stopTimers();
+        setHealth(MqttConnectionHealth.CONNECTING);
+    }
+
+    /**
+     * 收到CONNACK，maxIntervalMs为协商的保活时间，0表示不保活
+     */
+    void onConnected(long maxIntervalMs) {
+        stopTimers();
+        long now = SystemClock.elapsedRealtime();
+        lastWriteTime = now;
+        lastReadTime = now;
+        keepAlive.onConnected(maxIntervalMs);
+        setHealth(MqttConnectionHealth.CONNECTED);
+        if (keepAlive.isEnabled()) {
+            scheduleKeepAlive(keepAlive.getIntervalMs());
+        }
+    }
+
+    void onDisconnected() {
+        stopTimers();
+        setHealth(MqttConnectionHealth.DISCONNECTED);
+    }
+
+    void onPacketWritten() {
+        lastWriteTime = SystemClock.elapsedRealtime();
+    }
+
+    void onPacketReceived() {
+        lastReadTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * 立即发送一次PINGREQ确认连接仍然可用，例如回到前台或网络变化后
+     * 未连接或已有未响应的PING时不做任何事，任意线程可调用
+     */
+    void probe() {
+        eventLoop.execute(() -> {
+            if (!isConnectedState() || pingSentTime != 0) {
+                return;
+            }
+            if (keepAliveTimer != null) {
+                keepAliveTimer.cancel();
+                keepAliveTimer = null;
+            }
+            sendPing(SystemClock.elapsedRealtime());
+        });
+    }
+
+    /**
+     * 收到PINGRESP，receivedTime为读线程上的接收时间
+     */
+    void onPingResponse(long receivedTime) {
+        if (pingSentTime == 0 || !isConnectedState()) {
+            return;
+        }
+        long rttMs = receivedTime - pingSentTime;
+        pingSentTime = 0;
+        if (pingTimer != null) {
+            pingTimer.cancel();
+            pingTimer = null;
+        }
+        keepAlive.onPingResponse(rttMs, pingIdleMs);
+        setHealth(MqttConnectionHealth.CONNECTED);
+        Log.d(TAG, "收到PING响应，往返: " + rttMs + "ms，平滑往返: " + keepAlive.getSmoothedRttMs()
+                + "ms，PING间隔: " + keepAlive.getIntervalMs() + "ms");
+
+        if (keepAlive.isEnabled()) {
+            long idleMs = idleTime(SystemClock.elapsedRealtime());
+            scheduleKeepAlive(Math.max(0, keepAlive.getIntervalMs() - idleMs));
+        }
+    }
+
+    MqttConnectionHealth getHealth() {
+        return health;
+    }
+
+    long getSmoothedRttMs() {
+        return keepAlive.getSmoothedRttMs();
+    }
+
+    long getIntervalMs() {
+        return keepAlive.getIntervalMs();
+    }
+
+    private boolean isConnectedState() {
+        return health == MqttConnectionHealth.CONNECTED || health == MqttConnectionHealth.DEGRADED;
+    }
+
+    private void scheduleKeepAlive(long delayMs) {
+        keepAliveTimer = eventLoop.schedule(this::onKeepAliveTimer, delayMs);
+    }
+
+    /**
+     * 链路空闲达到PING间隔时发送PINGREQ，期间收发过其他报文时推迟
+     */
+    private void onKeepAliveTimer() {
+        keepAliveTimer = null;
+        if (!isConnectedState()) {
+            return;
+        }
+        if (!link.isOpen()) {
+            Log.e(TAG, "连接标记为已连接但传输层已关闭");
+            dead(new IOException("连接异常：Socket已关闭"));
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        long idleMs = idleTime(now);
+        long intervalMs = keepAlive.getIntervalMs();
+        if (idleMs < intervalMs) {
+            scheduleKeepAlive(intervalMs - idleMs);
+            return;
+        }
+        sendPing(now);
+    }
+
+    /**
+     * 发送PINGREQ，超过一半等待时间仍未响应时标记为DEGRADED，超过全部等待时间判定连接失效
+     */
+    private void sendPing(long now) {
+        pingSentTime = now;
+        pingIdleMs = idleTime(now);
+        link.sendPing();
+        long timeoutMs = keepAlive.getResponseTimeoutMs();
+        long suspectMs = timeoutMs / 2;
+        pingTimer = eventLoop.schedule(() -> onPingOverdue(timeoutMs - suspectMs), suspectMs);
+        Log.d(TAG, "发送PINGREQ，空闲: " + pingIdleMs + "ms，等待响应: " + timeoutMs + "ms");
+    }
+
+    private void onPingOverdue(long remainingMs) {
+        pingTimer = null;
+        if (pingSentTime == 0 || !isConnectedState()) {
+            return;
+        }
+        Log.w(TAG, "PING响应延迟，连接可能已半开");
+        setHealth(MqttConnectionHealth.DEGRADED);
+        pingTimer = eventLoop.schedule(this::onPingTimeout, remainingMs);
+    }
+
+    /**
+     * 在估计的时间内没有收到PINGRESP，认为连接已半开
+     */
+    private void onPingTimeout() {
+        pingTimer = null;
+        if (pingSentTime == 0 || !isConnectedState()) {
+            return;
+        }
+        long waitedMs = SystemClock.elapsedRealtime() - pingSentTime;
+        keepAlive.onPingTimeout(pingIdleMs);
+        Log.e(TAG, "PING响应超时，认为连接已断开，之后的PING间隔: " + keepAlive.getIntervalMs() + "ms");
+        dead(new IOException("连接超时：" + waitedMs + "ms内未收到PING响应"));
+    }
+
+    private void dead(IOException cause) {
+        stopTimers();
+        setHealth(MqttConnectionHealth.DISCONNECTED);
+        link.onDead(cause);
+    }
+
+    /**
+     * 链路空闲的时间，按收发两个方向中较早的一次活动计算：
+     * 只写不读（例如对端已不可达时的重发）也需要PING确认连接
+     */
+    private long idleTime(long now) {
+        return now - Math.min(lastWriteTime, lastReadTime);
+    }
+
+    private void stopTimers() {
+        if (keepAliveTimer != null) {
+            keepAliveTimer.cancel();
+            keepAliveTimer = null;
+        }
+        if (pingTimer != null) {
+            pingTimer.cancel();
+            pingTimer = null;
+        }
+        pingSentTime = 0;
+    }
+
+    private void setHealth(MqttConnectionHealth newHealth) {
+        if (health == newHealth) {
+            return;
+        }
+        health = newHealth;
+        link.onHealthChanged(newHealth);
+    }
+}
@@ -0,0 +1,428 @@
+package com.example.smarthomelighting.utils;
+
+import android.util.Log;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * 基于内存映射文件的MQTT持久化
+ * 所有写入都追加到映射区域的末尾，put/remove只是一次内存拷贝，不调用fsync；
+ * 进程被系统杀死时映射页仍由内核写回，不会丢失已写入的记录
+ * 每条记录带CRC32，打开时顺序扫描重建索引，遇到不完整或校验失败的记录就截断到该位置
+ * 失效记录超过一半时，把有效记录写入临时文件，fsync后原子替换原文件
+ *
+ * 文件格式：8字节文件头（魔数+版本），之后是连续的记录
+ * 记录：4字节长度 + 4字节CRC32 + 记录体，长度为0表示文件结束；长度最后写入，写到一半的记录长度仍为0
+ * 记录体：1字节类型 + 2字节键长度 + 键 + [4字节头部长度 + 头部 + 4字节载荷长度 + 载荷]（仅PUT）
+ */
+public final class MqttMappedFilePersistence implements MqttClientPersistence {
+    private static final String TAG = "MqttMappedPersistence";
+
+    private static final int MAGIC = 0x4D515053; // "MQPS"
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+
+    private static final int INITIAL_MAP_SIZE = 64 * 1024;
+    // 文件小于这个大小时不压缩
+    private static final int COMPACT_MIN_SIZE = 64 * 1024;
+
+    private final File directory;
+
+    private File file;
+    private RandomAccessFile lockFile;
+    private FileLock lock;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    // 下一条记录的写入位置
+    private int writePosition;
+    // 有效记录占用的字节数，用于判断是否需要压缩
+    private int liveBytes;
+    // 键 -> 最新PUT记录的起始位置
+    private final Map<String, Integer> index = new HashMap<>();
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * @param directory 持久化文件所在目录，每个clientId和服务器组合使用一个文件
+     */
+    public MqttMappedFilePersistence(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public synchronized void open(String clientId, String serverURI) throws MqttPersistenceException {
+        if (channel != null) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new MqttPersistenceException(new IOException("无法创建持久化目录: " + directory));
+        }
+        String name = sanitize(clientId) + "-" + sanitize(serverURI);
+        file = new File(directory, name + ".mqs");
+        try {
+            // 锁单独放在一个文件上，压缩替换数据文件时锁不会被释放
+            lockFile = new RandomAccessFile(new File(directory, name + ".lck"), "rw");
+            try {
+                lock = lockFile.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                closeQuietly();
+                throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE);
+            }
+
+            // 上次压缩中途退出时残留的临时文件
+            File temp = new File(directory, name + ".tmp");
+            if (temp.exists() && !temp.delete()) {
+                Log.w(TAG, "删除临时文件失败: " + temp);
+            }
+
+            mapFile();
+            recover();
+            Log.d(TAG, "已打开持久化文件: " + file.getName() + "，记录数: " + index.size()
+                    + "，大小: " + writePosition + "/" + mapped.capacity());
+        } catch (IOException e) {
+            closeQuietly();
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    private void mapFile() throws IOException {
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        long size = channel.size();
+        int mapSize = INITIAL_MAP_SIZE;
+        while (mapSize < size) {
+            mapSize <<= 1;
+        }
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, mapSize);
+    }
+
+    /**
+     * 扫描所有记录重建索引，截断末尾不完整的记录
+     */
+    private void recover() {
+        index.clear();
+        liveBytes = 0;
+        if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+            // 新文件，或无法识别的旧格式
+            if (mapped.getInt(0) != 0) {
+                Log.w(TAG, "持久化文件格式无法识别，重新创建");
+            }
+            zero(0, mapped.capacity());
+            mapped.putInt(0, MAGIC);
+            mapped.putInt(4, VERSION);
+            writePosition = FILE_HEADER_SIZE;
+            return;
+        }
+
+        int position = FILE_HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE <= mapped.capacity()) {
+            int length = mapped.getInt(position);
+            if (length == 0) {
+                break;
+            }
+            if (length < 3 || position + RECORD_HEADER_SIZE + length > mapped.capacity()
+                    || mapped.getInt(position + 4) != checksum(position + RECORD_HEADER_SIZE, length)) {
+                Log.w(TAG, "持久化记录损坏，截断到位置: " + position);
+                zero(position, mapped.capacity());
+                break;
+            }
+            apply(position);
+            position += RECORD_HEADER_SIZE + length;
+        }
+        writePosition = position;
+    }
+
+    /**
+     * 把一条记录应用到索引
+     */
+    private void apply(int position) {
+        int bodyPosition = position + RECORD_HEADER_SIZE;
+        byte op = mapped.get(bodyPosition);
+        String key = readKey(bodyPosition + 1);
+        Integer previous = index.remove(key);
+        if (previous != null) {
+            liveBytes -= recordSize(previous);
+        }
+        if (op == OP_PUT) {
+            index.put(key, position);
+            liveBytes += recordSize(position);
+        }
+    }
+
+    @Override
+    public synchronized void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+        checkOpen();
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int headerLength = persistable.getHeaderLength();
+        int payloadLength = persistable.getPayloadBytes() == null ? 0 : persistable.getPayloadLength();
+        int bodyLength = 1 + 2 + keyBytes.length + 4 + headerLength + 4 + payloadLength;
+
+        int position = reserve(bodyLength);
+        int bodyPosition = position + RECORD_HEADER_SIZE;
+        ByteBuffer body = mapped.duplicate();
+        body.position(bodyPosition);
+        body.put(OP_PUT);
+        body.putShort((short) keyBytes.length);
+        body.put(keyBytes);
+        body.putInt(headerLength);
+        body.put(persistable.getHeaderBytes(), persistable.getHeaderOffset(), headerLength);
+        body.putInt(payloadLength);
+        if (payloadLength > 0) {
+            body.put(persistable.getPayloadBytes(), persistable.getPayloadOffset(), payloadLength);
+        }
+        commit(position, bodyLength);
+        maybeCompact();
+    }
+
+    @Override
+    public synchronized MqttPersistable get(String key) throws MqttPersistenceException {
+        checkOpen();
+        Integer position = index.get(key);
+        if (position == null) {
+            return null;
+        }
+        ByteBuffer body = mapped.duplicate();
+        body.position(position + RECORD_HEADER_SIZE + 1);
+        body.position(body.position() + 2 + (body.getShort() & 0xFFFF));
+        byte[] header = new byte[body.getInt()];
+        body.get(header);
+        byte[] payload = new byte[body.getInt()];
+        body.get(payload);
+        return new MqttSessionStore.Record(header, payload);
+    }
+
+    @Override
+    public synchronized void remove(String key) throws MqttPersistenceException {
+        checkOpen();
+        if (!index.containsKey(key)) {
+            return;
+        }
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int bodyLength = 1 + 2 + keyBytes.length;
+        int position = reserve(bodyLength);
+        ByteBuffer body = mapped.duplicate();
+        body.position(position + RECORD_HEADER_SIZE);
+        body.put(OP_REMOVE);
+        body.putShort((short) keyBytes.length);
+        body.put(keyBytes);
+        commit(position, bodyLength);
+        maybeCompact();
+    }
+
+    @Override
+    public synchronized Enumeration<String> keys() throws MqttPersistenceException {
+        checkOpen();
+        return Collections.enumeration(new ArrayList<>(index.keySet()));
+    }
+
+    @Override
+    public synchronized boolean containsKey(String key) throws MqttPersistenceException {
+        checkOpen();
+        return index.containsKey(key);
+    }
+
+    @Override
+    public synchronized void clear() throws MqttPersistenceException {
+        checkOpen();
+        zero(FILE_HEADER_SIZE, mapped.capacity());
+        index.clear();
+        liveBytes = 0;
+        writePosition = FILE_HEADER_SIZE;
+    }
+
+    /**
+     * 关闭时把映射页写回磁盘，这是唯一一次同步写
+     */
+    @Override
+    public synchronized void close() throws MqttPersistenceException {
+        if (channel == null) {
+            return;
+        }
+        mapped.force();
+        closeQuietly();
+    }
+
+    /**
+     * 为一条记录预留空间，映射区域不足时先尝试压缩，再扩大映射
+     */
+    private int reserve(int bodyLength) throws MqttPersistenceException {
+        int required = RECORD_HEADER_SIZE + bodyLength;
+        // 末尾至少保留4字节0作为结束标记
+        if (writePosition + required + 4 > mapped.capacity()) {
+            if (liveBytes * 2 < writePosition - FILE_HEADER_SIZE) {
+                compact();
+            }
+            if (writePosition + required + 4 > mapped.capacity()) {
+                grow(writePosition + required + 4);
+            }
+        }
+        return writePosition;
+    }
+
+    /**
+     * 写入CRC和长度完成一条记录，长度最后写入
+     */
+    private void commit(int position, int bodyLength) {
+        mapped.putInt(position + 4, checksum(position + RECORD_HEADER_SIZE, bodyLength));
+        mapped.putInt(position, bodyLength);
+        writePosition = position + RECORD_HEADER_SIZE + bodyLength;
+        apply(position);
+    }
+
+    private void grow(int minSize) throws MqttPersistenceException {
+        int newSize = mapped.capacity();
+        while (newSize < minSize) {
+            newSize <<= 1;
+        }
+        try {
+            mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    private void maybeCompact() throws MqttPersistenceException {
+        if (writePosition >= COMPACT_MIN_SIZE && liveBytes * 2 < writePosition - FILE_HEADER_SIZE) {
+            compact();
+        }
+    }
+
+    /**
+     * 只保留有效记录写入临时文件，fsync后替换原文件
+     * 替换前进程退出时原文件保持完整，临时文件在下次打开时删除
+     */
+    private void compact() throws MqttPersistenceException {
+        int before = writePosition;
+        File temp = new File(file.getParentFile(), file.getName().replace(".mqs", ".tmp"));
+        try {
+            int size = FILE_HEADER_SIZE + liveBytes;
+            ByteBuffer compacted = ByteBuffer.allocate(size);
+            compacted.putInt(MAGIC);
+            compacted.putInt(VERSION);
+            for (int position : index.values()) {
+                ByteBuffer record = mapped.duplicate();
+                record.position(position);
+                record.limit(position + recordSize(position));
+                compacted.put(record);
+            }
+            compacted.flip();
+
+            try (RandomAccessFile output = new RandomAccessFile(temp, "rw")) {
+                output.setLength(0);
+                FileChannel outputChannel = output.getChannel();
+                while (compacted.hasRemaining()) {
+                    outputChannel.write(compacted);
+                }
+                outputChannel.force(true);
+            }
+
+            channel.close();
+            randomAccessFile.close();
+            if (!temp.renameTo(file)) {
+                throw new IOException("替换持久化文件失败: " + temp);
+            }
+            mapFile();
+            recover();
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+        Log.d(TAG, "持久化文件已压缩: " + before + " -> " + writePosition + " 字节，记录数: " + index.size());
+    }
+
+    private int recordSize(int position) {
+        return RECORD_HEADER_SIZE + mapped.getInt(position);
+    }
+
+    private String readKey(int position) {
+        int length = mapped.getShort(position) & 0xFFFF;
+        byte[] key = new byte[length];
+        ByteBuffer buffer = mapped.duplicate();
+        buffer.position(position + 2);
+        buffer.get(key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    private int checksum(int position, int length) {
+        ByteBuffer buffer = mapped.duplicate();
+        buffer.position(position);
+        buffer.limit(position + length);
+        crc.reset();
+        crc.update(buffer);
+        return (int) crc.getValue();
+    }
+
+    private void zero(int from, int to) {
+        for (int i = from; i < to; i++) {
+            mapped.put(i, (byte) 0);
+        }
+    }
+
+    private void checkOpen() throws MqttPersistenceException {
+        if (channel == null) {
+            throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_CLIENT_EXCEPTION);
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+            if (randomAccessFile != null) {
+                randomAccessFile.close();
+            }
+            if (lock != null) {
+                lock.release();
+            }
+            if (lockFile != null) {
+                lockFile.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "关闭持久化文件时出错", e);
+        }
+        channel = null;
+        randomAccessFile = null;
+        mapped = null;
+        lock = null;
+        lockFile = null;
+        index.clear();
+    }
+
+    /**
+     * 只保留字母和数字，与paho的文件持久化一致
+     */
+    private static String sanitize(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.smarthomelighting.utils;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.net.InetAddress;
+import java.util.List;
+
+/**
+ * 监听系统默认网络，判断当前是否有可用于连接服务器的网络
+ * 通过系统验证（确认能访问互联网）的网络才算可用；有服务器是局域网地址时，
+ * 未通过验证的Wi-Fi或以太网也算可用，局域网内的服务器不需要访问互联网
+ * 回调都在主线程上
+ */
+final class MqttNetworkMonitor {
+    private static final String TAG = "MqttNetworkMonitor";
+
+    interface Listener {
+        /**
+         * 网络可用性变化，或默认网络切换到另一个可用网络
+         */
+        void onNetworkChanged(boolean usable);
+    }
+
+    private final ConnectivityManager connectivityManager;
+    private final boolean localBroker;
+    private final Listener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // 以下字段只在主线程访问
+    private boolean started = false;
+    private Network currentNetwork;
+    private boolean usable = false;
+
+    private final ConnectivityManager.NetworkCallback callback = new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+            update(network, isUsable(capabilities));
+        }
+
+        @Override
+        public void onLost(Network network) {
+            if (network.equals(currentNetwork)) {
+                update(null, false);
+            }
+        }
+    };
+
+    MqttNetworkMonitor(Context context, List<String> brokerHosts, Listener listener) {
+        this.connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        boolean local = false;
+        for (String host : brokerHosts) {
+            local |= isLocalAddress(host);
+        }
+        this.localBroker = local;
+        this.listener = listener;
+    }
+
+    /**
+     * 开始监听并立即报告当前网络状态，重复调用不做任何事，只能在主线程调用
+     */
+    void start() {
+        if (started || connectivityManager == null) {
+            return;
+        }
+        started = true;
+        Network active = connectivityManager.getActiveNetwork();
+        NetworkCapabilities capabilities = active != null ? connectivityManager.getNetworkCapabilities(active) : null;
+        update(active, capabilities != null && isUsable(capabilities));
+        try {
+            connectivityManager.registerDefaultNetworkCallback(callback, handler);
+        } catch (RuntimeException e) {
+            // 注册失败（例如回调数量超限）时不再按网络状态限制重连
+            Log.e(TAG, "注册网络监听失败: " + e.getMessage());
+            started = false;
+            update(null, true);
+        }
+    }
+
+    void stop() {
+        if (!started) {
+            return;
+        }
+        started = false;
+        try {
+            connectivityManager.unregisterNetworkCallback(callback);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "注销网络监听失败: " + e.getMessage());
+        }
+    }
+
+    private boolean isUsable(NetworkCapabilities capabilities) {
+        if (capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED)) {
+            return true;
+        }
+        return localBroker && (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)
+                || capabilities.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET));
+    }
+
+    private void update(Network network, boolean nowUsable) {
+        boolean changed = nowUsable != usable || nowUsable && network != null && !network.equals(currentNetwork);
+        currentNetwork = network;
+        usable = nowUsable;
+        if (changed) {
+            Log.d(TAG, nowUsable ? "默认网络可用: " + network : "没有可用网络");
+            listener.onNetworkChanged(nowUsable);
+        }
+    }
+
+    /**
+     * 是否为局域网、链路本地或本机地址；只判断IP字面量和.local主机名，不做DNS解析
+     */
+    static boolean isLocalAddress(String host) {
+        if (host == null || host.isEmpty()) {
+            return false;
+        }
+        if (host.endsWith(".local")) {
+            return true;
+        }
+        if (!MqttDnsResolver.isIpLiteral(host)) {
+            return false;
+        }
+        try {
+            InetAddress address = InetAddress.getByName(host);
+            return address.isSiteLocalAddress() || address.isLinkLocalAddress() || address.isLoopbackAddress();
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
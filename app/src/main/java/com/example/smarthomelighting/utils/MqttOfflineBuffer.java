@@ -0,0 +1,195 @@
+package com.example.smarthomelighting.utils;
+
+import org.eclipse.paho.client.mqttv3.DisconnectedBufferOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 断线期间的出站消息缓存
+ * 固定容量的环形数组，容量遵循bufferSize，写满后按deleteOldestMessages丢弃最早的消息或拒绝新消息；
+ * persistBuffer开启时每条消息同时写入持久化（sb-&lt;序号&gt;），进程重启后按原顺序恢复
+ * 入队和出队都是O(1)，不产生定时任务，重连后由适配器按节奏取出
+ */
+final class MqttOfflineBuffer {
+    private final MqttSessionStore sessionStore;
+
+    private MqttDeliveryToken[] tokens;
+    private long[] sequences;
+    // 对应消息是否已写入持久化
+    private boolean[] persisted;
+    private int head = 0;
+    private int count = 0;
+    private long nextSequence = 0;
+
+    private boolean enabled;
+    private boolean persistBuffer;
+    private boolean deleteOldest;
+    private long droppedCount = 0;
+
+    MqttOfflineBuffer(MqttSessionStore sessionStore) {
+        this.sessionStore = sessionStore;
+        DisconnectedBufferOptions defaults = new DisconnectedBufferOptions();
+        this.enabled = defaults.isBufferEnabled();
+        this.persistBuffer = defaults.isPersistBuffer();
+        this.deleteOldest = defaults.isDeleteOldestMessages();
+        allocate(defaults.getBufferSize());
+    }
+
+    private void allocate(int capacity) {
+        tokens = new MqttDeliveryToken[capacity];
+        sequences = new long[capacity];
+        persisted = new boolean[capacity];
+    }
+
+    /**
+     * 应用缓存选项，返回因容量缩小而被丢弃的消息
+     */
+    synchronized List<MqttDeliveryToken> setOptions(DisconnectedBufferOptions options) {
+        enabled = options.isBufferEnabled();
+        deleteOldest = options.isDeleteOldestMessages();
+
+        boolean persist = options.isPersistBuffer() && sessionStore.isEnabled();
+        if (persist != persistBuffer) {
+            persistBuffer = persist;
+            for (int i = 0; i < count; i++) {
+                int index = (head + i) % tokens.length;
+                if (persist && !persisted[index]) {
+                    save(index);
+                } else if (!persist && persisted[index]) {
+                    sessionStore.removeBuffered(sequences[index]);
+                    persisted[index] = false;
+                }
+            }
+        }
+
+        List<MqttDeliveryToken> dropped = new ArrayList<>();
+        int capacity = Math.max(1, options.getBufferSize());
+        if (capacity != tokens.length) {
+            // 容量缩小时，deleteOldest丢弃最早的消息，否则丢弃最新的消息
+            while (count > capacity) {
+                dropped.add(deleteOldest ? removeFirst() : removeLast());
+                droppedCount++;
+            }
+            resize(capacity);
+        }
+        return dropped;
+    }
+
+    private void resize(int capacity) {
+        MqttDeliveryToken[] oldTokens = tokens;
+        long[] oldSequences = sequences;
+        boolean[] oldPersisted = persisted;
+        allocate(capacity);
+        for (int i = 0; i < count; i++) {
+            int index = (head + i) % oldTokens.length;
+            tokens[i] = oldTokens[index];
+            sequences[i] = oldSequences[index];
+            persisted[i] = oldPersisted[index];
+        }
+        head = 0;
+    }
+
+    /**
+     * 缓存一条消息，已满时按deleteOldest丢弃最早的消息并返回它，否则抛出DISCONNECTED_BUFFER_FULL
+     */
+    synchronized MqttDeliveryToken add(MqttDeliveryToken token) throws MqttException {
+        MqttDeliveryToken dropped = null;
+        if (count == tokens.length) {
+            if (!deleteOldest) {
+                throw new MqttException(MqttException.REASON_CODE_DISCONNECTED_BUFFER_FULL);
+            }
+            dropped = removeFirst();
+            droppedCount++;
+        }
+        int index = (head + count) % tokens.length;
+        tokens[index] = token;
+        sequences[index] = nextSequence++;
+        persisted[index] = false;
+        count++;
+        if (persistBuffer) {
+            save(index);
+        }
+        return dropped;
+    }
+
+    /**
+     * 按写入顺序取出最早的消息，为空时返回null
+     */
+    synchronized MqttDeliveryToken poll() {
+        return count == 0 ? null : removeFirst();
+    }
+
+    /**
+     * 从持久化恢复一条消息，由MqttSessionStore按序号从小到大回调
+     * 恢复的消息不受当前容量限制，必要时扩容
+     */
+    synchronized void restore(long sequence, String topic, byte[] payload, int qos, boolean retained) {
+        if (count == tokens.length) {
+            resize(tokens.length * 2);
+        }
+        MqttMessage message = new MqttMessage(payload);
+        message.setQos(qos);
+        message.setRetained(retained);
+        int index = (head + count) % tokens.length;
+        tokens[index] = new MqttDeliveryToken(topic, message, null, null);
+        sequences[index] = sequence;
+        persisted[index] = true;
+        count++;
+        nextSequence = Math.max(nextSequence, sequence + 1);
+    }
+
+    private MqttDeliveryToken removeFirst() {
+        MqttDeliveryToken token = tokens[head];
+        release(head);
+        head = (head + 1) % tokens.length;
+        count--;
+        return token;
+    }
+
+    private MqttDeliveryToken removeLast() {
+        int index = (head + count - 1) % tokens.length;
+        MqttDeliveryToken token = tokens[index];
+        release(index);
+        count--;
+        return token;
+    }
+
+    private void release(int index) {
+        if (persisted[index]) {
+            sessionStore.removeBuffered(sequences[index]);
+            persisted[index] = false;
+        }
+        tokens[index] = null;
+    }
+
+    private void save(int index) {
+        MqttDeliveryToken token = tokens[index];
+        MqttMessage message = token.getMessage();
+        sessionStore.saveBuffered(sequences[index], token.getTopics()[0], message.getPayload(),
+                message.getQos(), message.isRetained());
+        persisted[index] = true;
+    }
+
+    synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    synchronized boolean isEmpty() {
+        return count == 0;
+    }
+
+    synchronized int size() {
+        return count;
+    }
+
+    synchronized int capacity() {
+        return tokens.length;
+    }
+
+    synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+}
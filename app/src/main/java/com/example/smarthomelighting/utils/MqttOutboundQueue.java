@@ -0,0 +1,166 @@
+package com.example.smarthomelighting.utils;
+
+import java.io.IOException;
+
+/**
+ * 出站报文合并队列
+ * 任意线程都可以把报文直接编码进待发送缓冲区，事件循环一次性取走全部待发送报文，
+ * 用一次write写出（TLS下合并为尽量少的记录），避免每个小报文单独一次系统调用和TLS记录
+ */
+final class MqttOutboundQueue {
+
+    /**
+     * 在队列锁内把一个或多个报文编码进encoder
+     */
+    interface PacketWriter {
+        void write(MqttPacketEncoder encoder);
+    }
+
+    /**
+     * 批量写出的目标，在事件循环线程上回调
+     */
+    interface Target {
+        void writeBatch(byte[] data, int offset, int length) throws IOException;
+
+        void onWriteFailed(IOException cause);
+    }
+
+    private final MqttEventLoop eventLoop;
+    private final Target target;
+    private final Object lock = new Object();
+    private final Runnable flushTask = this::flush;
+
+    // 双缓冲：pending接收新报文，flushing由事件循环写出，交换后复用底层数组
+    private MqttPacketEncoder pending = new MqttPacketEncoder();
+    private MqttPacketEncoder flushing = new MqttPacketEncoder();
+    private boolean flushScheduled = false;
+    private volatile long batchWindowMs = 0;
+    // 报文抓取，null表示关闭
+    private volatile MqttPacketCapture packetCapture;
+
+    // 统计，只在事件循环线程上写
+    private volatile long flushCount = 0;
+    private volatile long packetCount = 0;
+    private volatile long byteCount = 0;
+    private volatile int maxPacketsPerFlush = 0;
+
+    MqttOutboundQueue(MqttEventLoop eventLoop, Target target) {
+        this.eventLoop = eventLoop;
+        this.target = target;
+    }
+
+    /**
+     * 微批处理窗口，0表示在事件循环的下一轮立即写出
+     */
+    void setBatchWindowMs(long batchWindowMs) {
+        this.batchWindowMs = Math.max(0, batchWindowMs);
+    }
+
+    long getBatchWindowMs() {
+        return batchWindowMs;
+    }
+
+    void setPacketCapture(MqttPacketCapture packetCapture) {
+        this.packetCapture = packetCapture;
+    }
+
+    /**
+     * 编码报文并安排写出，窗口内的后续报文会合并到同一次写出中
+     */
+    void enqueue(PacketWriter writer) {
+        boolean schedule;
+        synchronized (lock) {
+            writer.write(pending);
+            schedule = !flushScheduled;
+            flushScheduled = true;
+        }
+        if (schedule) {
+            long window = batchWindowMs;
+            if (window > 0) {
+                eventLoop.schedule(flushTask, window);
+            } else {
+                eventLoop.execute(flushTask);
+            }
+        }
+    }
+
+    /**
+     * 立即写出所有待发送报文，只能在事件循环线程上调用
+     */
+    void flushNow() throws IOException {
+        MqttPacketEncoder batch = takePending();
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            writeBatch(batch);
+        } finally {
+            batch.clear();
+        }
+    }
+
+    /**
+     * 丢弃尚未写出的报文，连接关闭时调用
+     */
+    void reset() {
+        synchronized (lock) {
+            pending.clear();
+        }
+    }
+
+    private void flush() {
+        MqttPacketEncoder batch = takePending();
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            writeBatch(batch);
+        } catch (IOException e) {
+            target.onWriteFailed(e);
+        } finally {
+            batch.clear();
+        }
+    }
+
+    private MqttPacketEncoder takePending() {
+        synchronized (lock) {
+            MqttPacketEncoder batch = pending;
+            pending = flushing;
+            flushing = batch;
+            flushScheduled = false;
+            return batch;
+        }
+    }
+
+    private void writeBatch(MqttPacketEncoder batch) throws IOException {
+        target.writeBatch(batch.array(), 0, batch.size());
+        MqttPacketCapture capture = packetCapture;
+        if (capture != null) {
+            capture.recordOutbound(batch.array(), 0, batch.size());
+        }
+
+        int packets = batch.packetCount();
+        flushCount++;
+        packetCount += packets;
+        byteCount += batch.size();
+        if (packets > maxPacketsPerFlush) {
+            maxPacketsPerFlush = packets;
+        }
+    }
+
+    long getFlushCount() {
+        return flushCount;
+    }
+
+    long getPacketCount() {
+        return packetCount;
+    }
+
+    long getByteCount() {
+        return byteCount;
+    }
+
+    int getMaxPacketsPerFlush() {
+        return maxPacketsPerFlush;
+    }
+}
@@ -0,0 +1,220 @@
+package com.example.smarthomelighting.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 报文抓取环形缓冲区，记录最近的原始MQTT报文（方向、时间戳、按snapLength截断的字节）
+ * 槽位在创建时一次分配，写入方用原子序号认领槽位，不加锁、不分配对象
+ * 导出时按序号校验槽位，正在被覆盖的报文直接跳过
+ * CONNECT只保留到可变头部，不记录客户端ID、用户名和密码
+ */
+final class MqttPacketCapture {
+    static final byte INBOUND = 0;
+    static final byte OUTBOUND = 1;
+
+    static final int DEFAULT_MAX_FRAMES = 256;
+    static final int DEFAULT_SNAP_LENGTH = 256;
+
+    // pcap的DLT_USER0；每条记录前有1字节方向（0入站，1出站），
+    // 在Wireshark中把DLT_USER0配置为mqtt、头部长度1即可解析
+    private static final int LINKTYPE_USER0 = 147;
+    // CONNECT可变头部：协议名(6) + 协议级别(1) + 连接标志(1) + 保活时间(2)
+    private static final int CONNECT_VARIABLE_HEADER_LENGTH = 10;
+
+    private static final class Slot {
+        volatile long sequence = -1;
+        long timestampMs;
+        byte direction;
+        int length;
+        int capturedLength;
+        final byte[] data;
+
+        Slot(int snapLength) {
+            data = new byte[snapLength];
+        }
+    }
+
+    /**
+     * 导出的一条报文
+     */
+    static final class Frame {
+        final long timestampMs;
+        final byte direction;
+        final int length;
+        final byte[] data;
+
+        Frame(long timestampMs, byte direction, int length, byte[] data) {
+            this.timestampMs = timestampMs;
+            this.direction = direction;
+            this.length = length;
+            this.data = data;
+        }
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    private final int snapLength;
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * maxFrames向上取整为2的幂
+     */
+    MqttPacketCapture(int maxFrames, int snapLength) {
+        if (maxFrames < 1 || snapLength < 8) {
+            throw new IllegalArgumentException("无效的抓包参数: " + maxFrames + "/" + snapLength);
+        }
+        int capacity = Integer.highestOneBit(maxFrames - 1) << 1;
+        if (maxFrames == 1) {
+            capacity = 1;
+        }
+        this.slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot(snapLength);
+        }
+        this.mask = capacity - 1;
+        this.snapLength = snapLength;
+    }
+
+    /**
+     * 记录一个入站报文，body为剩余长度之后的内容
+     */
+    void recordInbound(int header, byte[] body, int offset, int length) {
+        record(INBOUND, header, body, offset, length);
+    }
+
+    /**
+     * 记录一批已写出的出站报文，按固定头部逐个拆分
+     */
+    void recordOutbound(byte[] buffer, int offset, int length) {
+        int position = offset;
+        int end = offset + length;
+        while (position < end) {
+            int header = buffer[position++] & 0xFF;
+            int remainingLength = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (position >= end || shift > 21) {
+                    return;
+                }
+                b = buffer[position++] & 0xFF;
+                remainingLength |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            if (position + remainingLength > end) {
+                return;
+            }
+            record(OUTBOUND, header, buffer, position, remainingLength);
+            position += remainingLength;
+        }
+    }
+
+    private void record(byte direction, int header, byte[] body, int offset, int length) {
+        long sequence = next.getAndIncrement();
+        Slot slot = slots[(int) (sequence & mask)];
+        slot.sequence = -1;
+        slot.timestampMs = System.currentTimeMillis();
+        slot.direction = direction;
+
+        byte[] data = slot.data;
+        int position = 0;
+        data[position++] = (byte) header;
+        int remaining = length;
+        do {
+            int digit = remaining & 0x7F;
+            remaining >>>= 7;
+            data[position++] = (byte) (remaining > 0 ? digit | 0x80 : digit);
+        } while (remaining > 0);
+        slot.length = position + length;
+
+        int bodyLength = Math.min(length, snapLength - position);
+        if ((header >> 4) == MqttPacketEncoder.CONNECT) {
+            bodyLength = Math.min(bodyLength, CONNECT_VARIABLE_HEADER_LENGTH);
+        }
+        System.arraycopy(body, offset, data, position, bodyLength);
+        slot.capturedLength = position + bodyLength;
+        slot.sequence = sequence;
+    }
+
+    /**
+     * 按时间顺序复制出环中现有的报文
+     */
+    List<Frame> snapshot() {
+        long end = next.get();
+        long start = Math.max(0, end - slots.length);
+        List<Frame> frames = new ArrayList<>((int) (end - start));
+        for (long sequence = start; sequence < end; sequence++) {
+            Slot slot = slots[(int) (sequence & mask)];
+            if (slot.sequence != sequence) {
+                continue;
+            }
+            long timestampMs = slot.timestampMs;
+            byte direction = slot.direction;
+            int length = slot.length;
+            int capturedLength = slot.capturedLength;
+            byte[] data = new byte[capturedLength];
+            System.arraycopy(slot.data, 0, data, 0, capturedLength);
+            if (slot.sequence != sequence) {
+                continue; // 复制期间被覆盖
+            }
+            frames.add(new Frame(timestampMs, direction, length, data));
+        }
+        return frames;
+    }
+
+    /**
+     * 导出为pcap文件，可以用Wireshark打开
+     */
+    void exportPcap(File file) throws IOException {
+        List<Frame> frames = snapshot();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            // 全局头部，按大端写出
+            out.writeInt(0xA1B2C3D4);
+            out.writeShort(2);
+            out.writeShort(4);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeInt(snapLength + 1);
+            out.writeInt(LINKTYPE_USER0);
+            for (Frame frame : frames) {
+                out.writeInt((int) (frame.timestampMs / 1000));
+                out.writeInt((int) (frame.timestampMs % 1000) * 1000);
+                out.writeInt(frame.data.length + 1);
+                out.writeInt(frame.length + 1);
+                out.writeByte(frame.direction);
+                out.write(frame.data);
+            }
+        }
+    }
+
+    /**
+     * 格式化为文本，每个报文一行，供调试界面显示
+     */
+    String dump() {
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+        StringBuilder sb = new StringBuilder();
+        for (Frame frame : snapshot()) {
+            sb.append(format.format(new Date(frame.timestampMs)))
+                    .append(frame.direction == INBOUND ? " <- " : " -> ")
+                    .append(frame.length).append("B ");
+            for (byte b : frame.data) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16)).append(' ');
+            }
+            if (frame.data.length < frame.length) {
+                sb.append("...");
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,483 @@
+package com.example.smarthomelighting.utils;
+
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+/**
+ * MQTT 3.1.1/5.0报文编码器
+ * 所有报文直接写入一个可复用的ByteBuffer，先计算精确长度再按规范写入变长剩余长度，
+ * 字符串字段按UTF-8字节长度编码，编码过程中不产生临时数组
+ * 5.0报文只写出客户端用到的属性，确认报文使用省略原因码的2字节形式
+ * 非线程安全，每个写线程持有自己的实例
+ */
+final class MqttPacketEncoder {
+
+    // 报文类型
+    static final int CONNECT = 1;
+    static final int PUBLISH = 3;
+    static final int PUBACK = 4;
+    static final int PUBREC = 5;
+    static final int PUBREL = 6;
+    static final int PUBCOMP = 7;
+    static final int SUBSCRIBE = 8;
+    static final int UNSUBSCRIBE = 10;
+    static final int PINGREQ = 12;
+    static final int DISCONNECT = 14;
+
+    private static final int MAX_STRING_LENGTH = 65535;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private ByteBuffer buffer;
+    private int packetCount = 0;
+
+    MqttPacketEncoder() {
+        this(INITIAL_CAPACITY);
+    }
+
+    MqttPacketEncoder(int initialCapacity) {
+        buffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    /**
+     * 清空已编码内容，保留底层数组供下次复用
+     */
+    void clear() {
+        buffer.clear();
+        packetCount = 0;
+    }
+
+    /**
+     * 底层数组，有效数据为[0, size())
+     */
+    byte[] array() {
+        return buffer.array();
+    }
+
+    int size() {
+        return buffer.position();
+    }
+
+    /**
+     * 自上次clear()以来编码的报文数量
+     */
+    int packetCount() {
+        return packetCount;
+    }
+
+    boolean isEmpty() {
+        return buffer.position() == 0;
+    }
+
+    /**
+     * CONNECT报文（3.1.1）
+     */
+    void writeConnect(String clientId, MqttConnectOptions options, boolean cleanSession, int keepAliveSeconds) {
+        writeConnect(clientId, options, cleanSession, keepAliveSeconds, null);
+    }
+
+    /**
+     * CONNECT报文，v5Options不为null时使用5.0协议并写出连接属性
+     */
+    void writeConnect(String clientId, MqttConnectOptions options, boolean cleanSession, int keepAliveSeconds,
+                      MqttV5Options v5Options) {
+        String username = options.getUserName();
+        char[] password = options.getPassword();
+        boolean hasUsername = username != null && !username.isEmpty();
+        boolean hasPassword = password != null && password.length > 0;
+        String willTopic = options.getWillDestination();
+        MqttMessage willMessage = options.getWillMessage();
+        boolean hasWill = willTopic != null && willMessage != null;
+
+        // 可变头部：协议名(6) + 协议级别(1) + 连接标志(1) + 保活时间(2)
+        int remainingLength = 10 + stringFieldLength(clientId);
+        int propertiesLength = 0;
+        if (v5Options != null) {
+            propertiesLength = connectPropertiesLength(v5Options);
+            remainingLength += remainingLengthSize(propertiesLength) + propertiesLength;
+        }
+        if (hasWill) {
+            remainingLength += stringFieldLength(willTopic)
+                    + binaryFieldLength(willMessage.getPayload().length, "遗嘱载荷");
+            if (v5Options != null) {
+                // 遗嘱属性为空，只有1字节长度
+                remainingLength += 1;
+            }
+        }
+        if (hasUsername) {
+            remainingLength += stringFieldLength(username);
+        }
+        if (hasPassword) {
+            remainingLength += binaryFieldLength(utf8Length(password), "密码");
+        }
+
+        int connectFlags = 0;
+        if (cleanSession) {
+            connectFlags |= 0x02;
+        }
+        if (hasWill) {
+            connectFlags |= 0x04 | (willMessage.getQos() << 3);
+            if (willMessage.isRetained()) {
+                connectFlags |= 0x20;
+            }
+        }
+        if (hasPassword) {
+            connectFlags |= 0x40;
+        }
+        if (hasUsername) {
+            connectFlags |= 0x80;
+        }
+
+        writeFixedHeader(CONNECT << 4, remainingLength);
+        writeString("MQTT");
+        buffer.put((byte) (v5Options != null ? 0x05 : 0x04)); // 协议级别 MQTT 5.0 / 3.1.1
+        buffer.put((byte) connectFlags);
+        buffer.putShort((short) keepAliveSeconds);
+        if (v5Options != null) {
+            writeConnectProperties(v5Options, propertiesLength);
+        }
+        writeString(clientId);
+        if (hasWill) {
+            if (v5Options != null) {
+                writeVariableInt(0);
+            }
+            writeString(willTopic);
+            byte[] willPayload = willMessage.getPayload();
+            buffer.putShort((short) willPayload.length);
+            buffer.put(willPayload);
+        }
+        if (hasUsername) {
+            writeString(username);
+        }
+        if (hasPassword) {
+            buffer.putShort((short) utf8Length(password));
+            writeUtf8(password);
+        }
+        packetCount++;
+    }
+
+    private static int connectPropertiesLength(MqttV5Options options) {
+        int length = 0;
+        if (options.getSessionExpiryInterval() > 0) {
+            length += 5;
+        }
+        if (options.getReceiveMaximum() < MqttV5Options.DEFAULT_RECEIVE_MAXIMUM) {
+            length += 3;
+        }
+        if (options.getMaximumPacketSize() > 0) {
+            length += 5;
+        }
+        if (options.getTopicAliasMaximum() > 0) {
+            length += 3;
+        }
+        return length;
+    }
+
+    private void writeConnectProperties(MqttV5Options options, int propertiesLength) {
+        writeVariableInt(propertiesLength);
+        if (options.getSessionExpiryInterval() > 0) {
+            buffer.put((byte) MqttV5Properties.SESSION_EXPIRY_INTERVAL);
+            buffer.putInt((int) options.getSessionExpiryInterval());
+        }
+        if (options.getReceiveMaximum() < MqttV5Options.DEFAULT_RECEIVE_MAXIMUM) {
+            buffer.put((byte) MqttV5Properties.RECEIVE_MAXIMUM);
+            buffer.putShort((short) options.getReceiveMaximum());
+        }
+        if (options.getMaximumPacketSize() > 0) {
+            buffer.put((byte) MqttV5Properties.MAXIMUM_PACKET_SIZE);
+            buffer.putInt((int) options.getMaximumPacketSize());
+        }
+        if (options.getTopicAliasMaximum() > 0) {
+            buffer.put((byte) MqttV5Properties.TOPIC_ALIAS_MAXIMUM);
+            buffer.putShort((short) options.getTopicAliasMaximum());
+        }
+    }
+
+    /**
+     * PUBLISH报文，QoS 0时忽略packetId
+     */
+    void writePublish(String topic, byte[] payload, int qos, boolean retained, boolean dup, int packetId) {
+        if (qos < 0 || qos > 2) {
+            throw new IllegalArgumentException("无效的QoS: " + qos);
+        }
+
+        int remainingLength = stringFieldLength(topic) + payload.length;
+        if (qos > 0) {
+            remainingLength += 2;
+        }
+
+        int header = (PUBLISH << 4) | (qos << 1);
+        if (retained) {
+            header |= 0x01;
+        }
+        if (dup && qos > 0) {
+            header |= 0x08;
+        }
+
+        writeFixedHeader(header, remainingLength);
+        writeString(topic);
+        if (qos > 0) {
+            buffer.putShort((short) packetId);
+        }
+        buffer.put(payload);
+        packetCount++;
+    }
+
+    /**
+     * 5.0 PUBLISH报文，topicAlias为0时不使用别名；使用已建立的别名时topic为空字符串
+     */
+    void writePublishV5(String topic, int topicAlias, byte[] payload, int qos, boolean retained, boolean dup,
+                        int packetId) {
+        if (qos < 0 || qos > 2) {
+            throw new IllegalArgumentException("无效的QoS: " + qos);
+        }
+
+        int propertiesLength = topicAlias > 0 ? 3 : 0;
+        int remainingLength = stringFieldLength(topic) + 1 + propertiesLength + payload.length;
+        if (qos > 0) {
+            remainingLength += 2;
+        }
+
+        int header = (PUBLISH << 4) | (qos << 1);
+        if (retained) {
+            header |= 0x01;
+        }
+        if (dup && qos > 0) {
+            header |= 0x08;
+        }
+
+        writeFixedHeader(header, remainingLength);
+        writeString(topic);
+        if (qos > 0) {
+            buffer.putShort((short) packetId);
+        }
+        buffer.put((byte) propertiesLength);
+        if (topicAlias > 0) {
+            buffer.put((byte) MqttV5Properties.TOPIC_ALIAS);
+            buffer.putShort((short) topicAlias);
+        }
+        buffer.put(payload);
+        packetCount++;
+    }
+
+    void writePubAck(int packetId) {
+        writeAck(PUBACK << 4, packetId);
+    }
+
+    void writePubRec(int packetId) {
+        writeAck(PUBREC << 4, packetId);
+    }
+
+    void writePubRel(int packetId) {
+        // PUBREL固定头部保留位必须为0010
+        writeAck((PUBREL << 4) | 0x02, packetId);
+    }
+
+    void writePubComp(int packetId) {
+        writeAck(PUBCOMP << 4, packetId);
+    }
+
+    /**
+     * SUBSCRIBE报文，一个报文可以携带多个主题过滤器
+     */
+    void writeSubscribe(int packetId, String[] topics, int[] qos) {
+        writeSubscribe(packetId, topics, qos, false);
+    }
+
+    /**
+     * @param mqtt5 5.0报文在报文标识符后有属性，这里写出空属性；订阅选项只使用QoS位
+     */
+    void writeSubscribe(int packetId, String[] topics, int[] qos, boolean mqtt5) {
+        int remainingLength = mqtt5 ? 3 : 2;
+        for (String topic : topics) {
+            remainingLength += stringFieldLength(topic) + 1;
+        }
+
+        writeFixedHeader((SUBSCRIBE << 4) | 0x02, remainingLength);
+        buffer.putShort((short) packetId);
+        if (mqtt5) {
+            buffer.put((byte) 0);
+        }
+        for (int i = 0; i < topics.length; i++) {
+            writeString(topics[i]);
+            buffer.put((byte) qos[i]);
+        }
+        packetCount++;
+    }
+
+    /**
+     * UNSUBSCRIBE报文
+     */
+    void writeUnsubscribe(int packetId, String[] topics) {
+        writeUnsubscribe(packetId, topics, false);
+    }
+
+    void writeUnsubscribe(int packetId, String[] topics, boolean mqtt5) {
+        int remainingLength = mqtt5 ? 3 : 2;
+        for (String topic : topics) {
+            remainingLength += stringFieldLength(topic);
+        }
+
+        writeFixedHeader((UNSUBSCRIBE << 4) | 0x02, remainingLength);
+        buffer.putShort((short) packetId);
+        if (mqtt5) {
+            buffer.put((byte) 0);
+        }
+        for (String topic : topics) {
+            writeString(topic);
+        }
+        packetCount++;
+    }
+
+    void writePingReq() {
+        writeFixedHeader(PINGREQ << 4, 0);
+        packetCount++;
+    }
+
+    void writeDisconnect() {
+        writeFixedHeader(DISCONNECT << 4, 0);
+        packetCount++;
+    }
+
+    private void writeAck(int header, int packetId) {
+        writeFixedHeader(header, 2);
+        buffer.putShort((short) packetId);
+        packetCount++;
+    }
+
+    /**
+     * 写入固定头部和变长剩余长度，并确保缓冲区能容纳整个报文
+     */
+    private void writeFixedHeader(int header, int remainingLength) {
+        if (remainingLength > MqttFrameDecoder.MAX_REMAINING_LENGTH) {
+            throw new IllegalArgumentException("MQTT报文过大: " + remainingLength + " 字节");
+        }
+        ensureCapacity(1 + remainingLengthSize(remainingLength) + remainingLength);
+        buffer.put((byte) header);
+        writeVariableInt(remainingLength);
+    }
+
+    /**
+     * 变长整数：剩余长度和5.0属性长度使用同一种编码
+     */
+    private void writeVariableInt(int value) {
+        do {
+            int encodedByte = value & 0x7F;
+            value >>>= 7;
+            if (value > 0) {
+                encodedByte |= 0x80;
+            }
+            buffer.put((byte) encodedByte);
+        } while (value > 0);
+    }
+
+    /**
+     * 剩余长度变长编码所占字节数
+     */
+    static int remainingLengthSize(int remainingLength) {
+        if (remainingLength < 128) {
+            return 1;
+        } else if (remainingLength < 16_384) {
+            return 2;
+        } else if (remainingLength < 2_097_152) {
+            return 3;
+        }
+        return 4;
+    }
+
+    private void ensureCapacity(int required) {
+        if (buffer.remaining() >= required) {
+            return;
+        }
+        int newCapacity = buffer.capacity();
+        while (newCapacity - buffer.position() < required) {
+            newCapacity <<= 1;
+        }
+        ByteBuffer newBuffer = ByteBuffer.allocate(newCapacity);
+        buffer.flip();
+        newBuffer.put(buffer);
+        buffer = newBuffer;
+    }
+
+    /**
+     * 带2字节长度前缀的UTF-8字符串字段总长度
+     */
+    private static int stringFieldLength(String value) {
+        int length = utf8Length(value);
+        if (length > MAX_STRING_LENGTH) {
+            throw new IllegalArgumentException("字符串字段超过65535字节");
+        }
+        return 2 + length;
+    }
+
+    /**
+     * 带2字节长度前缀的二进制字段（密码、遗嘱载荷）总长度
+     */
+    private static int binaryFieldLength(int length, String name) {
+        if (length > MAX_STRING_LENGTH) {
+            throw new IllegalArgumentException(name + "超过65535字节");
+        }
+        return 2 + length;
+    }
+
+    private void writeString(String value) {
+        buffer.putShort((short) utf8Length(value));
+        writeUtf8(value);
+    }
+
+    /**
+     * 计算UTF-8编码后的字节数，不分配临时数组
+     */
+    static int utf8Length(CharSequence value) {
+        int length = 0;
+        int count = value.length();
+        for (int i = 0; i < count; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static int utf8Length(char[] value) {
+        return utf8Length(CharBuffer.wrap(value));
+    }
+
+    private void writeUtf8(CharSequence value) {
+        int count = value.length();
+        for (int i = 0; i < count; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else {
+                // 孤立代理项按规范不应出现，这里按普通3字节字符写出
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private void writeUtf8(char[] value) {
+        writeUtf8(CharBuffer.wrap(value));
+    }
+}
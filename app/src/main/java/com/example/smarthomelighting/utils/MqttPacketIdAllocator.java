@@ -0,0 +1,59 @@
+package com.example.smarthomelighting.utils;
+
+import java.util.BitSet;
+
+/**
+ * 报文标识符分配器
+ * 用位图记录正在使用的1~65535，游标向前推进，刚释放的标识符不会马上被复用
+ */
+final class MqttPacketIdAllocator {
+    static final int MAX_PACKET_ID = 65535;
+
+    private final BitSet inUse = new BitSet(MAX_PACKET_ID + 1);
+    private int cursor = 0;
+    private int count = 0;
+
+    /**
+     * 分配一个未使用的标识符，全部被占用时返回-1
+     */
+    synchronized int allocate() {
+        if (count >= MAX_PACKET_ID) {
+            return -1;
+        }
+        int id = inUse.nextClearBit(cursor + 1);
+        if (id > MAX_PACKET_ID) {
+            id = inUse.nextClearBit(1);
+        }
+        inUse.set(id);
+        cursor = id;
+        count++;
+        return id;
+    }
+
+    /**
+     * 占用指定的标识符（恢复持久化状态时使用），已被占用时返回false
+     */
+    synchronized boolean reserve(int id) {
+        if (id < 1 || id > MAX_PACKET_ID || inUse.get(id)) {
+            return false;
+        }
+        inUse.set(id);
+        count++;
+        return true;
+    }
+
+    synchronized void release(int id) {
+        if (id >= 1 && id <= MAX_PACKET_ID && inUse.get(id)) {
+            inUse.clear(id);
+            count--;
+        }
+    }
+
+    synchronized boolean isInUse(int id) {
+        return id >= 1 && id <= MAX_PACKET_ID && inUse.get(id);
+    }
+
+    synchronized int size() {
+        return count;
+    }
+}
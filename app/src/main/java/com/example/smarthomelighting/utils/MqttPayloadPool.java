@@ -0,0 +1,76 @@
+package com.example.smarthomelighting.utils;
+
+import java.util.ArrayDeque;
+
+/**
+ * 入站消息对象池，按载荷长度分级（64字节到64KB，每级容量翻倍）复用消息和载荷缓冲区
+ * 读线程取出、消费者在主线程归还，超过最大分级的载荷按实际长度分配，用完丢弃
+ */
+final class MqttPayloadPool {
+    private static final int MIN_CLASS_SHIFT = 6;
+    private static final int MAX_CLASS_SHIFT = 16;
+    // 每级最多缓存的空闲消息数
+    private static final int MAX_FREE_PER_CLASS = 32;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<MqttInboundMessage>[] free = new ArrayDeque[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+    private long allocations = 0;
+
+    MqttPayloadPool() {
+        for (int i = 0; i < free.length; i++) {
+            free[i] = new ArrayDeque<>(MAX_FREE_PER_CLASS);
+        }
+    }
+
+    /**
+     * 取出一个载荷缓冲区不小于length的消息
+     */
+    MqttInboundMessage acquire(int length) {
+        int sizeClass = sizeClass(length);
+        if (sizeClass < 0) {
+            synchronized (this) {
+                allocations++;
+            }
+            return new MqttInboundMessage(this, -1, new byte[length]);
+        }
+        MqttInboundMessage message;
+        synchronized (this) {
+            message = free[sizeClass].poll();
+            if (message == null) {
+                allocations++;
+            }
+        }
+        if (message == null) {
+            message = new MqttInboundMessage(this, sizeClass, new byte[1 << (sizeClass + MIN_CLASS_SHIFT)]);
+        }
+        message.reuse();
+        return message;
+    }
+
+    void release(MqttInboundMessage message) {
+        int sizeClass = message.sizeClass;
+        if (sizeClass < 0) {
+            return;
+        }
+        synchronized (this) {
+            if (free[sizeClass].size() < MAX_FREE_PER_CLASS) {
+                free[sizeClass].push(message);
+            }
+        }
+    }
+
+    /**
+     * 累计新分配的消息数，稳态下不再增长
+     */
+    synchronized long getAllocationCount() {
+        return allocations;
+    }
+
+    private static int sizeClass(int length) {
+        if (length > 1 << MAX_CLASS_SHIFT) {
+            return -1;
+        }
+        int shift = length <= 1 << MIN_CLASS_SHIFT ? MIN_CLASS_SHIFT : 32 - Integer.numberOfLeadingZeros(length - 1);
+        return shift - MIN_CLASS_SHIFT;
+    }
+}
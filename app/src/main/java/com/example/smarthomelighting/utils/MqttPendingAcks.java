@@ -0,0 +1,61 @@
+package com.example.smarthomelighting.utils;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 等待SUBACK/UNSUBACK的令牌
+ * 每个请求分配一个与PUBLISH共享的报文标识符，收到确认或连接断开后释放
+ */
+final class MqttPendingAcks {
+    private final MqttPacketIdAllocator packetIds;
+    private final Map<Integer, MqttActionToken> pending = new HashMap<>();
+
+    MqttPendingAcks(MqttPacketIdAllocator packetIds) {
+        this.packetIds = packetIds;
+    }
+
+    /**
+     * 为令牌分配报文标识符并登记，标识符用尽时抛出NO_MESSAGE_IDS_AVAILABLE
+     */
+    synchronized int register(MqttActionToken token) throws MqttException {
+        int packetId = packetIds.allocate();
+        if (packetId < 0) {
+            throw new MqttException(MqttException.REASON_CODE_NO_MESSAGE_IDS_AVAILABLE);
+        }
+        token.setMessageId(packetId);
+        pending.put(packetId, token);
+        return packetId;
+    }
+
+    /**
+     * 收到确认，取出令牌并释放标识符；未知的标识符返回null
+     */
+    synchronized MqttActionToken complete(int packetId) {
+        MqttActionToken token = pending.remove(packetId);
+        if (token != null) {
+            packetIds.release(packetId);
+        }
+        return token;
+    }
+
+    /**
+     * 连接断开，取出所有等待中的令牌，确认不会再到达
+     */
+    synchronized List<MqttActionToken> removeAll() {
+        List<MqttActionToken> tokens = new ArrayList<>(pending.values());
+        for (int packetId : pending.keySet()) {
+            packetIds.release(packetId);
+        }
+        pending.clear();
+        return tokens;
+    }
+
+    synchronized int size() {
+        return pending.size();
+    }
+}
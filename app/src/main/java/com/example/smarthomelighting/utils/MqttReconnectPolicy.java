@@ -0,0 +1,23 @@
+package com.example.smarthomelighting.utils;
+
+/**
+ * 自动重连策略：连接失败或丢失后等待多久再重连，以及何时放弃
+ * 只在主线程上由连接状态机调用；没有可用网络时状态机不会询问策略，而是等待网络恢复
+ * 默认实现为MqttJitterReconnectPolicy，可通过MqttClientManager.setReconnectPolicy()替换
+ */
+public interface MqttReconnectPolicy {
+    /** nextDelayMs()返回此值表示停止自动重连 */
+    long STOP = -1;
+
+    /**
+     * 一次连接失败或连接丢失
+     *
+     * @return 下一次重连前的等待时间(ms)，或STOP
+     */
+    long nextDelayMs(MqttFailureCause cause);
+
+    /**
+     * 连接建立、用户主动连接或切换到新的可用网络，之前的失败不再计入
+     */
+    void reset();
+}
@@ -0,0 +1,318 @@
+package com.example.smarthomelighting.utils;
+
+import android.util.Log;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * 在途会话状态的持久化，键名沿用paho的约定：
+ * s-&lt;id&gt; 已发出未确认的PUBLISH，sc-&lt;id&gt; 已发出未完成的PUBREL，r-&lt;id&gt; 已收到等待PUBREL的QoS 2消息，
+ * sb-&lt;序号&gt; 离线缓存中尚未发出的消息
+ * 头部保存报文的固定头部和可变头部，载荷单独保存；未配置持久化时所有操作都是空操作
+ */
+final class MqttSessionStore {
+    private static final String TAG = "MqttSessionStore";
+
+    private static final String KEY_SENT = "s-";
+    private static final String KEY_SENT_CONFIRM = "sc-";
+    private static final String KEY_RECEIVED = "r-";
+    private static final String KEY_BUFFERED = "sb-";
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * 恢复时逐条回调的持久化记录
+     */
+    interface Restorer {
+        void onOutboundPublish(int packetId, String topic, byte[] payload, int qos, boolean retained);
+
+        void onOutboundPubRel(int packetId);
+
+        void onInboundQos2(int packetId);
+
+        /**
+         * 离线缓存的消息，按序号从小到大回调
+         */
+        void onBufferedPublish(long sequence, String topic, byte[] payload, int qos, boolean retained);
+    }
+
+    // 打开失败或关闭后置为null，退回只在内存中保存会话
+    private volatile MqttClientPersistence persistence;
+
+    MqttSessionStore(MqttClientPersistence persistence) {
+        this.persistence = persistence;
+    }
+
+    boolean isEnabled() {
+        return persistence != null;
+    }
+
+    void open(String clientId, String serverURI) {
+        if (persistence == null) {
+            return;
+        }
+        try {
+            persistence.open(clientId, serverURI);
+        } catch (MqttPersistenceException e) {
+            Log.e(TAG, "打开持久化存储失败，会话只保存在内存中", e);
+            persistence = null;
+        }
+    }
+
+    /**
+     * 把缓冲的写入刷到磁盘并释放文件和文件锁，之后的读写都是空操作
+     * 同一文件被新的客户端打开前必须先关闭，否则新客户端拿不到文件锁
+     */
+    void close() {
+        MqttClientPersistence closing = persistence;
+        if (closing == null) {
+            return;
+        }
+        persistence = null;
+        try {
+            closing.close();
+        } catch (MqttPersistenceException e) {
+            Log.e(TAG, "关闭持久化存储失败", e);
+        }
+    }
+
+    void saveOutboundPublish(int packetId, String topic, byte[] payload, int qos, boolean retained) {
+        if (persistence == null) {
+            return;
+        }
+        put(KEY_SENT + packetId, publishHeader(topic, qos, retained, packetId), payload);
+    }
+
+    /**
+     * 离线缓存的消息尚未分配报文标识符，头部中的标识符为0
+     */
+    void saveBuffered(long sequence, String topic, byte[] payload, int qos, boolean retained) {
+        if (persistence == null) {
+            return;
+        }
+        put(KEY_BUFFERED + sequence, publishHeader(topic, qos, retained, 0), payload);
+    }
+
+    void removeBuffered(long sequence) {
+        if (persistence == null) {
+            return;
+        }
+        remove(KEY_BUFFERED + sequence);
+    }
+
+    /**
+     * 收到PUBREC后，PUBLISH记录替换为PUBREL记录
+     */
+    void saveOutboundPubRel(int packetId) {
+        if (persistence == null) {
+            return;
+        }
+        put(KEY_SENT_CONFIRM + packetId, ackHeader(MqttPacketEncoder.PUBREL, 0x02, packetId), null);
+        remove(KEY_SENT + packetId);
+    }
+
+    void removeOutbound(int packetId) {
+        if (persistence == null) {
+            return;
+        }
+        remove(KEY_SENT + packetId);
+        remove(KEY_SENT_CONFIRM + packetId);
+    }
+
+    void saveInboundQos2(int packetId) {
+        if (persistence == null) {
+            return;
+        }
+        put(KEY_RECEIVED + packetId, ackHeader(MqttPacketEncoder.PUBREC, 0, packetId), null);
+    }
+
+    void removeInboundQos2(int packetId) {
+        if (persistence == null) {
+            return;
+        }
+        remove(KEY_RECEIVED + packetId);
+    }
+
+    /**
+     * 读取所有持久化记录，无法解析的记录被删除
+     */
+    void restore(Restorer restorer) {
+        if (persistence == null) {
+            return;
+        }
+        List<String> keys = new ArrayList<>();
+        try {
+            Enumeration<?> enumeration = persistence.keys();
+            while (enumeration.hasMoreElements()) {
+                keys.add(String.valueOf(enumeration.nextElement()));
+            }
+        } catch (MqttPersistenceException e) {
+            Log.e(TAG, "读取持久化记录失败", e);
+            return;
+        }
+
+        List<Long> bufferedSequences = new ArrayList<>();
+        for (String key : keys) {
+            try {
+                if (key.startsWith(KEY_SENT_CONFIRM)) {
+                    restorer.onOutboundPubRel(Integer.parseInt(key.substring(KEY_SENT_CONFIRM.length())));
+                } else if (key.startsWith(KEY_SENT)) {
+                    if (!restorePublish(key, -1, restorer)) {
+                        Log.w(TAG, "丢弃无法解析的持久化记录: " + key);
+                        remove(key);
+                    }
+                } else if (key.startsWith(KEY_RECEIVED)) {
+                    restorer.onInboundQos2(Integer.parseInt(key.substring(KEY_RECEIVED.length())));
+                } else if (key.startsWith(KEY_BUFFERED)) {
+                    bufferedSequences.add(Long.parseLong(key.substring(KEY_BUFFERED.length())));
+                }
+            } catch (MqttPersistenceException | NumberFormatException e) {
+                Log.e(TAG, "恢复持久化记录失败: " + key, e);
+            }
+        }
+
+        // 离线缓存按写入顺序恢复
+        Collections.sort(bufferedSequences);
+        for (long sequence : bufferedSequences) {
+            String key = KEY_BUFFERED + sequence;
+            try {
+                if (!restorePublish(key, sequence, restorer)) {
+                    Log.w(TAG, "丢弃无法解析的持久化记录: " + key);
+                    remove(key);
+                }
+            } catch (MqttPersistenceException e) {
+                Log.e(TAG, "恢复持久化记录失败: " + key, e);
+            }
+        }
+    }
+
+    /**
+     * 解析一条PUBLISH记录，sequence为-1时是在途消息，否则是离线缓存消息
+     */
+    private boolean restorePublish(String key, long sequence, Restorer restorer) throws MqttPersistenceException {
+        MqttPersistable record = persistence.get(key);
+        if (record == null) {
+            return false;
+        }
+        byte[] header = record.getHeaderBytes();
+        int offset = record.getHeaderOffset();
+        int length = record.getHeaderLength();
+        if (length < 5) {
+            return false;
+        }
+        int flags = header[offset] & 0xFF;
+        int topicLength = ((header[offset + 1] & 0xFF) << 8) | (header[offset + 2] & 0xFF);
+        if (3 + topicLength + 2 != length) {
+            return false;
+        }
+        String topic = new String(header, offset + 3, topicLength, StandardCharsets.UTF_8);
+        int idOffset = offset + 3 + topicLength;
+        int packetId = ((header[idOffset] & 0xFF) << 8) | (header[idOffset + 1] & 0xFF);
+
+        byte[] payload = EMPTY;
+        byte[] payloadBytes = record.getPayloadBytes();
+        if (payloadBytes != null && record.getPayloadLength() > 0) {
+            payload = new byte[record.getPayloadLength()];
+            System.arraycopy(payloadBytes, record.getPayloadOffset(), payload, 0, payload.length);
+        }
+        int qos = (flags >> 1) & 0x03;
+        boolean retained = (flags & 0x01) != 0;
+        if (sequence >= 0) {
+            restorer.onBufferedPublish(sequence, topic, payload, qos, retained);
+        } else {
+            restorer.onOutboundPublish(packetId, topic, payload, qos, retained);
+        }
+        return true;
+    }
+
+    private static byte[] publishHeader(String topic, int qos, boolean retained, int packetId) {
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        byte[] header = new byte[1 + 2 + topicBytes.length + 2];
+        header[0] = (byte) ((MqttPacketEncoder.PUBLISH << 4) | (qos << 1) | (retained ? 0x01 : 0));
+        header[1] = (byte) (topicBytes.length >> 8);
+        header[2] = (byte) topicBytes.length;
+        System.arraycopy(topicBytes, 0, header, 3, topicBytes.length);
+        header[header.length - 2] = (byte) (packetId >> 8);
+        header[header.length - 1] = (byte) packetId;
+        return header;
+    }
+
+    private static byte[] ackHeader(int type, int flags, int packetId) {
+        return new byte[] { (byte) ((type << 4) | flags), 2, (byte) (packetId >> 8), (byte) packetId };
+    }
+
+    private void put(String key, byte[] header, byte[] payload) {
+        // 可能在其他线程上被关闭
+        MqttClientPersistence current = persistence;
+        if (current == null) {
+            return;
+        }
+        try {
+            current.put(key, new Record(header, payload));
+        } catch (MqttPersistenceException e) {
+            Log.e(TAG, "写入持久化记录失败: " + key, e);
+        }
+    }
+
+    private void remove(String key) {
+        MqttClientPersistence current = persistence;
+        if (current == null) {
+            return;
+        }
+        try {
+            current.remove(key);
+        } catch (MqttPersistenceException e) {
+            Log.e(TAG, "删除持久化记录失败: " + key, e);
+        }
+    }
+
+    /**
+     * 头部和载荷各自为完整数组的持久化记录
+     */
+    static final class Record implements MqttPersistable {
+        private final byte[] header;
+        private final byte[] payload;
+
+        Record(byte[] header, byte[] payload) {
+            this.header = header;
+            this.payload = payload;
+        }
+
+        @Override
+        public byte[] getHeaderBytes() {
+            return header;
+        }
+
+        @Override
+        public int getHeaderLength() {
+            return header.length;
+        }
+
+        @Override
+        public int getHeaderOffset() {
+            return 0;
+        }
+
+        @Override
+        public byte[] getPayloadBytes() {
+            return payload;
+        }
+
+        @Override
+        public int getPayloadLength() {
+            return payload == null ? 0 : payload.length;
+        }
+
+        @Override
+        public int getPayloadOffset() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.smarthomelighting.utils;
+
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleEventObserver;
+import androidx.lifecycle.LifecycleOwner;
+
+/**
+ * 绑定到LifecycleOwner的订阅，由MqttClientManager.subscribe(LifecycleOwner, ...)创建
+ * 进入STARTED时持有订阅，STOPPED时释放，DESTROYED时自动解除绑定
+ * 同一主题的多个持有者共享一个订阅：第一个持有时发送SUBSCRIBE，最后一个释放时发送UNSUBSCRIBE
+ * 只能在主线程上使用
+ */
+public final class MqttSubscriptionHandle implements LifecycleEventObserver {
+    private final MqttClientManager manager;
+    private final LifecycleOwner owner;
+    private final String[] topics;
+    private final int[] qos;
+    private boolean held = false;
+    private boolean released = false;
+
+    MqttSubscriptionHandle(MqttClientManager manager, LifecycleOwner owner, String[] topics, int[] qos) {
+        this.manager = manager;
+        this.owner = owner;
+        this.topics = topics;
+        this.qos = qos;
+    }
+
+    @Override
+    public void onStateChanged(LifecycleOwner source, Lifecycle.Event event) {
+        switch (event) {
+            case ON_START:
+                acquire();
+                break;
+            case ON_STOP:
+                drop();
+                break;
+            case ON_DESTROY:
+                release();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * 提前释放订阅并解除与生命周期的绑定，重复调用无效
+     */
+    public void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        drop();
+        owner.getLifecycle().removeObserver(this);
+    }
+
+    public String[] getTopics() {
+        return topics.clone();
+    }
+
+    public boolean isHeld() {
+        return held;
+    }
+
+    private void acquire() {
+        if (!held && !released) {
+            held = true;
+            manager.acquireSubscriptions(topics, qos);
+        }
+    }
+
+    private void drop() {
+        if (held) {
+            held = false;
+            manager.releaseSubscriptions(topics);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.smarthomelighting.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 客户端订阅登记表，记录应用请求的所有订阅以及服务器在当前会话中已确认的订阅
+ * 服务器保留了会话（session present为1）时已确认的订阅不需要重发；没有保留会话时全部重新订阅
+ * 断线期间发起的订阅先登记，连接建立后随重放一起发出，令牌在重放的SUBACK到达后完成
+ * 取消的订阅在收到UNSUBACK之前保留记录，服务器保留了会话时重连后补发UNSUBSCRIBE
+ */
+final class MqttSubscriptionRegistry {
+    // 主题过滤器 -> 请求的QoS，按首次订阅的顺序
+    private final Map<String, Integer> requested = new LinkedHashMap<>();
+    // 主题过滤器 -> 服务器在当前会话中授予的QoS
+    private final Map<String, Integer> granted = new HashMap<>();
+    // 断线期间发起、等待重放结果的订阅令牌
+    private final List<MqttActionToken> waiting = new ArrayList<>();
+    // 已取消、服务器可能仍保留的主题过滤器
+    private final Set<String> unsubscribing = new LinkedHashSet<>();
+
+    /**
+     * 登记订阅，QoS变化时需要重新发送
+     */
+    synchronized void add(String[] filters, int[] qos) {
+        for (int i = 0; i < filters.length; i++) {
+            unsubscribing.remove(filters[i]);
+            Integer previous = requested.put(filters[i], qos[i]);
+            if (previous != null && previous != qos[i]) {
+                granted.remove(filters[i]);
+            }
+        }
+    }
+
+    /**
+     * 取消订阅，在收到UNSUBACK或服务器丢弃会话之前记为待取消
+     */
+    synchronized void remove(String[] filters) {
+        for (String filter : filters) {
+            requested.remove(filter);
+            granted.remove(filter);
+            unsubscribing.add(filter);
+        }
+    }
+
+    /**
+     * 收到UNSUBACK，期间重新订阅的过滤器不受影响
+     */
+    synchronized void onUnsubAck(String[] filters) {
+        for (String filter : filters) {
+            unsubscribing.remove(filter);
+        }
+    }
+
+    /**
+     * 服务器保留了会话时仍需取消的主题过滤器，在onSessionStart之后调用
+     */
+    synchronized String[] pendingUnsubscribes() {
+        return unsubscribing.toArray(new String[0]);
+    }
+
+    /**
+     * 服务器在当前会话中授予的QoS，未确认时返回-1
+     */
+    synchronized int grantedQos(String filter) {
+        Integer qos = granted.get(filter);
+        return qos != null ? qos : -1;
+    }
+
+    /**
+     * 按SUBACK的返回码更新：0x80及以上表示被拒绝，从登记表中移除，重连后不再重放
+     */
+    synchronized void onSubAck(String[] filters, int[] returnCodes) {
+        for (int i = 0; i < filters.length; i++) {
+            if (returnCodes[i] >= 0x80) {
+                requested.remove(filters[i]);
+                granted.remove(filters[i]);
+            } else if (requested.containsKey(filters[i])) {
+                granted.put(filters[i], returnCodes[i]);
+            }
+        }
+    }
+
+    /**
+     * 连接建立，服务器没有保留会话时所有订阅都需要重发
+     * 返回需要发送的主题过滤器和QoS，按登记顺序
+     */
+    synchronized Map<String, Integer> onSessionStart(boolean sessionPresent) {
+        if (!sessionPresent) {
+            granted.clear();
+            unsubscribing.clear();
+        }
+        Map<String, Integer> pending = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> entry : requested.entrySet()) {
+            if (!granted.containsKey(entry.getKey())) {
+                pending.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return pending;
+    }
+
+    synchronized void addWaiting(MqttActionToken token) {
+        waiting.add(token);
+    }
+
+    /**
+     * 取出所有等待重放结果的令牌
+     */
+    synchronized List<MqttActionToken> takeWaiting() {
+        List<MqttActionToken> tokens = new ArrayList<>(waiting);
+        waiting.clear();
+        return tokens;
+    }
+
+    synchronized int size() {
+        return requested.size();
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.smarthomelighting.utils;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * 两种传输共用的TLS连接逻辑
+ * SSLContext由进程内共享的SocketFactory提供（见NonValidatingSSLSocketFactory.getShared），
+ * 握手时带上主机和端口，重连同一服务器时可以通过会话ID或会话票据恢复会话，省去一次往返和非对称运算
+ */
+final class MqttTlsConnector {
+    private static final String TAG = "MqttTlsConnector";
+
+    // 阻塞握手的总时长看门狗，超时关闭Socket使握手立即失败
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread t = new Thread(runnable, "MQTT-TLS-Watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private MqttTlsConnector() {
+    }
+
+    /**
+     * 在已建立的TCP连接上完成TLS握手，只能在事件循环线程上调用
+     * 握手总时长不超过timeoutMs；soTimeout只限制单次读取，不足以限制整个握手
+     */
+    static SSLSocket handshake(SSLSocketFactory factory, Socket plainSocket, String host, int port, int timeoutMs,
+                               MqttConnectTimings timings) throws IOException {
+        SSLSocket sslSocket = (SSLSocket) factory.createSocket(plainSocket, host, port, true);
+        enableSessionTickets(sslSocket);
+        sslSocket.setSoTimeout(timeoutMs);
+        AtomicBoolean timedOut = new AtomicBoolean();
+        ScheduledFuture<?> watchdog = WATCHDOG.schedule(() -> {
+            timedOut.set(true);
+            try {
+                sslSocket.close();
+            } catch (IOException ignored) {
+                // 关闭失败时握手仍会在soTimeout后失败
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+        long startMillis = System.currentTimeMillis();
+        try {
+            sslSocket.startHandshake();
+        } catch (IOException e) {
+            if (timedOut.get()) {
+                throw new SocketTimeoutException("TLS握手超时: " + timeoutMs + "ms");
+            }
+            throw e;
+        } finally {
+            watchdog.cancel(false);
+        }
+        onHandshakeFinished(sslSocket.getSession(), startMillis, timings);
+        return sslSocket;
+    }
+
+    /**
+     * 创建客户端模式的SSLEngine，带上主机和端口才能复用会话并发送SNI
+     * socketFactory不是NonValidatingSSLSocketFactory时使用系统默认的SSLContext
+     */
+    static SSLEngine createEngine(SocketFactory socketFactory, String host, int port) throws IOException {
+        SSLContext sslContext;
+        if (socketFactory instanceof NonValidatingSSLSocketFactory) {
+            sslContext = ((NonValidatingSSLSocketFactory) socketFactory).getSSLContext();
+        } else {
+            try {
+                sslContext = SSLContext.getDefault();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("无法创建SSLContext", e);
+            }
+        }
+        SSLEngine engine = sslContext.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        enableSessionTickets(engine);
+        return engine;
+    }
+
+    /**
+     * 握手完成，记录会话是否为恢复的会话
+     * 恢复的会话创建于本次握手之前
+     */
+    static void onHandshakeFinished(SSLSession session, long handshakeStartMillis, MqttConnectTimings timings) {
+        boolean resumed = session != null && session.getCreationTime() < handshakeStartMillis;
+        timings.setTlsResumed(resumed);
+        Log.d(TAG, (resumed ? "TLS会话已恢复" : "完整TLS握手") + "，协议: "
+                + (session != null ? session.getProtocol() : "未知"));
+    }
+
+    /**
+     * Android的Conscrypt实现默认不发送会话票据扩展，通过反射开启；其他实现没有该方法时忽略
+     */
+    private static void enableSessionTickets(Object socketOrEngine) {
+        try {
+            Method method = socketOrEngine.getClass().getMethod("setUseSessionTickets", boolean.class);
+            method.invoke(socketOrEngine, true);
+        } catch (ReflectiveOperationException | RuntimeException ignored) {
+            // 不支持会话票据时仍可通过会话ID恢复
+        }
+    }
+}
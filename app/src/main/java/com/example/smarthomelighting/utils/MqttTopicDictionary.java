@@ -0,0 +1,95 @@
+package com.example.smarthomelighting.utils;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 主题字典，把入站PUBLISH中的主题字节映射为同一个String实例
+ * 用开放寻址哈希表按字节比较，命中时不分配对象；表满后新主题照常解码但不再收录
+ * 订阅的主题数量有限，稳态下所有入站主题都会命中
+ */
+final class MqttTopicDictionary {
+    static final int DEFAULT_MAX_ENTRIES = 256;
+
+    private final int maxEntries;
+    private final int mask;
+    private final byte[][] keys;
+    private final String[] values;
+    private final int[] hashes;
+    private int size = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    MqttTopicDictionary(int maxEntries) {
+        this.maxEntries = maxEntries;
+        // 装载因子不超过0.5，探测链保持很短
+        int capacity = Integer.highestOneBit(Math.max(maxEntries, 1) * 2 - 1) << 1;
+        this.mask = capacity - 1;
+        this.keys = new byte[capacity][];
+        this.values = new String[capacity];
+        this.hashes = new int[capacity];
+    }
+
+    /**
+     * 返回buffer中主题字节对应的String，相同的字节总是返回同一个实例（字典已满时除外）
+     */
+    synchronized String lookup(byte[] buffer, int offset, int length) {
+        if (length == 0) {
+            return "";
+        }
+        int hash = hash(buffer, offset, length);
+        int index = hash & mask;
+        byte[] key;
+        while ((key = keys[index]) != null) {
+            if (hashes[index] == hash && matches(key, buffer, offset, length)) {
+                hits++;
+                return values[index];
+            }
+            index = (index + 1) & mask;
+        }
+
+        misses++;
+        String topic = new String(buffer, offset, length, StandardCharsets.UTF_8);
+        if (size < maxEntries) {
+            key = new byte[length];
+            System.arraycopy(buffer, offset, key, 0, length);
+            keys[index] = key;
+            values[index] = topic;
+            hashes[index] = hash;
+            size++;
+        }
+        return topic;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized long getHitCount() {
+        return hits;
+    }
+
+    synchronized long getMissCount() {
+        return misses;
+    }
+
+    private static int hash(byte[] buffer, int offset, int length) {
+        int hash = 1;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            hash = 31 * hash + buffer[i];
+        }
+        // 扰动低位，避免相同前缀的主题聚集
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean matches(byte[] key, byte[] buffer, int offset, int length) {
+        if (key.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (key[i] != buffer[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.smarthomelighting.utils;
+
+import java.io.IOException;
+
+import javax.net.SocketFactory;
+
+/**
+ * MQTT传输层，负责建立TCP/TLS连接和收发原始字节
+ * 每个实例只对应一次连接，重连时创建新实例
+ */
+interface MqttTransport {
+
+    /**
+     * 传输层事件回调
+     * onConnected和onClosed在事件循环线程上回调，onData的回调线程取决于具体实现
+     */
+    interface Listener {
+        /**
+         * TCP连接（以及TLS握手）已完成，可以开始写数据
+         */
+        void onConnected();
+
+        /**
+         * 收到数据，buffer仅在回调期间有效
+         */
+        void onData(byte[] buffer, int offset, int length) throws IOException;
+
+        /**
+         * 连接被对端关闭或出错，主动调用close()时不会回调
+         */
+        void onClosed(IOException cause);
+    }
+
+    /**
+     * 同时连接多个地址时，相邻两次尝试之间的间隔（RFC 8305的Connection Attempt Delay）
+     */
+    long CONNECT_ATTEMPT_DELAY_MS = 250;
+
+    /**
+     * 异步建立连接，结果通过listener通知
+     * 域名经MqttDnsResolver解析，服务器有多个地址时按顺序错开发起连接，第一个建立的TCP连接胜出
+     * @param socketFactory 为null时使用普通TCP，否则按SSL连接
+     * @param timeouts 使用其中域名解析、TCP连接和TLS握手的超时
+     * @param timings 依次记录DNS、TCP、TLS阶段完成，记录线程取决于具体实现（Socket实现在连接线程上记录）
+     */
+    void open(String host, int port, SocketFactory socketFactory, MqttConnectTimeouts timeouts,
+              MqttConnectTimings timings, Listener listener);
+
+    /**
+     * 写出数据，只能在事件循环线程上调用
+     */
+    void write(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * 关闭连接，可以在任意线程调用
+     */
+    void close();
+
+    boolean isOpen();
+}
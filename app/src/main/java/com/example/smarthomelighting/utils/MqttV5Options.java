@@ -0,0 +1,95 @@
+package com.example.smarthomelighting.utils;
+
+/**
+ * MQTT 5.0连接选项，通过MqttAndroidClientAdapter.setMqttV5Options启用
+ * 服务器不支持5.0（CONNACK返回不支持的协议版本）时默认降级为3.1.1重新连接
+ */
+public class MqttV5Options {
+    // 协议允许的最大值，等于不限制，CONNECT中省略
+    static final int DEFAULT_RECEIVE_MAXIMUM = 65535;
+
+    private long sessionExpiryInterval = 0;
+    private int receiveMaximum = DEFAULT_RECEIVE_MAXIMUM;
+    private long maximumPacketSize = 0;
+    private int topicAliasMaximum = 16;
+    private boolean outboundTopicAliases = true;
+    private boolean fallbackToV311 = true;
+
+    /**
+     * 会话过期时间（秒），0表示连接断开时结束会话，0xFFFFFFFF表示永不过期
+     */
+    public long getSessionExpiryInterval() {
+        return sessionExpiryInterval;
+    }
+
+    public void setSessionExpiryInterval(long sessionExpiryInterval) {
+        if (sessionExpiryInterval < 0 || sessionExpiryInterval > 0xFFFFFFFFL) {
+            throw new IllegalArgumentException("无效的会话过期时间: " + sessionExpiryInterval);
+        }
+        this.sessionExpiryInterval = sessionExpiryInterval;
+    }
+
+    /**
+     * 允许服务器同时发来的未确认QoS 1/2消息数
+     */
+    public int getReceiveMaximum() {
+        return receiveMaximum;
+    }
+
+    public void setReceiveMaximum(int receiveMaximum) {
+        if (receiveMaximum < 1 || receiveMaximum > DEFAULT_RECEIVE_MAXIMUM) {
+            throw new IllegalArgumentException("无效的Receive Maximum: " + receiveMaximum);
+        }
+        this.receiveMaximum = receiveMaximum;
+    }
+
+    /**
+     * 客户端愿意接收的最大报文长度（字节），0表示不限制
+     */
+    public long getMaximumPacketSize() {
+        return maximumPacketSize;
+    }
+
+    public void setMaximumPacketSize(long maximumPacketSize) {
+        if (maximumPacketSize < 0 || maximumPacketSize > 0xFFFFFFFFL) {
+            throw new IllegalArgumentException("无效的最大报文长度: " + maximumPacketSize);
+        }
+        this.maximumPacketSize = maximumPacketSize;
+    }
+
+    /**
+     * 允许服务器使用的入站主题别名数，0表示不接受主题别名
+     */
+    public int getTopicAliasMaximum() {
+        return topicAliasMaximum;
+    }
+
+    public void setTopicAliasMaximum(int topicAliasMaximum) {
+        if (topicAliasMaximum < 0 || topicAliasMaximum > 65535) {
+            throw new IllegalArgumentException("无效的Topic Alias Maximum: " + topicAliasMaximum);
+        }
+        this.topicAliasMaximum = topicAliasMaximum;
+    }
+
+    /**
+     * 服务器允许时，出站PUBLISH是否使用主题别名
+     */
+    public boolean isOutboundTopicAliases() {
+        return outboundTopicAliases;
+    }
+
+    public void setOutboundTopicAliases(boolean outboundTopicAliases) {
+        this.outboundTopicAliases = outboundTopicAliases;
+    }
+
+    /**
+     * 服务器不支持5.0时是否降级为3.1.1
+     */
+    public boolean isFallbackToV311() {
+        return fallbackToV311;
+    }
+
+    public void setFallbackToV311(boolean fallbackToV311) {
+        this.fallbackToV311 = fallbackToV311;
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.smarthomelighting.utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * MQTT 5.0属性的解析结果
+ * 只保留客户端用到的属性，其余属性按类型跳过；入站PUBLISH复用同一个实例，解析时不分配对象
+ */
+final class MqttV5Properties {
+    // 属性标识符
+    static final int SESSION_EXPIRY_INTERVAL = 0x11;
+    static final int ASSIGNED_CLIENT_IDENTIFIER = 0x12;
+    static final int SERVER_KEEP_ALIVE = 0x13;
+    static final int REASON_STRING = 0x1F;
+    static final int RECEIVE_MAXIMUM = 0x21;
+    static final int TOPIC_ALIAS_MAXIMUM = 0x22;
+    static final int TOPIC_ALIAS = 0x23;
+    static final int MAXIMUM_PACKET_SIZE = 0x27;
+
+    // 未出现的属性为-1或null
+    long sessionExpiryInterval;
+    String assignedClientIdentifier;
+    int serverKeepAlive;
+    String reasonString;
+    int receiveMaximum;
+    int topicAliasMaximum;
+    int topicAlias;
+    long maximumPacketSize;
+
+    MqttV5Properties() {
+        reset();
+    }
+
+    void reset() {
+        sessionExpiryInterval = -1;
+        assignedClientIdentifier = null;
+        serverKeepAlive = -1;
+        reasonString = null;
+        receiveMaximum = -1;
+        topicAliasMaximum = -1;
+        topicAlias = -1;
+        maximumPacketSize = -1;
+    }
+
+    /**
+     * 从offset处读取属性长度和属性，返回属性之后的位置
+     */
+    int read(byte[] buffer, int offset, int end) throws IOException {
+        reset();
+        int length = 0;
+        int shift = 0;
+        int position = offset;
+        int b;
+        do {
+            if (position >= end || shift > 21) {
+                throw new IOException("属性长度无效");
+            }
+            b = buffer[position++] & 0xFF;
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        int propertiesEnd = position + length;
+        if (propertiesEnd > end) {
+            throw new IOException("属性超出报文长度: " + length);
+        }
+        while (position < propertiesEnd) {
+            int id = buffer[position++] & 0xFF;
+            switch (id) {
+                // 1字节
+                case 0x01: case 0x17: case 0x19: case 0x24: case 0x25: case 0x28: case 0x29: case 0x2A:
+                    position += 1;
+                    break;
+                // 2字节整数
+                case SERVER_KEEP_ALIVE:
+                case RECEIVE_MAXIMUM:
+                case TOPIC_ALIAS_MAXIMUM:
+                case TOPIC_ALIAS:
+                    check(position + 2, propertiesEnd);
+                    int value = ((buffer[position] & 0xFF) << 8) | (buffer[position + 1] & 0xFF);
+                    position += 2;
+                    if (id == SERVER_KEEP_ALIVE) {
+                        serverKeepAlive = value;
+                    } else if (id == RECEIVE_MAXIMUM) {
+                        receiveMaximum = value;
+                    } else if (id == TOPIC_ALIAS_MAXIMUM) {
+                        topicAliasMaximum = value;
+                    } else {
+                        topicAlias = value;
+                    }
+                    break;
+                // 4字节整数
+                case 0x02: case 0x18:
+                case SESSION_EXPIRY_INTERVAL:
+                case MAXIMUM_PACKET_SIZE:
+                    check(position + 4, propertiesEnd);
+                    long longValue = ((long) (buffer[position] & 0xFF) << 24) | ((buffer[position + 1] & 0xFF) << 16)
+                            | ((buffer[position + 2] & 0xFF) << 8) | (buffer[position + 3] & 0xFF);
+                    position += 4;
+                    if (id == SESSION_EXPIRY_INTERVAL) {
+                        sessionExpiryInterval = longValue;
+                    } else if (id == MAXIMUM_PACKET_SIZE) {
+                        maximumPacketSize = longValue;
+                    }
+                    break;
+                // 变长整数：订阅标识符
+                case 0x0B:
+                    do {
+                        check(position + 1, propertiesEnd);
+                    } while ((buffer[position++] & 0x80) != 0);
+                    break;
+                // UTF-8字符串
+                case ASSIGNED_CLIENT_IDENTIFIER:
+                case REASON_STRING:
+                    check(position + 2, propertiesEnd);
+                    int stringLength = ((buffer[position] & 0xFF) << 8) | (buffer[position + 1] & 0xFF);
+                    check(position + 2 + stringLength, propertiesEnd);
+                    String string = new String(buffer, position + 2, stringLength, StandardCharsets.UTF_8);
+                    position += 2 + stringLength;
+                    if (id == ASSIGNED_CLIENT_IDENTIFIER) {
+                        assignedClientIdentifier = string;
+                    } else {
+                        reasonString = string;
+                    }
+                    break;
+                // 只跳过的字符串和二进制数据
+                case 0x03: case 0x08: case 0x09: case 0x15: case 0x16: case 0x1A: case 0x1C:
+                    position = skipString(buffer, position, propertiesEnd);
+                    break;
+                // 用户属性：字符串对
+                case 0x26:
+                    position = skipString(buffer, skipString(buffer, position, propertiesEnd), propertiesEnd);
+                    break;
+                default:
+                    throw new IOException("未知的属性标识符: 0x" + Integer.toHexString(id));
+            }
+            check(position, propertiesEnd);
+        }
+        return propertiesEnd;
+    }
+
+    private static int skipString(byte[] buffer, int position, int end) throws IOException {
+        check(position + 2, end);
+        int length = ((buffer[position] & 0xFF) << 8) | (buffer[position + 1] & 0xFF);
+        check(position + 2 + length, end);
+        return position + 2 + length;
+    }
+
+    private static void check(int position, int end) throws IOException {
+        if (position > end) {
+            throw new IOException("属性长度不足");
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.smarthomelighting.utils;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 一个MQTT 5.0连接上协商出的状态：服务器限制和双向主题别名
+ * 每次连接新建，连接断开后丢弃，别名不会跨连接使用
+ * 出站别名只在出站队列的锁内（编码报文时）访问，保证别名的分配顺序与写出顺序一致；
+ * 入站别名和入站属性只在读取该连接的线程上访问
+ */
+final class MqttV5Session {
+    // 报文超过服务器允许的最大长度，与5.0原因码Packet too large一致
+    static final int REASON_CODE_PACKET_TOO_LARGE = 0x95;
+
+    final MqttV5Options options;
+
+    // CONNACK中服务器声明的限制
+    private volatile int serverReceiveMaximum = MqttV5Options.DEFAULT_RECEIVE_MAXIMUM;
+    private volatile long serverMaximumPacketSize = 0;
+    private volatile int serverKeepAlive = -1;
+    private int serverTopicAliasMaximum = 0;
+
+    // 出站：主题 -> 别名
+    private final Map<String, Integer> outboundAliases = new HashMap<>();
+    // 入站：别名 -> 主题
+    private final String[] inboundAliases;
+    // 入站PUBLISH的属性，逐条复用
+    final MqttV5Properties inboundProperties = new MqttV5Properties();
+
+    // 使用别名省去的主题字节数
+    private volatile long aliasSavedBytes = 0;
+
+    MqttV5Session(MqttV5Options options) {
+        this.options = options;
+        this.inboundAliases = new String[options.getTopicAliasMaximum() + 1];
+    }
+
+    /**
+     * 应用CONNACK中的属性，在事件循环线程上调用，早于本连接的任何PUBLISH
+     */
+    void applyConnack(MqttV5Properties properties) {
+        if (properties.receiveMaximum > 0) {
+            serverReceiveMaximum = properties.receiveMaximum;
+        }
+        if (properties.maximumPacketSize > 0) {
+            serverMaximumPacketSize = properties.maximumPacketSize;
+        }
+        if (properties.topicAliasMaximum > 0 && options.isOutboundTopicAliases()) {
+            serverTopicAliasMaximum = properties.topicAliasMaximum;
+        }
+        serverKeepAlive = properties.serverKeepAlive;
+    }
+
+    int getServerReceiveMaximum() {
+        return serverReceiveMaximum;
+    }
+
+    /**
+     * 服务器指定的保活时间（秒），未指定时返回-1
+     */
+    int getServerKeepAlive() {
+        return serverKeepAlive;
+    }
+
+    /**
+     * 按不使用别名的最坏情况估算PUBLISH报文长度，判断是否超过服务器允许的最大长度
+     */
+    boolean exceedsMaximumPacketSize(String topic, byte[] payload, int qos) {
+        long limit = serverMaximumPacketSize;
+        if (limit <= 0) {
+            return false;
+        }
+        int remainingLength = 2 + MqttPacketEncoder.utf8Length(topic) + (qos > 0 ? 2 : 0) + 1 + 3 + payload.length;
+        return 1 + MqttPacketEncoder.remainingLengthSize(remainingLength) + remainingLength > limit;
+    }
+
+    /**
+     * 编码一个PUBLISH，服务器允许时使用主题别名：首次发送携带主题和别名，之后只发送别名
+     * 只能在出站队列的锁内调用
+     */
+    void writePublish(MqttPacketEncoder encoder, String topic, byte[] payload, int qos, boolean retained,
+                      boolean dup, int packetId) {
+        Integer alias = outboundAliases.get(topic);
+        if (alias != null) {
+            encoder.writePublishV5("", alias, payload, qos, retained, dup, packetId);
+            aliasSavedBytes += MqttPacketEncoder.utf8Length(topic);
+            return;
+        }
+        if (outboundAliases.size() < serverTopicAliasMaximum) {
+            int newAlias = outboundAliases.size() + 1;
+            outboundAliases.put(topic, newAlias);
+            encoder.writePublishV5(topic, newAlias, payload, qos, retained, dup, packetId);
+            return;
+        }
+        encoder.writePublishV5(topic, 0, payload, qos, retained, dup, packetId);
+    }
+
+    /**
+     * 解析入站PUBLISH的主题：带别名且主题非空时记录映射，主题为空时按别名查找
+     */
+    String resolveInboundTopic(String topic, int alias) throws IOException {
+        if (alias < 0) {
+            if (topic.isEmpty()) {
+                throw new IOException("PUBLISH主题为空且没有主题别名");
+            }
+            return topic;
+        }
+        if (alias == 0 || alias >= inboundAliases.length) {
+            throw new IOException("主题别名超出范围: " + alias);
+        }
+        if (!topic.isEmpty()) {
+            inboundAliases[alias] = topic;
+            return topic;
+        }
+        String mapped = inboundAliases[alias];
+        if (mapped == null) {
+            throw new IOException("未知的主题别名: " + alias);
+        }
+        return mapped;
+    }
+
+    long getAliasSavedBytes() {
+        return aliasSavedBytes;
+    }
+}
@@ -0,0 +1,197 @@
+package com.example.smarthomelighting.utils;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 基于Selector的单线程事件循环
+ * 同一个线程负责所有注册通道的读写、定时器和普通任务，多个Broker连接共享一个实例
+ */
+final class NioEventLoop implements MqttEventLoop, Runnable {
+    private static final String TAG = "NioEventLoop";
+
+    /**
+     * 注册到Selector上的通道处理器，只在事件循环线程上回调
+     */
+    interface ChannelHandler {
+        void onSelected(SelectionKey key);
+    }
+
+    private static NioEventLoop shared;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // 定时器只在事件循环线程上访问
+    private final PriorityQueue<ScheduledTask> timers = new PriorityQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+    private long timerSequence = 0;
+
+    /**
+     * 进程内共享的事件循环，首次使用时启动
+     */
+    static synchronized NioEventLoop shared() throws IOException {
+        if (shared == null) {
+            shared = new NioEventLoop("MQTT-NIO-EventLoop");
+        }
+        return shared;
+    }
+
+    private NioEventLoop(String threadName) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop() && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public Timer schedule(Runnable task, long delayMs) {
+        ScheduledTask scheduledTask = new ScheduledTask(task, System.nanoTime() + delayMs * 1_000_000L);
+        execute(() -> {
+            if (!scheduledTask.cancelled) {
+                scheduledTask.sequence = timerSequence++;
+                timers.add(scheduledTask);
+            }
+        });
+        return scheduledTask;
+    }
+
+    @Override
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * 注册通道，只能在事件循环线程上调用
+     */
+    SelectionKey register(SelectableChannel channel, int interestOps, ChannelHandler handler) throws ClosedChannelException {
+        return channel.register(selector, interestOps, handler);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                long timeoutMs = nextTimerDelayMs();
+                if (!tasks.isEmpty() || timeoutMs == 0) {
+                    selector.selectNow();
+                } else {
+                    // timeoutMs为-1表示没有定时器，一直等到有事件或被唤醒
+                    selector.select(timeoutMs < 0 ? 0 : timeoutMs);
+                }
+                wakeupPending.set(false);
+
+                processSelectedKeys();
+                runTasks();
+                runExpiredTimers();
+            } catch (Throwable t) {
+                Log.e(TAG, "事件循环出错", t);
+            }
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+            try {
+                ((ChannelHandler) key.attachment()).onSelected(key);
+            } catch (Throwable t) {
+                Log.e(TAG, "处理通道事件出错", t);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                Log.e(TAG, "事件循环任务执行出错", t);
+            }
+        }
+    }
+
+    private void runExpiredTimers() {
+        long now = System.nanoTime();
+        ScheduledTask timer;
+        while ((timer = timers.peek()) != null && timer.deadlineNanos - now <= 0) {
+            timers.poll();
+            if (timer.cancelled) {
+                continue;
+            }
+            try {
+                timer.task.run();
+            } catch (Throwable t) {
+                Log.e(TAG, "定时任务执行出错", t);
+            }
+        }
+    }
+
+    /**
+     * 距离最近一个定时器到期的毫秒数，没有定时器时返回-1
+     */
+    private long nextTimerDelayMs() {
+        ScheduledTask timer;
+        while ((timer = timers.peek()) != null && timer.cancelled) {
+            timers.poll();
+        }
+        if (timer == null) {
+            return -1;
+        }
+        long delayNanos = timer.deadlineNanos - System.nanoTime();
+        if (delayNanos <= 0) {
+            return 0;
+        }
+        // 向上取整，避免提前醒来空转
+        return Math.max(1, (delayNanos + 999_999) / 1_000_000);
+    }
+
+    private static final class ScheduledTask implements Timer, Comparable<ScheduledTask> {
+        final Runnable task;
+        final long deadlineNanos;
+        long sequence;
+        volatile boolean cancelled = false;
+
+        ScheduledTask(Runnable task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            long diff = deadlineNanos - other.deadlineNanos;
+            if (diff != 0) {
+                return diff < 0 ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,570 @@
+package com.example.smarthomelighting.utils;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * 基于SocketChannel + Selector的非阻塞传输实现，TLS通过SSLEngine完成
+ * 连接、握手、读写全部在共享的NioEventLoop线程上进行，不为单个连接创建线程
+ * 服务器有多个地址时各地址的连接作为独立的通道错开发起，第一个建立的通道成为本连接的通道
+ */
+final class NioMqttTransport implements MqttTransport, NioEventLoop.ChannelHandler {
+    private static final String TAG = "NioMqttTransport";
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final NioEventLoop eventLoop;
+    private Listener listener;
+    private MqttConnectTimings timings;
+    private SocketChannel channel;
+    private SelectionKey selectionKey;
+    private SSLEngine sslEngine;
+    private MqttEventLoop.Timer connectTimer;
+    private String host;
+    private int port;
+    private int tcpTimeoutMs;
+    private int tlsTimeoutMs;
+    private long handshakeStartMillis;
+
+    // netIn: 从网络读到的原始字节（写模式）；appIn: 解密后的应用数据（写模式）
+    private ByteBuffer netIn;
+    private ByteBuffer appIn;
+    // netOut: 待写到网络的字节（写模式），TLS时为加密后的记录
+    private ByteBuffer netOut;
+
+    // 解析出的地址和竞速中的TCP连接尝试，channel在第一个连接建立后才赋值
+    private InetAddress[] addresses;
+    private int nextAddress = 0;
+    private final List<ConnectAttempt> attempts = new ArrayList<>();
+    private MqttEventLoop.Timer attemptTimer;
+    private IOException lastAttemptError;
+
+    private boolean handshaking = false;
+    private volatile boolean connected = false;
+    private volatile boolean closed = false;
+
+    NioMqttTransport(NioEventLoop eventLoop) {
+        this.eventLoop = eventLoop;
+    }
+
+    @Override
+    public void open(String host, int port, SocketFactory socketFactory, MqttConnectTimeouts timeouts,
+                     MqttConnectTimings timings, Listener listener) {
+        this.listener = listener;
+        this.timings = timings;
+        this.host = host;
+        this.port = port;
+        this.tcpTimeoutMs = timeouts.getTcpTimeoutMs();
+        this.tlsTimeoutMs = timeouts.getTlsTimeoutMs();
+        eventLoop.execute(() -> {
+            try {
+                if (socketFactory != null) {
+                    sslEngine = MqttTlsConnector.createEngine(socketFactory, host, port);
+                    int packetSize = sslEngine.getSession().getPacketBufferSize();
+                    netIn = ByteBuffer.allocate(Math.max(packetSize, READ_BUFFER_SIZE));
+                    netOut = ByteBuffer.allocate(packetSize);
+                    appIn = ByteBuffer.allocate(Math.max(sslEngine.getSession().getApplicationBufferSize(), READ_BUFFER_SIZE));
+                } else {
+                    netIn = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                    netOut = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                }
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+
+            // 域名解析不能阻塞共享的事件循环线程：有缓存时立即回调，否则在解析线程上完成后切回事件循环
+            connectTimer = eventLoop.schedule(() -> {
+                if (addresses == null) {
+                    fail(new SocketTimeoutException("域名解析超时: " + host + "，" + timeouts.getDnsTimeoutMs() + "ms"));
+                }
+            }, timeouts.getDnsTimeoutMs());
+            MqttDnsResolver.shared().resolve(host, (resolved, error) -> {
+                if (eventLoop.inEventLoop()) {
+                    onResolved(resolved, error);
+                } else {
+                    eventLoop.execute(() -> onResolved(resolved, error));
+                }
+            });
+        });
+    }
+
+    private void onResolved(InetAddress[] resolved, IOException error) {
+        if (closed || addresses != null) {
+            return;
+        }
+        if (error != null) {
+            fail(error);
+            return;
+        }
+        addresses = resolved;
+        timings.mark(MqttConnectTimings.Phase.DNS);
+
+        // TCP连接计时覆盖所有地址的竞速
+        connectTimer.cancel();
+        connectTimer = eventLoop.schedule(() -> {
+            if (channel == null) {
+                fail(new SocketTimeoutException("连接超时: " + host + ":" + port));
+            }
+        }, tcpTimeoutMs);
+        startNextAttempt();
+    }
+
+    /**
+     * 发起到下一个地址的连接，间隔到期仍未决出时再发起下一个
+     */
+    private void startNextAttempt() {
+        if (closed || channel != null || nextAddress >= addresses.length) {
+            return;
+        }
+        if (attemptTimer != null) {
+            attemptTimer.cancel();
+            attemptTimer = null;
+        }
+        ConnectAttempt attempt = new ConnectAttempt(new InetSocketAddress(addresses[nextAddress++], port));
+        attempts.add(attempt);
+        boolean connectedNow;
+        try {
+            connectedNow = attempt.start();
+        } catch (IOException e) {
+            onAttemptFailed(attempt, e);
+            return;
+        }
+        if (connectedNow) {
+            try {
+                onAttemptConnected(attempt);
+            } catch (IOException e) {
+                fail(e);
+            }
+            return;
+        }
+        if (channel == null && nextAddress < addresses.length) {
+            attemptTimer = eventLoop.schedule(this::startNextAttempt, CONNECT_ATTEMPT_DELAY_MS);
+        }
+    }
+
+    private void onAttemptFailed(ConnectAttempt attempt, IOException cause) {
+        attempt.close();
+        attempts.remove(attempt);
+        if (closed || channel != null) {
+            return;
+        }
+        lastAttemptError = cause;
+        if (nextAddress < addresses.length) {
+            // 一个地址失败时立即尝试下一个，不等间隔
+            Log.d(TAG, "连接失败，尝试下一个地址: " + cause.getMessage());
+            startNextAttempt();
+        } else if (attempts.isEmpty()) {
+            fail(lastAttemptError);
+        }
+    }
+
+    /**
+     * 第一个建立的TCP连接胜出，关闭其余尝试，之后的选择事件直接交给传输本身
+     */
+    private void onAttemptConnected(ConnectAttempt winner) throws IOException {
+        if (attemptTimer != null) {
+            attemptTimer.cancel();
+            attemptTimer = null;
+        }
+        for (ConnectAttempt attempt : attempts) {
+            if (attempt != winner) {
+                attempt.close();
+            }
+        }
+        attempts.clear();
+        channel = winner.channel;
+        selectionKey = winner.key != null ? winner.key : eventLoop.register(channel, SelectionKey.OP_READ, this);
+        selectionKey.attach(this);
+        selectionKey.interestOps(SelectionKey.OP_READ);
+        MqttDnsResolver.shared().onConnected(host, winner.target.getAddress());
+        onTcpConnected();
+    }
+
+    /**
+     * 到一个地址的TCP连接尝试
+     */
+    private final class ConnectAttempt implements NioEventLoop.ChannelHandler {
+        final InetSocketAddress target;
+        SocketChannel channel;
+        SelectionKey key;
+
+        ConnectAttempt(InetSocketAddress target) {
+            this.target = target;
+        }
+
+        /**
+         * 发起连接，返回是否已立即建立
+         */
+        boolean start() throws IOException {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            if (channel.connect(target)) {
+                return true;
+            }
+            key = eventLoop.register(channel, SelectionKey.OP_CONNECT, this);
+            return false;
+        }
+
+        @Override
+        public void onSelected(SelectionKey selectedKey) {
+            try {
+                if (selectedKey.isConnectable() && channel.finishConnect()) {
+                    onAttemptConnected(this);
+                }
+            } catch (IOException e) {
+                if (NioMqttTransport.this.channel == channel) {
+                    fail(e);
+                } else {
+                    onAttemptFailed(this, e);
+                }
+            }
+        }
+
+        void close() {
+            if (key != null) {
+                key.cancel();
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "关闭SocketChannel时出错", e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onSelected(SelectionKey key) {
+        try {
+            if (key.isWritable()) {
+                if (handshaking) {
+                    doHandshake();
+                } else {
+                    flushNetOut();
+                }
+            }
+            if (key.isValid() && key.isReadable()) {
+                if (handshaking) {
+                    doHandshake();
+                } else {
+                    readAvailable();
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void onTcpConnected() throws IOException {
+        timings.mark(MqttConnectTimings.Phase.TCP);
+        if (sslEngine != null) {
+            // TLS握手单独计时
+            if (connectTimer != null) {
+                connectTimer.cancel();
+            }
+            connectTimer = eventLoop.schedule(() -> {
+                if (!connected) {
+                    fail(new IOException("TLS握手超时: " + tlsTimeoutMs + "ms"));
+                }
+            }, tlsTimeoutMs);
+            handshakeStartMillis = System.currentTimeMillis();
+            handshaking = true;
+            sslEngine.beginHandshake();
+            doHandshake();
+        } else {
+            onTransportReady();
+        }
+    }
+
+    private void onTransportReady() {
+        if (connectTimer != null) {
+            connectTimer.cancel();
+        }
+        connected = true;
+        listener.onConnected();
+    }
+
+    /**
+     * 推进TLS握手，数据不足时返回等待下一次读写事件
+     */
+    private void doHandshake() throws IOException {
+        while (handshaking) {
+            SSLEngineResult.HandshakeStatus status = sslEngine.getHandshakeStatus();
+            switch (status) {
+                case NEED_WRAP:
+                    wrap(EMPTY);
+                    if (!flushNetOut()) {
+                        return;
+                    }
+                    break;
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    break;
+                case FINISHED:
+                case NOT_HANDSHAKING:
+                    handshaking = false;
+                    MqttTlsConnector.onHandshakeFinished(sslEngine.getSession(), handshakeStartMillis, timings);
+                    timings.mark(MqttConnectTimings.Phase.TLS);
+                    onTransportReady();
+                    // 握手期间可能已经收到了应用数据
+                    deliverAppData();
+                    if (netIn.position() > 0) {
+                        readAvailable();
+                    }
+                    return;
+                default:
+                    // NEED_UNWRAP
+                    if (!unwrap() && !readFromChannel()) {
+                        return;
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * 读取所有可读数据并交给上层
+     */
+    private void readAvailable() throws IOException {
+        while (true) {
+            if (sslEngine == null) {
+                int read = channel.read(netIn);
+                if (read < 0) {
+                    throw new IOException("服务器关闭了连接");
+                }
+                if (netIn.position() > 0) {
+                    listener.onData(netIn.array(), 0, netIn.position());
+                    netIn.clear();
+                }
+                if (read == 0) {
+                    return;
+                }
+            } else {
+                // 先解密已有数据，不足一个TLS记录时再从网络读取
+                boolean progressed = unwrap();
+                deliverAppData();
+                if (sslEngine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                }
+                if (sslEngine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    // TLS 1.3握手后消息或重新协商
+                    wrap(EMPTY);
+                    flushNetOut();
+                }
+                if (!progressed && !readFromChannel()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 从通道读到netIn，返回是否读到了新数据
+     */
+    private boolean readFromChannel() throws IOException {
+        if (!netIn.hasRemaining()) {
+            netIn = grow(netIn, netIn.capacity() * 2);
+        }
+        int read = channel.read(netIn);
+        if (read < 0) {
+            throw new IOException("服务器关闭了连接");
+        }
+        return read > 0;
+    }
+
+    /**
+     * 尝试从netIn中解密一个TLS记录，返回是否消费了数据
+     */
+    private boolean unwrap() throws IOException {
+        if (netIn.position() == 0) {
+            return false;
+        }
+        netIn.flip();
+        SSLEngineResult result;
+        try {
+            result = sslEngine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+        }
+        switch (result.getStatus()) {
+            case OK:
+                return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+            case BUFFER_OVERFLOW:
+                deliverAppData();
+                if (appIn.position() > 0 || appIn.capacity() < sslEngine.getSession().getApplicationBufferSize()) {
+                    appIn = grow(appIn, Math.max(appIn.capacity() * 2, sslEngine.getSession().getApplicationBufferSize()));
+                }
+                return true;
+            case BUFFER_UNDERFLOW:
+                int packetSize = sslEngine.getSession().getPacketBufferSize();
+                if (netIn.capacity() < packetSize) {
+                    netIn = grow(netIn, packetSize);
+                }
+                return false;
+            case CLOSED:
+            default:
+                throw new IOException("TLS连接已关闭");
+        }
+    }
+
+    private void deliverAppData() throws IOException {
+        if (appIn != null && appIn.position() > 0 && !handshaking) {
+            int length = appIn.position();
+            appIn.clear();
+            listener.onData(appIn.array(), 0, length);
+        }
+    }
+
+    /**
+     * 把src加密进netOut，必要时扩容
+     */
+    private void wrap(ByteBuffer src) throws SSLException {
+        do {
+            SSLEngineResult result = sslEngine.wrap(src, netOut);
+            switch (result.getStatus()) {
+                case OK:
+                    break;
+                case BUFFER_OVERFLOW:
+                    netOut = grow(netOut, netOut.capacity() + sslEngine.getSession().getPacketBufferSize());
+                    break;
+                default:
+                    throw new SSLException("TLS加密失败: " + result.getStatus());
+            }
+            if (result.getStatus() == SSLEngineResult.Status.OK && !src.hasRemaining()) {
+                return;
+            }
+        } while (true);
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = sslEngine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        if (closed || !connected) {
+            throw new IOException("MQTT连接不可用");
+        }
+        ByteBuffer src = ByteBuffer.wrap(data, offset, length);
+        if (sslEngine != null) {
+            wrap(src);
+        } else if (netOut.position() == 0) {
+            // 没有积压时直接写，写不完的部分再进入缓冲区
+            channel.write(src);
+            if (src.hasRemaining()) {
+                appendToNetOut(src);
+            }
+        } else {
+            appendToNetOut(src);
+        }
+        flushNetOut();
+    }
+
+    private void appendToNetOut(ByteBuffer src) {
+        if (netOut.remaining() < src.remaining()) {
+            netOut = grow(netOut, netOut.position() + src.remaining());
+        }
+        netOut.put(src);
+    }
+
+    /**
+     * 尽量写出netOut中的数据，返回是否全部写完；未写完时关注OP_WRITE
+     */
+    private boolean flushNetOut() throws IOException {
+        if (netOut.position() > 0) {
+            netOut.flip();
+            channel.write(netOut);
+            netOut.compact();
+        }
+        boolean drained = netOut.position() == 0;
+        if (selectionKey != null && selectionKey.isValid()) {
+            int ops = selectionKey.interestOps();
+            int newOps = drained ? (ops & ~SelectionKey.OP_WRITE) : (ops | SelectionKey.OP_WRITE);
+            if (newOps != ops) {
+                selectionKey.interestOps(newOps);
+            }
+        }
+        return drained;
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int minCapacity) {
+        ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(minCapacity, buffer.capacity()));
+        buffer.flip();
+        newBuffer.put(buffer);
+        return newBuffer;
+    }
+
+    private void fail(IOException cause) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        closeChannel();
+        Log.d(TAG, "NIO连接关闭: " + cause.getMessage());
+        listener.onClosed(cause);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (eventLoop.inEventLoop()) {
+            closeChannel();
+        } else {
+            eventLoop.execute(this::closeChannel);
+        }
+    }
+
+    private void closeChannel() {
+        connected = false;
+        if (connectTimer != null) {
+            connectTimer.cancel();
+        }
+        if (attemptTimer != null) {
+            attemptTimer.cancel();
+        }
+        for (ConnectAttempt attempt : attempts) {
+            attempt.close();
+        }
+        attempts.clear();
+        if (selectionKey != null) {
+            selectionKey.cancel();
+        }
+        if (sslEngine != null) {
+            sslEngine.closeOutbound();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.e(TAG, "关闭SocketChannel时出错", e);
+            }
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return connected && !closed;
+    }
+}
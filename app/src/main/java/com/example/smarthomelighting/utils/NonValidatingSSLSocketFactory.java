@@ -8,24 +8,49 @@ import java.security.NoSuchAlgorithmException;
 import java.security.cert.X509Certificate;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
 public class NonValidatingSSLSocketFactory extends SSLSocketFactory {
+    // 客户端TLS会话缓存：条目数和有效期（秒），有效期内重连可以恢复会话
+    private static final int SESSION_CACHE_SIZE = 16;
+    private static final int SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+
     private SSLSocketFactory factory;
+    private SSLContext sslContext;
+
+    /**
+     * 进程内共享的实例；TLS会话缓存在SSLContext中，每次连接都新建实例会使会话无法恢复
+     */
+    public static NonValidatingSSLSocketFactory getShared() {
+        return SharedHolder.INSTANCE;
+    }
 
     public NonValidatingSSLSocketFactory() {
         try {
-            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext = SSLContext.getInstance("TLS");
             sslContext.init(null, new TrustManager[]{new NonValidatingTrustManager()}, new java.security.SecureRandom());
+            SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+            if (sessionContext != null) {
+                sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+                sessionContext.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+            }
             factory = sslContext.getSocketFactory();
         } catch (NoSuchAlgorithmException | KeyManagementException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * 获取底层SSLContext，供基于SSLEngine的非阻塞传输使用
+     */
+    public SSLContext getSSLContext() {
+        return sslContext;
+    }
+
     @Override
     public String[] getDefaultCipherSuites() {
         return factory.getDefaultCipherSuites();
@@ -61,6 +86,10 @@ public class NonValidatingSSLSocketFactory extends SSLSocketFactory {
         return factory.createSocket(address, port, localAddress, localPort);
     }
 
+    private static class SharedHolder {
+        static final NonValidatingSSLSocketFactory INSTANCE = new NonValidatingSSLSocketFactory();
+    }
+
     private static class NonValidatingTrustManager implements X509TrustManager {
         @Override
         public void checkClientTrusted(X509Certificate[] chain, String authType) {
@@ -0,0 +1,64 @@
+package com.example.smarthomelighting.utils;
+
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于单线程ScheduledExecutorService的事件循环，配合阻塞Socket传输使用
+ * 和NioEventLoop一样进程内共享一个线程，重新创建客户端（例如保存设置后）不会留下新的线程
+ */
+final class ScheduledExecutorEventLoop implements MqttEventLoop {
+    private static final String TAG = "ScheduledExecutorEventLoop";
+
+    private static ScheduledExecutorEventLoop shared;
+
+    private final ScheduledExecutorService executorService;
+    private volatile Thread thread;
+
+    /**
+     * 进程内共享的事件循环，首次使用时创建
+     */
+    static synchronized ScheduledExecutorEventLoop shared() {
+        if (shared == null) {
+            shared = new ScheduledExecutorEventLoop("MQTT-Executor");
+        }
+        return shared;
+    }
+
+    private ScheduledExecutorEventLoop(String threadName) {
+        executorService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread t = new Thread(runnable, threadName);
+            t.setDaemon(true);
+            thread = t;
+            return t;
+        });
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        executorService.execute(() -> runSafely(task));
+    }
+
+    @Override
+    public Timer schedule(Runnable task, long delayMs) {
+        ScheduledFuture<?> future = executorService.schedule(() -> runSafely(task), delayMs, TimeUnit.MILLISECONDS);
+        return () -> future.cancel(false);
+    }
+
+    @Override
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    private static void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch (Throwable t) {
+            Log.e(TAG, "事件循环任务执行出错", t);
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.example.smarthomelighting.utils;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * 基于阻塞java.net.Socket的传输实现
+ * 连接在连接线程上同步建立（先TCP再TLS握手，便于分阶段计时），不占用共享的事件循环线程，
+ * 建立后回到事件循环线程通知；读取使用独立的读线程
+ * 服务器有多个地址时，各地址的TCP连接在连接线程池中错开发起，连接线程等待第一个建立的连接
+ */
+final class SocketMqttTransport implements MqttTransport {
+    private static final String TAG = "SocketMqttTransport";
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    // 执行阻塞的域名解析、connect()和TLS握手的线程
+    private static final ExecutorService CONNECT_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread t = new Thread(runnable, "MQTT-Connect");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final MqttEventLoop eventLoop;
+    private volatile Socket socket;
+    private BufferedOutputStream outputStream;
+    private BufferedInputStream inputStream;
+    private volatile Thread readThread;
+    private volatile boolean closed = false;
+    // 竞速中尚未决出的TCP连接，close()时一并关闭
+    private final List<Socket> racingSockets = new ArrayList<>();
+
+    SocketMqttTransport(MqttEventLoop eventLoop) {
+        this.eventLoop = eventLoop;
+    }
+
+    @Override
+    public void open(String host, int port, SocketFactory socketFactory, MqttConnectTimeouts timeouts,
+                     MqttConnectTimings timings, Listener listener) {
+        CONNECT_EXECUTOR.execute(() -> {
+            try {
+                // 单独解析域名，便于统计DNS耗时；有缓存时不等待DNS
+                InetAddress[] addresses = MqttDnsResolver.shared().resolve(host, timeouts.getDnsTimeoutMs());
+                timings.mark(MqttConnectTimings.Phase.DNS);
+
+                // 先建立普通TCP连接，连接过程中close()会关闭正在竞速的Socket，使connect()立即失败
+                Socket plainSocket = connectFirst(addresses, port, timeouts.getTcpTimeoutMs());
+                if (plainSocket == null) {
+                    return;
+                }
+                socket = plainSocket;
+                if (closed) {
+                    // close()在竞速结束后、socket赋值前执行，没有关闭到胜出的连接
+                    closeQuietly();
+                    return;
+                }
+                MqttDnsResolver.shared().onConnected(host, plainSocket.getInetAddress());
+                timings.mark(MqttConnectTimings.Phase.TCP);
+
+                Socket newSocket = plainSocket;
+
+                // 如果使用SSL，则在已建立的TCP连接上完成TLS握手，握手过程中close()关闭底层Socket即可中断
+                if (socketFactory instanceof SSLSocketFactory) {
+                    Log.d(TAG, "使用SSL连接");
+
+                    SSLSocket sslSocket = MqttTlsConnector.handshake((SSLSocketFactory) socketFactory,
+                            plainSocket, host, port, timeouts.getTlsTimeoutMs(), timings);
+                    socket = sslSocket;
+                    timings.mark(MqttConnectTimings.Phase.TLS);
+                    newSocket = sslSocket;
+                    Log.d(TAG, "SSL握手完成");
+                }
+
+                // 设置Socket选项
+                newSocket.setKeepAlive(true);
+                newSocket.setTcpNoDelay(true);
+                // 读线程阻塞等待数据，不设读取超时：空闲连接上两次PING之间可能长时间没有数据，
+                // 死连接由MqttLivenessMonitor的PING超时发现，读取超时会把正常的空闲连接当作断开
+                newSocket.setSoTimeout(0);
+
+                if (closed) {
+                    // 连接过程中已被关闭
+                    closeQuietly();
+                    return;
+                }
+
+                // 获取输入输出流
+                outputStream = new BufferedOutputStream(newSocket.getOutputStream());
+                inputStream = new BufferedInputStream(newSocket.getInputStream());
+
+                // 回到事件循环线程通知，CONNECT写出后才开始读取
+                eventLoop.execute(() -> {
+                    if (closed) {
+                        return;
+                    }
+                    listener.onConnected();
+                    if (!closed) {
+                        startReadThread(listener);
+                    }
+                });
+            } catch (IOException e) {
+                closeQuietly();
+                if (!closed) {
+                    closed = true;
+                    eventLoop.execute(() -> listener.onClosed(e));
+                }
+            }
+        });
+    }
+
+    /**
+     * 按顺序错开发起到各地址的TCP连接，返回第一个建立的连接，其余全部关闭
+     * 一个尝试失败时立即发起下一个，不等间隔；连接过程中被close()时返回null
+     */
+    private Socket connectFirst(InetAddress[] addresses, int port, int timeoutMs) throws IOException {
+        long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+        ExecutorCompletionService<Socket> attempts = new ExecutorCompletionService<>(CONNECT_EXECUTOR);
+        Socket winner = null;
+        IOException lastError = null;
+        int next = 0;
+        int pending = 0;
+        try {
+            while (true) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("连接超时: " + timeoutMs + "ms");
+                }
+                if (next < addresses.length) {
+                    InetSocketAddress target = new InetSocketAddress(addresses[next++], port);
+                    Socket attempt = new Socket();
+                    synchronized (racingSockets) {
+                        if (closed) {
+                            return null;
+                        }
+                        racingSockets.add(attempt);
+                    }
+                    int attemptTimeout = (int) remaining;
+                    attempts.submit(() -> {
+                        attempt.connect(target, attemptTimeout);
+                        return attempt;
+                    });
+                    pending++;
+                }
+                if (pending == 0) {
+                    // 地址列表为空时没有任何尝试
+                    throw lastError != null ? lastError : new IOException("无可用地址");
+                }
+
+                long wait = next < addresses.length ? Math.min(CONNECT_ATTEMPT_DELAY_MS, remaining) : remaining;
+                Future<Socket> done = attempts.poll(wait, TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    // 间隔已到，发起下一个地址的连接
+                    continue;
+                }
+                pending--;
+                try {
+                    winner = done.get();
+                    return winner;
+                } catch (ExecutionException e) {
+                    if (closed) {
+                        return null;
+                    }
+                    Throwable cause = e.getCause();
+                    lastError = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                    Log.d(TAG, "连接失败，尝试下一个地址: " + cause.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("连接被中断", e);
+        } finally {
+            // 关闭落败和尚未完成的连接；尚未完成的connect()会因此立即失败
+            synchronized (racingSockets) {
+                for (Socket attempt : racingSockets) {
+                    if (attempt != winner) {
+                        closeSocket(attempt);
+                    }
+                }
+                racingSockets.clear();
+            }
+        }
+    }
+
+    private void startReadThread(Listener listener) {
+        BufferedInputStream in = inputStream;
+        readThread = new Thread(() -> {
+            IOException cause;
+            try {
+                byte[] buffer = new byte[READ_BUFFER_SIZE];
+                int bytesRead;
+
+                while (!closed && (bytesRead = in.read(buffer)) != -1) {
+                    listener.onData(buffer, 0, bytesRead);
+                }
+                cause = new IOException("服务器关闭了连接");
+            } catch (IOException e) {
+                cause = e;
+            }
+
+            if (!closed) {
+                closed = true;
+                closeQuietly();
+                IOException finalCause = cause;
+                eventLoop.execute(() -> listener.onClosed(finalCause));
+            }
+        });
+        readThread.setName("MQTT-Read-Thread");
+        readThread.setPriority(Thread.MAX_PRIORITY); // 提高读线程优先级
+        readThread.start();
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        BufferedOutputStream out = outputStream;
+        if (out == null || closed) {
+            throw new IOException("MQTT输出流不可用");
+        }
+        out.write(data, offset, length);
+        out.flush();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (readThread != null) {
+            readThread.interrupt();
+            readThread = null;
+        }
+        synchronized (racingSockets) {
+            for (Socket attempt : racingSockets) {
+                closeSocket(attempt);
+            }
+        }
+        closeQuietly();
+    }
+
+    @Override
+    public boolean isOpen() {
+        Socket s = socket;
+        return !closed && s != null && s.isConnected() && !s.isClosed();
+    }
+
+    private void closeQuietly() {
+        Socket s = socket;
+        if (s != null) {
+            closeSocket(s);
+        }
+    }
+
+    private static void closeSocket(Socket s) {
+        if (!s.isClosed()) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                Log.e(TAG, "关闭Socket时出错", e);
+            }
+        }
+    }
+}
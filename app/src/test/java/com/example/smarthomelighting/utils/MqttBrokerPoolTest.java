@@ -0,0 +1,259 @@
+package com.example.smarthomelighting.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class MqttBrokerPoolTest {
+
+    private static final String A = "tcp://a.example.com:1883";
+    private static final String B = "tcp://b.example.com:1883";
+    private static final String C = "ssl://c.example.com:8883";
+    private static final long MINUTE_MS = 60 * 1000;
+
+    private long now = 1_000_000;
+    private final List<String> switchRequests = new ArrayList<>();
+
+    private MqttBrokerPool newPool(String... serverURIs) {
+        return new MqttBrokerPool(Arrays.asList(serverURIs), switchRequests::add, () -> now);
+    }
+
+    @Test
+    public void scoreCombinesHandshakeTimeAndErrorRate() {
+        MqttBrokerPool pool = newPool(A, B, C);
+        assertEquals(A, pool.select());
+        pool.onConnected(null);
+
+        pool.onProbeRound(probes(A, 100, B, 40, C, -1));
+
+        assertEquals(100, pool.getScore(A));
+        assertEquals(40, pool.getScore(B));
+        // 只有失败的探测，没有握手时间样本
+        assertEquals(Long.MAX_VALUE, pool.getScore(C));
+
+        // 出错率按0.25平滑，出错率为1时加500ms
+        pool.onConnectionLost();
+        assertEquals(225, pool.getScore(A));
+        pool.onProbeRound(probes(A, 140, B, 80));
+        // 握手时间 100 + 0.25 * (140 - 100) = 110，成功的探测把出错率降到 0.25 * 0.75
+        assertEquals(110 + 93, pool.getScore(A));
+        assertEquals(50, pool.getScore(B));
+    }
+
+    @Test
+    public void failoverPicksBestScoredAvailableServer() {
+        MqttBrokerPool pool = newPool(A, B, C);
+        pool.select();
+        pool.onConnected(null);
+        pool.onProbeRound(probes(A, 100, B, 90, C, 30));
+
+        assertTrue(pool.onConnectFailed(MqttFailureCause.TCP));
+
+        assertEquals(C, pool.select());
+        assertEquals(C, pool.getCurrentServerURI());
+    }
+
+    @Test
+    public void unmeasuredServersAreTriedInConfiguredOrder() {
+        MqttBrokerPool pool = newPool(A, B, C);
+        assertEquals(A, pool.select());
+
+        assertTrue(pool.onConnectFailed(MqttFailureCause.DNS));
+        assertEquals(B, pool.select());
+        assertTrue(pool.onConnectFailed(MqttFailureCause.TLS));
+        assertEquals(C, pool.select());
+
+        // 全部被隔离：交给重连策略退避，之后选最早解除隔离的
+        assertFalse(pool.onConnectFailed(MqttFailureCause.NO_CONNACK));
+        assertEquals(A, pool.select());
+    }
+
+    @Test
+    public void quarantineDoublesOnConsecutiveFailuresUpToCap() {
+        MqttBrokerPool pool = newPool(A);
+        pool.select();
+        long[] expected = {30_000, 60_000, 120_000, 240_000, 480_000, 600_000, 600_000};
+
+        for (long quarantine : expected) {
+            assertFalse(pool.onConnectFailed(MqttFailureCause.TCP));
+            assertEquals(quarantine, pool.getQuarantineRemainingMs(A));
+            now += quarantine;
+            assertEquals(0, pool.getQuarantineRemainingMs(A));
+            assertEquals(A, pool.select());
+        }
+
+        // 连接成功后重新从30秒开始
+        pool.onConnected(null);
+        pool.onConnectFailed(MqttFailureCause.TCP);
+        assertEquals(30_000, pool.getQuarantineRemainingMs(A));
+    }
+
+    @Test
+    public void clientSideFailureDoesNotQuarantine() {
+        MqttBrokerPool pool = newPool(A, B);
+        pool.select();
+
+        assertFalse(pool.onConnectFailed(MqttFailureCause.CLIENT));
+
+        assertEquals(0, pool.getQuarantineRemainingMs(A));
+        assertEquals(Long.MAX_VALUE, pool.getScore(A));
+        assertEquals(A, pool.select());
+    }
+
+    @Test
+    public void quarantinedServerIsSkippedUntilReleased() {
+        MqttBrokerPool pool = newPool(A, B);
+        pool.select();
+        assertTrue(pool.onConnectFailed(MqttFailureCause.BROKER_UNAVAILABLE));
+        assertEquals(B, pool.select());
+
+        // B失败时A仍在隔离中，选最早解除隔离的A
+        now += 10_000;
+        assertFalse(pool.onConnectFailed(MqttFailureCause.TCP));
+        assertEquals(20_000, pool.getQuarantineRemainingMs(A));
+        assertEquals(30_000, pool.getQuarantineRemainingMs(B));
+        assertEquals(A, pool.select());
+
+        // A解除隔离后再失败，可以立即换回已解除隔离的B
+        now += 30_000;
+        assertTrue(pool.onConnectFailed(MqttFailureCause.TCP));
+        assertEquals(60_000, pool.getQuarantineRemainingMs(A));
+        assertEquals(B, pool.select());
+    }
+
+    @Test
+    public void switchRequiresThreeConsecutiveRoundsAndMinimumDwell() {
+        MqttBrokerPool pool = newPool(A, B);
+        pool.select();
+        pool.onConnected(null);
+
+        pool.onProbeRound(probes(A, 100, B, 50));
+        pool.onProbeRound(probes(A, 100, B, 50));
+        now += 4 * MINUTE_MS;
+        pool.onProbeRound(probes(A, 100, B, 50));
+        // 已连续3轮，但连接保持不到5分钟
+        assertTrue(switchRequests.isEmpty());
+
+        now += MINUTE_MS;
+        pool.onProbeRound(probes(A, 100, B, 50));
+
+        assertEquals(Collections.singletonList(B), switchRequests);
+        assertEquals(B, pool.select());
+    }
+
+    @Test
+    public void streakRestartsWhenCandidateStopsQualifying() {
+        MqttBrokerPool pool = newPool(A, B);
+        pool.select();
+        pool.onConnected(null);
+        now += 10 * MINUTE_MS;
+
+        pool.onProbeRound(probes(A, 100, B, 50));
+        pool.onProbeRound(probes(A, 100, B, 50));
+        // 切换网络后清除往返时间，候选轮数重新计算
+        pool.onNetworkChanged();
+        pool.onProbeRound(probes(A, 100, B, 50));
+        pool.onProbeRound(probes(A, 100, B, 50));
+        assertTrue(switchRequests.isEmpty());
+
+        pool.onProbeRound(probes(A, 100, B, 50));
+        assertEquals(Collections.singletonList(B), switchRequests);
+    }
+
+    @Test
+    public void noSwitchWithoutEnoughRelativeGain() {
+        MqttBrokerPool pool = newPool(A, B);
+        pool.select();
+        pool.onConnected(null);
+        now += 10 * MINUTE_MS;
+
+        // 只好25%，没有达到30%
+        for (int i = 0; i < 10; i++) {
+            pool.onProbeRound(probes(A, 100, B, 75));
+        }
+
+        assertTrue(switchRequests.isEmpty());
+        assertEquals(A, pool.select());
+    }
+
+    @Test
+    public void noSwitchWithoutEnoughAbsoluteGain() {
+        MqttBrokerPool pool = newPool(A, B);
+        pool.select();
+        pool.onConnected(null);
+        now += 10 * MINUTE_MS;
+
+        // 好32%，但只快19ms
+        for (int i = 0; i < 10; i++) {
+            pool.onProbeRound(probes(A, 60, B, 41));
+        }
+
+        assertTrue(switchRequests.isEmpty());
+    }
+
+    @Test
+    public void failedProbesDoNotCountTowardsSwitch() {
+        MqttBrokerPool pool = newPool(A, B);
+        pool.select();
+        pool.onConnected(null);
+        now += 10 * MINUTE_MS;
+
+        for (int i = 0; i < 10; i++) {
+            pool.onProbeRound(probes(A, 100, B, -1));
+        }
+
+        assertTrue(switchRequests.isEmpty());
+        assertEquals(Long.MAX_VALUE, pool.getScore(B));
+    }
+
+    @Test
+    public void noSwitchBetweenServersAtEqualDistance() {
+        MqttBrokerPool pool = newPool(A, B);
+        pool.select();
+        pool.onConnected(null);
+        now += 10 * MINUTE_MS;
+
+        // 当前服务器和其他服务器用同一种测量比较，握手时间相同时不回切
+        for (int i = 0; i < 10; i++) {
+            pool.onProbeRound(probes(A, 30, B, 30));
+        }
+
+        assertTrue(switchRequests.isEmpty());
+    }
+
+    @Test
+    public void noSwitchUntilCurrentServerIsProbed() {
+        MqttBrokerPool pool = newPool(A, B);
+        pool.select();
+        pool.onConnected(null);
+        now += 10 * MINUTE_MS;
+
+        // 当前服务器的探测失败，没有可比较的握手时间
+        for (int i = 0; i < 3; i++) {
+            pool.onProbeRound(probes(A, -1, B, 10));
+        }
+        assertTrue(switchRequests.isEmpty());
+
+        for (int i = 0; i < 3; i++) {
+            pool.onProbeRound(probes(A, 100, B, 10));
+        }
+        assertEquals(Collections.singletonList(B), switchRequests);
+    }
+
+    private static Map<String, Long> probes(Object... uriAndRtt) {
+        Map<String, Long> results = new HashMap<>();
+        for (int i = 0; i < uriAndRtt.length; i += 2) {
+            results.put((String) uriAndRtt[i], ((Number) uriAndRtt[i + 1]).longValue());
+        }
+        return results;
+    }
+}
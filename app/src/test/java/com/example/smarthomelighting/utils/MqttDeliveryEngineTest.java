@@ -0,0 +1,216 @@
+package com.example.smarthomelighting.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+public class MqttDeliveryEngineTest {
+
+    private final ManualEventLoop eventLoop = new ManualEventLoop();
+    private final List<Integer> sentPacketIds = new ArrayList<>();
+    private final List<MqttDeliveryToken> completed = new ArrayList<>();
+    private final MqttPacketIdAllocator packetIds = new MqttPacketIdAllocator();
+    private final MqttFrameDecoder decoder = new MqttFrameDecoder((header, buffer, offset, length) -> {
+        if ((header & 0xF0) == 0x30) {
+            // 跳过主题，读取报文标识符
+            ByteBuffer body = ByteBuffer.wrap(buffer, offset, length);
+            int topicLength = body.getShort() & 0xFFFF;
+            sentPacketIds.add(body.getShort(offset + 2 + topicLength) & 0xFFFF);
+        }
+    });
+    private final MqttOutboundQueue outboundQueue = new MqttOutboundQueue(eventLoop, new MqttOutboundQueue.Target() {
+        @Override
+        public void writeBatch(byte[] data, int offset, int length) throws IOException {
+            decoder.feed(data, offset, length);
+        }
+
+        @Override
+        public void onWriteFailed(IOException cause) {
+            fail("写出失败: " + cause);
+        }
+    });
+
+    private MqttDeliveryEngine newEngine(int maxInflight) {
+        return new MqttDeliveryEngine(eventLoop, outboundQueue, packetIds, new MqttSessionStore(null), maxInflight,
+                new MqttDeliveryEngine.Listener() {
+                    @Override
+                    public void onDeliveryComplete(MqttDeliveryToken token) {
+                        completed.add(token);
+                    }
+
+                    @Override
+                    public void onDeliveryFailed(MqttDeliveryToken token, MqttException exception) {
+                        fail("投递失败: " + exception);
+                    }
+                });
+    }
+
+    @Test
+    public void fullWindowQueuesMessagesUntilAcked() throws MqttException {
+        MqttDeliveryEngine engine = newEngine(2);
+        engine.onConnected(null);
+        MqttDeliveryToken first = publish(engine, 1);
+        MqttDeliveryToken second = publish(engine, 1);
+        MqttDeliveryToken third = publish(engine, 1);
+        eventLoop.runPending();
+
+        assertEquals(2, engine.getInflightCount());
+        assertEquals(1, engine.getBacklogCount());
+        assertFalse(engine.hasCapacity());
+        assertEquals(List.of(1, 2), sentPacketIds);
+        assertEquals(0, third.getMessageId());
+
+        engine.onPubAck(first.getMessageId(), 0);
+        eventLoop.runPending();
+
+        assertEquals(List.of(first), completed);
+        assertEquals(2, engine.getInflightCount());
+        assertEquals(0, engine.getBacklogCount());
+        assertEquals(3, third.getMessageId());
+        assertEquals(List.of(1, 2, 3), sentPacketIds);
+
+        engine.onPubAck(second.getMessageId(), 0);
+        assertTrue(engine.hasCapacity());
+    }
+
+    @Test
+    public void backlogKeepsPublishOrder() throws MqttException {
+        MqttDeliveryEngine engine = newEngine(1);
+        engine.onConnected(null);
+        MqttDeliveryToken first = publish(engine, 2);
+        MqttDeliveryToken second = publish(engine, 1);
+        MqttDeliveryToken third = publish(engine, 1);
+
+        // QoS 2经过PUBREC/PUBCOMP后才释放窗口
+        engine.onPubRec(first.getMessageId(), 0);
+        assertEquals(2, engine.getBacklogCount());
+        engine.onPubComp(first.getMessageId());
+        engine.onPubAck(second.getMessageId(), 0);
+        engine.onPubAck(third.getMessageId(), 0);
+
+        assertEquals(List.of(first, second, third), completed);
+        assertEquals(0, engine.getInflightCount());
+        assertEquals(0, engine.getBacklogCount());
+    }
+
+    @Test
+    public void backlogOverflowThrowsMaxInflight() throws MqttException {
+        MqttDeliveryEngine engine = newEngine(1);
+        for (int i = 0; i < 1 + MqttDeliveryEngine.MAX_BACKLOG; i++) {
+            publish(engine, 1);
+        }
+        assertEquals(MqttDeliveryEngine.MAX_BACKLOG, engine.getBacklogCount());
+
+        try {
+            publish(engine, 1);
+            fail("应抛出MqttException");
+        } catch (MqttException e) {
+            assertEquals(MqttException.REASON_CODE_MAX_INFLIGHT, e.getReasonCode());
+        }
+        assertEquals(1 + MqttDeliveryEngine.MAX_BACKLOG, engine.getPendingTokens().length);
+    }
+
+    @Test
+    public void exhaustedPacketIdsQueueMessagesUntilIdIsReleased() throws MqttException {
+        // 恢复的会话占用了除65535以外的全部标识符
+        for (int id = 1; id < MqttPacketIdAllocator.MAX_PACKET_ID; id++) {
+            assertTrue(packetIds.reserve(id));
+        }
+        MqttDeliveryEngine engine = newEngine(10);
+        engine.onConnected(null);
+        MqttDeliveryToken first = publish(engine, 1);
+        MqttDeliveryToken second = publish(engine, 1);
+
+        assertEquals(65535, first.getMessageId());
+        assertEquals(1, engine.getInflightCount());
+        assertEquals(1, engine.getBacklogCount());
+
+        engine.onPubAck(65535, 0);
+
+        // 刚释放的65535是唯一可用的标识符
+        assertEquals(65535, second.getMessageId());
+        assertEquals(0, engine.getBacklogCount());
+        eventLoop.runPending();
+        assertEquals(List.of(65535, 65535), sentPacketIds);
+    }
+
+    @Test
+    public void offlineMessagesAreSentInOrderOnConnect() throws MqttException {
+        MqttDeliveryEngine engine = newEngine(2);
+        publish(engine, 1);
+        publish(engine, 1);
+        publish(engine, 1);
+        eventLoop.runPending();
+        assertTrue(sentPacketIds.isEmpty());
+
+        engine.onConnected(null);
+        eventLoop.runPending();
+
+        assertEquals(List.of(1, 2), sentPacketIds);
+        assertEquals(1, engine.getBacklogCount());
+    }
+
+    @Test
+    public void growingWindowDrainsBacklog() throws MqttException {
+        MqttDeliveryEngine engine = newEngine(1);
+        engine.onConnected(null);
+        publish(engine, 1);
+        publish(engine, 1);
+        publish(engine, 1);
+
+        engine.setMaxInflight(4);
+        eventLoop.runPending();
+
+        assertEquals(3, engine.getInflightCount());
+        assertEquals(0, engine.getBacklogCount());
+        assertEquals(List.of(1, 2, 3), sentPacketIds);
+    }
+
+    private static MqttDeliveryToken publish(MqttDeliveryEngine engine, int qos) throws MqttException {
+        MqttMessage message = new MqttMessage(new byte[]{1});
+        message.setQos(qos);
+        MqttDeliveryToken token = new MqttDeliveryToken("lamp/1", message, null, null);
+        engine.publish(token);
+        return token;
+    }
+
+    /**
+     * 在测试线程上手动驱动的事件循环，定时任务只记录不执行
+     */
+    private static final class ManualEventLoop implements MqttEventLoop {
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        @Override
+        public Timer schedule(Runnable task, long delayMs) {
+            return () -> { };
+        }
+
+        @Override
+        public boolean inEventLoop() {
+            return true;
+        }
+
+        void runPending() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+}
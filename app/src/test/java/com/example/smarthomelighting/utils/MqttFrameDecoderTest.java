@@ -0,0 +1,181 @@
+package com.example.smarthomelighting.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class MqttFrameDecoderTest {
+
+    private final List<Integer> headers = new ArrayList<>();
+    private final List<byte[]> bodies = new ArrayList<>();
+    private final MqttFrameDecoder decoder = new MqttFrameDecoder(this::record);
+
+    private void record(int header, byte[] buffer, int offset, int length) {
+        headers.add(header);
+        bodies.add(Arrays.copyOfRange(buffer, offset, offset + length));
+    }
+
+    @Test
+    public void decodesSeveralFramesFromOneRead() throws IOException {
+        byte[] body = {1, 2, 3};
+        byte[] data = concat(frame(0x30, body), frame(0xD0, new byte[0]), frame(0x40, new byte[]{0, 7}));
+
+        decoder.feed(data, 0, data.length);
+
+        assertEquals(Arrays.asList(0x30, 0xD0, 0x40), headers);
+        assertArrayEquals(body, bodies.get(0));
+        assertEquals(0, bodies.get(1).length);
+        assertArrayEquals(new byte[]{0, 7}, bodies.get(2));
+        assertEquals(0, decoder.pendingBytes());
+    }
+
+    @Test
+    public void reassemblesFrameSplitAtEveryPosition() throws IOException {
+        // 200字节的报文体使剩余长度占两个字节，切分点覆盖固定头部、剩余长度内部和报文体
+        byte[] body = pattern(200);
+        byte[] data = concat(frame(0x32, body), frame(0xD0, new byte[0]));
+        for (int split = 1; split < data.length; split++) {
+            headers.clear();
+            bodies.clear();
+            MqttFrameDecoder splitDecoder = new MqttFrameDecoder(this::record);
+
+            splitDecoder.feed(data, 0, split);
+            splitDecoder.feed(data, split, data.length - split);
+
+            assertEquals("切分点 " + split, Arrays.asList(0x32, 0xD0), headers);
+            assertArrayEquals("切分点 " + split, body, bodies.get(0));
+            assertEquals(0, splitDecoder.pendingBytes());
+        }
+    }
+
+    @Test
+    public void reassemblesFrameFedOneByteAtATime() throws IOException {
+        // 剩余长度16384需要3个字节，逐字节喂入时会在剩余长度中间停下两次
+        byte[] body = pattern(16384);
+        byte[] data = frame(0x30, body);
+        for (int i = 0; i < data.length; i++) {
+            decoder.feed(data, i, 1);
+            assertEquals(i == data.length - 1 ? 1 : 0, headers.size());
+        }
+        assertArrayEquals(body, bodies.get(0));
+    }
+
+    @Test
+    public void decodesRemainingLengthBoundaries() throws IOException {
+        int[] lengths = {0, 127, 128, 16383, 16384, 2097151, 2097152};
+        int[] encodedSizes = {1, 1, 2, 2, 3, 3, 4};
+        for (int i = 0; i < lengths.length; i++) {
+            assertEquals(encodedSizes[i], encodeRemainingLength(lengths[i]).length);
+            byte[] body = pattern(lengths[i]);
+            byte[] data = frame(0x30, body);
+            headers.clear();
+            bodies.clear();
+
+            decoder.feed(data, 0, data.length);
+
+            assertEquals("剩余长度 " + lengths[i], 1, headers.size());
+            assertArrayEquals(body, bodies.get(0));
+        }
+    }
+
+    @Test
+    public void acceptsMaximumRemainingLength() throws IOException {
+        // 268435455的编码为FF FF FF 7F；只喂入固定头部，报文体未到时应等待而不是报错
+        byte[] header = {0x30, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x7F};
+        assertArrayEquals(Arrays.copyOfRange(header, 1, 5), encodeRemainingLength(MqttFrameDecoder.MAX_REMAINING_LENGTH));
+
+        decoder.feed(header, 0, header.length);
+
+        assertTrue(headers.isEmpty());
+        assertEquals(header.length, decoder.pendingBytes());
+    }
+
+    @Test
+    public void rejectsRemainingLengthLongerThanFourBytes() {
+        byte[] data = {0x30, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01};
+        try {
+            decoder.feed(data, 0, data.length);
+            fail("应拒绝5字节的剩余长度");
+        } catch (IOException expected) {
+            assertTrue(headers.isEmpty());
+        }
+    }
+
+    @Test
+    public void rejectsFrameLargerThanLimit() {
+        MqttFrameDecoder limited = new MqttFrameDecoder(this::record, 1024);
+        byte[] data = concat(new byte[]{0x30}, encodeRemainingLength(1025));
+        try {
+            limited.feed(data, 0, data.length);
+            fail("应拒绝超过上限的报文");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("1025"));
+        }
+    }
+
+    @Test
+    public void acceptsFrameAtLimit() throws IOException {
+        MqttFrameDecoder limited = new MqttFrameDecoder(this::record, 1024);
+        byte[] data = frame(0x30, pattern(1024));
+
+        limited.feed(data, 0, data.length);
+
+        assertEquals(1, headers.size());
+    }
+
+    @Test
+    public void resetDiscardsPartialFrame() throws IOException {
+        byte[] data = frame(0x30, pattern(10));
+        decoder.feed(data, 0, 5);
+        assertEquals(5, decoder.pendingBytes());
+
+        decoder.reset();
+        byte[] next = frame(0xD0, new byte[0]);
+        decoder.feed(next, 0, next.length);
+
+        assertEquals(Arrays.asList(0xD0), headers);
+        assertEquals(0, decoder.pendingBytes());
+    }
+
+    private static byte[] frame(int header, byte[] body) {
+        return concat(new byte[]{(byte) header}, encodeRemainingLength(body.length), body);
+    }
+
+    private static byte[] encodeRemainingLength(int length) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        do {
+            int encodedByte = length % 128;
+            length /= 128;
+            if (length > 0) {
+                encodedByte |= 0x80;
+            }
+            out.write(encodedByte);
+        } while (length > 0);
+        return out.toByteArray();
+    }
+
+    private static byte[] pattern(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
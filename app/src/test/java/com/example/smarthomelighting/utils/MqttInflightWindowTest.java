@@ -0,0 +1,152 @@
+package com.example.smarthomelighting.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class MqttInflightWindowTest {
+
+    // 容量4时标识符表大小为8，标识符对8同余即落在同一探测链上
+    private final MqttInflightWindow window = new MqttInflightWindow(4);
+
+    @Test
+    public void removeFromMiddleOfCollisionChainKeepsLaterEntriesReachable() {
+        int first = add(1);
+        int middle = add(9);
+        int last = add(17);
+
+        window.remove(middle);
+
+        assertEquals(first, window.find(1));
+        assertEquals(-1, window.find(9));
+        assertEquals(last, window.find(17));
+    }
+
+    @Test
+    public void removeHeadOfChainThatWrapsAroundTableEnd() {
+        // 7和15的起始位置都是7，15回绕到位置0；8的起始位置0被占，放到1；23排在2
+        int a = add(7);
+        int b = add(15);
+        int c = add(8);
+        int d = add(23);
+
+        window.remove(a);
+
+        assertEquals(-1, window.find(7));
+        assertEquals(b, window.find(15));
+        assertEquals(c, window.find(8));
+        assertEquals(d, window.find(23));
+
+        window.remove(c);
+        assertEquals(b, window.find(15));
+        assertEquals(d, window.find(23));
+        assertEquals(-1, window.find(8));
+    }
+
+    @Test
+    public void matchesMapAfterRandomAddsAndRemoves() {
+        MqttInflightWindow large = new MqttInflightWindow(64);
+        Map<Integer, Integer> expected = new HashMap<>();
+        List<Integer> ids = new ArrayList<>();
+        Random random = new Random(42);
+        for (int round = 0; round < 20000; round++) {
+            if (!large.isFull() && (ids.isEmpty() || random.nextBoolean())) {
+                // 标识符集中在少数几个探测链上，制造大量冲突
+                int id = 1 + random.nextInt(512) * 128 + random.nextInt(4);
+                if (expected.containsKey(id)) {
+                    continue;
+                }
+                int slot = large.add(id, "t", null, 1, false, null);
+                expected.put(id, slot);
+                ids.add(id);
+            } else {
+                int id = ids.remove(random.nextInt(ids.size()));
+                large.remove(expected.remove(id));
+                assertEquals(-1, large.find(id));
+            }
+            assertEquals(expected.size(), large.size());
+            for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+                assertEquals("标识符 " + entry.getKey(), (int) entry.getValue(), large.find(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    public void fullWindowRejectsAddUntilSlotIsRemoved() {
+        for (int id = 1; id <= 4; id++) {
+            add(id);
+        }
+        assertTrue(window.isFull());
+        assertEquals(-1, window.add(5, "t", null, 1, false, null));
+        assertEquals(-1, window.find(5));
+
+        int slot = window.find(2);
+        window.remove(slot);
+        assertFalse(window.isFull());
+        assertEquals(slot, add(5));
+        assertTrue(window.isFull());
+    }
+
+    @Test
+    public void removeReleasesReferencesAndIgnoresFreeSlot() {
+        int slot = window.add(3, "lamp", new byte[]{1}, 2, true, null);
+
+        window.remove(slot);
+        window.remove(slot);
+
+        assertFalse(window.isOccupied(slot));
+        assertNull(window.topic(slot));
+        assertNull(window.payload(slot));
+        assertEquals(0, window.size());
+    }
+
+    @Test
+    public void occupiedSlotsFollowInsertionOrderAfterSlotReuse() {
+        int a = add(1);
+        add(2);
+        int c = add(3);
+        window.remove(a);
+        int d = add(4);
+
+        int[] expectedOrder = {window.find(2), c, d};
+        assertArrayEquals(expectedOrder, window.occupiedSlotsInOrder());
+    }
+
+    @Test
+    public void resizeKeepsEntriesStatesAndOrder() {
+        add(1);
+        int pubRel = add(9);
+        add(17);
+        window.moveToPubRel(pubRel);
+        window.markSent(pubRel, 123);
+
+        MqttInflightWindow resized = window.resize(16);
+
+        assertEquals(16, resized.capacity());
+        assertEquals(3, resized.size());
+        int[] order = resized.occupiedSlotsInOrder();
+        assertEquals(1, resized.packetId(order[0]));
+        assertEquals(9, resized.packetId(order[1]));
+        assertEquals(17, resized.packetId(order[2]));
+        int slot = resized.find(9);
+        assertEquals(MqttInflightWindow.STATE_PUBREL_SENT, resized.state(slot));
+        assertEquals(123, resized.sentAtNanos(slot));
+        assertEquals(1, resized.attempts(slot));
+    }
+
+    private int add(int packetId) {
+        int slot = window.add(packetId, "t", new byte[0], 1, false, null);
+        assertTrue(slot >= 0);
+        return slot;
+    }
+}
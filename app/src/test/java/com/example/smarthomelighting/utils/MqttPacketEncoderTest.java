@@ -0,0 +1,249 @@
+package com.example.smarthomelighting.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class MqttPacketEncoderTest {
+
+    private final MqttPacketEncoder encoder = new MqttPacketEncoder(16);
+
+    @Test
+    public void encodesPublishLongerThan127Bytes() throws IOException {
+        byte[] payload = new byte[300];
+        Arrays.fill(payload, (byte) 0x5A);
+
+        encoder.writePublish("lamp/1", payload, 1, false, false, 42);
+
+        // 剩余长度 = 主题(2+6) + 报文标识符(2) + 载荷(300) = 310，编码为B6 02
+        byte[] packet = encoded();
+        assertEquals(0x32, packet[0] & 0xFF);
+        assertEquals(0xB6, packet[1] & 0xFF);
+        assertEquals(0x02, packet[2] & 0xFF);
+        assertEquals(3 + 310, packet.length);
+        Frame frame = decodeSingle(packet);
+        ByteBuffer body = ByteBuffer.wrap(frame.body);
+        assertEquals("lamp/1", readString(body));
+        assertEquals(42, body.getShort() & 0xFFFF);
+        byte[] decodedPayload = new byte[body.remaining()];
+        body.get(decodedPayload);
+        assertArrayEquals(payload, decodedPayload);
+    }
+
+    @Test
+    public void encodesNonAsciiTopicAsUtf8() throws IOException {
+        // 中文（3字节）、带重音的拉丁字母（2字节）和代理对表示的表情（4字节）
+        String topic = "客厅/灯光/é/💡";
+        byte[] expected = topic.getBytes(StandardCharsets.UTF_8);
+        assertEquals(expected.length, MqttPacketEncoder.utf8Length(topic));
+
+        encoder.writePublish(topic, new byte[]{1}, 0, true, false, 0);
+
+        Frame frame = decodeSingle(encoded());
+        assertEquals(0x31, frame.header);
+        ByteBuffer body = ByteBuffer.wrap(frame.body);
+        assertEquals(expected.length, body.getShort(0) & 0xFFFF);
+        assertEquals(topic, readString(body));
+        assertEquals(1, body.get());
+        assertEquals(0, body.remaining());
+    }
+
+    @Test
+    public void connectWithoutOptionalFields() throws IOException {
+        encoder.writeConnect("abc", new MqttConnectOptions(), true, 60);
+
+        Connect connect = decodeConnect(encoded());
+        assertEquals(4, connect.level);
+        assertEquals(0x02, connect.flags);
+        assertEquals(60, connect.keepAlive);
+        assertEquals("abc", connect.clientId);
+        assertEquals(0, connect.rest.remaining());
+    }
+
+    @Test
+    public void connectFlagCombinations() throws IOException {
+        for (int mask = 0; mask < 16; mask++) {
+            boolean clean = (mask & 1) != 0;
+            boolean will = (mask & 2) != 0;
+            boolean username = (mask & 4) != 0;
+            boolean password = (mask & 8) != 0;
+            MqttConnectOptions options = new MqttConnectOptions();
+            if (will) {
+                options.setWill("client/状态", "离线".getBytes(StandardCharsets.UTF_8), 1, true);
+            }
+            if (username) {
+                options.setUserName("用户");
+            }
+            if (password) {
+                options.setPassword("密码pw".toCharArray());
+            }
+            MqttPacketEncoder packetEncoder = new MqttPacketEncoder(16);
+
+            packetEncoder.writeConnect("客户端-1", options, clean, 30);
+
+            Connect connect = decodeConnect(Arrays.copyOf(packetEncoder.array(), packetEncoder.size()));
+            int expectedFlags = (clean ? 0x02 : 0) | (will ? 0x04 | 0x08 | 0x20 : 0)
+                    | (password ? 0x40 : 0) | (username ? 0x80 : 0);
+            assertEquals("组合 " + mask, expectedFlags, connect.flags);
+            assertEquals("客户端-1", connect.clientId);
+            ByteBuffer rest = connect.rest;
+            if (will) {
+                assertEquals("client/状态", readString(rest));
+                assertEquals("离线", readString(rest));
+            }
+            if (username) {
+                assertEquals("用户", readString(rest));
+            }
+            if (password) {
+                assertEquals("密码pw", readString(rest));
+            }
+            assertEquals("组合 " + mask, 0, rest.remaining());
+        }
+    }
+
+    @Test
+    public void connectAcceptsPasswordOf65535Bytes() throws IOException {
+        MqttConnectOptions options = new MqttConnectOptions();
+        char[] password = new char[65535];
+        Arrays.fill(password, 'p');
+        options.setPassword(password);
+
+        encoder.writeConnect("c", options, true, 30);
+
+        Connect connect = decodeConnect(encoded());
+        assertEquals(65535, readString(connect.rest).length());
+    }
+
+    @Test
+    public void connectRejectsPasswordLongerThan65535Bytes() {
+        MqttConnectOptions options = new MqttConnectOptions();
+        // 每个中文字符3字节，21846个字符为65538字节
+        char[] password = new char[21846];
+        Arrays.fill(password, '密');
+        options.setPassword(password);
+
+        assertRejected(() -> encoder.writeConnect("c", options, true, 30));
+    }
+
+    @Test
+    public void connectRejectsWillPayloadLongerThan65535Bytes() {
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setWill("client/status", new byte[65536], 1, false);
+
+        assertRejected(() -> encoder.writeConnect("c", options, true, 30));
+    }
+
+    @Test
+    public void rejectsTopicLongerThan65535Bytes() {
+        char[] topic = new char[65536];
+        Arrays.fill(topic, 't');
+
+        assertRejected(() -> encoder.writePublish(new String(topic), new byte[0], 0, false, false, 0));
+    }
+
+    @Test
+    public void encodesSeveralPacketsBackToBack() throws IOException {
+        encoder.writePubAck(1);
+        encoder.writePubRel(65535);
+        encoder.writeSubscribe(7, new String[]{"a/#", "灯/+"}, new int[]{1, 2});
+        encoder.writePingReq();
+
+        List<Frame> frames = decode(encoded());
+        assertEquals(4, encoder.packetCount());
+        assertEquals(4, frames.size());
+        assertEquals(0x40, frames.get(0).header);
+        assertEquals(0x62, frames.get(1).header);
+        assertArrayEquals(new byte[]{(byte) 0xFF, (byte) 0xFF}, frames.get(1).body);
+        assertEquals(0x82, frames.get(2).header);
+        ByteBuffer subscribe = ByteBuffer.wrap(frames.get(2).body);
+        assertEquals(7, subscribe.getShort());
+        assertEquals("a/#", readString(subscribe));
+        assertEquals(1, subscribe.get());
+        assertEquals("灯/+", readString(subscribe));
+        assertEquals(2, subscribe.get());
+        assertEquals(0xC0, frames.get(3).header);
+    }
+
+    private void assertRejected(Runnable action) {
+        try {
+            action.run();
+            fail("应抛出IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            // 拒绝时不应写出半个报文
+            assertTrue(encoder.isEmpty());
+            assertEquals(0, encoder.packetCount());
+        }
+    }
+
+    private byte[] encoded() {
+        return Arrays.copyOf(encoder.array(), encoder.size());
+    }
+
+    private static final class Frame {
+        final int header;
+        final byte[] body;
+
+        Frame(int header, byte[] body) {
+            this.header = header;
+            this.body = body;
+        }
+    }
+
+    private static final class Connect {
+        int level;
+        int flags;
+        int keepAlive;
+        String clientId;
+        ByteBuffer rest;
+    }
+
+    private static List<Frame> decode(byte[] data) throws IOException {
+        List<Frame> frames = new ArrayList<>();
+        MqttFrameDecoder decoder = new MqttFrameDecoder((header, buffer, offset, length) ->
+                frames.add(new Frame(header, Arrays.copyOfRange(buffer, offset, offset + length))));
+        decoder.feed(data, 0, data.length);
+        assertEquals(0, decoder.pendingBytes());
+        return frames;
+    }
+
+    private static Frame decodeSingle(byte[] data) throws IOException {
+        List<Frame> frames = decode(data);
+        assertEquals(1, frames.size());
+        return frames.get(0);
+    }
+
+    private static Connect decodeConnect(byte[] data) throws IOException {
+        Frame frame = decodeSingle(data);
+        assertEquals(0x10, frame.header);
+        ByteBuffer body = ByteBuffer.wrap(frame.body);
+        assertEquals("MQTT", readString(body));
+        Connect connect = new Connect();
+        connect.level = body.get();
+        connect.flags = body.get() & 0xFF;
+        connect.keepAlive = body.getShort() & 0xFFFF;
+        connect.clientId = readString(body);
+        connect.rest = body;
+        return connect;
+    }
+
+    private static String readString(ByteBuffer body) {
+        int length = body.getShort() & 0xFFFF;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < length; i++) {
+            out.write(body.get());
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
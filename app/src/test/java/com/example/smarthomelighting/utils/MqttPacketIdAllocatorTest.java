@@ -0,0 +1,93 @@
+package com.example.smarthomelighting.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MqttPacketIdAllocatorTest {
+
+    private final MqttPacketIdAllocator allocator = new MqttPacketIdAllocator();
+
+    @Test
+    public void allocatesFromOneAndDoesNotReuseJustReleasedId() {
+        assertEquals(1, allocator.allocate());
+        allocator.release(1);
+
+        assertEquals(2, allocator.allocate());
+        assertEquals(3, allocator.allocate());
+        assertEquals(2, allocator.size());
+    }
+
+    @Test
+    public void wrapsAroundFrom65535ToOne() {
+        advanceCursorTo(MqttPacketIdAllocator.MAX_PACKET_ID - 1);
+
+        assertEquals(65535, allocator.allocate());
+        assertEquals(1, allocator.allocate());
+        assertEquals(2, allocator.size());
+    }
+
+    @Test
+    public void skipsIdsStillInUseAfterWraparound() {
+        assertEquals(1, allocator.allocate());
+        assertEquals(2, allocator.allocate());
+        assertEquals(3, allocator.allocate());
+        allocator.release(2);
+        advanceCursorTo(MqttPacketIdAllocator.MAX_PACKET_ID);
+
+        // 1和3仍在使用，回绕后跳过它们
+        assertEquals(2, allocator.allocate());
+        assertEquals(4, allocator.allocate());
+    }
+
+    @Test
+    public void skipsReservedIdBeforeWraparound() {
+        advanceCursorTo(65533);
+        assertTrue(allocator.reserve(65534));
+        assertTrue(allocator.reserve(1));
+
+        assertEquals(65535, allocator.allocate());
+        assertEquals(2, allocator.allocate());
+    }
+
+    @Test
+    public void returnsMinusOneWhenAllIdsInUse() {
+        for (int i = 1; i <= MqttPacketIdAllocator.MAX_PACKET_ID; i++) {
+            assertEquals(i, allocator.allocate());
+        }
+        assertEquals(-1, allocator.allocate());
+
+        allocator.release(40000);
+        assertEquals(40000, allocator.allocate());
+        assertEquals(-1, allocator.allocate());
+    }
+
+    @Test
+    public void reserveRejectsDuplicateAndOutOfRangeIds() {
+        assertTrue(allocator.reserve(7));
+        assertFalse(allocator.reserve(7));
+        assertFalse(allocator.reserve(0));
+        assertFalse(allocator.reserve(65536));
+        assertEquals(1, allocator.size());
+        assertTrue(allocator.isInUse(7));
+
+        // 重复释放不应让计数变为负数
+        allocator.release(7);
+        allocator.release(7);
+        assertEquals(0, allocator.size());
+        assertFalse(allocator.isInUse(7));
+    }
+
+    /**
+     * 逐个分配并释放，直到游标停在lastId上
+     */
+    private void advanceCursorTo(int lastId) {
+        int id;
+        do {
+            id = allocator.allocate();
+            allocator.release(id);
+        } while (id != lastId);
+    }
+}